@@ -3,36 +3,54 @@ package my.cute.bot;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import my.cute.bot.commands.CommandFactory;
 import my.cute.bot.commands.GuildCommandSet;
 import my.cute.bot.commands.PermissionDatabase;
 import my.cute.bot.commands.PermissionLevel;
 import my.cute.bot.commands.PermissionManager;
 import my.cute.bot.commands.PermissionManagerImpl;
+import my.cute.bot.database.DatabaseEvictionManager;
 import my.cute.bot.database.GuildDatabase;
+import my.cute.bot.database.MaintenanceMonitor;
+import my.cute.bot.database.ShardCacheGovernor;
 import my.cute.bot.handlers.GuildMessageReceivedHandler;
 import my.cute.bot.handlers.PrivateMessageReceivedHandler;
 import my.cute.bot.preferences.GuildPreferences;
 import my.cute.bot.preferences.GuildPreferencesFactory;
 import my.cute.bot.preferences.wordfilter.WordFilter;
 import my.cute.bot.preferences.wordfilter.WordFilterFactory;
+import my.cute.bot.tasks.DatabaseExportTask;
+import my.cute.bot.tasks.FleetRebuildScheduler;
 import my.cute.bot.tasks.GuildDatabaseSetupTask;
+import my.cute.bot.tasks.MaintenanceOrchestrator;
 import my.cute.bot.util.ConcurrentFinalEntryMap;
 import my.cute.bot.util.MiscUtils;
+import my.cute.bot.util.RecentMessageCache;
 import my.cute.bot.util.StandardMessages;
 import my.cute.bot.util.WordfilterTimeoutException;
 import net.dv8tion.jda.api.JDA;
 import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.MessageChannel;
 import net.dv8tion.jda.api.events.guild.GuildJoinEvent;
 import net.dv8tion.jda.api.events.guild.GuildLeaveEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageDeleteEvent;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
 import net.dv8tion.jda.api.events.message.priv.PrivateMessageReceivedEvent;
 import net.dv8tion.jda.api.exceptions.ErrorHandler;
 import net.dv8tion.jda.api.hooks.ListenerAdapter;
@@ -71,6 +89,49 @@ public class MyListener extends ListenerAdapter {
 	}
 	
 	private static final Logger logger = LoggerFactory.getLogger(MyListener.class);
+	private static final int MAINTENANCE_CONCURRENCY = 2;
+	private static final long MAINTENANCE_IO_BYTES_PER_SECOND = 8 * 1024 * 1024;
+	/*
+	 * guilds come due for maintenance at staggered times, so check fairly often
+	 */
+	private static final long MAINTENANCE_CHECK_MINUTES = 30;
+	/*
+	 * databases are loaded on first use and unloaded after this long without any, so
+	 * guilds that are never active don't take up memory
+	 */
+	private static final long DATABASE_IDLE_TIMEOUT = TimeUnit.HOURS.toMillis(6);
+	private static final int MAX_RESIDENT_DATABASES = 64;
+	private static final long DATABASE_EVICTION_CHECK_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+	/*
+	 * total shards cached across all databases, shared out by activity. 4 databases' worth
+	 * at the old speed mode size
+	 */
+	private static final int SHARD_CACHE_BUDGET = 3200;
+	private static final long SHARD_CACHE_REBALANCE_INTERVAL = TimeUnit.MINUTES.toMillis(10);
+	/*
+	 * for rebuilding every guild at once. each rebuild scrapes through the api and builds a
+	 * speed mode database alongside the live one, so only a couple run at a time
+	 */
+	private static final int MAX_CONCURRENT_REBUILDS = 2;
+	private static final long REBUILD_MEMORY_HEADROOM = 512L * 1024 * 1024;
+	/*
+	 * processed messages are remembered for a day so deleting or editing them updates the 
+	 * database. most messages worth deleting are deleted soon after they're sent. the cache 
+	 * is shared by every guild, so at most this many messages / bytes of content are held in 
+	 * total, however busy any one guild gets
+	 */
+	private static final long RECENT_MESSAGE_WINDOW = TimeUnit.HOURS.toMillis(24);
+	private static final int RECENT_MESSAGE_MAX_ENTRIES = 262144;
+	private static final int RECENT_MESSAGE_MAX_BYTES = 16 * 1024 * 1024;
+	/*
+	 * database exports read and compress this much at a time between progress/cancellation
+	 * checks. exports run one at a time on their own thread, since a big one can take a while
+	 */
+	private static final int EXPORT_CHUNK_SIZE = 1024 * 1024;
+	/*
+	 * wordfilters save in the background. how long shutdown waits for those saves to finish
+	 */
+	private static final long WORDFILTER_SAVE_TIMEOUT = 10;
 	private final JDA jda;
 	private final ConcurrentFinalEntryMap<String, GuildPreferences> allPrefs;
 	private final ConcurrentFinalEntryMap<String, WordFilter> allFilters;
@@ -79,6 +140,14 @@ public class MyListener extends ListenerAdapter {
 	private final PermissionManager permissions;
 	private final PrivateMessageReceivedHandler privateMessageHandler;
 	private final ScheduledExecutorService taskScheduler;
+	private final MaintenanceOrchestrator maintenanceOrchestrator;
+	private final DatabaseEvictionManager evictionManager;
+	private final ShardCacheGovernor shardCacheGovernor;
+	private final FleetRebuildScheduler fleetRebuildScheduler;
+	private final RecentMessageCache recentMessages;
+	private final ExecutorService exportExecutor = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("database-export-%d").setDaemon(true).build());
+	private final Map<String, DatabaseExportTask> exports = new ConcurrentHashMap<>();
 	
 	/*
 	 * i think it's supposed to be bad practice to use "this" as an argument to something 
@@ -105,18 +174,33 @@ public class MyListener extends ListenerAdapter {
 		this.permissions = new PermissionManagerImpl(this.jda.getGuilds().size() * 4 / 3, this.jda);
 		this.guildMessageHandlers = new ConcurrentFinalEntryMap<>(numActiveGuilds * 4 / 3, 0.75f);
 		this.taskScheduler = Executors.newScheduledThreadPool(2);
+		this.maintenanceOrchestrator = new MaintenanceOrchestrator(MAINTENANCE_CONCURRENCY, MAINTENANCE_IO_BYTES_PER_SECOND);
+		this.evictionManager = new DatabaseEvictionManager(DATABASE_IDLE_TIMEOUT, MAX_RESIDENT_DATABASES, 
+				DATABASE_EVICTION_CHECK_INTERVAL);
+		this.shardCacheGovernor = new ShardCacheGovernor(SHARD_CACHE_BUDGET, SHARD_CACHE_REBALANCE_INTERVAL);
+		this.recentMessages = new RecentMessageCache(RECENT_MESSAGE_WINDOW, RECENT_MESSAGE_MAX_ENTRIES, 
+				RECENT_MESSAGE_MAX_BYTES);
 		
 		for(Guild guild : this.jda.getGuilds()) {
 			this.registerGuild(guild);
 		}
 		
 		this.privateMessageHandler = new PrivateMessageReceivedHandler(this, jda, this.allPrefs, this.allFilters, this.guildCommands, this.permissions);
+		this.fleetRebuildScheduler = new FleetRebuildScheduler(MAX_CONCURRENT_REBUILDS, REBUILD_MEMORY_HEADROOM, id ->
+		{
+			Guild guild = this.jda.getGuildById(id);
+			GuildPreferences prefs = this.allPrefs.get(id);
+			GuildDatabase database = this.getDatabase(id);
+			if(guild == null || prefs == null || database == null) return null;
+			return new GuildDatabaseSetupTask(this.jda, guild, prefs, database);
+		});
+		this.fleetRebuildScheduler.resume();
 		
 		
 		this.taskScheduler.scheduleWithFixedDelay(() -> 
 		{ 
 			this.checkMaintenance();
-		}, 1, 12, TimeUnit.HOURS);
+		}, 60, MAINTENANCE_CHECK_MINUTES, TimeUnit.MINUTES);
 		this.taskScheduler.scheduleWithFixedDelay(() ->
 		{
 			this.permissionMaintenance();
@@ -127,21 +211,6 @@ public class MyListener extends ListenerAdapter {
 	}
 	/*
 	 * TODO
-	 * check for message deletion event
-	 * if possible, have message deletion add the deleted content to a deletedmessages.txt file
-	 * during maintenance, scan this file over the entire workingset and remove each line in deleted
-	 * messages from the workingset once (and remove from database ofc). this way message deletion
-	 * will be reflected in db
-	 * -> message delete event predictably doesnt provide the deleted message content, just id. 
-	 * possible solution is to manually cache all messages within some timeframe, eg 24 hrs, along 
-	 * w/ their id; when a msg is deleted, check cache for it. manage cache during maintenance
-	 * most deleted msgs that are problematic will be deleted very shortly after posting so holding
-	 * them for a short timeframe like a day should keep things manageable + still be effective
-	 * could combine this w/ workingset by, say, appending msg id after datestamp? i think id rather
-	 * keep workingset trim tho
-	 * 
-	 * can psosibly do the same thing with message edits?
-	 * 
 	 * quick cmd to load db from backup
 	 */
 	
@@ -165,6 +234,39 @@ public class MyListener extends ListenerAdapter {
 		}
 	}
 	
+	/*
+	 * delete events only come with the message id, so this only does anything for messages 
+	 * still in the recent message cache (see RecentMessageCache)
+	 */
+	@Override
+	public void onGuildMessageDelete(GuildMessageDeleteEvent event) {
+		GuildMessageReceivedHandler handler = this.guildMessageHandlers.get(event.getGuild().getId());
+		if(handler == null) return;
+		try {
+			handler.handleDelete(event.getMessageIdLong());
+		} catch (IOException e) {
+			//see onGuildMessageReceived
+			logger.error("unrecoverable IOException encountered. shutting down", e);
+			this.shutdown();
+		}
+	}
+	
+	@Override
+	public void onGuildMessageUpdate(GuildMessageUpdateEvent event) {
+		if(event.getAuthor().isBot()) return;
+		GuildMessageReceivedHandler handler = this.guildMessageHandlers.get(event.getGuild().getId());
+		if(handler == null) return;
+		try {
+			handler.handleUpdate(event);
+		} catch (WordfilterTimeoutException e) {
+			this.handleWordfilterTimeout(event.getGuild(), e);
+		} catch (IOException e) {
+			//see onGuildMessageReceived
+			logger.error("unrecoverable IOException encountered. shutting down", e);
+			this.shutdown();
+		}
+	}
+	
 	@Override
 	public void onPrivateMessageReceived(PrivateMessageReceivedEvent event) {
 		if(event.getAuthor().isBot()) return;
@@ -211,7 +313,11 @@ public class MyListener extends ListenerAdapter {
 		 * discussion channel updating should occur periodically in maintenance
 		 * doesnt need to happen every maintenance tho and in fact should not
 		 */
-		this.guildMessageHandlers.forEach((id, handler) -> handler.checkMaintenance());
+		this.guildMessageHandlers.forEach((id, handler) -> 
+		{
+			if(handler.getDatabase().needsMaintenance()) 
+				this.maintenanceOrchestrator.submit(id, handler.getDatabase());
+		});
 	}
 	
 	/*
@@ -220,7 +326,7 @@ public class MyListener extends ListenerAdapter {
 	 * eg, a developer command so a dev can force maintenance if they need to
 	 */
 	public void forceMaintenance() {
-		this.guildMessageHandlers.forEach((id, handler) -> handler.maintenance());
+		this.guildMessageHandlers.forEach((id, handler) -> this.maintenanceOrchestrator.submit(id, handler.getDatabase()));
 	}
 	
 	/*
@@ -231,7 +337,90 @@ public class MyListener extends ListenerAdapter {
 	public void forceMaintenance(String id) {
 		GuildMessageReceivedHandler handler = this.guildMessageHandlers.get(id);
 		if(handler == null) throw new IllegalArgumentException("invalid guild id '" + id + "'");
-		handler.maintenance();
+		this.maintenanceOrchestrator.submit(id, handler.getDatabase());
+	}
+	
+	/*
+	 * progress of every queued or running maintenance job
+	 */
+	public List<MaintenanceMonitor> getMaintenanceStatus() {
+		return this.maintenanceOrchestrator.getStatus();
+	}
+	
+	/*
+	 * cancels maintenance on a specific server. returns false if there was none queued or running
+	 */
+	public boolean cancelMaintenance(String id) {
+		return this.maintenanceOrchestrator.cancel(id);
+	}
+	
+	/*
+	 * cancels maintenance on all servers. returns the number of jobs cancelled
+	 */
+	public int cancelMaintenance() {
+		return this.maintenanceOrchestrator.cancelAll();
+	}
+	
+	/*
+	 * rebuilds every guild's database, a few at a time. see FleetRebuildScheduler
+	 * throws IllegalStateException if a rebuild of every guild is already in progress
+	 */
+	public CompletableFuture<Void> rebuildAll() throws IOException {
+		return this.fleetRebuildScheduler.start(this.guildMessageHandlers.keySet());
+	}
+	
+	/*
+	 * progress of the current rebuild of every guild, or empty if there isn't one
+	 */
+	public List<String> getRebuildStatus() {
+		return this.fleetRebuildScheduler.getStatus();
+	}
+	
+	/*
+	 * drops guilds still waiting to be rebuilt. returns the number dropped
+	 */
+	public int cancelRebuilds() {
+		return this.fleetRebuildScheduler.cancel();
+	}
+	
+	/*
+	 * queues an export of the given guild's database, which reports back to the given 
+	 * channel. returns false if the guild already has an export queued or running
+	 */
+	public boolean startExport(String id, MessageChannel channel) {
+		GuildDatabase database = this.getDatabase(id);
+		if(database == null) throw new IllegalArgumentException("no such guild id '" + id + "'");
+		DatabaseExportTask task = new DatabaseExportTask(id, database, channel, EXPORT_CHUNK_SIZE);
+		if(this.exports.putIfAbsent(id, task) != null) return false;
+		this.exportExecutor.execute(() ->
+		{
+			try {
+				task.call();
+			} catch (Exception e) {
+				//logged and reported by the task
+			} finally {
+				this.exports.remove(id, task);
+			}
+		});
+		return true;
+	}
+	
+	/*
+	 * progress of the given guild's export, or null if it doesn't have one
+	 */
+	public String getExportProgress(String id) {
+		DatabaseExportTask task = this.exports.get(id);
+		return task == null ? null : task.getProgress();
+	}
+	
+	/*
+	 * returns false if the given guild doesn't have an export to cancel
+	 */
+	public boolean cancelExport(String id) {
+		DatabaseExportTask task = this.exports.get(id);
+		if(task == null) return false;
+		task.cancel();
+		return true;
 	}
 	
 	private void permissionMaintenance() {
@@ -253,7 +442,18 @@ public class MyListener extends ListenerAdapter {
 	}
 	
 	public void shutdown() {
+		this.maintenanceOrchestrator.shutdown();
+		this.fleetRebuildScheduler.shutdown();
+		this.exports.values().forEach(DatabaseExportTask::cancel);
+		this.exportExecutor.shutdownNow();
+		this.evictionManager.shutdown();
+		this.shardCacheGovernor.shutdown();
 		this.guildMessageHandlers.forEach((id, handler) -> handler.prepareForShutdown());
+		try {
+			WordFilterFactory.flushPendingSaves(WORDFILTER_SAVE_TIMEOUT, TimeUnit.SECONDS);
+		} catch (InterruptedException | TimeoutException e) {
+			logger.warn(this + ": wordfilter saves didn't finish before shutdown", e);
+		}
 		this.taskScheduler.shutdownNow();
 		this.privateMessageHandler.getExecutor().shutdownNow();
 		OkHttpClient client = this.jda.getHttpClient();
@@ -276,8 +476,8 @@ public class MyListener extends ListenerAdapter {
 	 * maps and whatever so they can be received wherever they're needed. note if an already
 	 * registered guild is passed in to this, nothing will break, although it will probably
 	 * cost a bit of processing time (mostly since a new GuildMessageReceivedHandler will be
-	 * constructed, which requires loading that guild's database. the handler won't go in the
-	 * map and will eventually be garbage collected but loading db can take some time)
+	 * constructed. the handler won't go in the map and will eventually be garbage collected.
+	 * its database is only loaded when it's first used, so that part is cheap)
 	 * @param guild the new guild to manage
 	 * @return true if the guild is newly registered, or false if it was already registered
 	 * @throws IOException if an unknown IOException occurs when trying to load resources from 
@@ -295,7 +495,8 @@ public class MyListener extends ListenerAdapter {
 		this.permissions.addGuild(guild);
 		PermissionDatabase perms = this.permissions.getPermissionDatabase(guild.getId());
 		return this.guildMessageHandlers.put(guild.getId(), new GuildMessageReceivedHandler(guild, 
-				this.jda, prefs, filter, perms, this.taskScheduler, commands)) == null;
+				this.jda, prefs, filter, perms, this.taskScheduler, commands, this.evictionManager, 
+				this.shardCacheGovernor, this.recentMessages)) == null;
 	}
 	
 	private boolean deregisterGuild(Guild guild) throws IOException {
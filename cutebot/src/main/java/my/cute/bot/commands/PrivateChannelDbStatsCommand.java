@@ -0,0 +1,81 @@
+package my.cute.bot.commands;
+
+import java.util.concurrent.TimeUnit;
+
+import my.cute.bot.MyListener;
+import my.cute.bot.database.DatabaseStats;
+import my.cute.bot.database.GuildDatabase;
+import my.cute.bot.database.LinePoolStats;
+import my.cute.bot.util.MiscUtils;
+import net.dv8tion.jda.api.entities.Guild;
+import net.dv8tion.jda.api.entities.Message;
+
+public class PrivateChannelDbStatsCommand extends PrivateChannelCommand {
+
+	final static String NAME = "dbstats";
+	private final static String DESCRIPTION = "shows size and performance stats for the provided guild's database";
+	
+	private final MyListener bot;
+	
+	public PrivateChannelDbStatsCommand(MyListener bot) {
+		super(NAME, DESCRIPTION, PermissionLevel.DEVELOPER, 1, 1);
+		this.bot = bot;
+	}
+	
+	@Override
+	public void execute(Message message, String[] params) {
+		GuildDatabase db = this.bot.getDatabase(params[1]);
+		if(db == null) {
+			message.getChannel().sendMessage("no such guild id found").queue();
+			return;
+		}
+		DatabaseStats stats = db.stats();
+		Guild guild = message.getJDA().getGuildById(params[1]);
+		StringBuilder sb = new StringBuilder();
+		sb.append("database stats for ");
+		sb.append(guild == null ? "guild id '" + params[1] + "'" : MiscUtils.getGuildString(guild));
+		sb.append(System.lineSeparator());
+		sb.append("```");
+		sb.append(System.lineSeparator());
+		sb.append("mode: ").append(stats.isPrioritizeSpeed() ? "speed" : "memory");
+		sb.append(", database age: ").append(stats.getDatabaseAge()).append(" days");
+		if(stats.isLoaded()) {
+			sb.append(", shard cache: ").append(stats.getShardCacheSize());
+		} else {
+			sb.append(", not loaded");
+		}
+		sb.append(System.lineSeparator());
+		sb.append("lines in database: ");
+		sb.append(stats.getWorkingSetLines() < 0 ? "unknown until next maintenance" : String.valueOf(stats.getWorkingSetLines()));
+		sb.append(System.lineSeparator());
+		sb.append("since startup: ").append(stats.getLinesProcessed()).append(" processed, ");
+		sb.append(stats.getLinesRejected()).append(" rejected, ");
+		sb.append(stats.getLinesRemoved()).append(" removed, ");
+		sb.append(stats.getLinesRetracted()).append(" retracted");
+		sb.append(System.lineSeparator());
+		sb.append("process latency: ").append(stats.getProcessLatency());
+		sb.append(System.lineSeparator());
+		sb.append("generate latency: ").append(stats.getGenerateLatency());
+		sb.append(System.lineSeparator());
+		LinePoolStats pool = stats.getLinePoolStats();
+		sb.append("line pool: ").append(String.format("%.1f", pool.getHitRate() * 100)).append("% hit rate (");
+		sb.append(pool.getHits()).append(" hits, ").append(pool.getMisses()).append(" misses), ");
+		sb.append(pool.getSize()).append("/").append(pool.getCapacity()).append(" lines ready");
+		sb.append(System.lineSeparator());
+		if(stats.isDiskUsageMeasured()) {
+			sb.append("disk: database ").append(stats.getDatabaseBytes() / 1024).append("KB in ");
+			sb.append(stats.getDatabaseFiles()).append(" files, workingset ");
+			sb.append(stats.getWorkingSetBytes() / 1024).append("KB, backups ");
+			sb.append(stats.getBackupBytes() / 1024).append("KB, log ");
+			sb.append(stats.getLogBytes() / 1024).append("KB (measured ");
+			sb.append(TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - stats.getDiskMeasuredAt()));
+			sb.append(" mins ago)");
+		} else {
+			sb.append("disk: not measured yet");
+		}
+		sb.append(System.lineSeparator());
+		sb.append("```");
+		message.getChannel().sendMessage(sb.toString()).queue();
+	}
+
+}
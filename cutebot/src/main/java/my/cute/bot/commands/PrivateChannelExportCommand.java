@@ -7,23 +7,38 @@ import net.dv8tion.jda.api.entities.Message;
 public class PrivateChannelExportCommand extends PrivateChannelCommand {
 
 	final static String NAME = "export";
-	private final static String DESCRIPTION = "exports the provided guild's database to a txt file";
+	private final static String DESCRIPTION = "exports the provided guild's database to a gzipped txt file. "
+			+ "use 'status' or 'cancel' after the guild id to check on or stop an export in progress";
 	
 	private final MyListener bot;
 	
 	public PrivateChannelExportCommand(MyListener bot) {
-		super(NAME, DESCRIPTION, PermissionLevel.DEVELOPER, 1, 1);
+		super(NAME, DESCRIPTION, PermissionLevel.DEVELOPER, 1, 2);
 		this.bot = bot;
 	}
 	
 	@Override
 	public void execute(Message message, String[] params) {
 		GuildDatabase db = this.bot.getDatabase(params[1]);
-		if(db != null) {
-			message.getChannel().sendMessage("exporting database to txt for guild id '" + params[1] + "'").queue();
-			db.exportToText();
-		} else {
+		if(db == null) {
 			message.getChannel().sendMessage("no such guild id found").queue();
+			return;
+		}
+		if(params.length == 3 && params[2].equals("status")) {
+			String progress = this.bot.getExportProgress(params[1]);
+			message.getChannel().sendMessage(progress == null ? "no export in progress for guild id '" + params[1] + "'" 
+					: "export for guild id '" + params[1] + "': " + progress).queue();
+		} else if(params.length == 3 && params[2].equals("cancel")) {
+			if(!this.bot.cancelExport(params[1])) {
+				message.getChannel().sendMessage("no export in progress for guild id '" + params[1] + "'").queue();
+			}
+		} else if(params.length == 3) {
+			message.getChannel().sendMessage("unrecognized option '" + params[2] + "'").queue();
+		} else if(this.bot.startExport(params[1], message.getChannel())) {
+			message.getChannel().sendMessage("queued export for guild id '" + params[1] + "'").queue();
+		} else {
+			message.getChannel().sendMessage("guild id '" + params[1] + "' already has an export in progress. use "
+					+ "'export " + params[1] + " status' to check on it").queue();
 		}
 	}
 
@@ -1,29 +1,57 @@
 package my.cute.bot.commands;
 
+import java.util.List;
+
 import my.cute.bot.MyListener;
+import my.cute.bot.database.MaintenanceMonitor;
+import my.cute.bot.util.MiscUtils;
+import net.dv8tion.jda.api.MessageBuilder;
+import net.dv8tion.jda.api.MessageBuilder.SplitPolicy;
 import net.dv8tion.jda.api.entities.Message;
 
 public class PrivateChannelMaintCommand extends PrivateChannelCommand {
 	
 	final static String NAME = "maint";
-	private final static String DESCRIPTION = "force start maintenance on a specific server or all servers";
+	private final static String DESCRIPTION = "force start maintenance on a specific server or all servers. use "
+			+ "'status' to see progress of running maintenance, or 'cancel <server id|all>' to stop it";
 	
 	private MyListener bot;
 
 	PrivateChannelMaintCommand(MyListener bot) {
-		super(NAME, DESCRIPTION, PermissionLevel.DEVELOPER, 1, 1);
+		super(NAME, DESCRIPTION, PermissionLevel.DEVELOPER, 1, 2);
 		this.bot = bot;
 	}
 
 	@Override
 	public void execute(Message message, String[] params) {
 		try {
-			if(params[1].equals("all")) {
+			if(params[1].equals("status")) {
+				List<MaintenanceMonitor> status = this.bot.getMaintenanceStatus();
+				if(status.isEmpty()) {
+					message.getChannel().sendMessage("no maintenance queued or running").queue();
+				} else {
+					//one line per server, so after 'maint all' this is split over several messages
+					MessageBuilder builder = new MessageBuilder();
+					status.forEach(monitor -> builder.append(monitor).append(System.lineSeparator()));
+					MiscUtils.sendMessages(message.getChannel(), builder.buildAll(SplitPolicy.NEWLINE));
+				}
+			} else if(params[1].equals("cancel")) {
+				if(params.length < 3) {
+					message.getChannel().sendMessage("usage: maint cancel <server id|all>").queue();
+				} else if(params[2].equals("all")) {
+					int cancelled = this.bot.cancelMaintenance();
+					message.getChannel().sendMessage("cancelling maintenance on " + cancelled + " servers").queue();
+				} else if(this.bot.cancelMaintenance(params[2])) {
+					message.getChannel().sendMessage("cancelling maintenance on server " + params[2]).queue();
+				} else {
+					message.getChannel().sendMessage("no maintenance queued or running on server " + params[2]).queue();
+				}
+			} else if(params[1].equals("all")) {
 				this.bot.forceMaintenance();
-				message.getChannel().sendMessage("maintenance started on all servers").queue();
+				message.getChannel().sendMessage("maintenance queued on all servers").queue();
 			} else {
 				this.bot.forceMaintenance(params[1]);
-				message.getChannel().sendMessage("maintenance started on server " + this.bot.getGuildString(params[1])).queue();
+				message.getChannel().sendMessage("maintenance queued on server " + this.bot.getGuildString(params[1])).queue();
 			}
 		} catch (IllegalArgumentException ex) {
 			message.getChannel().sendMessage("invalid server id '" + params[1] + "'").queue();
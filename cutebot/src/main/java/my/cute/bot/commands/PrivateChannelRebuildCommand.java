@@ -1,7 +1,6 @@
 package my.cute.bot.commands;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
@@ -22,7 +21,8 @@ public class PrivateChannelRebuildCommand extends PrivateChannelCommand {
 
 	private final static Logger logger = LoggerFactory.getLogger(PrivateChannelRebuildCommand.class);
 	final static String NAME = "rebuild";
-	private final static String DESCRIPTION = "force rebuild of a specific server's database, or all servers' databases (!)";
+	private final static String DESCRIPTION = "force rebuild of a specific server's database, or all servers' databases (!). "
+			+ "use 'status' to see progress of a rebuild on all servers, or 'cancel' to drop servers that haven't started yet";
 
 	private final MyListener bot;
 	private final ExecutorService executor;
@@ -38,46 +38,43 @@ public class PrivateChannelRebuildCommand extends PrivateChannelCommand {
 	@Override
 	public void execute(Message message, String[] params) {
 		JDA jda = message.getJDA();
-		if(params[1].equals("all")) {
+		if(params[1].equals("status")) {
+			List<String> status = this.bot.getRebuildStatus();
+			if(status.isEmpty()) {
+				message.getChannel().sendMessage("no rebuild of all guilds in progress").queue();
+			} else {
+				message.getChannel().sendMessage(String.join(System.lineSeparator(), status)).queue();
+			}
+		} else if(params[1].equals("cancel")) {
+			int cancelled = this.bot.cancelRebuilds();
+			message.getChannel().sendMessage("dropped " + cancelled + " queued guilds. running rebuilds will finish").queue();
+		} else if(params[1].equals("all")) {
+			CompletableFuture<Void> rebuild;
+			try {
+				rebuild = this.bot.rebuildAll();
+			} catch (IllegalStateException e) {
+				message.getChannel().sendMessage("a rebuild of all guilds is already in progress. use 'rebuild status' "
+						+ "to check on it").queue();
+				return;
+			} catch (IOException e) {
+				logger.warn(this + ": unknown IOException when starting rebuild on all guilds", e);
+				message.getChannel().sendMessage("unknown ioexception").queue();
+				return;
+			}
 			
 			logger.info(this + ": beginning rebuild on all guilds");
-			message.getChannel().sendMessage("beginning rebuild on all guilds").queue();
-			
-			List<CompletableFuture<Void>> futures = new ArrayList<>();
+			message.getChannel().sendMessage("beginning rebuild on all guilds. use 'rebuild status' to check progress").queue();
 			
 			Activity previousActivity = jda.getPresence().getActivity();
 			jda.getPresence().setActivity(Activity.playing("VERY busy"));
 			
-			for(Guild guild : jda.getGuilds()) {
-				String id = guild.getId();
-				GuildPreferences guildPrefs = this.allPrefs.get(id);
-				if(guildPrefs != null) {
-					/*
-					 * this feels terrible but idk how else to do this
-					 * see GuildDatabaseSetupTask.call() for reasoning / dilemma that motivated me to do it this way
-					 */
-					CompletableFuture.supplyAsync(() -> {
-						try {
-							return new GuildDatabaseSetupTask(jda, guild, guildPrefs, this.bot.getDatabase(id)).call();
-						} catch (Exception e) {
-							return CompletableFuture.<Void>failedFuture(e);
-						}
-					}, this.executor).whenComplete((result, throwable) -> {
-						futures.add(result);
-					});
-				} else {
-					logger.warn(this + ": found id in guild list '" + id + "' with no corresponding prefs object?");
-				}
-			}
-			
-			CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
-			.whenComplete((result, throwable) -> {
+			rebuild.whenComplete((result, throwable) -> {
 				if(throwable == null) {
 					logger.info(this + ": successfully completed rebuild on all guilds");
 					message.getChannel().sendMessage("successfully completed rebuild on all guilds").queue();
 				} else {
-					logger.info(this + ": encountered problems during rebuild. likely not successful");
-					message.getChannel().sendMessage("encountered problems during rebuild. likely not successful").queue();
+					logger.info(this + ": encountered problems during rebuild. likely not successful", throwable);
+					message.getChannel().sendMessage("encountered problems during rebuild: " + throwable.getMessage()).queue();
 				}
 				jda.getPresence().setActivity(previousActivity);
 			});
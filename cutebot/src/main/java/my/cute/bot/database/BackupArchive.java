@@ -0,0 +1,403 @@
+package my.cute.bot.database;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * compressed container for a backup's files (the workingset segments and whatever the
+ * markov database wrote for its backup)
+ *
+ * files are split into chunks of at most CHUNK_SIZE bytes and every chunk is deflated on
+ * its own, one after another, so writing an archive is a single streaming pass with one
+ * chunk in memory. the index of files and chunk offsets goes at the end, followed by a
+ * footer pointing back to it. since chunks are independent, extracting can inflate all of
+ * them in parallel straight into place in the output files
+ *
+ * layout:
+ *   int MAGIC, int VERSION
+ *   chunk data (zlib streams, back to back)
+ *   int entry count, then per entry: utf path (relative, '/' separated), long size,
+ *     int chunk count, then per chunk: long offset, int compressed length, int raw length
+ *   long index offset, int MAGIC
+ */
+final class BackupArchive {
+
+	private static final Logger logger = LoggerFactory.getLogger(BackupArchive.class);
+	private static final int MAGIC = 0x43424152;
+	private static final int VERSION = 1;
+	private static final int CHUNK_SIZE = 1024 * 1024;
+	private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES;
+	/*
+	 * bytes an index entry takes with an empty path and no chunks, and bytes per chunk
+	 */
+	private static final int MIN_ENTRY_SIZE = Short.BYTES + Long.BYTES + Integer.BYTES;
+	private static final int CHUNK_INDEX_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+	/*
+	 * shared by every restore. daemon threads, so it never holds up shutdown
+	 */
+	private static final ExecutorService EXTRACTOR = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+			new ThreadFactoryBuilder().setNameFormat("backup-extract-%d").setDaemon(true).build());
+
+	private static final class Chunk {
+		private final long offset;
+		private final int compressedLength;
+		private final int rawLength;
+
+		private Chunk(long offset, int compressedLength, int rawLength) {
+			this.offset = offset;
+			this.compressedLength = compressedLength;
+			this.rawLength = rawLength;
+		}
+	}
+
+	private static final class Entry {
+		private final String path;
+		private final long size;
+		private final List<Chunk> chunks;
+
+		private Entry(String path, long size, List<Chunk> chunks) {
+			this.path = path;
+			this.size = size;
+			this.chunks = chunks;
+		}
+	}
+
+	/*
+	 * sizes of an archive that was just written
+	 */
+	static final class Stats {
+		private final int files;
+		private final long rawBytes;
+		private final long archiveBytes;
+
+		private Stats(int files, long rawBytes, long archiveBytes) {
+			this.files = files;
+			this.rawBytes = rawBytes;
+			this.archiveBytes = archiveBytes;
+		}
+
+		int getFiles() {
+			return this.files;
+		}
+
+		long getRawBytes() {
+			return this.rawBytes;
+		}
+
+		long getArchiveBytes() {
+			return this.archiveBytes;
+		}
+	}
+
+	private BackupArchive() {}
+
+	/**
+	 * writes the given files into a new archive, replacing any existing one. the archive is
+	 * written to a temp file and moved into place, so a half-written archive never replaces
+	 * a good one
+	 * @param archive the archive file to write
+	 * @param base directory that stored paths are relative to. every file must be under it
+	 * @param files the files to store
+	 * @return sizes of the written archive
+	 * @throws IOException
+	 */
+	static Stats write(Path archive, Path base, List<Path> files) throws IOException {
+		Path temp = archive.resolveSibling(archive.getFileName() + ".tmp");
+		List<Entry> entries = new ArrayList<>(files.size());
+		long rawBytes = 0;
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try (CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)));
+				DataOutputStream output = new DataOutputStream(counter)) {
+			output.writeInt(MAGIC);
+			output.writeInt(VERSION);
+			byte[] raw = new byte[CHUNK_SIZE];
+			byte[] compressed = new byte[CHUNK_SIZE + CHUNK_SIZE / 8];
+			for(Path file : files) {
+				List<Chunk> chunks = new ArrayList<>();
+				long size = 0;
+				try (InputStream input = Files.newInputStream(file)) {
+					int length;
+					while((length = readFully(input, raw)) > 0) {
+						deflater.reset();
+						deflater.setInput(raw, 0, length);
+						deflater.finish();
+						long offset = counter.getCount();
+						int compressedLength = 0;
+						while(!deflater.finished()) {
+							int count = deflater.deflate(compressed);
+							output.write(compressed, 0, count);
+							compressedLength += count;
+						}
+						chunks.add(new Chunk(offset, compressedLength, length));
+						size += length;
+					}
+				}
+				entries.add(new Entry(base.relativize(file).toString().replace(base.getFileSystem().getSeparator(), "/"),
+						size, chunks));
+				rawBytes += size;
+			}
+			long indexOffset = counter.getCount();
+			output.writeInt(entries.size());
+			for(Entry entry : entries) {
+				output.writeUTF(entry.path);
+				output.writeLong(entry.size);
+				output.writeInt(entry.chunks.size());
+				for(Chunk chunk : entry.chunks) {
+					output.writeLong(chunk.offset);
+					output.writeInt(chunk.compressedLength);
+					output.writeInt(chunk.rawLength);
+				}
+			}
+			output.writeLong(indexOffset);
+			output.writeInt(MAGIC);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		} finally {
+			deflater.end();
+		}
+		Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING);
+		return new Stats(entries.size(), rawBytes, Files.size(archive));
+	}
+
+	/**
+	 * extracts every file in the archive under the given directory, overwriting any that
+	 * already exist. chunks are inflated in parallel. if extraction fails partway, every 
+	 * file and directory it created is deleted again, so nothing half-extracted is left 
+	 * to be mistaken for a backup
+	 * @param archive the archive to extract
+	 * @param base directory to extract into
+	 * @return the extracted files
+	 * @throws IOException if the archive is malformed or corrupt, or on any other io problem
+	 */
+	static List<Path> extract(Path archive, Path base) throws IOException {
+		List<Path> extracted = new ArrayList<>();
+		List<Path> createdDirectories = new ArrayList<>();
+		List<FileChannel> outputs = new ArrayList<>();
+		boolean succeeded = false;
+		try (FileChannel input = FileChannel.open(archive, StandardOpenOption.READ)) {
+			List<Entry> entries = readIndex(input);
+			List<Future<?>> tasks = new ArrayList<>();
+			try {
+				for(Entry entry : entries) {
+					Path file = base.resolve(entry.path).normalize();
+					if(!file.startsWith(base)) throw new IOException("archive entry outside of base directory: " + entry.path);
+					Path parent = file.getParent();
+					if(parent != null && !Files.isDirectory(parent)) {
+						//remember the outermost directory that didn't exist, for cleaning up
+						Path created = parent;
+						while(created.getParent() != null && !Files.exists(created.getParent())) {
+							created = created.getParent();
+						}
+						Files.createDirectories(parent);
+						createdDirectories.add(created);
+					}
+					//recorded first, so a file is cleaned up even if opening it fails partway
+					extracted.add(file);
+					FileChannel output = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+							StandardOpenOption.TRUNCATE_EXISTING);
+					outputs.add(output);
+					long position = 0;
+					for(Chunk chunk : entry.chunks) {
+						final long outputPosition = position;
+						tasks.add(EXTRACTOR.submit(() ->
+						{
+							inflateChunk(input, chunk, output, outputPosition);
+							return null;
+						}));
+						position += chunk.rawLength;
+					}
+				}
+				for(Future<?> task : tasks) {
+					task.get();
+				}
+				succeeded = true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while extracting " + archive, e);
+			} catch (ExecutionException e) {
+				if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException("exception while extracting " + archive, e.getCause());
+			} finally {
+				tasks.forEach(task -> task.cancel(true));
+			}
+		} finally {
+			for(FileChannel output : outputs) {
+				output.close();
+			}
+			if(!succeeded) deleteExtracted(extracted, createdDirectories);
+		}
+		return extracted;
+	}
+	
+	/*
+	 * best effort, since it's only called while another exception is on its way out
+	 */
+	private static void deleteExtracted(List<Path> files, List<Path> directories) {
+		for(Path file : files) {
+			try {
+				Files.deleteIfExists(file);
+			} catch (IOException e) {
+				logger.error("couldn't delete partly extracted file " + file + ": " + e, e);
+			}
+		}
+		for(int i=directories.size() - 1; i >= 0; i--) {
+			try (Stream<Path> paths = Files.walk(directories.get(i))) {
+				for(Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+					Files.deleteIfExists(path);
+				}
+			} catch (NoSuchFileException e) {
+				//already gone
+			} catch (IOException e) {
+				logger.error("couldn't delete partly extracted directory " + directories.get(i) + ": " + e, e);
+			}
+		}
+	}
+
+	/**
+	 * checks that every chunk in the archive inflates to the right size with a good
+	 * checksum, without writing anything
+	 * @param archive the archive to check
+	 * @throws IOException if the archive is malformed or corrupt, or on any other io problem
+	 */
+	static void verify(Path archive) throws IOException {
+		try (FileChannel input = FileChannel.open(archive, StandardOpenOption.READ)) {
+			for(Entry entry : readIndex(input)) {
+				for(Chunk chunk : entry.chunks) {
+					inflate(input, chunk);
+				}
+			}
+		}
+	}
+
+	private static List<Entry> readIndex(FileChannel input) throws IOException {
+		long archiveSize = input.size();
+		if(archiveSize < 2 * Integer.BYTES + Integer.BYTES + FOOTER_SIZE) throw new IOException("archive too short");
+		ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+		readFully(input, footer, archiveSize - FOOTER_SIZE);
+		footer.flip();
+		long indexOffset = footer.getLong();
+		if(footer.getInt() != MAGIC || indexOffset < 2 * Integer.BYTES || indexOffset > archiveSize - FOOTER_SIZE) {
+			throw new IOException("archive footer is corrupt");
+		}
+		input.position(0);
+		DataInputStream header = new DataInputStream(Channels.newInputStream(input));
+		if(header.readInt() != MAGIC) throw new IOException("not a backup archive");
+		int version = header.readInt();
+		if(version != VERSION) throw new IOException("unsupported archive version " + version);
+
+		input.position(indexOffset);
+		DataInputStream index = new DataInputStream(Channels.newInputStream(input));
+		/*
+		 * counts are checked against how many entries or chunks could fit in the index at
+		 * all, so a corrupt count fails here instead of trying to allocate a huge list
+		 */
+		long indexSize = archiveSize - FOOTER_SIZE - indexOffset;
+		int entryCount = index.readInt();
+		if(entryCount < 0 || entryCount > indexSize / MIN_ENTRY_SIZE) throw new IOException("archive index is corrupt");
+		List<Entry> entries = new ArrayList<>(entryCount);
+		for(int i=0; i < entryCount; i++) {
+			String path = index.readUTF();
+			long size = index.readLong();
+			int chunkCount = index.readInt();
+			if(chunkCount < 0 || chunkCount > indexSize / CHUNK_INDEX_SIZE) throw new IOException("archive index is corrupt");
+			List<Chunk> chunks = new ArrayList<>(chunkCount);
+			long total = 0;
+			for(int j=0; j < chunkCount; j++) {
+				Chunk chunk = new Chunk(index.readLong(), index.readInt(), index.readInt());
+				if(chunk.offset < 0 || chunk.compressedLength < 0 || chunk.offset + chunk.compressedLength > indexOffset
+						|| chunk.rawLength < 0 || chunk.rawLength > CHUNK_SIZE) {
+					throw new IOException("archive index is corrupt");
+				}
+				chunks.add(chunk);
+				total += chunk.rawLength;
+			}
+			if(total != size) throw new IOException("archive index is corrupt");
+			entries.add(new Entry(path, size, chunks));
+		}
+		return entries;
+	}
+
+	private static void inflateChunk(FileChannel input, Chunk chunk, FileChannel output, long outputPosition)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(inflate(input, chunk));
+		long position = outputPosition;
+		while(buffer.hasRemaining()) {
+			position += output.write(buffer, position);
+		}
+	}
+
+	private static byte[] inflate(FileChannel input, Chunk chunk) throws IOException {
+		ByteBuffer compressed = ByteBuffer.allocate(chunk.compressedLength);
+		readFully(input, compressed, chunk.offset);
+		byte[] raw = new byte[chunk.rawLength];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed.array());
+			int length = 0;
+			while(length < raw.length && !inflater.finished()) {
+				int count = inflater.inflate(raw, length, raw.length - length);
+				if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				length += count;
+			}
+			//zlib streams end with a checksum, so this also catches corrupt data
+			if(length != raw.length || !inflater.finished()) throw new IOException("archive chunk at " + chunk.offset + " is corrupt");
+		} catch (DataFormatException e) {
+			throw new IOException("archive chunk at " + chunk.offset + " is corrupt", e);
+		} finally {
+			inflater.end();
+		}
+		return raw;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			int count = channel.read(buffer, position);
+			if(count < 0) throw new EOFException("unexpected end of archive");
+			position += count;
+		}
+	}
+
+	/*
+	 * fills the buffer as far as possible. returns the number of bytes read, 0 at end of stream
+	 */
+	private static int readFully(InputStream input, byte[] buffer) throws IOException {
+		int total = 0;
+		int count;
+		while(total < buffer.length && (count = input.read(buffer, total, buffer.length - total)) > 0) {
+			total += count;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,140 @@
+package my.cute.bot.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+ * list of the files in a backup, so a later backup can hard-link files that haven't
+ * changed instead of writing them again
+ *
+ * the manifest lives in the backup directory and records the size and modification time
+ * the live file had when it was backed up. any file whose live copy still has the same 
+ * name, size and modification time can be linked. names are relative to the backup 
+ * directory, with / as the separator
+ *
+ * format is one file per line: name, size, modified time (epoch ms), and whether the file
+ * was linked or copied, tab separated
+ */
+final class BackupManifest {
+
+	static final String FILE_NAME = "manifest.txt";
+	private static final Logger logger = LoggerFactory.getLogger(BackupManifest.class);
+
+	static final class Entry {
+		private final String name;
+		private final long size;
+		private final long lastModified;
+		private final boolean linked;
+
+		private Entry(String name, long size, long lastModified, boolean linked) {
+			this.name = name;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.linked = linked;
+		}
+
+		String getName() {
+			return this.name;
+		}
+
+		long getSize() {
+			return this.size;
+		}
+
+		long getLastModified() {
+			return this.lastModified;
+		}
+
+		boolean isLinked() {
+			return this.linked;
+		}
+
+		/*
+		 * whether this entry was backed up from a live file with the given attributes
+		 */
+		boolean matches(long size, long lastModified) {
+			return this.size == size && this.lastModified == lastModified;
+		}
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+	void add(String name, long size, long lastModified, boolean linked) {
+		this.entries.put(name, new Entry(name, size, lastModified, linked));
+	}
+
+	Entry get(String name) {
+		return this.entries.get(name);
+	}
+
+	Collection<Entry> getEntries() {
+		return Collections.unmodifiableCollection(this.entries.values());
+	}
+
+	/*
+	 * written to a temp file and moved into place, so a manifest is either complete or
+	 * missing
+	 */
+	void write(Path directory) throws IOException {
+		Path temp = directory.resolve(FILE_NAME + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			for(Entry entry : this.entries.values()) {
+				writer.write(entry.name + "\t" + entry.size + "\t" + entry.lastModified + "\t"
+						+ (entry.linked ? "linked" : "copied"));
+				writer.newLine();
+			}
+		}
+		Files.move(temp, directory.resolve(FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/*
+	 * returns null if the directory has no manifest (eg a backup from before manifests
+	 * existed) or it can't be parsed. either way, nothing in that backup can be linked
+	 */
+	static BackupManifest read(Path directory) throws IOException {
+		BackupManifest manifest = new BackupManifest();
+		try (BufferedReader reader = Files.newBufferedReader(directory.resolve(FILE_NAME), StandardCharsets.UTF_8)) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.isEmpty()) continue;
+				String[] fields = line.split("\t");
+				if(fields.length != 4) return null;
+				manifest.add(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3].equals("linked"));
+			}
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		return manifest;
+	}
+	
+	/*
+	 * hard-links a new backup file to an existing one. returns false if the link couldn't 
+	 * be made, eg the file system doesn't support hard links or the existing file is gone 
+	 * or doesn't look right, in which case the caller falls back to copying
+	 */
+	static boolean createLink(Path link, Path existing, long expectedSize) {
+		try {
+			if(Files.size(existing) != expectedSize) return false;
+			Files.createLink(link, existing);
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			logger.debug("couldn't link backup file " + existing + ", copying instead: " + e);
+			return false;
+		}
+	}
+}
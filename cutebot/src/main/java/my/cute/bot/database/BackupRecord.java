@@ -26,12 +26,21 @@ public class BackupRecord implements Maintainable {
 	private final long duration;
 	private final String name;
 	private final Path lastMaintenanceFile;
+	/*
+	 * whether the backup is saved as a compressed archive, see BackupArchive
+	 */
+	private final boolean compressed;
 	
 	BackupRecord(String id, String name, TimeUnit unit, int duration) {
+		this(id, name, unit, duration, false);
+	}
+	
+	BackupRecord(String id, String name, TimeUnit unit, int duration, boolean compressed) {
 		this.parentId = id;
 		this.name = name;
 		this.duration = unit.toMillis(duration);
 		this.lastMaintenanceFile = PathUtils.getBackupLastMaintenanceFile(this.parentId, this.name);
+		this.compressed = compressed;
 	}
 	
 	@Override
@@ -66,6 +75,10 @@ public class BackupRecord implements Maintainable {
 	String getName() {
 		return this.name;
 	}
+	
+	boolean isCompressed() {
+		return this.compressed;
+	}
 
 	@Override
 	public int hashCode() {
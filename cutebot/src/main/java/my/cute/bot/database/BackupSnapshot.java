@@ -0,0 +1,210 @@
+package my.cute.bot.database;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * a point-in-time view of some live files, so they can be backed up without holding the
+ * database's lock. taking the snapshot only hard-links each file into a snapshot directory
+ * (copying it if links aren't supported) and records its size and modification time, so
+ * it's quick enough to do inside the write lock. copying it into a backup happens later,
+ * with no lock held
+ *
+ * a link shares later changes to the live file. append-only files (workingset segments)
+ * are fine, since only as much as the snapshot recorded is copied. anything else (the
+ * markov database's files) is checked again after it's copied, and if it was changed
+ * in place meanwhile, the backup fails rather than mixing old and new state. files that
+ * are replaced rather than modified keep the snapshot's version either way
+ *
+ * files added with copy() are copied into the snapshot right away, and never linked from
+ * or recorded in a backup's manifest (eg the workingset's retractions file, which is
+ * appended to without being a segment)
+ */
+final class BackupSnapshot {
+
+	private final Path directory;
+	private final boolean appendOnly;
+	/*
+	 * name in the snapshot -> size and modification time as of the snapshot
+	 */
+	private final BackupManifest taken = new BackupManifest();
+	private final List<String> copied = new ArrayList<>();
+
+	/*
+	 * directory must not exist yet
+	 */
+	BackupSnapshot(Path directory, boolean appendOnly) throws IOException {
+		this.directory = directory;
+		this.appendOnly = appendOnly;
+		Files.createDirectories(directory.getParent());
+		Files.createDirectory(directory);
+	}
+
+	/*
+	 * hard-links a live file into the snapshot. name is its path relative to the backup,
+	 * with / as the separator. returns false if the file is gone
+	 */
+	boolean link(String name, Path file) throws IOException {
+		Path snapshotFile = resolve(this.directory, name);
+		Files.createDirectories(snapshotFile.getParent());
+		try {
+			Files.createLink(snapshotFile, file);
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException | UnsupportedOperationException e) {
+			try {
+				Files.copy(file, snapshotFile);
+			} catch (NoSuchFileException e1) {
+				return false;
+			}
+		}
+		this.taken.add(name, Files.size(snapshotFile), Files.getLastModifiedTime(snapshotFile).toMillis(), false);
+		return true;
+	}
+
+	/*
+	 * copies a live file into the snapshot, for files that are always copied into backups
+	 */
+	void copy(String name, Path file) throws IOException {
+		Path snapshotFile = resolve(this.directory, name);
+		Files.createDirectories(snapshotFile.getParent());
+		Files.copy(file, snapshotFile);
+		this.copied.add(name);
+	}
+
+	/*
+	 * backs the snapshot up into a temp directory beside the target, to be moved into 
+	 * place with swapIn
+	 *
+	 * any file that hasn't changed since it was backed up to one of the reference
+	 * directories (same name, size and modification time as in that backup's manifest) is
+	 * hard-linked from there instead of being copied, so eg the daily, weekly and monthly
+	 * backups share every file that hasn't changed between them. backup files are never
+	 * modified, only replaced, so a link can't change underneath another backup
+	 *
+	 * the old contents of the target stay untouched until swapIn, so they can be linked
+	 * from as well, and are still there if this fails (in which case the temp directory
+	 * is deleted)
+	 *
+	 * returns the manifest of the new backup
+	 */
+	BackupManifest copyTo(Path target, List<Path> references) throws IOException {
+		List<Path> referenceDirectories = new ArrayList<>(references.size());
+		List<BackupManifest> referenceManifests = new ArrayList<>(references.size());
+		for(Path reference : references) {
+			if(!Files.isDirectory(reference)) continue;
+			BackupManifest manifest = BackupManifest.read(reference);
+			if(manifest != null) {
+				referenceDirectories.add(reference);
+				referenceManifests.add(manifest);
+			}
+		}
+
+		Path temp = getTemp(target);
+		ShadowRebuild.deleteRecursively(temp);
+		Files.createDirectories(temp);
+		BackupManifest manifest = new BackupManifest();
+		try {
+			for(BackupManifest.Entry entry : this.taken.getEntries()) {
+				Path file = resolve(temp, entry.getName());
+				Files.createDirectories(file.getParent());
+				boolean linked = false;
+				for(int i=0; i < referenceManifests.size() && !linked; i++) {
+					BackupManifest.Entry reference = referenceManifests.get(i).get(entry.getName());
+					if(reference != null && reference.matches(entry.getSize(), entry.getLastModified())) {
+						linked = BackupManifest.createLink(file, resolve(referenceDirectories.get(i), entry.getName()), entry.getSize());
+					}
+				}
+				if(!linked) this.copyFile(entry, file);
+				manifest.add(entry.getName(), entry.getSize(), entry.getLastModified(), linked);
+			}
+			for(String name : this.copied) {
+				Path file = resolve(temp, name);
+				Files.createDirectories(file.getParent());
+				Files.copy(resolve(this.directory, name), file);
+			}
+			manifest.write(temp);
+		} catch (IOException e) {
+			try {
+				ShadowRebuild.deleteRecursively(temp);
+			} catch (IOException e1) {
+				e.addSuppressed(e1);
+			}
+			throw e;
+		}
+		return manifest;
+	}
+
+	/*
+	 * replaces the target with the backup written for it by copyTo. this only renames
+	 * directories, and the old contents are kept beside the target until deleteReplaced,
+	 * so it's quick enough to do inside the write lock
+	 */
+	static void swapIn(Path target) throws IOException {
+		Path old = getOld(target);
+		ShadowRebuild.deleteRecursively(old);
+		if(Files.exists(target)) Files.move(target, old);
+		Files.move(getTemp(target), target);
+	}
+	
+	/*
+	 * deletes whatever swapIn replaced
+	 */
+	static void deleteReplaced(Path target) throws IOException {
+		ShadowRebuild.deleteRecursively(getOld(target));
+	}
+
+	/*
+	 * deletes a backup written by copyTo that won't be swapped in
+	 */
+	static void discard(Path target) throws IOException {
+		ShadowRebuild.deleteRecursively(getTemp(target));
+	}
+
+	void delete() throws IOException {
+		ShadowRebuild.deleteRecursively(this.directory);
+	}
+
+	private void copyFile(BackupManifest.Entry entry, Path target) throws IOException {
+		Path source = resolve(this.directory, entry.getName());
+		try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long position = 0;
+			while(position < entry.getSize()) {
+				long transferred = in.transferTo(position, entry.getSize() - position, out);
+				if(transferred <= 0) throw new IOException(source + " is shorter than when it was snapshotted");
+				position += transferred;
+			}
+		}
+		if(!this.appendOnly && (Files.size(source) != entry.getSize()
+				|| Files.getLastModifiedTime(source).toMillis() != entry.getLastModified())) {
+			throw new IOException(source + " was modified in place after it was snapshotted");
+		}
+	}
+
+	private static Path getTemp(Path target) {
+		return target.resolveSibling(target.getFileName() + ".tmp");
+	}
+	
+	private static Path getOld(Path target) {
+		return target.resolveSibling(target.getFileName() + ".old");
+	}
+
+	/*
+	 * names use / as the separator, as stored in manifests
+	 */
+	private static Path resolve(Path directory, String name) {
+		return directory.resolve(name.replace("/", directory.getFileSystem().getSeparator()));
+	}
+
+	@Override
+	public String toString() {
+		return "BackupSnapshot-" + this.directory;
+	}
+}
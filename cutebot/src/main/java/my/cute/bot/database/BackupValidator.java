@@ -0,0 +1,359 @@
+package my.cute.bot.database;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import my.cute.bot.util.MiscUtils;
+import my.cute.bot.util.PathUtils;
+
+/*
+ * validates a database's backups in the background right after they're written, so a
+ * restore can go straight to a backup that's known to be good instead of loading each one
+ * over the live database in turn to find out
+ *
+ * validating a backup reads every file in it: workingset segments are parsed record by
+ * record, compressed archives are fully inflated, and everything gets a crc32. if that all
+ * works, the sizes and checksums are written to the backup's checksum file, and the backup
+ * becomes the last known good one (recorded in a file, so it survives restarts). before a
+ * restore, candidates only have to be checked against their checksum files, which needs
+ * no lock and catches anything that's been damaged on disk since
+ *
+ * the markov database's own backup files can't be checked for anything beyond their
+ * checksums, since their format belongs to the markov library. MarkovDatabase.isValid()
+ * is still run after a restore
+ *
+ * a corrupt backup can often be repaired file by file. most of a backup (old workingset
+ * segments, shards that haven't changed) is the same from one backup to the next, so any
+ * file that doesn't match its checksum is replaced with an identical copy from another
+ * backup, found by its name, size and checksum. only the bad files are touched
+ *
+ * validations for every database run one at a time on a shared low-priority thread
+ */
+final class BackupValidator {
+
+	enum Status {
+		/*
+		 * validated, and every file still matches its checksum
+		 */
+		VALID,
+		/*
+		 * no checksums, eg the backup predates validation or hasn't been validated yet
+		 */
+		UNVALIDATED,
+		/*
+		 * a file is missing or doesn't match its checksum
+		 */
+		CORRUPT
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(BackupValidator.class);
+	private static final ExecutorService VALIDATOR = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("backup-validator-%d").setDaemon(true)
+			.setPriority(Thread.MIN_PRIORITY).build());
+	private static final int BUFFER_SIZE = 65536;
+
+	private final String id;
+	private final Path backupDirectory;
+	/*
+	 * bumped whenever a backup is rewritten or deleted, so a validation that was running
+	 * at the time doesn't record checksums for files that have since changed
+	 */
+	private final Map<String, AtomicLong> generations = new ConcurrentHashMap<>();
+
+	BackupValidator(String id) {
+		this.id = id;
+		this.backupDirectory = PathUtils.getBackupDirectory(id).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * forgets any earlier validation of the given backup. must be called before the backup
+	 * is rewritten or deleted
+	 * @throws IOException
+	 */
+	synchronized void invalidate(String backupName) throws IOException {
+		this.getGeneration(backupName).incrementAndGet();
+		Files.deleteIfExists(PathUtils.getBackupChecksumFile(this.id, backupName));
+		if(backupName.equals(this.getLastKnownGood())) {
+			Files.deleteIfExists(PathUtils.getLastKnownGoodBackupFile(this.id));
+		}
+	}
+
+	/**
+	 * queues a backup that was just written for validation
+	 * @param backupName the backup's name
+	 * @param markovBackup the directory holding the markov database's part of the
+	 * backup, or the archive if the backup was compressed. the backup's workingset is
+	 * found by name
+	 * @param onFailure run on the validation thread if the backup turns out to be bad
+	 */
+	void submit(String backupName, Path markovBackup, Runnable onFailure) {
+		long generation = this.getGeneration(backupName).get();
+		VALIDATOR.execute(() -> this.validate(backupName, markovBackup, generation, onFailure));
+	}
+
+	private void validate(String backupName, Path markovBackup, long generation, Runnable onFailure) {
+		long startTime = System.currentTimeMillis();
+		Path workingSet = PathUtils.getBackupWorkingSetDirectory(this.id, backupName).toAbsolutePath().normalize();
+		List<String> checksums = new ArrayList<>();
+		long totalBytes = 0;
+		try {
+			List<Path> files = new ArrayList<>();
+			for(Path root : List.of(workingSet, markovBackup.toAbsolutePath().normalize())) {
+				if(!Files.exists(root)) continue;
+				if(!root.startsWith(this.backupDirectory)) throw new IOException(root + " is outside the backup directory");
+				try (Stream<Path> paths = Files.walk(root)) {
+					paths.filter(Files::isRegularFile)
+						.filter(path -> !path.getFileName().toString().endsWith(".tmp"))
+						.sorted()
+						.forEach(files::add);
+				}
+			}
+			if(files.isEmpty()) throw new IOException("backup has no files");
+			for(Path file : files) {
+				String name = file.getFileName().toString();
+				if(file.startsWith(workingSet) && name.endsWith(".bin")) {
+					checkSegment(file);
+				} else if(name.endsWith(".cbar")) {
+					BackupArchive.verify(file);
+				}
+				long size = Files.size(file);
+				checksums.add(this.relativize(file) + "\t" + size + "\t" + checksum(file));
+				totalBytes += size;
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.error(this + ": backup '" + backupName + "' failed validation! ex: " + e, e);
+			if(this.getGeneration(backupName).get() == generation) onFailure.run();
+			return;
+		}
+
+		synchronized(this) {
+			if(this.getGeneration(backupName).get() != generation) {
+				logger.info(this + ": backup '" + backupName + "' changed during validation, discarding result");
+				return;
+			}
+			try {
+				Path checksumFile = PathUtils.getBackupChecksumFile(this.id, backupName);
+				writeAtomically(checksumFile, checksums);
+				writeAtomically(PathUtils.getLastKnownGoodBackupFile(this.id), List.of(backupName + "\t"
+						+ ZonedDateTime.now(MiscUtils.TIMEZONE).format(DateTimeFormatter.ISO_DATE_TIME)));
+			} catch (IOException e) {
+				logger.warn(this + ": exception when recording validation of backup '" + backupName + "': " + e.getMessage(), e);
+				return;
+			}
+		}
+		logger.info(this + ": validated backup '" + backupName + "' (" + checksums.size() + " files, " + (totalBytes / 1024)
+				+ "KB) in " + (System.currentTimeMillis() - startTime) + "ms. now the last known good backup");
+	}
+
+	/**
+	 * checks the given backup against the checksums recorded when it was validated
+	 * @param backupName the backup to check
+	 * @return whether the backup is valid, corrupt, or was never validated
+	 */
+	Status verify(String backupName) {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(PathUtils.getBackupChecksumFile(this.id, backupName), StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return Status.UNVALIDATED;
+		} catch (IOException e) {
+			logger.warn(this + ": exception when reading checksums for backup '" + backupName + "': " + e.getMessage(), e);
+			return Status.UNVALIDATED;
+		}
+		try {
+			for(String line : lines) {
+				if(line.isEmpty()) continue;
+				String[] fields = line.split("\t");
+				if(fields.length != 3) return Status.UNVALIDATED;
+				Path file = this.backupDirectory.resolve(fields[0]);
+				if(!Files.isRegularFile(file) || Files.size(file) != Long.parseLong(fields[1])
+						|| checksum(file) != Long.parseLong(fields[2])) {
+					logger.warn(this + ": backup '" + backupName + "' file " + fields[0] + " doesn't match its checksum");
+					return Status.CORRUPT;
+				}
+			}
+		} catch (IOException e) {
+			logger.warn(this + ": exception when verifying backup '" + backupName + "': " + e.getMessage(), e);
+			return Status.CORRUPT;
+		} catch (NumberFormatException e) {
+			return Status.UNVALIDATED;
+		}
+		return Status.VALID;
+	}
+
+	/**
+	 * tries to repair a corrupt backup. every file that's missing or doesn't match its 
+	 * checksum is replaced with a file from one of the other backups that has the same name, 
+	 * size and checksum (and still matches it). the replacement is copied in, never linked,
+	 * so a damaged file shared with another backup is fixed for this one without touching 
+	 * the other
+	 * @param backupName the backup to repair
+	 * @param sources other backups to take replacement files from
+	 * @return true if every bad file was replaced and the backup now verifies
+	 */
+	synchronized boolean repair(String backupName, List<String> sources) {
+		List<String[]> bad = new ArrayList<>();
+		try {
+			for(String line : Files.readAllLines(PathUtils.getBackupChecksumFile(this.id, backupName), StandardCharsets.UTF_8)) {
+				if(line.isEmpty()) continue;
+				String[] fields = line.split("\t");
+				if(fields.length != 3) return false;
+				Path file = this.backupDirectory.resolve(fields[0]);
+				if(!Files.isRegularFile(file) || Files.size(file) != Long.parseLong(fields[1])
+						|| checksum(file) != Long.parseLong(fields[2])) {
+					bad.add(fields);
+				}
+			}
+			if(bad.isEmpty()) return this.verify(backupName) == Status.VALID;
+			
+			int repaired = 0;
+			for(String[] entry : bad) {
+				Path target = this.backupDirectory.resolve(entry[0]);
+				if(this.replaceFromSources(target, Long.parseLong(entry[1]), Long.parseLong(entry[2]), backupName, sources)) {
+					repaired++;
+				} else {
+					logger.info(this + ": no good copy of " + entry[0] + " in any other backup, can't repair backup '" 
+							+ backupName + "'");
+					return false;
+				}
+			}
+			logger.info(this + ": repaired " + repaired + " file(s) in backup '" + backupName + "' from other backups");
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException | NumberFormatException e) {
+			logger.warn(this + ": exception when repairing backup '" + backupName + "': " + e, e);
+			return false;
+		}
+		return this.verify(backupName) == Status.VALID;
+	}
+	
+	/*
+	 * copies the first file from the given backups' checksums that has the same name, size
+	 * and checksum as the target wants over the target
+	 */
+	private boolean replaceFromSources(Path target, long size, long checksum, String backupName, List<String> sources) 
+			throws IOException {
+		String name = target.getFileName().toString();
+		for(String source : sources) {
+			if(source.equals(backupName)) continue;
+			List<String> lines;
+			try {
+				lines = Files.readAllLines(PathUtils.getBackupChecksumFile(this.id, source), StandardCharsets.UTF_8);
+			} catch (NoSuchFileException e) {
+				continue;
+			}
+			for(String line : lines) {
+				String[] fields = line.split("\t");
+				if(fields.length != 3) continue;
+				Path candidate = this.backupDirectory.resolve(fields[0]);
+				if(!candidate.getFileName().toString().equals(name) || !fields[1].equals(Long.toString(size)) 
+						|| !fields[2].equals(Long.toString(checksum))) {
+					continue;
+				}
+				if(!Files.isRegularFile(candidate) || Files.size(candidate) != size) continue;
+				Path temp = target.resolveSibling(name + ".repair.tmp");
+				try {
+					Files.createDirectories(target.getParent());
+					Files.copy(candidate, temp, StandardCopyOption.REPLACE_EXISTING);
+					//checked after copying, so a source that's bad too is never used
+					if(checksum(temp) != checksum) continue;
+					Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+					logger.info(this + ": replaced " + this.relativize(target) + " in backup '" + backupName + "' with copy from '" 
+							+ source + "'");
+					return true;
+				} finally {
+					Files.deleteIfExists(temp);
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the name of the most recently validated backup, or null if there isn't one
+	 */
+	String getLastKnownGood() {
+		try (BufferedReader reader = Files.newBufferedReader(PathUtils.getLastKnownGoodBackupFile(this.id), StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			if(line == null || line.isEmpty()) return null;
+			int tab = line.indexOf('\t');
+			return tab < 0 ? line : line.substring(0, tab);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			logger.warn(this + ": exception when reading last known good backup: " + e.getMessage(), e);
+			return null;
+		}
+	}
+
+	private AtomicLong getGeneration(String backupName) {
+		return this.generations.computeIfAbsent(backupName, name -> new AtomicLong(0));
+	}
+
+	private String relativize(Path file) {
+		return this.backupDirectory.relativize(file).toString().replace(file.getFileSystem().getSeparator(), "/");
+	}
+
+	/*
+	 * reads every record in a workingset segment, throwing if any are malformed
+	 */
+	private static void checkSegment(Path segment) throws IOException {
+		long size = Files.size(segment);
+		if(size == 0) return;
+		WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(segment, 0, size);
+		while(reader.next()) {
+			reader.getLine();
+		}
+	}
+
+	private static long checksum(Path file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		try (InputStream input = Files.newInputStream(file)) {
+			int count;
+			while((count = input.read(buffer)) > 0) {
+				crc.update(buffer, 0, count);
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static void writeAtomically(Path file, List<String> lines) throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			for(String line : lines) {
+				writer.write(line);
+				writer.newLine();
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	@Override
+	public String toString() {
+		return "BackupValidator-" + this.id;
+	}
+}
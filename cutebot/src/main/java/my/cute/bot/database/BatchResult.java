@@ -0,0 +1,45 @@
+package my.cute.bot.database;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * outcome of a batch operation like {@link GuildDatabase#removeLines(Iterable)}. lines
+ * that failed are kept so the caller can report or retry them
+ */
+public final class BatchResult {
+
+	private int succeeded = 0;
+	private final List<String> failures = new ArrayList<>(0);
+
+	BatchResult() {}
+
+	void succeeded() {
+		this.succeeded++;
+	}
+
+	void failed(String line) {
+		this.failures.add(line);
+	}
+
+	/**
+	 * @return number of lines the operation succeeded on
+	 */
+	public int getSucceeded() {
+		return this.succeeded;
+	}
+
+	/**
+	 * @return every line the operation failed on, in the order they were attempted. eg for 
+	 * removal, a line that couldn't be found in the database
+	 */
+	public List<String> getFailures() {
+		return Collections.unmodifiableList(this.failures);
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult[succeeded=" + this.succeeded + ", failed=" + this.failures.size() + "]";
+	}
+}
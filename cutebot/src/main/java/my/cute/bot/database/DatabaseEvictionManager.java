@@ -0,0 +1,155 @@
+package my.cute.bot.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * keeps track of lazily loaded guild databases (see {@link GuildDatabaseBuilder#evictionManager(DatabaseEvictionManager)})
+ * and unloads the ones that aren't being used, so memory use depends on how many guilds are
+ * active rather than how many there are in total
+ * <p>
+ * a database is unloaded once it's gone the idle timeout without being used. on top of that,
+ * if more than the maximum number of databases are loaded at once, the least recently used
+ * ones are unloaded until it's back under the cap. a database that's in use when it comes up
+ * for eviction is skipped and tried again next time
+ */
+public final class DatabaseEvictionManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(DatabaseEvictionManager.class);
+
+	private final long idleTimeout;
+	private final int maxResident;
+	private final Set<LazyGuildDatabase> databases = ConcurrentHashMap.newKeySet();
+	private final ScheduledExecutorService executor;
+	//keeps loads from queueing up more than one cap check at a time
+	private final AtomicBoolean capCheckQueued = new AtomicBoolean(false);
+
+	/**
+	 * @param idleTimeout time in ms a database can go unused before it's unloaded
+	 * @param maxResident maximum number of databases loaded at once
+	 * @param checkInterval time in ms between checks for idle databases
+	 */
+	public DatabaseEvictionManager(long idleTimeout, int maxResident, long checkInterval) {
+		if(idleTimeout < 1) throw new IllegalArgumentException("idle timeout must be positive");
+		if(maxResident < 1) throw new IllegalArgumentException("need to allow at least one loaded database");
+		this.idleTimeout = idleTimeout;
+		this.maxResident = maxResident;
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("database-eviction-%d").setDaemon(true).build());
+		this.executor.scheduleWithFixedDelay(this::evictIdle, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+	}
+
+	void register(LazyGuildDatabase database) {
+		this.databases.add(database);
+	}
+
+	void deregister(LazyGuildDatabase database) {
+		this.databases.remove(database);
+	}
+
+	/*
+	 * called by a database once it's been loaded. the database doing the loading is in use,
+	 * so any eviction happens in the background rather than on the caller's thread
+	 */
+	void loaded(LazyGuildDatabase database) {
+		if(this.getResidentCount() > this.maxResident && this.capCheckQueued.compareAndSet(false, true)) {
+			try {
+				this.executor.execute(() ->
+				{
+					this.capCheckQueued.set(false);
+					this.enforceCap();
+				});
+			} catch (RuntimeException e) {
+				//shut down
+				this.capCheckQueued.set(false);
+			}
+		}
+	}
+
+	/**
+	 * @return the number of databases currently loaded
+	 */
+	public int getResidentCount() {
+		int count = 0;
+		for(LazyGuildDatabase database : this.databases) {
+			if(database.isLoaded()) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of databases being managed, loaded or not
+	 */
+	public int getManagedCount() {
+		return this.databases.size();
+	}
+
+	private void evictIdle() {
+		long cutoff = System.currentTimeMillis() - this.idleTimeout;
+		int evicted = 0;
+		for(LazyGuildDatabase database : this.databases) {
+			if(database.isLoaded() && database.getLastAccess() <= cutoff && this.unload(database)) evicted++;
+		}
+		if(evicted > 0) logger.info(this + ": unloaded " + evicted + " idle databases, " + this.getResidentCount()
+			+ "/" + this.databases.size() + " still loaded");
+		this.enforceCap();
+	}
+
+	private void enforceCap() {
+		List<LazyGuildDatabase> loaded = new ArrayList<>();
+		for(LazyGuildDatabase database : this.databases) {
+			if(database.isLoaded()) loaded.add(database);
+		}
+		int excess = loaded.size() - this.maxResident;
+		if(excess <= 0) return;
+		loaded.sort(Comparator.comparingLong(LazyGuildDatabase::getLastAccess));
+		int evicted = 0;
+		for(LazyGuildDatabase database : loaded) {
+			if(evicted >= excess) break;
+			if(this.unload(database)) evicted++;
+		}
+		if(evicted < excess) {
+			logger.info(this + ": " + loaded.size() + " databases loaded with a cap of " + this.maxResident
+				+ ", but only " + evicted + " could be unloaded");
+		}
+	}
+
+	private boolean unload(LazyGuildDatabase database) {
+		try {
+			return database.unload();
+		} catch (IOException e) {
+			//still loaded, unload is retried next time
+			logger.warn(this + ": exception when unloading " + database + ": " + e.getMessage(), e);
+			return false;
+		} catch (RuntimeException e) {
+			logger.warn(this + ": unexpected exception when unloading " + database, e);
+			return false;
+		}
+	}
+
+	/**
+	 * stops checking for idle databases. doesn't unload anything; databases are expected to
+	 * be shut down by whatever owns them
+	 */
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "DatabaseEvictionManager";
+	}
+}
@@ -0,0 +1,241 @@
+package my.cute.bot.database;
+
+/**
+ * snapshot of a database's size and behaviour, from {@link GuildDatabase#stats()}. counts
+ * and latencies are totals since the bot started. sizes on disk are as of the last time
+ * they were measured, on load and after each maintenance
+ */
+public final class DatabaseStats {
+
+	/**
+	 * how long some operation takes, in microseconds. percentiles are upper bounds, accurate
+	 * to within a factor of two
+	 */
+	public static final class Latency {
+		private final long count;
+		private final long mean;
+		private final long p50;
+		private final long p99;
+		private final long max;
+
+		Latency(long count, long mean, long p50, long p99, long max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return this.count;
+		}
+
+		public long getMean() {
+			return this.mean;
+		}
+
+		public long getP50() {
+			return this.p50;
+		}
+
+		public long getP99() {
+			return this.p99;
+		}
+
+		public long getMax() {
+			return this.max;
+		}
+
+		@Override
+		public String toString() {
+			if(this.count == 0) return "n=0";
+			return "n=" + this.count + ", mean=" + this.mean + "us, p50<=" + this.p50 + "us, p99<=" + this.p99
+					+ "us, max=" + this.max + "us";
+		}
+	}
+
+	private final String id;
+	private final boolean loaded;
+	private final boolean prioritizeSpeed;
+	private final int shardCacheSize;
+	private final int databaseAge;
+	private final long workingSetLines;
+	private final long linesProcessed;
+	private final long linesRejected;
+	private final long linesRemoved;
+	private final long linesRetracted;
+	private final Latency processLatency;
+	private final Latency generateLatency;
+	private final LinePoolStats linePool;
+	private final DatabaseStatsRecorder.DiskUsage diskUsage;
+
+	DatabaseStats(String id, boolean loaded, boolean prioritizeSpeed, int shardCacheSize, int databaseAge,
+			long workingSetLines, long linesProcessed, long linesRejected, long linesRemoved, long linesRetracted,
+			Latency processLatency, Latency generateLatency, LinePoolStats linePool, DatabaseStatsRecorder.DiskUsage diskUsage) {
+		this.id = id;
+		this.loaded = loaded;
+		this.prioritizeSpeed = prioritizeSpeed;
+		this.shardCacheSize = shardCacheSize;
+		this.databaseAge = databaseAge;
+		this.workingSetLines = workingSetLines;
+		this.linesProcessed = linesProcessed;
+		this.linesRejected = linesRejected;
+		this.linesRemoved = linesRemoved;
+		this.linesRetracted = linesRetracted;
+		this.processLatency = processLatency;
+		this.generateLatency = generateLatency;
+		this.linePool = linePool;
+		this.diskUsage = diskUsage;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	/**
+	 * @return whether the database was loaded when the snapshot was taken. an unloaded
+	 * database has no shard cache or line pool
+	 */
+	public boolean isLoaded() {
+		return this.loaded;
+	}
+
+	/**
+	 * @return true if the database was in speed mode, false if memory mode
+	 */
+	public boolean isPrioritizeSpeed() {
+		return this.prioritizeSpeed;
+	}
+
+	/**
+	 * @return number of shards the markov database may keep cached
+	 */
+	public int getShardCacheSize() {
+		return this.shardCacheSize;
+	}
+
+	/**
+	 * @return number of days lines are kept before they expire
+	 */
+	public int getDatabaseAge() {
+		return this.databaseAge;
+	}
+
+	/**
+	 * @return number of lines in the workingset (ie, in the database), or -1 if it isn't
+	 * known yet. it's counted at each maintenance
+	 */
+	public long getWorkingSetLines() {
+		return this.workingSetLines;
+	}
+
+	/**
+	 * @return number of lines processed into the database
+	 */
+	public long getLinesProcessed() {
+		return this.linesProcessed;
+	}
+
+	/**
+	 * @return number of lines the database declined to process, eg because they were empty
+	 */
+	public long getLinesRejected() {
+		return this.linesRejected;
+	}
+
+	/**
+	 * @return number of lines removed from the database, including expired lines
+	 */
+	public long getLinesRemoved() {
+		return this.linesRemoved;
+	}
+
+	/**
+	 * @return number of lines retracted, eg because their message was deleted
+	 */
+	public long getLinesRetracted() {
+		return this.linesRetracted;
+	}
+
+	/**
+	 * @return time taken to process a single line, including waiting for the database
+	 */
+	public Latency getProcessLatency() {
+		return this.processLatency;
+	}
+
+	/**
+	 * @return time taken to generate a line without the line pool, including waiting for
+	 * the database. this includes lines generated to refill the pool
+	 */
+	public Latency getGenerateLatency() {
+		return this.generateLatency;
+	}
+
+	public LinePoolStats getLinePoolStats() {
+		return this.linePool;
+	}
+
+	/**
+	 * @return whether sizes on disk have been measured yet. if not, they're all -1
+	 */
+	public boolean isDiskUsageMeasured() {
+		return this.diskUsage != null;
+	}
+
+	/**
+	 * @return size of the markov database on disk, in bytes
+	 */
+	public long getDatabaseBytes() {
+		return this.diskUsage == null ? -1 : this.diskUsage.databaseBytes;
+	}
+
+	/**
+	 * @return number of files in the markov database, which is roughly its number of shards
+	 */
+	public long getDatabaseFiles() {
+		return this.diskUsage == null ? -1 : this.diskUsage.databaseFiles;
+	}
+
+	/**
+	 * @return size of the workingset on disk, in bytes
+	 */
+	public long getWorkingSetBytes() {
+		return this.diskUsage == null ? -1 : this.diskUsage.workingSetBytes;
+	}
+
+	/**
+	 * @return size of every backup on disk, in bytes. backups that share files are counted
+	 * separately, so this can be more than they actually take up
+	 */
+	public long getBackupBytes() {
+		return this.diskUsage == null ? -1 : this.diskUsage.backupBytes;
+	}
+
+	/**
+	 * @return size of the write-ahead log on disk, in bytes
+	 */
+	public long getLogBytes() {
+		return this.diskUsage == null ? -1 : this.diskUsage.logBytes;
+	}
+
+	/**
+	 * @return when sizes on disk were last measured, in ms since the epoch, or 0 if they
+	 * haven't been
+	 */
+	public long getDiskMeasuredAt() {
+		return this.diskUsage == null ? 0 : this.diskUsage.measuredAt;
+	}
+
+	@Override
+	public String toString() {
+		return "DatabaseStats[id=" + this.id + ", loaded=" + this.loaded + ", speed=" + this.prioritizeSpeed
+				+ ", shardCacheSize=" + this.shardCacheSize + ", databaseAge=" + this.databaseAge
+				+ ", workingSetLines=" + this.workingSetLines + ", processed=" + this.linesProcessed
+				+ ", rejected=" + this.linesRejected + ", removed=" + this.linesRemoved + ", retracted=" + this.linesRetracted
+				+ ", process=(" + this.processLatency + "), generate=(" + this.generateLatency + "), " + this.linePool
+				+ ", databaseBytes=" + this.getDatabaseBytes() + ", databaseFiles=" + this.getDatabaseFiles()
+				+ ", workingSetBytes=" + this.getWorkingSetBytes() + ", backupBytes=" + this.getBackupBytes()
+				+ ", logBytes=" + this.getLogBytes() + "]";
+	}
+}
@@ -0,0 +1,191 @@
+package my.cute.bot.database;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * the counters behind GuildDatabase.stats(). everything is updated as the database does
+ * its work, so taking a snapshot is just reading a few fields
+ *
+ * a LazyGuildDatabase keeps one recorder for every GuildDatabaseImpl it loads, so stats
+ * survive the database being unloaded
+ *
+ * the number of lines in the workingset is counted from disk during maintenance, and
+ * kept up to date in between by adding the lines processed since, less the lines
+ * retracted since. anything that replaces the workingset wholesale (restoring a backup,
+ * swapping in a rebuild) makes the count unknown until the next maintenance. removeLine
+ * doesn't touch the workingset, so it doesn't count
+ */
+final class DatabaseStatsRecorder {
+
+	/*
+	 * latencies, bucketed by powers of two of microseconds. bucket i holds latencies in
+	 * [2^i, 2^(i+1)) us (bucket 0 also holds 0), so percentiles are only accurate to within
+	 * a factor of two, which is plenty to tell a fast database from a slow one
+	 */
+	static final class LatencyRecorder {
+		private static final int BUCKETS = 32;
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder totalMicros = new LongAdder();
+		private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+		private LatencyRecorder() {
+			for(int i=0; i < BUCKETS; i++) {
+				this.buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long startNanos) {
+			long micros = Math.max((System.nanoTime() - startNanos) / 1000, 0);
+			int bucket = Math.min(63 - Long.numberOfLeadingZeros(Math.max(micros, 1)), BUCKETS - 1);
+			this.buckets[bucket].increment();
+			this.totalMicros.add(micros);
+			this.maxMicros.accumulate(micros);
+		}
+
+		DatabaseStats.Latency snapshot() {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for(int i=0; i < BUCKETS; i++) {
+				counts[i] = this.buckets[i].sum();
+				total += counts[i];
+			}
+			long mean = total == 0 ? 0 : this.totalMicros.sum() / total;
+			return new DatabaseStats.Latency(total, mean, percentile(counts, total, 0.5),
+					percentile(counts, total, 0.99), this.maxMicros.get());
+		}
+
+		/*
+		 * upper bound of the bucket the given percentile falls in
+		 */
+		private static long percentile(long[] counts, long total, double percentile) {
+			if(total == 0) return 0;
+			long target = (long) Math.ceil(total * percentile);
+			long seen = 0;
+			for(int i=0; i < counts.length; i++) {
+				seen += counts[i];
+				if(seen >= target) return 1L << (i + 1);
+			}
+			return 1L << counts.length;
+		}
+	}
+
+	/*
+	 * sizes on disk, as of the last time they were measured
+	 */
+	static final class DiskUsage {
+		final long databaseBytes;
+		final long databaseFiles;
+		final long workingSetBytes;
+		final long backupBytes;
+		final long logBytes;
+		final long measuredAt;
+
+		DiskUsage(long databaseBytes, long databaseFiles, long workingSetBytes, long backupBytes, long logBytes) {
+			this.databaseBytes = databaseBytes;
+			this.databaseFiles = databaseFiles;
+			this.workingSetBytes = workingSetBytes;
+			this.backupBytes = backupBytes;
+			this.logBytes = logBytes;
+			this.measuredAt = System.currentTimeMillis();
+		}
+	}
+
+	private final LongAdder linesProcessed = new LongAdder();
+	private final LongAdder linesRejected = new LongAdder();
+	private final LongAdder linesRemoved = new LongAdder();
+	private final LongAdder linesRetracted = new LongAdder();
+	private final LatencyRecorder processLatency = new LatencyRecorder();
+	private final LatencyRecorder generateLatency = new LatencyRecorder();
+
+	/*
+	 * workingset line count as of the last count, or -1 if unknown. the generation is
+	 * bumped whenever the workingset is replaced, so a count that was running at the time
+	 * is thrown away
+	 */
+	private volatile long workingSetBaseline = -1;
+	private final LongAdder workingSetDelta = new LongAdder();
+	private final AtomicLong workingSetGeneration = new AtomicLong(0);
+	private volatile DiskUsage diskUsage = null;
+
+	void processed(long lines) {
+		this.linesProcessed.add(lines);
+		this.workingSetDelta.add(lines);
+	}
+
+	void rejected(long lines) {
+		this.linesRejected.add(lines);
+	}
+
+	void removed(long lines) {
+		this.linesRemoved.add(lines);
+	}
+
+	void retracted() {
+		this.linesRetracted.increment();
+		this.workingSetDelta.decrement();
+	}
+
+	LatencyRecorder getProcessLatency() {
+		return this.processLatency;
+	}
+
+	LatencyRecorder getGenerateLatency() {
+		return this.generateLatency;
+	}
+
+	/*
+	 * the workingset was cleared. must be called under the database's write lock
+	 */
+	synchronized void workingSetCleared() {
+		this.workingSetGeneration.incrementAndGet();
+		this.workingSetDelta.reset();
+		this.workingSetBaseline = 0;
+	}
+
+	/*
+	 * the workingset was replaced with one of unknown size. must be called under the
+	 * database's write lock
+	 */
+	synchronized void workingSetReplaced() {
+		this.workingSetGeneration.incrementAndGet();
+		this.workingSetDelta.reset();
+		this.workingSetBaseline = -1;
+	}
+
+	/*
+	 * starts a count of the workingset. must be called under the database's write lock,
+	 * with the workingset drained, at the point the count is taken from. returns the
+	 * generation to pass to finishCount
+	 */
+	synchronized long startCount() {
+		this.workingSetReplaced();
+		return this.workingSetGeneration.get();
+	}
+
+	/*
+	 * records the result of a count started by startCount, unless the workingset has been
+	 * replaced in the meantime
+	 */
+	synchronized void finishCount(long generation, long lines) {
+		if(this.workingSetGeneration.get() == generation) this.workingSetBaseline = lines;
+	}
+
+	void setDiskUsage(DiskUsage usage) {
+		this.diskUsage = usage;
+	}
+
+	DiskUsage getDiskUsage() {
+		return this.diskUsage;
+	}
+
+	DatabaseStats snapshot(String id, boolean loaded, boolean prioritizeSpeed, int shardCacheSize, int databaseAge,
+			LinePoolStats linePool) {
+		long baseline = this.workingSetBaseline;
+		long workingSetLines = baseline < 0 ? -1 : Math.max(baseline + this.workingSetDelta.sum(), 0);
+		return new DatabaseStats(id, loaded, prioritizeSpeed, shardCacheSize, databaseAge, workingSetLines,
+				this.linesProcessed.sum(), this.linesRejected.sum(), this.linesRemoved.sum(), this.linesRetracted.sum(),
+				this.processLatency.snapshot(), this.generateLatency.snapshot(), linePool, this.diskUsage);
+	}
+}
@@ -0,0 +1,70 @@
+package my.cute.bot.database;
+
+import java.util.List;
+
+import my.cute.bot.util.MessageNormalizer;
+import my.cute.bot.util.NormalizedMessage;
+
+/**
+ * a line along with the date it should be recorded as processed on, for batch processing
+ * with {@link GuildDatabase#processLines(Iterable)}
+ */
+public final class DatedLine {
+
+	private final String line;
+	private final String dateStamp;
+	/*
+	 * null unless the line was normalized ahead of time, see normalized(String, String)
+	 */
+	private final List<String> tokens;
+
+	/**
+	 * @param line the line to process
+	 * @param dateStamp the date to record the line as processed on, in the form YYYYMMDD (see 
+	 * {@link GuildDatabase#processLineWithDate(String, String)})
+	 */
+	public DatedLine(String line, String dateStamp) {
+		this(line, dateStamp, null);
+	}
+	
+	private DatedLine(String line, String dateStamp, List<String> tokens) {
+		this.line = line;
+		this.dateStamp = dateStamp;
+		this.tokens = tokens;
+	}
+	
+	/**
+	 * normalizes and tokenizes the given line now, on the calling thread, rather than when
+	 * it's processed. lets a caller eg spread that work over several threads while a single
+	 * thread processes the results
+	 * @param line the raw line to process
+	 * @param dateStamp the date to record the line as processed on, as in 
+	 * {@link #DatedLine(String, String)}
+	 * @return the normalized line
+	 */
+	public static DatedLine normalized(String line, String dateStamp) {
+		NormalizedMessage message = MessageNormalizer.normalize(line);
+		return new DatedLine(message.getLine(), dateStamp, message.getTokens());
+	}
+
+	public String getLine() {
+		return this.line;
+	}
+
+	public String getDateStamp() {
+		return this.dateStamp;
+	}
+	
+	/*
+	 * the line's tokens, or null if it hasn't been normalized yet. if not null, getLine() 
+	 * is already normalized
+	 */
+	List<String> getTokens() {
+		return this.tokens;
+	}
+
+	@Override
+	public String toString() {
+		return this.dateStamp + this.line;
+	}
+}
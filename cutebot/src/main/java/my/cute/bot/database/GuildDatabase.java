@@ -3,7 +3,9 @@ package my.cute.bot.database;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.locks.Lock;
 
+import my.cute.bot.util.NormalizedMessage;
 import my.cute.markov2.exceptions.ReadObjectException;
 
 /*
@@ -65,6 +67,36 @@ public interface GuildDatabase extends Maintainable {
 	public boolean processLineWithDate(String line, String dateStamp) throws IllegalStateException, 
 		ReadObjectException, IOException;
 	
+	/**
+	 * functions identically to {@link #processLine(String)}, but uses a message that's already 
+	 * been normalized, so its content doesn't have to be processed again. useful when the 
+	 * caller has already normalized the message for its own purposes (eg command handling)
+	 * @param message the normalized message to process
+	 * @return true if the given line was processed into the database, false if not
+	 * @throws IllegalStateException if this method is called when the database has 
+	 * been shut down
+	 * @throws ReadObjectException see {@link #processLine(String)}
+	 * @throws IOException if a problem is encountered with i/o during any other
+	 * part of the process
+	 */
+	public boolean processLine(NormalizedMessage message) throws IllegalStateException, ReadObjectException, IOException;
+	
+	/**
+	 * functions identically to {@link #processLine(NormalizedMessage)}, except uses the 
+	 * explicitly provided date stamp, as in {@link #processLineWithDate(String, String)}
+	 * @param message the normalized message to process
+	 * @param dateStamp the date to use for when the line was processed into the database, 
+	 * in the form YYYYMMDD
+	 * @return true if the given line was processed into the database, false if not
+	 * @throws IllegalStateException if this method is called when the database has 
+	 * been shut down
+	 * @throws ReadObjectException see {@link #processLine(String)}
+	 * @throws IOException if a problem is encountered with i/o during any other
+	 * part of the process
+	 */
+	public boolean processLineWithDate(NormalizedMessage message, String dateStamp) throws IllegalStateException, 
+		ReadObjectException, IOException;
+	
 	/**
 	 * generates a random line from the contents of the database. uses 
 	 * a random weighted word to start the line, from all words used 
@@ -87,6 +119,34 @@ public interface GuildDatabase extends Maintainable {
 	 */
 	public String generateLine(String startWord) throws IOException;
 	
+	/**
+	 * gets a random line, as in {@link #generateLine()}, but from a pool of lines 
+	 * generated ahead of time in the background if possible. this is much faster than 
+	 * generating a line on the spot, so it's the better choice anywhere a line is needed 
+	 * quickly (eg replying to a message). if the pool is empty or disabled, a line is 
+	 * generated synchronously instead
+	 * <p>
+	 * pooled lines may be slightly out of date, ie not reflect lines processed after they
+	 * were generated, but never by more than the pool's configured maximum age
+	 * @return a random line reflected by the contents of the database
+	 * @throws IOException if a line had to be generated and an IOException occurred 
+	 * during database loading
+	 */
+	public String generatePooledLine() throws IOException;
+	
+	/**
+	 * @return a snapshot of the hit rate and size of the pool used by 
+	 * {@link #generatePooledLine()}
+	 */
+	public LinePoolStats getLinePoolStats();
+	
+	/**
+	 * @return a snapshot of the database's size and behaviour. everything in it is kept up 
+	 * to date as the database is used, so this is cheap to call, and doesn't load the 
+	 * database if it isn't loaded
+	 */
+	public DatabaseStats stats();
+	
 	/*
 	 * returns true if the line was successfully removed, and false if the entire
 	 * line wasn't found in the database
@@ -121,6 +181,53 @@ public interface GuildDatabase extends Maintainable {
 	 */
 	public boolean removeLine(String line) throws IOException;
 	
+	/**
+	 * takes a line that was processed on the given date back out of the database, eg 
+	 * because its message was deleted. unlike {@link #removeLine(String)}, the line's 
+	 * workingset record is dropped too (at the next maintenance), so it isn't removed a 
+	 * second time when it would have expired
+	 * @param line the line, as stored in the database (see {@link NormalizedMessage#getLine()})
+	 * @param dateStamp the date the line was processed on, in the form YYYYMMDD
+	 * @return true if the line was in the database and was removed, false if not
+	 * @throws IllegalStateException if the database has been shut down
+	 * @throws IOException if an IOException is encountered during the process
+	 */
+	public boolean retractLine(String line, String dateStamp) throws IllegalStateException, IOException;
+	
+	/**
+	 * processes every given line into the database, as in 
+	 * {@link #processLineWithDate(String, String)}, but much faster for large numbers of 
+	 * lines. lines are prepared up front and applied in chunks, sorted by start word so 
+	 * lines touching the same parts of the database are applied together. lines from 
+	 * {@link DatedLine#normalized(String, String)} have already been prepared, so only need 
+	 * to be applied
+	 * <p>
+	 * lines are not necessarily applied in the given order. if an exception is thrown, 
+	 * some of the lines may have been processed and some not
+	 * @param lines the lines to process
+	 * @return the number of lines processed, and every line that wasn't processed (eg 
+	 * because it was empty)
+	 * @throws IllegalStateException if the database has been shut down
+	 * @throws ReadObjectException see {@link #processLine(String)}
+	 * @throws IOException if a problem is encountered with i/o during any other
+	 * part of the process
+	 */
+	public BatchResult processLines(Iterable<DatedLine> lines) throws IllegalStateException, ReadObjectException, 
+		IOException;
+	
+	/**
+	 * removes every given line from the database, as in {@link #removeLine(String)}, but 
+	 * much faster for large numbers of lines. the same caveats apply: every line must 
+	 * have been processed into the database at some point
+	 * <p>
+	 * lines are not necessarily removed in the given order. if an exception is thrown, 
+	 * some of the lines may have been removed and some not
+	 * @param lines the lines to remove
+	 * @return the number of lines removed, and every line that couldn't be removed
+	 * @throws IOException if an IOException is encountered during the process
+	 */
+	public BatchResult removeLines(Iterable<String> lines) throws IOException;
+	
 	/**
 	 * saves the database to disk. note that parts of the database are constantly
 	 * being updated on disk during general use, but calling this method will
@@ -155,6 +262,19 @@ public interface GuildDatabase extends Maintainable {
 	 */
 	public void shutdown() throws IOException;
 	
+	/**
+	 * gets the lock that grants exclusive access to the database. line generation 
+	 * can run concurrently and line processing/removal is serialized, but while 
+	 * this lock is held no other thread can process, remove, or generate lines, 
+	 * or otherwise use the database. useful for bulk operations that need the 
+	 * database to stay untouched for their entire duration (eg a rebuild)
+	 * <p>
+	 * the returned lock is reentrant, so the thread holding it can still call any 
+	 * other database method
+	 * @return the database's exclusive lock
+	 */
+	public Lock getExclusiveLock();
+	
 	/**
 	 * checks whether the database has been marked to restore from backup.
 	 * this provides a framework for code to detect if a problem has been
@@ -237,6 +357,26 @@ public interface GuildDatabase extends Maintainable {
 	 */
 	public void clear() throws IOException;
 	
+	/**
+	 * starts building a replacement for this database's contents, without taking it out 
+	 * of service. the database keeps processing and generating lines as normal while the
+	 * replacement is filled in, and anything it processes or removes in the meantime is
+	 * carried over when the replacement is swapped in with {@link ShadowRebuild#finish()}
+	 * <p>
+	 * anything that replaces the database's contents in the meantime (clearing it, loading
+	 * a backup, shutting it down) abandons the rebuild
+	 * @return the rebuild, which should be finished or abandoned by the caller
+	 * @throws IllegalStateException if a rebuild is already in progress, or the database 
+	 * has been shut down
+	 * @throws IOException
+	 */
+	public ShadowRebuild startShadowRebuild() throws IllegalStateException, IOException;
+	
+	/**
+	 * @return true if a rebuild started with {@link #startShadowRebuild()} is in progress
+	 */
+	public boolean isRebuilding();
+	
 	/**
 	 * restructures the database object so that speed is a priority - bulk 
 	 * operations can be executed much, much faster this way, but the database
@@ -260,4 +400,31 @@ public interface GuildDatabase extends Maintainable {
 	 * readable format. may take some time if the database is very large
 	 */
 	public void exportToText();
+	
+	/**
+	 * snapshots the database's workingset for export, see {@link WorkingSetExport}. the 
+	 * database is only locked while the snapshot is taken, which is quick. only one export 
+	 * per guild should exist at a time, since starting one deletes whatever's left of an
+	 * earlier one's snapshot
+	 * @return the export, which must be closed once it's been written
+	 * @throws IllegalStateException if the database has been shut down
+	 * @throws IOException
+	 */
+	public WorkingSetExport startExport() throws IllegalStateException, IOException;
+	
+	/**
+	 * as in {@link #maintenance()}, but reports progress to the given monitor, and stops 
+	 * early if it's cancelled. the monitor's state is set to finished, cancelled, or failed
+	 * before this returns
+	 * @param monitor the monitor for this run
+	 * @throws IOException
+	 */
+	public void maintenance(MaintenanceMonitor monitor) throws IOException;
+	
+	/**
+	 * estimates how much expired data the next maintenance run will have to remove, so 
+	 * the most overdue databases can be maintained first. cheap, doesn't read any lines
+	 * @return rough size in bytes of the expired part of the workingset
+	 */
+	public long estimateExpiredBytes();
 }
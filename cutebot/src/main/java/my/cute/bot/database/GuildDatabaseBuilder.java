@@ -8,6 +8,14 @@ public class GuildDatabaseBuilder {
 	
 	private boolean prioritizeSpeed = false;
 	private int databaseAge = 2;
+	private JournalDurability journalDurability = JournalDurability.FLUSH;
+	private int journalBatchSize = 32;
+	private long journalFlushInterval = 1000;
+	private int linePoolSize = 8;
+	private long linePoolMaxAge = 900000;
+	private DatabaseEvictionManager evictionManager = null;
+	private ShardCacheGovernor shardCacheGovernor = null;
+	private boolean compressBackups = false;
 
 	public GuildDatabaseBuilder(Guild guild) {
 		this.id = guild.getId().intern();
@@ -27,7 +35,78 @@ public class GuildDatabaseBuilder {
 		return this;
 	}
 
+	public GuildDatabaseBuilder journalDurability(JournalDurability durability) {
+		this.journalDurability = durability;
+		return this;
+	}
+	
+	/*
+	 * number of queued workingset lines that triggers an early flush
+	 */
+	public GuildDatabaseBuilder journalBatchSize(int size) {
+		if(size < 1) throw new IllegalArgumentException("batch size must be positive");
+		this.journalBatchSize = size;
+		return this;
+	}
+	
+	/*
+	 * maximum time between workingset flushes, in ms
+	 */
+	public GuildDatabaseBuilder journalFlushInterval(long millis) {
+		if(millis < 1) throw new IllegalArgumentException("flush interval must be positive");
+		this.journalFlushInterval = millis;
+		return this;
+	}
+
+	/*
+	 * number of pre-generated lines to keep ready. 0 disables the pool
+	 */
+	public GuildDatabaseBuilder linePoolSize(int size) {
+		if(size < 0) throw new IllegalArgumentException("pool size can't be negative");
+		this.linePoolSize = size;
+		return this;
+	}
+	
+	/*
+	 * pre-generated lines older than this are thrown away instead of used, in ms
+	 */
+	public GuildDatabaseBuilder linePoolMaxAge(long millis) {
+		if(millis < 1) throw new IllegalArgumentException("max age must be positive");
+		this.linePoolMaxAge = millis;
+		return this;
+	}
+
+	/*
+	 * if set, the built database is only loaded while it's being used, and the given manager
+	 * unloads it when it's idle. see LazyGuildDatabase
+	 */
+	public GuildDatabaseBuilder evictionManager(DatabaseEvictionManager manager) {
+		this.evictionManager = manager;
+		return this;
+	}
+
+	/*
+	 * if set, the given governor sizes the database's shard cache based on how busy it is,
+	 * instead of the fixed sizes from prioritizeSpeed
+	 */
+	public GuildDatabaseBuilder shardCacheGovernor(ShardCacheGovernor governor) {
+		this.shardCacheGovernor = governor;
+		return this;
+	}
+
+	/*
+	 * if enabled, the weekly and monthly automatic backups are saved as compressed archives.
+	 * the daily backup is always left uncompressed, so the most likely restore is fast and
+	 * its workingset can be linked from. archives have no manifest, so the compressed 
+	 * backups are always full copies and the backups after them can't link to them either
+	 */
+	public GuildDatabaseBuilder compressBackups(boolean enabled) {
+		this.compressBackups = enabled;
+		return this;
+	}
+
 	public GuildDatabase build() {
+		if(this.evictionManager != null) return new LazyGuildDatabase(this, this.evictionManager);
 		return new GuildDatabaseImpl(this);
 	}
 	
@@ -42,4 +121,36 @@ public class GuildDatabaseBuilder {
 	public int getDatabaseAge() {
 		return this.databaseAge;
 	}
+	
+	public JournalDurability getJournalDurability() {
+		return this.journalDurability;
+	}
+	
+	public int getJournalBatchSize() {
+		return this.journalBatchSize;
+	}
+	
+	public long getJournalFlushInterval() {
+		return this.journalFlushInterval;
+	}
+	
+	public int getLinePoolSize() {
+		return this.linePoolSize;
+	}
+	
+	public long getLinePoolMaxAge() {
+		return this.linePoolMaxAge;
+	}
+	
+	public DatabaseEvictionManager getEvictionManager() {
+		return this.evictionManager;
+	}
+	
+	public ShardCacheGovernor getShardCacheGovernor() {
+		return this.shardCacheGovernor;
+	}
+	
+	public boolean isCompressBackups() {
+		return this.compressBackups;
+	}
 }
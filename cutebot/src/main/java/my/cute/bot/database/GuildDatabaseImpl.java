@@ -1,22 +1,35 @@
 package my.cute.bot.database;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -25,7 +38,10 @@ import org.slf4j.LoggerFactory;
 import com.google.common.collect.ImmutableList;
 
 import my.cute.bot.CutebotTask;
+import my.cute.bot.database.SegmentedWorkingSet.Segment;
+import my.cute.bot.util.MessageNormalizer;
 import my.cute.bot.util.MiscUtils;
+import my.cute.bot.util.NormalizedMessage;
 import my.cute.bot.util.PathUtils;
 import my.cute.markov2.MarkovDatabase;
 import my.cute.markov2.exceptions.FollowingWordRemovalException;
@@ -34,61 +50,178 @@ import my.cute.markov2.impl.MarkovDatabaseBuilder;
 public class GuildDatabaseImpl implements GuildDatabase {
 	
 	/*
-	 * TODO
-	 * add proper multithreading support. currently over-synchronizing
+	 * concurrency model
+	 * 
+	 * line generation only reads the markov database, so it runs under the read lock. 
+	 * processing and removing lines mutate it and so take the write lock, which also 
+	 * serializes them into a single writer. anything
+	 * that swaps out or rewrites database state (save, clear, loading backups, switching
+	 * speed/memory mode) takes the write lock as well
+	 * 
+	 * maintenance and backups are long-running, so they don't hold either lock for their 
+	 * whole duration. maintenance reads expired workingset segments without any lock, 
+	 * taking the write lock per chunk of expired lines (see removeLines) and then once 
+	 * more briefly to delete or swap in each segment. saving a backup takes the write 
+	 * lock just long enough to drain the workingset journal, save everything to disk and
+	 * hard-link the saved files into a snapshot (see BackupSnapshot). the files are copied
+	 * from the snapshot into the backup with no lock held, so neither generation nor 
+	 * processing waits on the copy
+	 * 
+	 * generation calls into the markov database from several threads at once under the 
+	 * read lock. this relies on markov2's reads being safe to run concurrently, including 
+	 * the shard loads and evictions a read can cause when it misses the shard cache
+	 * 
+	 * maintenanceLock just keeps two maintenance runs from overlapping. backupLock keeps 
+	 * a backup being copied from overlapping another backup, or a restore or delete. it's
+	 * always taken before the write lock
+	 * 
+	 * every change to the db is appended to the write-ahead log under the write lock, 
+	 * before it's applied. the change doesn't return until its log record is written, but
+	 * it waits for that after releasing the write lock, so changes made at the same time 
+	 * share a write (group commit, see WriteAheadLog). before any change, the log and 
+	 * workingset are checked for failed writes, so nothing goes into the db while they 
+	 * can't keep up. the log is only replayed onto a restored backup, never onto the live 
+	 * db (see recoverFromLog)
+	 * 
+	 * during a shadow rebuild, changes are recorded to the rebuild's side log under the
+	 * write lock as well, and the rebuilt db is swapped in under it (see swapIn)
 	 */
 
 	private static final Logger logger = LoggerFactory.getLogger(GuildDatabaseImpl.class);
 	private static final long TIME_BETWEEN_MAINTENANCE = TimeUnit.HOURS.toMillis(12);
+	/*
+	 * each guild's maintenance is due up to this much later than TIME_BETWEEN_MAINTENANCE,
+	 * by a fixed amount picked from its id. spreads guilds out so they don't all come due 
+	 * at once
+	 */
+	private static final long MAINTENANCE_JITTER = TimeUnit.HOURS.toMillis(3);
+	/*
+	 * number of lines applied per write lock acquisition in batch operations. bigger chunks
+	 * mean fewer lock handoffs but longer waits for line generation
+	 */
+	private static final int BATCH_CHUNK_SIZE = 256;
+	/*
+	 * number of expired lines maintenance collects before removing them as a batch
+	 */
+	private static final int EXPIRY_BATCH_SIZE = 4096;
+	/*
+	 * shard cache size used while prioritizing speed, eg during a rebuild
+	 */
+	private static final int SPEED_SHARD_CACHE_SIZE = 800;
+	/*
+	 * lines in a batch are applied in order of start word, so consecutive lines tend to 
+	 * touch the same shards
+	 */
+	private static final Comparator<PreparedLine> BY_START_WORD = Comparator.comparing(
+			line -> line.tokens.isEmpty() ? "" : line.tokens.get(0));
+	
+	/*
+	 * a line that's been normalized and tokenized ahead of a batch operation, so none of 
+	 * that happens while holding the write lock
+	 */
+	private static final class PreparedLine {
+		private final String line;
+		private final List<String> tokens;
+		private final String dateStamp;
+		
+		private PreparedLine(String line, List<String> tokens, String dateStamp) {
+			this.line = line;
+			this.tokens = tokens;
+			this.dateStamp = dateStamp;
+		}
+	}
 	
 	private final String id;
-	private final Path workingSet;
-	private BufferedWriter workingSetWriter;
+	private final SegmentedWorkingSet workingSet;
+	private final WriteAheadLog wal;
+	/*
+	 * whether the log has been checked for a crash yet. only done on the first load
+	 */
+	private boolean walChecked = false;
+	
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Lock readLock = this.lock.readLock();
+	private final Lock writeLock = this.lock.writeLock();
+	private final ReentrantLock maintenanceLock = new ReentrantLock();
+	private final ReentrantLock backupLock = new ReentrantLock();
 	
 	private final ImmutableList<BackupRecord> backupRecords;
+	private final BackupValidator backupValidator;
 	private MarkovDatabase database;
 	private final LineGenerator lineGenerator;
+	private final int linePoolSize;
+	private final long linePoolMaxAge;
+	/*
+	 * created once the db is loaded, since it starts generating lines right away. null
+	 * until then, or if pooling is disabled
+	 */
+	private volatile LinePool linePool = null;
+	/*
+	 * null if the shard cache size is fixed
+	 */
+	private final ShardCacheGovernor shardCacheGovernor;
+	private volatile int shardCacheSize;
+	/*
+	 * lines processed plus pooled lines requested. the governor uses the rate this goes up
+	 * to decide how much shard cache the database gets
+	 */
+	private final LongAdder activity = new LongAdder();
+	/*
+	 * the rebuild in progress, if any. every change to the db is also recorded to it
+	 */
+	private volatile ShadowRebuild shadowRebuild = null;
+	/*
+	 * shared with any other GuildDatabaseImpl built for the same LazyGuildDatabase
+	 */
+	private final DatabaseStatsRecorder stats;
 	
 	/*
 	 * maximum time for a line to be kept in the working set, in days
 	 */
 	private int workingSetMaxAge;
-	private boolean isShutdown = false;
+	private volatile boolean isShutdown = false;
+	private volatile boolean shutdownComplete = false;
 	private boolean prioritizeSpeed;
-	private boolean shouldRestoreFromBackup = false;
+	private volatile boolean shouldRestoreFromBackup = false;
 	
 	@SuppressWarnings("unused")
 	private GuildDatabaseImpl() {
 		this.lineGenerator = null;
 		this.id = null;
 		this.workingSet = null;
+		this.wal = null;
 		this.workingSetMaxAge = 0;
 		this.backupRecords = null;
+		this.backupValidator = null;
 		this.database = null;
+		this.shardCacheGovernor = null;
 		this.prioritizeSpeed = false;
+		this.linePoolSize = 0;
+		this.linePoolMaxAge = 0;
+		this.stats = null;
 	};
 	
 	GuildDatabaseImpl(GuildDatabaseBuilder builder) {
+		this(builder, new DatabaseStatsRecorder());
+	}
+	
+	GuildDatabaseImpl(GuildDatabaseBuilder builder, DatabaseStatsRecorder stats) {
 		this.id = builder.getId();
-		this.workingSet = PathUtils.getWorkingSetFile(this.id);
+		this.stats = stats;
 		this.workingSetMaxAge = builder.getDatabaseAge();
+		this.linePoolSize = builder.getLinePoolSize();
+		this.linePoolMaxAge = builder.getLinePoolMaxAge();
 		this.backupRecords = ImmutableList.<BackupRecord>builderWithExpectedSize(3)
 				.add(new BackupRecord(this.id, "daily", TimeUnit.DAYS, 1))
-				.add(new BackupRecord(this.id, "weekly", TimeUnit.DAYS, 7))
-				.add(new BackupRecord(this.id, "monthly", TimeUnit.DAYS, 31))
+				.add(new BackupRecord(this.id, "weekly", TimeUnit.DAYS, 7, builder.isCompressBackups()))
+				.add(new BackupRecord(this.id, "monthly", TimeUnit.DAYS, 31, builder.isCompressBackups()))
 				.build();
-		if(builder.isPrioritizeSpeed()) {
-			this.prioritizeSpeed = true;
-			this.database = new MarkovDatabaseBuilder(this.id, PathUtils.getDatabaseParentPath())
-					.shardCacheSize(800)
-					.build();
-		} else {
-			this.prioritizeSpeed = false;
-			this.database = new MarkovDatabaseBuilder(this.id, PathUtils.getDatabaseParentPath())
-					.shardCacheSize(0)
-					.fixedCleanupThreshold(100)
-					.build();
-		}
+		this.backupValidator = new BackupValidator(this.id);
+		this.shardCacheGovernor = builder.getShardCacheGovernor();
+		this.prioritizeSpeed = builder.isPrioritizeSpeed();
+		//governed databases start out small and grow once they've shown they're active
+		this.shardCacheSize = this.prioritizeSpeed ? SPEED_SHARD_CACHE_SIZE : 0;
+		this.database = this.buildMarkovDatabase(this.shardCacheSize);
 		
 		if(CutebotTask.ACTIVE_TOKEN.equals(CutebotTask.CUTEBOT_PRIME_TOKEN))
 			this.lineGenerator = new SpookyLineGenerator();
@@ -96,9 +229,10 @@ public class GuildDatabaseImpl implements GuildDatabase {
 			this.lineGenerator = new LineGenerator();
 		
 		try {
-			this.workingSet.toFile().createNewFile();
-			this.workingSetWriter = Files.newBufferedWriter(this.workingSet, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
-					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			this.workingSet = new SegmentedWorkingSet(this.id, builder.getJournalDurability(), builder.getJournalBatchSize(),
+					builder.getJournalFlushInterval());
+			this.wal = new WriteAheadLog(this.id, builder.getJournalDurability(), builder.getJournalBatchSize(),
+					builder.getJournalFlushInterval());
 		} catch (IOException e) {
 			logger.error(this + ": exception in constructor during workingset setup, aborting! "
 					+ "ex: " + e.getMessage(), e);
@@ -107,103 +241,470 @@ public class GuildDatabaseImpl implements GuildDatabase {
 	}
 
 	@Override
-	public synchronized boolean processLine(String line) throws IllegalStateException, IOException {
+	public boolean processLine(String line) throws IllegalStateException, IOException {
 		return this.processLineWithDate(line, MiscUtils.getDateStamp());
 	}
 	
 	@Override
-	public synchronized boolean processLineWithDate(String line, String dateStamp) throws IllegalStateException, IOException {
-		if(this.isShutdown) throw new IllegalStateException("can't process lines on a shutdown database");
-
-		line = MiscUtils.replaceNewLinesWithTokens(line);
-
-		if(this.database.processLine(MiscUtils.tokenize(line))) {
+	public boolean processLineWithDate(String line, String dateStamp) throws IllegalStateException, IOException {
+		NormalizedMessage message = MessageNormalizer.normalize(line);
+		return this.processNormalizedLine(message.getLine(), message.getTokens(), dateStamp);
+	}
+	
+	@Override
+	public boolean processLine(NormalizedMessage message) throws IllegalStateException, IOException {
+		return this.processNormalizedLine(message.getLine(), message.getTokens(), MiscUtils.getDateStamp());
+	}
+	
+	@Override
+	public boolean processLineWithDate(NormalizedMessage message, String dateStamp) throws IllegalStateException, IOException {
+		return this.processNormalizedLine(message.getLine(), message.getTokens(), dateStamp);
+	}
+	
+	private boolean processNormalizedLine(String line, List<String> tokens, String dateStamp) throws IOException {
+		long startTime = System.nanoTime();
+		try {
+			WriteAheadLog.Commit commit;
+			boolean processed;
+			this.writeLock.lock();
+			try {
+				if(this.isShutdown) throw new IllegalStateException("can't process lines on a shutdown database");
+				//before anything changes, so failing writes stop lines going into the db without them
+				this.checkWritable();
+				
+				this.wal.append(WriteAheadLog.PROCESS, toEpochDay(dateStamp), line);
+				commit = this.wal.commit();
+				if(this.shadowRebuild != null) this.shadowRebuild.record(line, tokens, dateStamp);
+				processed = this.database.processLine(tokens);
+				if(processed) {
 
-			this.workingSetWriter.append(dateStamp + line);
-			this.workingSetWriter.newLine();
-			this.workingSetWriter.flush();
+					//written to disk in a later batch, see WorkingSetJournal
+					this.workingSet.append(dateStamp, line);
+					if(this.linePool != null) this.linePool.requestRefill();
+					this.activity.increment();
+					this.stats.processed(1);
+				} else {
+					this.stats.rejected(1);
+				}
+			} finally {
+				this.writeLock.unlock();
+			}
+			commit.await();
+			return processed;
+		} finally {
+			this.stats.getProcessLatency().record(startTime);
+		}
+	}
 
-			return true;
-		} else {
-			return false;
+	@Override
+	public String generateLine() throws IOException {
+		long startTime = System.nanoTime();
+		this.readLock.lock();
+		try {
+			if(this.isShutdown) throw new IllegalStateException("can't generate line from shutdown database");
+			
+			return MiscUtils.replaceTokensWithNewLines(this.lineGenerator.generateLine(this.database));
+		} finally {
+			this.readLock.unlock();
+			this.stats.getGenerateLatency().record(startTime);
 		}
+	}
 
+	@Override
+	public String generateLine(String startWord) throws IOException {
+		long startTime = System.nanoTime();
+		this.readLock.lock();
+		try {
+			if(this.isShutdown) throw new IllegalStateException("can't generate line from shutdown database");
+			
+			return MiscUtils.replaceTokensWithNewLines(this.lineGenerator.generateLine(this.database, startWord));
+		} finally {
+			this.readLock.unlock();
+			this.stats.getGenerateLatency().record(startTime);
+		}
 	}
 
 	@Override
-	public synchronized String generateLine() throws IOException {
-		if(this.isShutdown) throw new IllegalStateException("can't generate line from shutdown database");
-		
-		return MiscUtils.replaceTokensWithNewLines(this.lineGenerator.generateLine(this.database));
+	public String generatePooledLine() throws IOException {
+		this.activity.increment();
+		LinePool pool = this.linePool;
+		if(pool != null) {
+			String line = pool.poll();
+			if(line != null) return line;
+		}
+		return this.generateLine();
+	}
+	
+	@Override
+	public LinePoolStats getLinePoolStats() {
+		LinePool pool = this.linePool;
+		return pool == null ? new LinePoolStats(0, 0, 0, 0, 0) : pool.getStats();
+	}
+	
+	@Override
+	public DatabaseStats stats() {
+		return this.stats.snapshot(this.id, !this.isShutdown, this.prioritizeSpeed, this.shardCacheSize, 
+				this.workingSetMaxAge, this.getLinePoolStats());
 	}
 
 	@Override
-	public synchronized String generateLine(String startWord) throws IOException {
-		if(this.isShutdown) throw new IllegalStateException("can't generate line from shutdown database");
+	public boolean removeLine(String line) throws IOException {
+		//any lines passed to removeLine should come from database (eg workingset) and already be sanitized
+		//so no need to call MiscUtils.replaceNewLinesWithTokens() on line before processing it
+		List<String> tokens = MiscUtils.tokenize(line);
 		
-		return MiscUtils.replaceTokensWithNewLines(this.lineGenerator.generateLine(this.database, startWord));
+		WriteAheadLog.Commit commit;
+		boolean removed;
+		this.writeLock.lock();
+		try {
+			if(this.isShutdown) throw new IllegalStateException("can't remove line from shutdown database");
+			this.checkWritable();
+			
+			this.wal.append(WriteAheadLog.REMOVE, 0, line);
+			commit = this.wal.commit();
+			if(this.shadowRebuild != null) this.shadowRebuild.recordRemoval(line, tokens);
+			try {
+				removed = this.database.removeLine(tokens);
+			} catch (FollowingWordRemovalException e) {
+				logger.warn(this.toString() + ": exception thrown during line removal. line: '" + line
+					+ "', ex: " + e.getMessage(), e);
+				removed = false;
+			}
+			if(removed) this.stats.removed(1);
+		} finally {
+			this.writeLock.unlock();
+		}
+		commit.await();
+		return removed;
 	}
 
 	@Override
-	public synchronized boolean removeLine(String line) throws IOException {
-		if(this.isShutdown) throw new IllegalStateException("can't remove line from shutdown database");
+	public boolean retractLine(String line, String dateStamp) throws IOException {
+		List<String> tokens = MiscUtils.tokenize(line);
 		
-		//any lines passed to removeLine should come from database (eg workingset) and already be sanitized
-		//so no need to call MiscUtils.replaceNewLinesWithTokens() on line before processing it
+		WriteAheadLog.Commit commit;
+		boolean retracted;
+		this.writeLock.lock();
 		try {
-			return this.database.removeLine(MiscUtils.tokenize(line));
+			if(this.isShutdown) throw new IllegalStateException("can't remove line from shutdown database");
+			this.checkWritable();
+			
+			this.wal.append(WriteAheadLog.RETRACT, toEpochDay(dateStamp), line);
+			commit = this.wal.commit();
+			if(this.shadowRebuild != null) this.shadowRebuild.recordRetraction(line, tokens, dateStamp);
+			retracted = this.retract(line, tokens, dateStamp);
+			if(retracted) this.stats.retracted();
+		} finally {
+			this.writeLock.unlock();
+		}
+		commit.await();
+		return retracted;
+	}
+	
+	/*
+	 * throws if the log or workingset has a failed write outstanding. their records are
+	 * kept and retried, but until a write succeeds they're only in memory
+	 * 
+	 * must hold write lock
+	 */
+	private void checkWritable() throws IOException {
+		this.wal.checkWritable();
+		this.workingSet.checkWritable();
+	}
+	
+	/*
+	 * the workingset record is only retracted if the line was actually in the db, 
+	 * otherwise expiry would later skip a line the db still has
+	 * 
+	 * must hold write lock
+	 */
+	private boolean retract(String line, List<String> tokens, String dateStamp) throws IOException {
+		try {
+			if(!this.database.removeLine(tokens)) return false;
 		} catch (FollowingWordRemovalException e) {
-			logger.warn(this.toString() + ": exception thrown during line removal. line: '" + line
+			logger.warn(this.toString() + ": exception thrown during line retraction. line: '" + line
 				+ "', ex: " + e.getMessage(), e);
 			return false;
 		}
+		this.workingSet.retract(dateStamp, line);
+		return true;
 	}
 
 	@Override
-	public synchronized void save() throws IOException {
-		this.database.save();
+	public BatchResult processLines(Iterable<DatedLine> lines) throws IllegalStateException, IOException {
+		BatchResult result = new BatchResult();
+		List<PreparedLine> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+		for(DatedLine line : lines) {
+			if(line.getTokens() != null) {
+				chunk.add(new PreparedLine(line.getLine(), line.getTokens(), line.getDateStamp()));
+			} else {
+				NormalizedMessage message = MessageNormalizer.normalize(line.getLine());
+				chunk.add(new PreparedLine(message.getLine(), message.getTokens(), line.getDateStamp()));
+			}
+			if(chunk.size() >= BATCH_CHUNK_SIZE) {
+				this.processChunk(chunk, result);
+				chunk.clear();
+			}
+		}
+		if(!chunk.isEmpty()) this.processChunk(chunk, result);
+		return result;
+	}
+	
+	private void processChunk(List<PreparedLine> chunk, BatchResult result) throws IOException {
+		chunk.sort(BY_START_WORD);
+		WriteAheadLog.Commit commit;
+		this.writeLock.lock();
+		try {
+			if(this.isShutdown) throw new IllegalStateException("can't process lines on a shutdown database");
+			this.checkWritable();
+			
+			for(PreparedLine line : chunk) {
+				this.wal.append(WriteAheadLog.PROCESS, toEpochDay(line.dateStamp), line.line);
+			}
+			commit = this.wal.commit();
+			if(this.shadowRebuild != null) {
+				for(PreparedLine line : chunk) {
+					this.shadowRebuild.record(line.line, line.tokens, line.dateStamp);
+				}
+			}
+			long processed = 0;
+			for(PreparedLine line : chunk) {
+				if(this.database.processLine(line.tokens)) {
+					this.workingSet.append(line.dateStamp, line.line);
+					result.succeeded();
+					processed++;
+				} else {
+					result.failed(line.line);
+				}
+			}
+			this.stats.processed(processed);
+			this.stats.rejected(chunk.size() - processed);
+		} finally {
+			this.writeLock.unlock();
+		}
+		commit.await();
+		if(this.linePool != null) this.linePool.requestRefill();
+	}
+	
+	@Override
+	public BatchResult removeLines(Iterable<String> lines) throws IOException {
+		return this.removeLines(lines, true);
+	}
+	
+	/*
+	 * logged is false when removing expired lines during maintenance, since the log records
+	 * the expiry as a whole instead
+	 */
+	private BatchResult removeLines(Iterable<String> lines, boolean logged) throws IOException {
+		BatchResult result = new BatchResult();
+		List<PreparedLine> chunk = new ArrayList<>(BATCH_CHUNK_SIZE);
+		for(String line : lines) {
+			//as in removeLine, lines should already be sanitized
+			chunk.add(new PreparedLine(line, MiscUtils.tokenize(line), null));
+			if(chunk.size() >= BATCH_CHUNK_SIZE) {
+				this.removeChunk(chunk, result, logged);
+				chunk.clear();
+			}
+		}
+		if(!chunk.isEmpty()) this.removeChunk(chunk, result, logged);
+		return result;
+	}
+	
+	private void removeChunk(List<PreparedLine> chunk, BatchResult result, boolean logged) throws IOException {
+		chunk.sort(BY_START_WORD);
+		WriteAheadLog.Commit commit = null;
+		this.writeLock.lock();
+		try {
+			if(this.isShutdown) throw new IllegalStateException("can't remove line from shutdown database");
+			this.checkWritable();
+			
+			if(logged) {
+				for(PreparedLine line : chunk) {
+					this.wal.append(WriteAheadLog.REMOVE, 0, line.line);
+				}
+				commit = this.wal.commit();
+				if(this.shadowRebuild != null) {
+					for(PreparedLine line : chunk) {
+						this.shadowRebuild.recordRemoval(line.line, line.tokens);
+					}
+				}
+			}
+			for(PreparedLine line : chunk) {
+				try {
+					if(this.database.removeLine(line.tokens)) {
+						result.succeeded();
+						this.stats.removed(1);
+					} else {
+						result.failed(line.line);
+					}
+				} catch (FollowingWordRemovalException e) {
+					logger.warn(this.toString() + ": exception thrown during line removal. line: '" + line.line
+						+ "', ex: " + e.getMessage(), e);
+					result.failed(line.line);
+				}
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+		if(commit != null) commit.await();
 	}
 
 	@Override
-	public synchronized void load() throws IOException {
-		this.database.load();
+	public void save() throws IOException {
+		this.writeLock.lock();
+		try {
+			this.database.save();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void load() throws IOException {
+		this.writeLock.lock();
+		try {
+			this.database.load();
+			if(this.linePool == null && this.linePoolSize > 0 && !this.isShutdown) {
+				this.linePool = new LinePool(this, this.linePoolSize, this.linePoolMaxAge);
+			}
+			if(this.shardCacheGovernor != null && !this.isShutdown) this.shardCacheGovernor.register(this);
+			if(!this.walChecked && !this.isShutdown) {
+				this.walChecked = true;
+				if(!this.wal.wasCleanlyShutDown()) this.recoverFromLog();
+				this.wal.markOpen();
+			}
+		} finally {
+			this.writeLock.unlock();
+		}
+		//otherwise not measured until the first maintenance
+		if(this.stats.getDiskUsage() == null && !this.isShutdown) this.measureDiskUsage();
 	}
 	
+	/*
+	 * every step is tried even if an earlier one fails, so nothing is left running (eg a 
+	 * journal still being flushed in the background) because the db couldn't be saved. the 
+	 * log is only marked clean if the db and workingset both made it to disk, otherwise the 
+	 * next load recovers from it. the database stops accepting calls either way
+	 * 
+	 * if anything fails, the first failure is thrown and shutdown can be called again to
+	 * retry whatever didn't finish
+	 */
 	@Override
-	public synchronized void shutdown() throws IOException {
-		this.save();
-		this.workingSetWriter.close();
-		this.isShutdown = true;
+	public void shutdown() throws IOException {
+		this.writeLock.lock();
+		try {
+			if(this.shutdownComplete) return;
+			this.isShutdown = true;
+			this.abandonShadowRebuild();
+			if(this.linePool != null) this.linePool.close();
+			if(this.shardCacheGovernor != null) this.shardCacheGovernor.deregister(this);
+			IOException failure = null;
+			try {
+				this.database.save();
+			} catch (IOException e) {
+				failure = e;
+			}
+			try {
+				this.workingSet.close();
+			} catch (IOException e) {
+				if(failure == null) failure = e;
+				else failure.addSuppressed(e);
+			}
+			try {
+				this.wal.close(failure == null);
+			} catch (IOException e) {
+				if(failure == null) failure = e;
+				else failure.addSuppressed(e);
+			}
+			if(failure != null) {
+				logger.error(this + ": exception during shutdown, db may not be fully closed. ex: " + failure, failure);
+				throw failure;
+			}
+			this.shutdownComplete = true;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return true once {@link #shutdown()} has been called, even if it failed. a database 
+	 * whose shutdown failed can't be used, but may still have files open until shutdown
+	 * is retried successfully
+	 */
+	boolean isShutdown() {
+		return this.isShutdown;
+	}
+	
+	@Override
+	public Lock getExclusiveLock() {
+		return this.writeLock;
 	}
 	
 	@Override
-	public synchronized boolean getShouldRestoreFromBackup() {
+	public boolean getShouldRestoreFromBackup() {
 		return this.shouldRestoreFromBackup;
 	}
 	
 	@Override
-	public synchronized void setShouldRestoreFromBackup(boolean shouldRestore) {
+	public void setShouldRestoreFromBackup(boolean shouldRestore) {
 		this.shouldRestoreFromBackup = shouldRestore;
 	}
 	
 	@Override
-	public synchronized boolean restoreFromAutomaticBackups() {
+	public boolean restoreFromAutomaticBackups() {
 		logger.info(this + "-restore: attempting to restore database from backup; checking all backups");
+		/*
+		 * candidates are checked against their validation checksums first, without any lock.
+		 * the last known good backup goes first, then the others that passed, then any that 
+		 * were never validated (eg backups from before validation) as a last resort. corrupt 
+		 * ones are repaired from the other backups if every bad file has a good copy in one
+		 * of them (see BackupValidator.repair), and are never loaded otherwise
+		 */
+		String lastKnownGood = this.backupValidator.getLastKnownGood();
+		List<String> names = new ArrayList<>(this.backupRecords.size() + 1);
+		if(lastKnownGood != null) names.add(lastKnownGood);
+		for(BackupRecord record : this.backupRecords) {
+			if(!record.getName().equals(lastKnownGood)) names.add(record.getName());
+		}
+		List<String> candidates = new ArrayList<>(names.size());
+		List<String> unvalidated = new ArrayList<>(names.size());
+		for(String name : names) {
+			BackupValidator.Status status = this.backupValidator.verify(name);
+			logger.info(this + "-restore: backup '" + name + "' is " + status.name().toLowerCase());
+			if(status == BackupValidator.Status.CORRUPT && this.backupValidator.repair(name, names)) {
+				logger.info(this + "-restore: repaired corrupt files in backup '" + name + "'");
+				status = BackupValidator.Status.VALID;
+			}
+			if(status == BackupValidator.Status.VALID) candidates.add(name);
+			else if(status == BackupValidator.Status.UNVALIDATED) unvalidated.add(name);
+		}
+		candidates.addAll(unvalidated);
+		
 		boolean foundValidBackup = false;
-		int i=0;
-		while(i < this.backupRecords.size() && !foundValidBackup) {
-			try {
-				this.loadBackup(this.backupRecords.get(i).getName());
-				logger.info(this + "-restore: checking validity of new database state");
-				if(this.database.isValid()) {
-					foundValidBackup = true;
-					logger.info(this + "-restore: validity check succeeded");
+		this.backupLock.lock();
+		this.writeLock.lock();
+		try {
+			int i=0;
+			while(i < candidates.size() && !foundValidBackup) {
+				try {
+					this.restoreBackup(candidates.get(i));
+					logger.info(this + "-restore: checking validity of new database state");
+					if(this.database.isValid()) {
+						foundValidBackup = true;
+						logger.info(this + "-restore: validity check succeeded for backup '" + candidates.get(i) + "'");
+						this.replayLogOnto(candidates.get(i));
+					}
+				} catch (FileNotFoundException e) {
+					//never saved. continue checking backups
+				} catch (IOException e) {
+					//unsuccessful. continue checking backups
 				}
-			} catch (IOException e) {
-				//unsuccessful. continue checking backups
+				if(!foundValidBackup) logger.info(this + "-restore: validity check failed. continuing");
+				i++;
 			}
-			if(!foundValidBackup) logger.info(this + "-restore: validity check failed. continuing");
-			i++;
+		} finally {
+			this.writeLock.unlock();
+			this.backupLock.unlock();
 		}
 		if(foundValidBackup) {
 			logger.info(this + "-restore: successfully restored backup; database should be operating normally now");
@@ -215,110 +716,764 @@ public class GuildDatabaseImpl implements GuildDatabase {
 	}
 
 	@Override
-	public synchronized Path saveBackup(String backupName) throws IOException {
-		//shouldn't continue if workingset is nonfunctional, so check its IOException separately
+	public Path saveBackup(String backupName) throws IOException {
+		return this.saveBackup(backupName, false);
+	}
+	
+	/*
+	 * if compressed is true, the backup is first saved as usual and then packed into an
+	 * archive, and the uncompressed files are deleted. like the copying, compression happens
+	 * without the database's locks, since the backup files are separate copies
+	 */
+	private Path saveBackup(String backupName, boolean compressed) throws IOException {
+		this.backupLock.lock();
+		try {
+			Path backup = this.writeBackup(backupName, compressed);
+			this.backupValidator.submit(backupName, backup, () ->
+			{
+				//take it again at the next maintenance
+				this.backupRecords.forEach(record ->
+				{
+					if(record.getName().equals(backupName)) record.markForMaintenance();
+				});
+			});
+			return backup;
+		} finally {
+			this.backupLock.unlock();
+		}
+	}
+	
+	private Path writeBackup(String backupName, boolean compressed) throws IOException {
+		Path markovBackup = this.saveUncompressedBackup(backupName);
+		Path archive = PathUtils.getBackupArchiveFile(this.id, backupName);
+		if(!compressed) {
+			//so an old archive with the same name is never restored over this backup
+			Files.deleteIfExists(archive);
+			return markovBackup;
+		}
+		
+		Path base = PathUtils.getBackupDirectory(this.id).toAbsolutePath().normalize();
+		Path markovBackupPath = markovBackup.toAbsolutePath().normalize();
+		long startTime = System.currentTimeMillis();
+		Path workingSetBackup = PathUtils.getBackupWorkingSetDirectory(this.id, backupName).toAbsolutePath().normalize();
+		List<Path> files = new ArrayList<>();
+		for(Path backupRoot : List.of(workingSetBackup, markovBackupPath)) {
+			try (Stream<Path> paths = Files.walk(backupRoot)) {
+				paths.filter(Files::isRegularFile).sorted().forEach(files::add);
+			}
+		}
+		BackupArchive.Stats stats = BackupArchive.write(archive, base, files);
+		SegmentedWorkingSet.deleteSegmentDirectory(workingSetBackup);
+		ShadowRebuild.deleteRecursively(markovBackupPath);
+		logger.info(this + ": compressed backup '" + backupName + "' from " + (stats.getRawBytes() / 1024) + "KB to " 
+				+ (stats.getArchiveBytes() / 1024) + "KB (" + stats.getFiles() + " files) in " 
+				+ (System.currentTimeMillis() - startTime) + "ms");
+		return archive;
+	}
+	
+	/*
+	 * must hold backupLock
+	 */
+	private Path saveUncompressedBackup(String backupName) throws IOException {
+		Path snapshotDirectory = PathUtils.getBackupSnapshotDirectory(this.id);
+		Path workingSetBackup = PathUtils.getBackupWorkingSetDirectory(this.id, backupName);
+		Path markovBackup = PathUtils.getBackupMarkovDirectory(this.id, backupName);
 		try {
-			this.workingSetWriter.close();
-			Files.copy(this.workingSet, PathUtils.getBackupWorkingSetFile(this.id, backupName), StandardCopyOption.REPLACE_EXISTING);
-			this.workingSetWriter = Files.newBufferedWriter(this.workingSet, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
-					StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			//left over from a backup that never finished, eg because of a crash
+			ShadowRebuild.deleteRecursively(snapshotDirectory);
+			BackupSnapshot workingSetSnapshot = new BackupSnapshot(snapshotDirectory.resolve("workingset"), true);
+			BackupSnapshot markovSnapshot = new BackupSnapshot(snapshotDirectory.resolve("markov"), false);
+			/*
+			 * everything is written to disk and snapshotted under the write lock. snapshotting
+			 * only makes hard links, so it's quick, and the copying happens after the lock is
+			 * released. nothing waits on it
+			 */
+			long startTime = System.currentTimeMillis();
+			this.writeLock.lock();
+			try {
+				this.workingSet.drain();
+				this.database.save();
+				/*
+				 * the backup holds exactly the state as of this checkpoint, so the log can be 
+				 * replayed onto it. anything from before the last known good backup's checkpoint 
+				 * is no longer needed
+				 */
+				String lastKnownGood = this.backupValidator.getLastKnownGood();
+				Long keepFrom = lastKnownGood == null ? null : this.wal.getCheckpoint(lastKnownGood);
+				this.wal.checkpoint(keepFrom == null ? -1 : keepFrom);
+				this.workingSet.snapshotForBackup(workingSetSnapshot);
+				this.snapshotMarkovDatabase(markovSnapshot);
+			} finally {
+				this.writeLock.unlock();
+			}
+			logger.info(this + ": snapshotted database for backup '" + backupName + "' in " 
+					+ (System.currentTimeMillis() - startTime) + "ms");
+			
+			/*
+			 * both halves are copied beside the old backup, and only swapped in once both are
+			 * complete. until then the old backup is left as it was, along with its checkpoint
+			 * and validation, so a failed backup never leaves the name pointing at nothing (or
+			 * at half of each)
+			 */
+			try {
+				//shouldn't continue if workingset is nonfunctional, so check its IOException separately
+				try {
+					startTime = System.currentTimeMillis();
+					BackupManifest manifest = workingSetSnapshot.copyTo(workingSetBackup, 
+							this.getBackupReferences(backupName, name -> PathUtils.getBackupWorkingSetDirectory(this.id, name)));
+					this.logBackupCopy("workingset", backupName, manifest, startTime);
+				} catch (IOException e) {
+					logger.error(this + ": exception when trying to backup workingset when creating backup '" + backupName + "'! ex: "
+							+ e, e);
+					throw e;
+				}
+				startTime = System.currentTimeMillis();
+				BackupManifest manifest = markovSnapshot.copyTo(markovBackup, 
+						this.getBackupReferences(backupName, name -> PathUtils.getBackupMarkovDirectory(this.id, name)));
+				this.logBackupCopy("markov database", backupName, manifest, startTime);
+			} catch (IOException e) {
+				this.discardBackupCopies(workingSetBackup, markovBackup, e);
+				throw e;
+			}
+			
+			this.writeLock.lock();
+			try {
+				if(this.isShutdown) {
+					IllegalStateException e = new IllegalStateException("database was shut down while saving backup '" 
+							+ backupName + "'");
+					this.discardBackupCopies(workingSetBackup, markovBackup, e);
+					throw e;
+				}
+				this.backupValidator.invalidate(backupName);
+				try {
+					BackupSnapshot.swapIn(workingSetBackup);
+					BackupSnapshot.swapIn(markovBackup);
+				} catch (IOException e) {
+					//whatever's there now doesn't match the old checkpoint
+					this.wal.removeCheckpoint(backupName);
+					this.discardBackupCopies(workingSetBackup, markovBackup, e);
+					throw e;
+				}
+				if(!this.wal.commitCheckpoint(backupName)) {
+					logger.warn(this + ": log was reset while backup '" + backupName + "' was being saved, so it has no "
+							+ "checkpoint and can't be used for recovery");
+				}
+				/*
+				 * the markov library's own backup with this name, if there is one. those are only
+				 * left over from before backups were snapshotted
+				 */
+				this.database.deleteBackup(backupName);
+			} finally {
+				this.writeLock.unlock();
+			}
+			BackupSnapshot.deleteReplaced(workingSetBackup);
+			BackupSnapshot.deleteReplaced(markovBackup);
+			return markovBackup;
+		} finally {
+			try {
+				ShadowRebuild.deleteRecursively(snapshotDirectory);
+			} catch (IOException e) {
+				logger.warn(this + ": exception when deleting backup snapshot: " + e.getMessage(), e);
+			}
+		}
+	}
+	
+	/*
+	 * hard-links every file of the saved markov database into the snapshot
+	 * 
+	 * must hold write lock, with the db saved
+	 */
+	private void snapshotMarkovDatabase(BackupSnapshot snapshot) throws IOException {
+		Path live = PathUtils.getDatabaseDirectory(this.id);
+		if(!Files.isDirectory(live)) return;
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(live)) {
+			paths.filter(Files::isRegularFile).sorted().forEach(files::add);
+		}
+		for(Path file : files) {
+			snapshot.link(relativePath(live, file), file);
+		}
+	}
+	
+	private void logBackupCopy(String part, String backupName, BackupManifest manifest, long startTime) {
+		int linked = 0;
+		long copiedBytes = 0;
+		for(BackupManifest.Entry entry : manifest.getEntries()) {
+			if(entry.isLinked()) linked++;
+			else copiedBytes += entry.getSize();
+		}
+		logger.info(this + ": backed up " + part + " to '" + backupName + "' in " + (System.currentTimeMillis() - startTime) 
+				+ "ms. " + linked + "/" + manifest.getEntries().size() + " files linked, " + (copiedBytes / 1024) 
+				+ "KB copied");
+	}
+	
+	/*
+	 * deletes whatever copyTo wrote for a backup that won't be swapped in. failures are
+	 * added to the exception that stopped the backup
+	 */
+	private void discardBackupCopies(Path workingSetBackup, Path markovBackup, Exception cause) {
+		for(Path backup : List.of(workingSetBackup, markovBackup)) {
+			try {
+				BackupSnapshot.discard(backup);
+			} catch (IOException e) {
+				cause.addSuppressed(e);
+			}
+		}
+	}
+	
+	/*
+	 * copies a backup's markov database over the live one and reloads it. the copy is 
+	 * built beside the live directory and swapped in with renames, as in swapIn, so if 
+	 * copying fails the live db is left as it was. backup files are copied rather than
+	 * linked, since the live ones get modified and backup files never should be
+	 * 
+	 * must hold write lock
+	 */
+	private void restoreMarkovBackup(Path backup) throws IOException {
+		Path live = PathUtils.getDatabaseDirectory(this.id);
+		Path restoring = live.resolveSibling(live.getFileName() + ".restoring");
+		Path old = live.resolveSibling(live.getFileName() + ".old");
+		ShadowRebuild.deleteRecursively(restoring);
+		ShadowRebuild.deleteRecursively(old);
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> paths = Files.walk(backup)) {
+			paths.filter(Files::isRegularFile).forEach(files::add);
+		}
+		try {
+			Files.createDirectories(restoring);
+			for(Path file : files) {
+				String name = relativePath(backup, file);
+				if(name.equals(BackupManifest.FILE_NAME)) continue;
+				Path target = restoring.resolve(backup.relativize(file).toString());
+				Files.createDirectories(target.getParent());
+				Files.copy(file, target);
+			}
+			if(Files.exists(live)) Files.move(live, old);
+			try {
+				Files.move(restoring, live);
+			} catch (IOException e) {
+				if(Files.exists(old)) Files.move(old, live);
+				throw e;
+			}
 		} catch (IOException e) {
-			logger.error(this + ": exception when trying to backup workingset when creating backup '" + backupName + "'! ex: "
-					+ e, e);
+			try {
+				ShadowRebuild.deleteRecursively(restoring);
+			} catch (IOException e1) {
+				e.addSuppressed(e1);
+			}
 			throw e;
 		}
-		return this.database.saveBackup(backupName);
+		ShadowRebuild.deleteRecursively(old);
+		this.database = this.buildMarkovDatabase(this.shardCacheSize);
+		this.database.load();
 	}
 
-	@Override
-	public synchronized void loadBackup(String backupName) throws FileNotFoundException, IOException {
+	/*
+	 * with / as the separator, as stored in manifests
+	 */
+	private static String relativePath(Path from, Path to) {
+		return from.relativize(to).toString().replace(to.getFileSystem().getSeparator(), "/");
+	}
+
+	/*
+	 * called on the first load if the last run didn't shut down cleanly. some of the changes
+	 * since the last save may or may not have made it to disk, so the db and workingset can't
+	 * be trusted. the last known good backup is loaded instead and everything logged since 
+	 * it was saved is replayed, which leaves the db exactly as it was at the crash
+	 * 
+	 * must hold write lock
+	 */
+	private void recoverFromLog() throws IOException {
+		String backupName = this.backupValidator.getLastKnownGood();
+		if(backupName == null || this.wal.getCheckpoint(backupName) == null || !this.verifyOrRepair(backupName)) {
+			logger.warn(this + "-recovery: database wasn't shut down cleanly, but there's no verified backup the log "
+					+ "can be replayed onto. db and workingset may be inconsistent");
+			return;
+		}
+		logger.info(this + "-recovery: database wasn't shut down cleanly. restoring backup '" + backupName 
+				+ "' and replaying log");
+		long startTime = System.currentTimeMillis();
+		this.restoreBackup(backupName);
+		this.replayLogOnto(backupName);
+		this.workingSet.drain();
+		this.database.save();
+		logger.info(this + "-recovery: recovered in " + (System.currentTimeMillis() - startTime) + "ms");
+	}
+	
+	/*
+	 * whether the given backup is valid, repairing it from the other automatic backups 
+	 * first if it's corrupt
+	 */
+	private boolean verifyOrRepair(String backupName) {
+		BackupValidator.Status status = this.backupValidator.verify(backupName);
+		if(status == BackupValidator.Status.CORRUPT) {
+			List<String> sources = new ArrayList<>(this.backupRecords.size());
+			this.backupRecords.forEach(record -> sources.add(record.getName()));
+			return this.backupValidator.repair(backupName, sources);
+		}
+		return status == BackupValidator.Status.VALID;
+	}
+	
+	/*
+	 * replays everything logged since the given backup was saved, after it's been restored.
+	 * if the log doesn't go back far enough, or replaying fails, the log is reset since it
+	 * no longer matches the db
+	 * 
+	 * must hold write lock
+	 */
+	private void replayLogOnto(String backupName) {
+		Long checkpoint = this.wal.getCheckpoint(backupName);
 		try {
-			this.database.loadBackup(backupName);
+			if(checkpoint == null) {
+				logger.info(this + ": no log checkpoint for backup '" + backupName + "', lines since the backup are lost");
+				this.wal.reset();
+				return;
+			}
+			MaintenanceMonitor monitor = new MaintenanceMonitor(this.id);
+			long count = this.wal.replay(checkpoint, (type, epochDay, line) ->
+			{
+				switch(type) {
+					case WriteAheadLog.PROCESS:
+						if(this.database.processLine(MiscUtils.tokenize(line))) {
+							this.workingSet.append(LocalDate.ofEpochDay(epochDay).format(DateTimeFormatter.BASIC_ISO_DATE), line);
+						}
+						break;
+					case WriteAheadLog.REMOVE:
+						try {
+							this.database.removeLine(MiscUtils.tokenize(line));
+						} catch (FollowingWordRemovalException e) {
+							logger.warn(this + ": exception thrown during replayed line removal. line: '" + line
+									+ "', ex: " + e.getMessage(), e);
+						}
+						break;
+					case WriteAheadLog.EXPIRE:
+						this.expireUpTo(epochDay, monitor);
+						break;
+					case WriteAheadLog.RETRACT:
+						this.retract(line, MiscUtils.tokenize(line), 
+								LocalDate.ofEpochDay(epochDay).format(DateTimeFormatter.BASIC_ISO_DATE));
+						break;
+					default:
+						throw new IOException("unknown log record type " + type);
+				}
+			});
+			logger.info(this + ": replayed " + count + " logged operation(s) onto backup '" + backupName + "'");
 		} catch (IOException e) {
-			logger.error(this + ": exception when trying to load backup '" + backupName 
-					+ "' when loading database, db may be in inconsistent state! ex: " + e, e);
-			throw e;
+			logger.error(this + ": exception when replaying log onto backup '" + backupName + "', lines since the "
+					+ "backup may be lost. ex: " + e, e);
+			try {
+				this.wal.reset();
+			} catch (IOException e1) {
+				logger.error(this + ": exception when resetting log: " + e1, e1);
+			}
+		}
+	}
+	
+	/*
+	 * expires every workingset line dated on or before the given day, as in maintenance 
+	 * but without cancellation
+	 */
+	private void expireUpTo(int cutoffEpochDay, MaintenanceMonitor monitor) throws IOException {
+		this.workingSet.applyRetractions();
+		LocalDate cutoff = LocalDate.ofEpochDay(cutoffEpochDay);
+		for(Segment segment : this.workingSet.getSegments()) {
+			if(segment.getStart().isAfter(cutoff)) break;
+			if(!segment.getEnd().isAfter(cutoff)) {
+				this.expireSegment(segment, monitor);
+			} else {
+				this.trimSegment(segment, cutoffEpochDay, monitor);
+			}
+		}
+	}
+	
+	private static int toEpochDay(String dateStamp) {
+		return Math.toIntExact(LocalDate.parse(dateStamp, DateTimeFormatter.BASIC_ISO_DATE).toEpochDay());
+	}
+	
+	/*
+	 * backups that part of a new backup can link unchanged files from: the one it's 
+	 * replacing, plus every automatic backup. directory gives that part's directory for
+	 * a backup name
+	 */
+	private List<Path> getBackupReferences(String backupName, Function<String, Path> directory) {
+		List<Path> references = new ArrayList<>(this.backupRecords.size() + 1);
+		references.add(directory.apply(backupName));
+		for(BackupRecord record : this.backupRecords) {
+			if(!record.getName().equals(backupName)) {
+				references.add(directory.apply(record.getName()));
+			}
+		}
+		return references;
+	}
+	
+	@Override
+	public void loadBackup(String backupName) throws FileNotFoundException, IOException {
+		this.backupLock.lock();
+		this.writeLock.lock();
+		try {
+			this.restoreBackup(backupName);
+			//the log describes how the db got to its old state, which is gone now
+			this.wal.reset();
+		} finally {
+			this.writeLock.unlock();
+			this.backupLock.unlock();
+		}
+	}
+	
+	/*
+	 * loads a backup over the db and workingset, without touching the log
+	 */
+	private void restoreBackup(String backupName) throws FileNotFoundException, IOException {
+		this.writeLock.lock();
+		try {
+			this.abandonShadowRebuild();
+			Path backupWorkingSet = PathUtils.getBackupWorkingSetDirectory(this.id, backupName);
+			Path archive = PathUtils.getBackupArchiveFile(this.id, backupName);
+			/*
+			 * a compressed backup is extracted back to the normal backup files, which are loaded 
+			 * as usual and then deleted again, whether or not anything worked. extract cleans up 
+			 * after itself if it fails, but either way nothing extracted is left behind to be 
+			 * mistaken for an uncompressed backup later
+			 */
+			boolean extracting = !Files.isDirectory(backupWorkingSet) && Files.isRegularFile(archive);
+			try {
+				if(extracting) {
+					long startTime = System.currentTimeMillis();
+					List<Path> files = BackupArchive.extract(archive, PathUtils.getBackupDirectory(this.id).toAbsolutePath().normalize());
+					logger.info(this + ": extracted " + files.size() + " files from compressed backup '" + backupName + "' ("
+							+ (Files.size(archive) / 1024) + "KB) in " + (System.currentTimeMillis() - startTime) + "ms");
+				}
+				long startTime = System.currentTimeMillis();
+				Path markovBackup = PathUtils.getBackupMarkovDirectory(this.id, backupName);
+				try {
+					if(Files.isDirectory(markovBackup)) {
+						this.restoreMarkovBackup(markovBackup);
+					} else {
+						//backup was made by the markov library, before backups were snapshotted
+						this.database.loadBackup(backupName);
+					}
+				} catch (IOException e) {
+					logger.error(this + ": exception when trying to load backup '" + backupName 
+							+ "' when loading database, db may be in inconsistent state! ex: " + e, e);
+					throw e;
+				}
+				this.stats.workingSetReplaced();
+				if(Files.isDirectory(backupWorkingSet)) {
+					this.workingSet.restoreFrom(backupWorkingSet);
+				} else {
+					//backup was made before the workingset was split into segments
+					this.workingSet.restoreFromLegacyFile(PathUtils.getBackupWorkingSetFile(this.id, backupName));
+				}
+				if(this.linePool != null) this.linePool.clear();
+				logger.info(this + ": restored backup '" + backupName + "' in " + (System.currentTimeMillis() - startTime) + "ms");
+			} finally {
+				if(extracting) {
+					try {
+						SegmentedWorkingSet.deleteSegmentDirectory(backupWorkingSet);
+						ShadowRebuild.deleteRecursively(PathUtils.getBackupMarkovDirectory(this.id, backupName));
+						this.database.deleteBackup(backupName);
+					} catch (IOException e) {
+						logger.error(this + ": exception when deleting files extracted from compressed backup '" + backupName 
+								+ "', they may be mistaken for an uncompressed backup! ex: " + e, e);
+					}
+				}
+			}
+		} finally {
+			this.writeLock.unlock();
 		}
-		this.workingSetWriter.close();
-		Files.copy(PathUtils.getBackupWorkingSetFile(this.id, backupName), this.workingSet, StandardCopyOption.REPLACE_EXISTING);
-		this.workingSetWriter = Files.newBufferedWriter(this.workingSet, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
-				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
 	}
 
 	@Override
-	public synchronized void deleteBackup(String backupName) throws IOException {
-		this.database.deleteBackup(backupName);
-		Files.deleteIfExists(PathUtils.getBackupWorkingSetFile(this.id, backupName));
+	public void deleteBackup(String backupName) throws IOException {
+		this.backupLock.lock();
+		this.writeLock.lock();
+		try {
+			this.backupValidator.invalidate(backupName);
+			this.wal.removeCheckpoint(backupName);
+			this.database.deleteBackup(backupName);
+			ShadowRebuild.deleteRecursively(PathUtils.getBackupMarkovDirectory(this.id, backupName));
+			SegmentedWorkingSet.deleteSegmentDirectory(PathUtils.getBackupWorkingSetDirectory(this.id, backupName));
+			Files.deleteIfExists(PathUtils.getBackupWorkingSetFile(this.id, backupName));
+			Files.deleteIfExists(PathUtils.getBackupArchiveFile(this.id, backupName));
+		} finally {
+			this.writeLock.unlock();
+			this.backupLock.unlock();
+		}
 	}
 	
 	@Override
-	public synchronized void clearAutomaticBackups() throws IOException {
-		for(int i=0; i < this.backupRecords.size(); i++) {
-			this.deleteBackup(this.backupRecords.get(i).getName());
-			this.backupRecords.get(i).markForMaintenance();
+	public void clearAutomaticBackups() throws IOException {
+		this.backupLock.lock();
+		this.writeLock.lock();
+		try {
+			for(int i=0; i < this.backupRecords.size(); i++) {
+				this.deleteBackup(this.backupRecords.get(i).getName());
+				this.backupRecords.get(i).markForMaintenance();
+			}
+		} finally {
+			this.writeLock.unlock();
+			this.backupLock.unlock();
 		}
 	}
 	
 	@Override
-	public synchronized void clear() throws IOException {
-		this.database.clear();
-		this.workingSetWriter.close();
-		Files.deleteIfExists(workingSet);
-		this.workingSet.toFile().createNewFile();
-		this.workingSetWriter = Files.newBufferedWriter(this.workingSet, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
-				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	public void clear() throws IOException {
+		this.writeLock.lock();
+		try {
+			this.abandonShadowRebuild();
+			this.database.clear();
+			this.workingSet.clear();
+			this.stats.workingSetCleared();
+			this.wal.reset();
+			if(this.linePool != null) this.linePool.clear();
+		} finally {
+			this.writeLock.unlock();
+		}
 	}
 	
 	@Override
-	public synchronized void prioritizeSpeed() throws IOException {
-		if(this.prioritizeSpeed) return;
-		
-		logger.info(this + ": creating new database object for prioritized speed");
-		
-		this.prioritizeSpeed = true;
-		
-		this.database.save();
-		this.database = null;
-		
-		this.database = new MarkovDatabaseBuilder(this.id, PathUtils.getDatabaseParentPath())
-				.shardCacheSize(800)
-				.build();
-		this.load();
-		logger.info(this + ": finished creating new database object for prioritized speed");
+	public ShadowRebuild startShadowRebuild() throws IOException {
+		this.writeLock.lock();
+		try {
+			if(this.isShutdown) throw new IllegalStateException("can't rebuild a shutdown database");
+			if(this.shadowRebuild != null) throw new IllegalStateException(this + ": a rebuild is already in progress");
+			
+			//left over from a rebuild that never finished, eg because of a crash
+			ShadowRebuild.deleteRecursively(PathUtils.getRebuildDirectory(this.id));
+			MarkovDatabase shadowDatabase = new MarkovDatabaseBuilder(this.id, PathUtils.getRebuildDatabaseParentPath(this.id))
+					.shardCacheSize(SPEED_SHARD_CACHE_SIZE)
+					.build();
+			shadowDatabase.load();
+			this.shadowRebuild = new ShadowRebuild(this, this.id, shadowDatabase);
+			logger.info(this + ": started shadow rebuild");
+			return this.shadowRebuild;
+		} finally {
+			this.writeLock.unlock();
+		}
 	}
-
+	
 	@Override
-	public synchronized void prioritizeMemory() throws IOException {
-		if(!this.prioritizeSpeed) return;
-		
-		logger.info(this + ": creating new database object for prioritized memory");
-		
-		this.prioritizeSpeed = false;
-		
+	public boolean isRebuilding() {
+		return this.shadowRebuild != null;
+	}
+	
+	/*
+	 * replaces the db and workingset with the ones built by the given rebuild. each is a
+	 * directory rename, so the swap itself is quick. the live directories are moved into 
+	 * the rebuild directory, which the rebuild deletes afterwards. if anything fails, 
+	 * whatever was already moved is put back
+	 */
+	void swapIn(ShadowRebuild rebuild) throws IOException {
+		this.writeLock.lock();
+		try {
+			if(this.shadowRebuild != rebuild) throw new IllegalStateException(rebuild + ": rebuild was abandoned");
+			
+			rebuild.prepareSwap();
+			this.workingSet.close();
+			Path liveDatabase = PathUtils.getDatabaseDirectory(this.id);
+			Path liveWorkingSet = this.workingSet.getDirectory();
+			Path newDatabase = PathUtils.getRebuildDatabaseDirectory(this.id);
+			Path newWorkingSet = rebuild.getWorkingSet().getDirectory();
+			Path oldDatabase = PathUtils.getRebuildDirectory(this.id).resolve("old" + liveDatabase.getFileName());
+			Path oldWorkingSet = PathUtils.getRebuildDirectory(this.id).resolve("old" + liveWorkingSet.getFileName());
+			boolean databaseSwapped = false;
+			try {
+				if(Files.exists(liveDatabase)) Files.move(liveDatabase, oldDatabase);
+				Files.move(newDatabase, liveDatabase);
+				databaseSwapped = true;
+				Files.move(liveWorkingSet, oldWorkingSet);
+				Files.move(newWorkingSet, liveWorkingSet);
+			} catch (IOException e) {
+				logger.error(this + ": exception when swapping in rebuilt database, putting back the old one. ex: " + e, e);
+				if(!Files.exists(liveWorkingSet) && Files.exists(oldWorkingSet)) Files.move(oldWorkingSet, liveWorkingSet);
+				if(databaseSwapped) Files.move(liveDatabase, newDatabase);
+				if(Files.exists(oldDatabase)) Files.move(oldDatabase, liveDatabase);
+				throw e;
+			}
+			
+			this.shadowRebuild = null;
+			this.stats.workingSetReplaced();
+			this.database = this.buildMarkovDatabase(this.shardCacheSize);
+			this.database.load();
+			//the log and its checkpoints describe the old db
+			this.wal.reset();
+			if(this.linePool != null) this.linePool.clear();
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/*
+	 * called by a rebuild that's been abandoned from its own side
+	 */
+	void detach(ShadowRebuild rebuild) {
+		this.writeLock.lock();
+		try {
+			if(this.shadowRebuild == rebuild) this.shadowRebuild = null;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/*
+	 * for anything that replaces the db's contents out from under a rebuild, so it can
+	 * no longer be swapped in
+	 * 
+	 * must hold write lock
+	 */
+	private void abandonShadowRebuild() {
+		if(this.shadowRebuild == null) return;
+		logger.info(this + ": database contents replaced during rebuild, rebuild will be abandoned");
+		this.shadowRebuild.markAbandoned();
+		this.shadowRebuild = null;
+	}
+	
+	@Override
+	public void prioritizeSpeed() throws IOException {
+		this.writeLock.lock();
+		try {
+			if(this.prioritizeSpeed) return;
+			
+			logger.info(this + ": creating new database object for prioritized speed");
+			//pinned at full size until prioritizeMemory(), the governor leaves it alone
+			this.prioritizeSpeed = true;
+			this.rebuildMarkovDatabase(SPEED_SHARD_CACHE_SIZE);
+			logger.info(this + ": finished creating new database object for prioritized speed");
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	@Override
+	public void prioritizeMemory() throws IOException {
+		this.writeLock.lock();
+		try {
+			if(!this.prioritizeSpeed) return;
+			
+			logger.info(this + ": creating new database object for prioritized memory");
+			//back to the smallest size. if the database is busy the governor will grow it again
+			this.prioritizeSpeed = false;
+			this.rebuildMarkovDatabase(0);
+			logger.info(this + ": finished creating new database object for prioritized memory");
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * changes the database's shard cache size on behalf of the governor. the markov database
+	 * can't resize its cache in place, so this saves it and swaps in a new one, which is why
+	 * the governor only calls it when a database moves between cache tiers
+	 * @param size the new shard cache size
+	 * @return true if the cache was resized, false if the size is pinned (the database is 
+	 * prioritizing speed), unchanged, or the database has been shut down
+	 * @throws IOException
+	 */
+	boolean resizeShardCache(int size) throws IOException {
+		this.writeLock.lock();
+		try {
+			if(this.isShutdown || this.prioritizeSpeed || this.shardCacheSize == size) return false;
+			long startTime = System.currentTimeMillis();
+			int oldSize = this.shardCacheSize;
+			this.rebuildMarkovDatabase(size);
+			logger.info(this + ": resized shard cache from " + oldSize + " to " + size + " in " 
+					+ (System.currentTimeMillis() - startTime) + "ms");
+			return true;
+		} finally {
+			this.writeLock.unlock();
+		}
+	}
+	
+	int getShardCacheSize() {
+		return this.shardCacheSize;
+	}
+	
+	boolean isShardCachePinned() {
+		return this.prioritizeSpeed;
+	}
+	
+	long getActivityCount() {
+		return this.activity.sum();
+	}
+	
+	/*
+	 * must hold write lock
+	 */
+	private void rebuildMarkovDatabase(int size) throws IOException {
 		this.database.save();
 		this.database = null;
-		
-		this.database = new MarkovDatabaseBuilder(this.id, PathUtils.getDatabaseParentPath())
-				.shardCacheSize(0)
-				.fixedCleanupThreshold(100)
-				.build();
+		this.shardCacheSize = size;
+		this.database = this.buildMarkovDatabase(size);
 		this.load();
-		logger.info(this + ": finished creating new database object for prioritized memory");
+	}
+	
+	/*
+	 * with no shard cache, cleanup runs on a fixed threshold to keep memory use flat
+	 */
+	private MarkovDatabase buildMarkovDatabase(int size) {
+		MarkovDatabaseBuilder builder = new MarkovDatabaseBuilder(this.id, PathUtils.getDatabaseParentPath())
+				.shardCacheSize(size);
+		if(size == 0) builder = builder.fixedCleanupThreshold(100);
+		return builder.build();
 	}
 	
 	@Override
-	public synchronized void exportToText() {
+	public void exportToText() {
+		this.readLock.lock();
 		try {
 			this.database.exportToTextFile();
 		} catch (IOException e) {
 			logger.warn(this + ": exception when trying to export to text file! ex: " + e, e);
+		} finally {
+			this.readLock.unlock();
+		}
+	}
+	
+	@Override
+	public WorkingSetExport startExport() throws IllegalStateException, IOException {
+		Path snapshotDirectory = PathUtils.getExportSnapshotDirectory(this.id);
+		this.writeLock.lock();
+		try {
+			if(this.isShutdown) throw new IllegalStateException("can't export a shutdown database");
+			this.workingSet.drain();
+			ShadowRebuild.deleteRecursively(snapshotDirectory);
+			return new WorkingSetExport(this.id, snapshotDirectory, this.workingSet.snapshotTo(snapshotDirectory));
+		} finally {
+			this.writeLock.unlock();
 		}
 	}
 	
 	@Override
-	public synchronized void maintenance() throws IOException {
+	public void maintenance() throws IOException {
+		this.maintenance(new MaintenanceMonitor(this.id));
+	}
+	
+	@Override
+	public void maintenance(MaintenanceMonitor monitor) throws IOException {
+		this.maintenanceLock.lock();
+		try {
+			if(this.runMaintenance(monitor)) {
+				monitor.finish(MaintenanceMonitor.State.FINISHED);
+			} else {
+				monitor.finish(MaintenanceMonitor.State.CANCELLED);
+			}
+		} catch (IOException | RuntimeException e) {
+			monitor.finish(MaintenanceMonitor.State.FAILED);
+			throw e;
+		} finally {
+			this.maintenanceLock.unlock();
+		}
+	}
+	
+	/*
+	 * returns false if maintenance was cancelled, or couldn't run because the db needs 
+	 * restoring and no backup worked. true otherwise
+	 */
+	private boolean runMaintenance(MaintenanceMonitor monitor) throws IOException {
 		if(this.isShutdown) throw new IllegalStateException("can't start maintenance on a shutdown database");
+		if(monitor.isCancelRequested()) return false;
 		logger.info(this + ": starting maintenance");
+		monitor.setPhase("restore check");
 		
 		if(this.getShouldRestoreFromBackup()) {
 			logger.info(this + "-maint: db requires restoration from backup. attempting now");
@@ -328,61 +1483,92 @@ public class GuildDatabaseImpl implements GuildDatabase {
 			} else {
 				logger.warn(this + "-maint: failed to restore from backup, db still in "
 						+ "flawed state. aborting maintenance");
-				return;
+				return false;
 			}
 		}
 		
 		this.save();
 		logger.info(this + "-maint: db saved. beginning workingset maintenance");
 		/*
-		 * update workingset.txt and update db based on new workingset
+		 * expire old lines from the workingset and remove them from the db
+		 * 
+		 * a line is expired once it's at least workingSetMaxAge days old, ie its date is on
+		 * or before the cutoff. segments that end on or before the cutoff are entirely 
+		 * expired, so they're removed and deleted without checking any dates. at most one 
+		 * segment straddles the cutoff and has to be rewritten. segments after it aren't
+		 * touched at all
+		 * 
+		 * cancellation is only checked between segments. a segment's lines are removed
+		 * from the db as it's read, so stopping partway through one would leave the 
+		 * workingset holding lines the db no longer has
 		 */
-		this.workingSetWriter.close();
-		Path tempWorkingSet = Files.createTempFile(this.workingSet.getParent(), "workingset", null);
-		try (BufferedWriter writer = Files.newBufferedWriter(tempWorkingSet, StandardCharsets.UTF_8, StandardOpenOption.CREATE, 
-				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
-				Stream<String> lines = Files.lines(this.workingSet, StandardCharsets.UTF_8)) {
-			lines.filter(line -> !line.isEmpty())
-			.forEach(line -> 
-			{
-				if(isExpired(line)) {
-					//first 8 characters of every line in workingset is a date stamp added in, so ignore that
-					try {
-						this.removeLine(line.substring(8));
-					} catch (IOException e) {
-						throw new UncheckedIOException(e);
-					}
-				} else {
-					try {
-						writer.append(line);
-						writer.newLine();
-					} catch (IOException e) {
-						throw new UncheckedIOException(e);
-					}
-				}
-			});
-		} catch (UncheckedIOException e) {
-			//to get ioexception out of forEach() call
-			throw e.getCause();
+		/*
+		 * retracted lines are already out of the db, so they're dropped from the workingset
+		 * before anything expires. done under the write lock, but only segments with 
+		 * retractions in them are touched, which is usually just the current month
+		 */
+		this.writeLock.lock();
+		try {
+			int retracted = this.workingSet.applyRetractions();
+			if(retracted > 0) logger.info(this + "-maint: dropped " + retracted + " retracted line(s) from workingset");
+		} finally {
+			this.writeLock.unlock();
 		}
-		logger.info(this + "-maint: workingset processed. replacing old workingset");
-		Files.move(tempWorkingSet, this.workingSet, StandardCopyOption.REPLACE_EXISTING);
+		
+		LocalDate cutoff = LocalDate.now().minusDays(this.workingSetMaxAge);
+		int cutoffEpochDay = Math.toIntExact(cutoff.toEpochDay());
+		List<Segment> affectedSegments = new ArrayList<>();
+		for(Segment segment : this.workingSet.getSegments()) {
+			if(segment.getStart().isAfter(cutoff)) break;
+			affectedSegments.add(segment);
+		}
+		monitor.start(affectedSegments.size());
+		monitor.setPhase("workingset");
+		int expiredSegments = 0;
+		for(Segment segment : affectedSegments) {
+			if(monitor.isCancelRequested()) {
+				logger.info(this + "-maint: cancelled after " + expiredSegments + " workingset segment(s)");
+				this.save();
+				return false;
+			}
+			if(!segment.getEnd().isAfter(cutoff)) {
+				this.expireSegment(segment, monitor);
+				expiredSegments++;
+			} else {
+				this.trimSegment(segment, cutoffEpochDay, monitor);
+			}
+			monitor.segmentDone();
+		}
+		logger.info(this + "-maint: expired " + expiredSegments + " workingset segment(s)");
+		WriteAheadLog.Commit commit;
+		this.writeLock.lock();
+		try {
+			//replaying this expires exactly the same lines, see WriteAheadLog
+			this.wal.append(WriteAheadLog.EXPIRE, cutoffEpochDay, "");
+			commit = this.wal.commit();
+		} finally {
+			this.writeLock.unlock();
+		}
+		commit.await();
 		this.save();
-		this.workingSetWriter = Files.newBufferedWriter(this.workingSet, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
-				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
 		
 		
 		/*
 		 * check for automatic backup creation
 		 */
+		if(monitor.isCancelRequested()) {
+			logger.info(this + "-maint: cancelled after workingset maintenance");
+			return false;
+		}
 		logger.info(this + "-maint: finished workingset maintenance. beginning backup maintenance");
+		monitor.setPhase("backups");
 		try {
 			this.backupRecords.forEach(record ->
 			{
 				if(record.needsMaintenance()) {
 					try {
 						logger.info(this + "-maint: backup record '" + record.getName() + "' out of date. saving new backup");
-						this.saveBackup(record.getName());
+						this.saveBackup(record.getName(), record.isCompressed());
 						record.maintenance();
 					} catch (IOException e) {
 						logger.warn(this + ": exception in maintenance() when trying to save backup '" 
@@ -396,22 +1582,123 @@ public class GuildDatabaseImpl implements GuildDatabase {
 		}
 		logger.info(this + "-maint: finished backup maintenance. updating last maintenance time");
 		this.updateLastMaintenanceTime();
-		logger.info(this + ": finished maintenance");
+		this.updateStats();
+		logger.info(this + ": finished maintenance. " + this.getLinePoolStats());
+		return true;
 	}
 	
 	/*
-	 * determine whether to remove a database line from the working set or not
-	 * database lines in workingSet all have the date inserted at the beginning
-	 * (date as defined by DateTimeFormatter.BASIC_ISO_DATE, which is of the form
-	 * YYYYMMDD), so check current date against the date obtained by parsing the 
-	 * first 8 characters of the line and workingSetMaxAge
+	 * removes every line in a fully expired segment from the db, then deletes the segment
 	 * 
-	 * returns true if the line is old enough to be considered expired (as determined
-	 * by workingSetMaxAge), otherwise false
+	 * the segment is read without holding any lock, and its lines removed in batches. 
+	 * lines can still be appended to the segment in the meantime (eg by a scrape
+	 * with old dates), so after each pass we check under the write lock whether the file
+	 * grew, and only delete it once a pass finds nothing new
+	 */
+	private void expireSegment(Segment segment, MaintenanceMonitor monitor) throws IOException {
+		logger.info(this + "-maint: expiring workingset segment " + segment);
+		long position = 0;
+		while(true) {
+			long length;
+			this.writeLock.lock();
+			try {
+				this.workingSet.drain(segment);
+				length = Files.size(segment.getPath());
+				if(length == position) {
+					this.workingSet.delete(segment);
+					return;
+				}
+			} finally {
+				this.writeLock.unlock();
+			}
+			
+			WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(segment.getPath(), position, length);
+			List<String> expired = new ArrayList<>(EXPIRY_BATCH_SIZE);
+			while(reader.next()) {
+				monitor.bytesRead(reader.getRecordLength());
+				expired.add(reader.getLine());
+				if(expired.size() >= EXPIRY_BATCH_SIZE) this.removeExpiredLines(expired, monitor);
+			}
+			this.removeExpiredLines(expired, monitor);
+			position = length;
+		}
+	}
+	
+	/*
+	 * removes expired lines from a segment that straddles the cutoff date. records are 
+	 * checked by date without decoding them, and kept records are copied over as-is, 
+	 * so only the expired lines are ever decoded
+	 * 
+	 * we only scan the part of the segment that existed when we started, so lines can 
+	 * keep being processed (and appended) in the meantime. anything appended during the 
+	 * scan gets carried over when the rewritten segment is swapped in
+	 */
+	private void trimSegment(Segment segment, int cutoffEpochDay, MaintenanceMonitor monitor) throws IOException {
+		long snapshotLength;
+		this.writeLock.lock();
+		try {
+			this.workingSet.drain(segment);
+			snapshotLength = Files.size(segment.getPath());
+		} finally {
+			this.writeLock.unlock();
+		}
+		
+		Path tempSegment = Files.createTempFile(this.workingSet.getDirectory(), "segment", null);
+		try {
+			try (BufferedOutputStream out = new BufferedOutputStream(Files.newOutputStream(tempSegment, StandardOpenOption.CREATE, 
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+				WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(segment.getPath(), 0, snapshotLength);
+				List<String> expired = new ArrayList<>(EXPIRY_BATCH_SIZE);
+				while(reader.next()) {
+					monitor.bytesRead(reader.getRecordLength());
+					if(reader.getEpochDay() <= cutoffEpochDay) {
+						expired.add(reader.getLine());
+						if(expired.size() >= EXPIRY_BATCH_SIZE) this.removeExpiredLines(expired, monitor);
+					} else {
+						reader.copyRecordTo(out);
+					}
+				}
+				this.removeExpiredLines(expired, monitor);
+			}
+			this.writeLock.lock();
+			try {
+				this.workingSet.closeSegment(segment);
+				appendTail(segment.getPath(), snapshotLength, tempSegment);
+				Files.move(tempSegment, segment.getPath(), StandardCopyOption.REPLACE_EXISTING);
+			} finally {
+				this.writeLock.unlock();
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(tempSegment);
+			throw e;
+		}
+	}
+	
+	/*
+	 * removes the given expired lines from the db as a batch, then empties the list
+	 */
+	private void removeExpiredLines(List<String> expired, MaintenanceMonitor monitor) throws IOException {
+		if(expired.isEmpty()) return;
+		BatchResult result = this.removeLines(expired, false);
+		monitor.linesRemoved(result.getSucceeded());
+		if(!result.getFailures().isEmpty()) {
+			logger.warn(this + "-maint: failed to remove " + result.getFailures().size() + " expired line(s), eg '" 
+					+ result.getFailures().get(0) + "'");
+		}
+		expired.clear();
+	}
+	
+	/*
+	 * copies everything in source from the given position onwards to the end of target
 	 */
-	private boolean isExpired(String databaseLine) {
-		return ChronoUnit.DAYS.between(LocalDate.parse(databaseLine.substring(0, 8), 
-				DateTimeFormatter.BASIC_ISO_DATE), LocalDate.now()) >= this.workingSetMaxAge;
+	private static void appendTail(Path source, long position, Path target) throws IOException {
+		try (FileChannel sourceChannel = FileChannel.open(source, StandardOpenOption.READ);
+				FileChannel targetChannel = FileChannel.open(target, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			long size = sourceChannel.size();
+			while(position < size) {
+				position += sourceChannel.transferTo(position, size - position, targetChannel);
+			}
+		}
 	}
 	
 	/*
@@ -419,20 +1706,121 @@ public class GuildDatabaseImpl implements GuildDatabase {
 	 */
 	@Override
 	public boolean needsMaintenance() {
-		try (BufferedReader reader = Files.newBufferedReader(PathUtils.getDatabaseLastMaintenanceFile(this.id), StandardCharsets.UTF_8)) {
+		return needsMaintenance(this.id);
+	}
+	
+	/*
+	 * works straight from disk, so it can be checked for a database that isn't loaded
+	 */
+	static boolean needsMaintenance(String id) {
+		try (BufferedReader reader = Files.newBufferedReader(PathUtils.getDatabaseLastMaintenanceFile(id), StandardCharsets.UTF_8)) {
 			return Duration.between(ZonedDateTime.parse(reader.readLine(), DateTimeFormatter.ISO_DATE_TIME), 
-					ZonedDateTime.now(MiscUtils.TIMEZONE)).toMillis() >= TIME_BETWEEN_MAINTENANCE;
+					ZonedDateTime.now(MiscUtils.TIMEZONE)).toMillis() >= TIME_BETWEEN_MAINTENANCE 
+					+ Math.floorMod(id.hashCode(), MAINTENANCE_JITTER);
 		} catch (NoSuchFileException e) {
 			//probably first run. run maintenance
 			return true;
 		} catch (IOException e) {
-			logger.warn(this + ": exception when checking if it's time for maintenance: " + e.getMessage(), e);
+			logger.warn("GuildDatabaseImpl-" + id + ": exception when checking if it's time for maintenance: " + e.getMessage(), e);
 			return false;
 		}
 		
 	}
 	
-	private synchronized void updateLastMaintenanceTime() {
+	@Override
+	public long estimateExpiredBytes() {
+		return estimateExpiredBytes(this.id, this.workingSetMaxAge);
+	}
+	
+	/*
+	 * also works straight from disk. the segment files are only missing whatever's still 
+	 * queued in the journal, which doesn't matter for an estimate
+	 */
+	static long estimateExpiredBytes(String id, int workingSetMaxAge) {
+		/*
+		 * segments entirely past the cutoff count in full. for the one straddling it, assume
+		 * lines are spread evenly over the month
+		 */
+		LocalDate cutoff = LocalDate.now().minusDays(workingSetMaxAge);
+		long estimate = 0;
+		try {
+			for(Segment segment : SegmentedWorkingSet.getSegments(PathUtils.getWorkingSetDirectory(id))) {
+				if(segment.getStart().isAfter(cutoff)) break;
+				long size = Files.size(segment.getPath());
+				if(!segment.getEnd().isAfter(cutoff)) {
+					estimate += size;
+				} else {
+					long expiredDays = ChronoUnit.DAYS.between(segment.getStart(), cutoff) + 1;
+					estimate += size * expiredDays / segment.getStart().lengthOfMonth();
+				}
+			}
+		} catch (IOException e) {
+			logger.warn("GuildDatabaseImpl-" + id + ": exception when estimating expired workingset size: " + e.getMessage(), e);
+		}
+		return estimate;
+	}
+	
+	/*
+	 * recounts the workingset's lines and remeasures everything on disk, for stats(). the 
+	 * count reads the workingset without holding the lock, up to where it was when the 
+	 * count started. only called during maintenance, since that's the only other thing 
+	 * that rewrites segments without the write lock
+	 */
+	private void updateStats() {
+		try {
+			LinkedHashMap<Path, Long> sizes;
+			long generation;
+			this.writeLock.lock();
+			try {
+				this.workingSet.drain();
+				sizes = this.workingSet.getSizes();
+				generation = this.stats.startCount();
+			} finally {
+				this.writeLock.unlock();
+			}
+			this.stats.finishCount(generation, SegmentedWorkingSet.countLines(sizes));
+		} catch (IOException e) {
+			//eg the workingset was replaced by a restore partway through. counted next time
+			logger.warn(this + ": exception when counting workingset lines: " + e.getMessage(), e);
+		}
+		this.measureDiskUsage();
+	}
+	
+	private void measureDiskUsage() {
+		try {
+			long[] database = measureDirectory(PathUtils.getDatabaseDirectory(this.id));
+			this.stats.setDiskUsage(new DatabaseStatsRecorder.DiskUsage(database[0], database[1], 
+					measureDirectory(this.workingSet.getDirectory())[0], measureDirectory(PathUtils.getBackupDirectory(this.id))[0], 
+					measureDirectory(PathUtils.getWriteAheadLogDirectory(this.id))[0]));
+		} catch (IOException e) {
+			logger.warn(this + ": exception when measuring disk usage: " + e.getMessage(), e);
+		}
+	}
+	
+	/*
+	 * total size in bytes and number of files under a directory, or zeros if it doesn't 
+	 * exist. files deleted partway through are skipped
+	 */
+	private static long[] measureDirectory(Path directory) throws IOException {
+		long[] size = new long[2];
+		if(!Files.isDirectory(directory)) return size;
+		Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+				size[0] += attributes.size();
+				size[1]++;
+				return FileVisitResult.CONTINUE;
+			}
+			
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		return size;
+	}
+	
+	private void updateLastMaintenanceTime() {
 		try {
 			Files.write(PathUtils.getDatabaseLastMaintenanceFile(this.id), ZonedDateTime.now(MiscUtils.TIMEZONE)
 					.format(DateTimeFormatter.ISO_DATE_TIME).getBytes(StandardCharsets.UTF_8), 
@@ -443,11 +1831,15 @@ public class GuildDatabaseImpl implements GuildDatabase {
 	}
 	
 	@Override
-	public synchronized void markForMaintenance() {
+	public void markForMaintenance() {
+		markForMaintenance(this.id);
+	}
+	
+	static void markForMaintenance(String id) {
 		try {
-			Files.deleteIfExists(PathUtils.getDatabaseLastMaintenanceFile(this.id));
+			Files.deleteIfExists(PathUtils.getDatabaseLastMaintenanceFile(id));
 		} catch (IOException e) {
-			logger.warn(this + ": exception when deleting last maintenance time: " + e.getMessage(), e);
+			logger.warn("GuildDatabaseImpl-" + id + ": exception when deleting last maintenance time: " + e.getMessage(), e);
 		}
 	}
 
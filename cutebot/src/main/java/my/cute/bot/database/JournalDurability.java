@@ -0,0 +1,27 @@
+package my.cute.bot.database;
+
+/**
+ * how hard the workingset journal tries to get each batch of lines onto disk. lines
+ * are always written in batches by a background flusher; this only controls what
+ * happens once a batch has been handed to the file
+ */
+public enum JournalDurability {
+
+	/**
+	 * batches are written into an in-process buffer, which only reaches the file when
+	 * it fills up or the journal is drained. fewest syscalls, but a crash can lose
+	 * everything still sitting in the buffer
+	 */
+	NONE,
+
+	/**
+	 * every batch is flushed to the file as it's written. survives the bot crashing,
+	 * but not necessarily the machine crashing
+	 */
+	FLUSH,
+
+	/**
+	 * every batch is flushed and then forced to the storage device. safest and slowest
+	 */
+	FSYNC
+}
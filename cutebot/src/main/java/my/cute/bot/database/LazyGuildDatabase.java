@@ -0,0 +1,516 @@
+package my.cute.bot.database;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import my.cute.bot.util.NormalizedMessage;
+import my.cute.markov2.exceptions.ReadObjectException;
+
+/*
+ * a GuildDatabase that's only loaded while it's in use. the real database is built and
+ * loaded on the first call that needs it, and can be unloaded again (saved and shut
+ * down) by a DatabaseEvictionManager once it's been idle for a while. the next call
+ * after that just loads it again, so callers never see the difference besides the
+ * occasional slow call
+ *
+ * every call through here holds residentLock's read lock for its duration, and unloading
+ * takes the write lock, so the database can't be unloaded out from under a running call.
+ * unloading only ever uses tryLock, so a database that's in use is just skipped. the
+ * exclusive lock handed out by getExclusiveLock also holds the read lock, so eg a rebuild
+ * pins the database for as long as it runs. a database with a shadow rebuild in progress
+ * isn't unloaded either
+ *
+ * things the maintenance scheduler checks regularly (needsMaintenance, estimateExpiredBytes)
+ * are answered from disk when the database isn't loaded, so checking doesn't load every
+ * database. actually running maintenance does load it
+ */
+class LazyGuildDatabase implements GuildDatabase {
+
+	private static final Logger logger = LoggerFactory.getLogger(LazyGuildDatabase.class);
+
+	@FunctionalInterface
+	private interface DatabaseCall<T> {
+		T call(GuildDatabase database) throws IOException;
+	}
+
+	/*
+	 * holds residentLock's read lock along with the real database's exclusive lock, so the
+	 * database stays loaded while this is held
+	 */
+	private final class PinnedExclusiveLock implements Lock {
+
+		@Override
+		public void lock() {
+			residentLock.readLock().lock();
+			try {
+				getLoaded().getExclusiveLock().lock();
+			} catch (IOException e) {
+				residentLock.readLock().unlock();
+				throw new UncheckedIOException(e);
+			} catch (RuntimeException e) {
+				residentLock.readLock().unlock();
+				throw e;
+			}
+		}
+
+		@Override
+		public void lockInterruptibly() throws InterruptedException {
+			residentLock.readLock().lockInterruptibly();
+			try {
+				getLoaded().getExclusiveLock().lockInterruptibly();
+			} catch (IOException e) {
+				residentLock.readLock().unlock();
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException | RuntimeException e) {
+				residentLock.readLock().unlock();
+				throw e;
+			}
+		}
+
+		@Override
+		public boolean tryLock() {
+			if(!residentLock.readLock().tryLock()) return false;
+			try {
+				if(getLoaded().getExclusiveLock().tryLock()) return true;
+			} catch (IOException e) {
+				residentLock.readLock().unlock();
+				throw new UncheckedIOException(e);
+			} catch (RuntimeException e) {
+				residentLock.readLock().unlock();
+				throw e;
+			}
+			residentLock.readLock().unlock();
+			return false;
+		}
+
+		@Override
+		public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+			long deadline = System.nanoTime() + unit.toNanos(time);
+			if(!residentLock.readLock().tryLock(time, unit)) return false;
+			try {
+				if(getLoaded().getExclusiveLock().tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) return true;
+			} catch (IOException e) {
+				residentLock.readLock().unlock();
+				throw new UncheckedIOException(e);
+			} catch (InterruptedException | RuntimeException e) {
+				residentLock.readLock().unlock();
+				throw e;
+			}
+			residentLock.readLock().unlock();
+			return false;
+		}
+
+		@Override
+		public void unlock() {
+			//can't be unloaded while we hold the read lock, so this is the same database we locked
+			delegate.getExclusiveLock().unlock();
+			residentLock.readLock().unlock();
+		}
+
+		@Override
+		public Condition newCondition() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private final GuildDatabaseBuilder builder;
+	private final DatabaseEvictionManager manager;
+	private final ReentrantReadWriteLock residentLock = new ReentrantReadWriteLock();
+	private final Lock exclusiveLock = new PinnedExclusiveLock();
+	private final Object loadLock = new Object();
+
+	/*
+	 * null while unloaded
+	 */
+	private volatile GuildDatabaseImpl delegate = null;
+	private volatile long lastAccess = System.currentTimeMillis();
+	private volatile boolean isShutdown = false;
+	/*
+	 * kept here while unloaded, so a database marked for restore stays marked
+	 */
+	private volatile boolean shouldRestoreFromBackup = false;
+	/*
+	 * handed to every database this loads, so stats carry over between loads
+	 */
+	private final DatabaseStatsRecorder stats = new DatabaseStatsRecorder();
+
+	LazyGuildDatabase(GuildDatabaseBuilder builder, DatabaseEvictionManager manager) {
+		this.builder = builder;
+		this.manager = manager;
+		this.manager.register(this);
+	}
+
+	/*
+	 * returns the loaded database, loading it first if necessary. caller must hold
+	 * residentLock's read lock
+	 */
+	private GuildDatabaseImpl getLoaded() throws IOException {
+		GuildDatabaseImpl database = this.delegate;
+		if(database != null && !database.isShutdown()) return database;
+		synchronized(this.loadLock) {
+			if(this.isShutdown) throw new IllegalStateException(this + ": database has been shut down");
+			database = this.delegate;
+			if(database != null) {
+				if(!database.isShutdown()) return database;
+				/*
+				 * an earlier unload failed partway. it's finished before loading again, so 
+				 * there's never a second database using the same files
+				 */
+				database.shutdown();
+				this.delegate = null;
+			}
+			long startTime = System.currentTimeMillis();
+			database = new GuildDatabaseImpl(this.builder, this.stats);
+			database.load();
+			database.setShouldRestoreFromBackup(this.shouldRestoreFromBackup);
+			this.delegate = database;
+			logger.info(this + ": loaded in " + (System.currentTimeMillis() - startTime) + "ms");
+		}
+		this.manager.loaded(this);
+		return database;
+	}
+
+	private <T> T use(DatabaseCall<T> call) throws IOException {
+		this.residentLock.readLock().lock();
+		try {
+			this.lastAccess = System.currentTimeMillis();
+			return call.call(this.getLoaded());
+		} finally {
+			this.residentLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * for interface methods that don't declare IOException
+	 */
+	private <T> T useUnchecked(DatabaseCall<T> call) {
+		try {
+			return this.use(call);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * saves and shuts down the underlying database, if it's loaded and nothing is using it
+	 * right now. the next call that needs it loads it again
+	 * @return true if the database was unloaded, false if it wasn't loaded or was in use
+	 * @throws IOException if an exception occurs while shutting down the database. it's 
+	 * left loaded (though it can't be used) so nothing else opens its files, and shutdown 
+	 * is retried by the next unload or the next call that needs the database
+	 */
+	boolean unload() throws IOException {
+		if(!this.residentLock.writeLock().tryLock()) return false;
+		try {
+			GuildDatabaseImpl database = this.delegate;
+			if(database == null) return false;
+			//a shadow rebuild keeps a reference to the real database until it's swapped in
+			if(database.isRebuilding()) return false;
+			//held eg by a rebuild that's called through the real database directly
+			if(!database.getExclusiveLock().tryLock()) return false;
+			try {
+				this.shouldRestoreFromBackup = database.getShouldRestoreFromBackup();
+				database.shutdown();
+				this.delegate = null;
+			} finally {
+				database.getExclusiveLock().unlock();
+			}
+			return true;
+		} finally {
+			this.residentLock.writeLock().unlock();
+		}
+	}
+
+	boolean isLoaded() {
+		return this.delegate != null;
+	}
+
+	long getLastAccess() {
+		return this.lastAccess;
+	}
+
+	String getId() {
+		return this.builder.getId();
+	}
+
+	@Override
+	public boolean processLine(String line) throws IllegalStateException, ReadObjectException, IOException {
+		return this.use(database -> database.processLine(line));
+	}
+
+	@Override
+	public boolean processLineWithDate(String line, String dateStamp)
+			throws IllegalStateException, ReadObjectException, IOException {
+		return this.use(database -> database.processLineWithDate(line, dateStamp));
+	}
+
+	@Override
+	public boolean processLine(NormalizedMessage message) throws IllegalStateException, ReadObjectException, IOException {
+		return this.use(database -> database.processLine(message));
+	}
+
+	@Override
+	public boolean processLineWithDate(NormalizedMessage message, String dateStamp)
+			throws IllegalStateException, ReadObjectException, IOException {
+		return this.use(database -> database.processLineWithDate(message, dateStamp));
+	}
+
+	@Override
+	public String generateLine() throws IOException {
+		return this.use(database -> database.generateLine());
+	}
+
+	@Override
+	public String generateLine(String startWord) throws IOException {
+		return this.use(database -> database.generateLine(startWord));
+	}
+
+	@Override
+	public String generatePooledLine() throws IOException {
+		return this.use(database -> database.generatePooledLine());
+	}
+
+	/*
+	 * doesn't load the database. an unloaded database has an empty pool
+	 */
+	@Override
+	public LinePoolStats getLinePoolStats() {
+		GuildDatabaseImpl database = this.delegate;
+		if(database != null) return database.getLinePoolStats();
+		return new LinePoolStats(0, 0, 0, 0, this.builder.getLinePoolSize());
+	}
+
+	@Override
+	public DatabaseStats stats() {
+		GuildDatabaseImpl database = this.delegate;
+		if(database != null) return database.stats();
+		return this.stats.snapshot(this.getId(), false, this.builder.isPrioritizeSpeed(), 0, this.builder.getDatabaseAge(),
+				this.getLinePoolStats());
+	}
+
+	@Override
+	public boolean removeLine(String line) throws IOException {
+		return this.use(database -> database.removeLine(line));
+	}
+
+	@Override
+	public boolean retractLine(String line, String dateStamp) throws IllegalStateException, IOException {
+		return this.use(database -> database.retractLine(line, dateStamp));
+	}
+
+	@Override
+	public BatchResult processLines(Iterable<DatedLine> lines) throws IllegalStateException, ReadObjectException, IOException {
+		return this.use(database -> database.processLines(lines));
+	}
+
+	@Override
+	public BatchResult removeLines(Iterable<String> lines) throws IOException {
+		return this.use(database -> database.removeLines(lines));
+	}
+
+	/*
+	 * nothing to save if it isn't loaded
+	 */
+	@Override
+	public void save() throws IOException {
+		this.residentLock.readLock().lock();
+		try {
+			GuildDatabaseImpl database = this.delegate;
+			if(database != null) database.save();
+		} finally {
+			this.residentLock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * loading is deferred until the database is first used, so this only does anything if
+	 * the database is already loaded
+	 */
+	@Override
+	public void load() throws IOException {
+		this.residentLock.readLock().lock();
+		try {
+			GuildDatabaseImpl database = this.delegate;
+			if(database != null) database.load();
+		} finally {
+			this.residentLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void shutdown() throws IOException {
+		this.residentLock.writeLock().lock();
+		try {
+			this.isShutdown = true;
+			this.manager.deregister(this);
+			GuildDatabaseImpl database = this.delegate;
+			if(database != null) {
+				database.shutdown();
+				this.delegate = null;
+			}
+		} finally {
+			this.residentLock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Lock getExclusiveLock() {
+		return this.exclusiveLock;
+	}
+
+	@Override
+	public boolean getShouldRestoreFromBackup() {
+		GuildDatabaseImpl database = this.delegate;
+		return database != null ? database.getShouldRestoreFromBackup() : this.shouldRestoreFromBackup;
+	}
+
+	@Override
+	public void setShouldRestoreFromBackup(boolean shouldRestore) {
+		this.shouldRestoreFromBackup = shouldRestore;
+		GuildDatabaseImpl database = this.delegate;
+		if(database != null) database.setShouldRestoreFromBackup(shouldRestore);
+	}
+
+	@Override
+	public boolean restoreFromAutomaticBackups() {
+		return this.useUnchecked(database -> database.restoreFromAutomaticBackups());
+	}
+
+	@Override
+	public Path saveBackup(String backupName) throws IOException {
+		return this.use(database -> database.saveBackup(backupName));
+	}
+
+	@Override
+	public void loadBackup(String backupName) throws FileNotFoundException, IOException {
+		this.use(database ->
+		{
+			database.loadBackup(backupName);
+			return null;
+		});
+	}
+
+	@Override
+	public void deleteBackup(String backupName) throws IOException {
+		this.use(database ->
+		{
+			database.deleteBackup(backupName);
+			return null;
+		});
+	}
+
+	@Override
+	public void clearAutomaticBackups() throws IOException {
+		this.use(database ->
+		{
+			database.clearAutomaticBackups();
+			return null;
+		});
+	}
+
+	@Override
+	public void clear() throws IOException {
+		this.use(database ->
+		{
+			database.clear();
+			return null;
+		});
+	}
+
+	@Override
+	public ShadowRebuild startShadowRebuild() throws IllegalStateException, IOException {
+		return this.use(database -> database.startShadowRebuild());
+	}
+
+	@Override
+	public boolean isRebuilding() {
+		GuildDatabaseImpl database = this.delegate;
+		return database != null && database.isRebuilding();
+	}
+
+	@Override
+	public void prioritizeSpeed() throws IOException {
+		this.use(database ->
+		{
+			database.prioritizeSpeed();
+			return null;
+		});
+	}
+
+	@Override
+	public void prioritizeMemory() throws IOException {
+		this.use(database ->
+		{
+			database.prioritizeMemory();
+			return null;
+		});
+	}
+
+	@Override
+	public void exportToText() {
+		this.useUnchecked(database ->
+		{
+			database.exportToText();
+			return null;
+		});
+	}
+
+	@Override
+	public WorkingSetExport startExport() throws IllegalStateException, IOException {
+		return this.use(database -> database.startExport());
+	}
+
+	@Override
+	public boolean needsMaintenance() {
+		GuildDatabaseImpl database = this.delegate;
+		if(database != null) return database.needsMaintenance();
+		return GuildDatabaseImpl.needsMaintenance(this.getId());
+	}
+
+	@Override
+	public void markForMaintenance() {
+		GuildDatabaseImpl.markForMaintenance(this.getId());
+	}
+
+	@Override
+	public void maintenance() throws IOException {
+		this.use(database ->
+		{
+			database.maintenance();
+			return null;
+		});
+	}
+
+	@Override
+	public void maintenance(MaintenanceMonitor monitor) throws IOException {
+		this.use(database ->
+		{
+			database.maintenance(monitor);
+			return null;
+		});
+	}
+
+	@Override
+	public long estimateExpiredBytes() {
+		GuildDatabaseImpl database = this.delegate;
+		if(database != null) return database.estimateExpiredBytes();
+		return GuildDatabaseImpl.estimateExpiredBytes(this.getId(), this.builder.getDatabaseAge());
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("LazyGuildDatabase-");
+		builder.append(this.getId());
+		return builder.toString();
+	}
+}
@@ -0,0 +1,147 @@
+package my.cute.bot.database;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * pool of pre-generated lines for a database, so replies don't have to wait on line
+ * generation (which can mean reading shards from disk when the db prioritizes memory)
+ *
+ * lines are generated by a single low-priority thread shared by every pool. a refill is
+ * requested whenever a line is taken or the database is written to, and also on a timer
+ * that's used to drop lines older than the staleness bound. lines generated before the
+ * db's contents change are still valid lines, just slightly out of date, so the bound
+ * only has to keep them from getting too old
+ */
+class LinePool {
+
+	private static final Logger logger = LoggerFactory.getLogger(LinePool.class);
+	private static final ScheduledExecutorService GENERATOR = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("line-pool-%d").setDaemon(true).setPriority(Thread.MIN_PRIORITY).build());
+
+	private static final class PooledLine {
+		private final String line;
+		private final long createdAt;
+
+		private PooledLine(String line) {
+			this.line = line;
+			this.createdAt = System.nanoTime();
+		}
+	}
+
+	private final GuildDatabase database;
+	private final int capacity;
+	private final long maxAgeNanos;
+	private final ArrayBlockingQueue<PooledLine> lines;
+	private final AtomicBoolean refillPending = new AtomicBoolean(false);
+	private final ScheduledFuture<?> periodicRefill;
+	private volatile boolean closed = false;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder staleDiscards = new LongAdder();
+
+	/**
+	 * @param database the database to generate lines from
+	 * @param capacity the number of lines to keep ready. must be positive
+	 * @param maxAgeMillis lines older than this are thrown away instead of used
+	 */
+	LinePool(GuildDatabase database, int capacity, long maxAgeMillis) {
+		this.database = database;
+		this.capacity = capacity;
+		this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+		this.lines = new ArrayBlockingQueue<>(capacity);
+		//check for stale lines a few times per staleness period so none are kept too far past it
+		long period = Math.max(1000, maxAgeMillis / 4);
+		this.periodicRefill = GENERATOR.scheduleWithFixedDelay(() -> this.refill(), period, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * takes a line from the pool
+	 * @return a pre-generated line, or null if the pool has no fresh lines
+	 */
+	String poll() {
+		PooledLine pooled = this.lines.poll();
+		while(pooled != null && this.isStale(pooled)) {
+			this.staleDiscards.increment();
+			pooled = this.lines.poll();
+		}
+		this.requestRefill();
+		if(pooled == null) {
+			this.misses.increment();
+			return null;
+		} else {
+			this.hits.increment();
+			return pooled.line;
+		}
+	}
+
+	/**
+	 * schedules a refill, unless one is already pending
+	 */
+	void requestRefill() {
+		if(!this.closed && this.lines.remainingCapacity() > 0 && this.refillPending.compareAndSet(false, true)) {
+			GENERATOR.execute(() -> this.refill());
+		}
+	}
+
+	/**
+	 * throws away every line in the pool, eg because the database's contents have been
+	 * replaced and the pooled lines no longer reflect it at all
+	 */
+	void clear() {
+		this.lines.clear();
+		this.requestRefill();
+	}
+
+	/**
+	 * stops refilling the pool and throws away every line in it
+	 */
+	void close() {
+		this.closed = true;
+		this.periodicRefill.cancel(false);
+		this.lines.clear();
+	}
+
+	LinePoolStats getStats() {
+		return new LinePoolStats(this.hits.sum(), this.misses.sum(), this.staleDiscards.sum(), this.lines.size(), this.capacity);
+	}
+
+	private void refill() {
+		this.refillPending.set(false);
+		//drop stale lines from the head first, so they're replaced rather than kept behind fresh ones
+		PooledLine head = this.lines.peek();
+		while(head != null && this.isStale(head)) {
+			if(this.lines.remove(head)) this.staleDiscards.increment();
+			head = this.lines.peek();
+		}
+		try {
+			while(!this.closed && this.lines.remainingCapacity() > 0) {
+				if(!this.lines.offer(new PooledLine(this.database.generateLine()))) break;
+			}
+		} catch (IOException | IllegalStateException e) {
+			//IllegalStateException if the db was shut down while refilling
+			if(!this.closed) logger.warn(this + ": exception when refilling line pool! ex: " + e, e);
+		}
+	}
+
+	private boolean isStale(PooledLine pooled) {
+		return System.nanoTime() - pooled.createdAt >= this.maxAgeNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "LinePool-" + this.database;
+	}
+}
@@ -0,0 +1,73 @@
+package my.cute.bot.database;
+
+/**
+ * snapshot of a database's pre-generated line pool. counts are totals since the
+ * database was created
+ */
+public final class LinePoolStats {
+
+	private final long hits;
+	private final long misses;
+	private final long staleDiscards;
+	private final int size;
+	private final int capacity;
+
+	LinePoolStats(long hits, long misses, long staleDiscards, int size, int capacity) {
+		this.hits = hits;
+		this.misses = misses;
+		this.staleDiscards = staleDiscards;
+		this.size = size;
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return number of requests for a pooled line that were served from the pool
+	 */
+	public long getHits() {
+		return this.hits;
+	}
+
+	/**
+	 * @return number of requests for a pooled line that found the pool empty and had
+	 * to generate a line synchronously
+	 */
+	public long getMisses() {
+		return this.misses;
+	}
+
+	/**
+	 * @return number of pooled lines thrown away for being too old
+	 */
+	public long getStaleDiscards() {
+		return this.staleDiscards;
+	}
+
+	/**
+	 * @return number of lines in the pool when the snapshot was taken
+	 */
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return maximum number of lines the pool holds, or 0 if pooling is disabled
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return fraction of requests served from the pool, in [0, 1]. 0 if there haven't
+	 * been any requests
+	 */
+	public double getHitRate() {
+		long total = this.hits + this.misses;
+		return total == 0 ? 0 : (double) this.hits / total;
+	}
+
+	@Override
+	public String toString() {
+		return "LinePoolStats[hits=" + this.hits + ", misses=" + this.misses + ", staleDiscards=" + this.staleDiscards
+				+ ", size=" + this.size + "/" + this.capacity + ", hitRate=" + String.format("%.3f", this.getHitRate()) + "]";
+	}
+}
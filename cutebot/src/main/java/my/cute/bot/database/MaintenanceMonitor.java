@@ -0,0 +1,172 @@
+package my.cute.bot.database;
+
+import com.google.common.util.concurrent.RateLimiter;
+
+/**
+ * tracks the progress of a single maintenance run, and lets it be throttled and
+ * cancelled from outside. passed to {@link GuildDatabase#maintenance(MaintenanceMonitor)}
+ * <p>
+ * progress is written by the thread running maintenance and can be read from any thread.
+ * cancellation is cooperative: maintenance only stops at points where the database and
+ * workingset are consistent with each other (between workingset segments, or before
+ * backups), so a cancelled run may still take a little while to actually stop
+ */
+public class MaintenanceMonitor {
+
+	public enum State {
+		QUEUED,
+		RUNNING,
+		FINISHED,
+		CANCELLED,
+		FAILED
+	}
+
+	/*
+	 * io permits are acquired in chunks rather than per record, since acquiring from the
+	 * shared RateLimiter is relatively expensive
+	 */
+	private static final int IO_CHUNK_SIZE = 65536;
+
+	private final String id;
+	private final RateLimiter ioBudget;
+	private long unacquiredBytes = 0;
+
+	private volatile State state = State.QUEUED;
+	private volatile String phase = "waiting";
+	private volatile boolean cancelRequested = false;
+	private volatile int segmentsDone = 0;
+	private volatile int segmentsTotal = 0;
+	private volatile long bytesProcessed = 0;
+	private volatile long linesRemoved = 0;
+	private volatile long startTime = 0;
+
+	/**
+	 * @param id the id of the database being maintained
+	 * @param ioBudget limiter shared between maintenance runs, where each permit is one
+	 * byte of workingset read. null for no limit
+	 */
+	public MaintenanceMonitor(String id, RateLimiter ioBudget) {
+		this.id = id;
+		this.ioBudget = ioBudget;
+	}
+
+	/**
+	 * a monitor with no io limit, for running maintenance directly
+	 */
+	public MaintenanceMonitor(String id) {
+		this(id, null);
+	}
+
+	/**
+	 * requests that maintenance stop at the next safe point. if it hasn't started yet, it
+	 * won't start at all
+	 */
+	public void cancel() {
+		this.cancelRequested = true;
+	}
+
+	public boolean isCancelRequested() {
+		return this.cancelRequested;
+	}
+
+	void start(int segmentsTotal) {
+		this.startTime = System.currentTimeMillis();
+		this.segmentsTotal = segmentsTotal;
+		this.state = State.RUNNING;
+	}
+
+	void setPhase(String phase) {
+		this.phase = phase;
+	}
+
+	void segmentDone() {
+		this.segmentsDone++;
+	}
+
+	void linesRemoved(int count) {
+		this.linesRemoved += count;
+	}
+
+	/*
+	 * accounts for workingset bytes read, blocking if the io budget has been used up
+	 */
+	void bytesRead(int bytes) {
+		this.bytesProcessed += bytes;
+		if(this.ioBudget == null) return;
+		this.unacquiredBytes += bytes;
+		if(this.unacquiredBytes >= IO_CHUNK_SIZE) {
+			this.ioBudget.acquire((int) this.unacquiredBytes);
+			this.unacquiredBytes = 0;
+		}
+	}
+
+	/**
+	 * sets the final state of the run. used by whatever runs maintenance, once
+	 * {@link GuildDatabase#maintenance(MaintenanceMonitor)} has returned or thrown
+	 */
+	public void finish(State state) {
+		this.state = state;
+		this.phase = "done";
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public State getState() {
+		return this.state;
+	}
+
+	public String getPhase() {
+		return this.phase;
+	}
+
+	public int getSegmentsDone() {
+		return this.segmentsDone;
+	}
+
+	public int getSegmentsTotal() {
+		return this.segmentsTotal;
+	}
+
+	public long getBytesProcessed() {
+		return this.bytesProcessed;
+	}
+
+	public long getLinesRemoved() {
+		return this.linesRemoved;
+	}
+
+	/**
+	 * @return time since maintenance started running in ms, or 0 if it hasn't started
+	 */
+	public long getElapsedTime() {
+		long start = this.startTime;
+		return start == 0 ? 0 : System.currentTimeMillis() - start;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(this.id);
+		builder.append(": ");
+		builder.append(this.state.name().toLowerCase());
+		if(this.state == State.RUNNING) {
+			builder.append(" (");
+			builder.append(this.phase);
+			builder.append(", segment ");
+			builder.append(this.segmentsDone);
+			builder.append("/");
+			builder.append(this.segmentsTotal);
+			builder.append(", ");
+			builder.append(this.linesRemoved);
+			builder.append(" lines removed, ");
+			builder.append(this.bytesProcessed / 1024);
+			builder.append("KB read, ");
+			builder.append(this.getElapsedTime() / 1000);
+			builder.append("s)");
+		}
+		if(this.cancelRequested && this.state != State.CANCELLED) builder.append(" [cancelling]");
+		return builder.toString();
+	}
+}
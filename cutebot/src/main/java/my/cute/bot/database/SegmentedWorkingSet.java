@@ -0,0 +1,618 @@
+package my.cute.bot.database;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import my.cute.bot.util.PathUtils;
+
+/*
+ * the workingset, split into one segment file per month under the guild's workingset
+ * directory. each segment is named for the range of dates it covers, eg
+ * workingset-20240101-20240131.bin, and every line is routed to a segment by its date
+ * stamp. this way expiring old lines only means touching the segments that have
+ * crossed the cutoff date, rather than the whole history
+ *
+ * segments are made of binary records, see WorkingSetRecords. workingsets from before
+ * that (a single workingset.txt, or .txt segments of date-stamped lines) are converted
+ * the first time they're seen. a conversion that gets interrupted is undone and redone
+ * on the next start, see convertInPlace
+ *
+ * each segment that's being written to gets its own WorkingSetJournal. lines usually
+ * only go to the current month, but rebuilds and scrapes can write old dates, so a few
+ * journals are kept open and the least recently used one is closed past that
+ *
+ * lines taken back out of the db (eg because their message was deleted) are recorded in
+ * a retractions file, in the same record format as segments, and only dropped from their
+ * segments the next time maintenance calls applyRetractions. until then, the retraction
+ * is carried along with the segments by backups and restores
+ *
+ * not threadsafe. GuildDatabaseImpl only calls anything that touches the journals
+ * while holding its write lock
+ */
+class SegmentedWorkingSet implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(SegmentedWorkingSet.class);
+	private static final Pattern SEGMENT_NAME = Pattern.compile("workingset-(\\d{8})-(\\d{8})\\.bin");
+	private static final Pattern TEXT_SEGMENT_NAME = Pattern.compile("workingset-(\\d{8})-(\\d{8})\\.txt");
+	private static final int MAX_OPEN_JOURNALS = 4;
+	static final String RETRACTIONS_FILE_NAME = "retractions.bin";
+	private static final String CONVERSION_FILE_NAME = "converting.txt";
+
+	/*
+	 * a single segment file, covering every date in one month
+	 */
+	static final class Segment implements Comparable<Segment> {
+
+		private final YearMonth month;
+		private final Path path;
+
+		private Segment(YearMonth month, Path path) {
+			this.month = month;
+			this.path = path;
+		}
+
+		LocalDate getStart() {
+			return this.month.atDay(1);
+		}
+
+		LocalDate getEnd() {
+			return this.month.atEndOfMonth();
+		}
+
+		Path getPath() {
+			return this.path;
+		}
+
+		@Override
+		public int compareTo(Segment other) {
+			return this.month.compareTo(other.month);
+		}
+
+		@Override
+		public String toString() {
+			return this.path.getFileName().toString();
+		}
+	}
+
+	private final String id;
+	private final Path directory;
+	private final JournalDurability durability;
+	private final int batchSize;
+	private final long flushInterval;
+	//access-ordered, so the first entry is always the least recently used journal
+	private final LinkedHashMap<YearMonth, WorkingSetJournal> journals = new LinkedHashMap<>(16, 0.75f, true);
+
+	SegmentedWorkingSet(String id, JournalDurability durability, int batchSize, long flushInterval) throws IOException {
+		this(id, PathUtils.getWorkingSetDirectory(id), durability, batchSize, flushInterval);
+
+		this.undoInterruptedConversion();
+		Path legacyWorkingSet = PathUtils.getWorkingSetFile(this.id);
+		if(Files.exists(legacyWorkingSet)) {
+			logger.info(this + ": found single-file workingset, converting it to segments");
+			this.convertInPlace(legacyWorkingSet);
+			logger.info(this + ": finished converting workingset");
+		}
+		List<Segment> textSegments = listSegments(this.directory, TEXT_SEGMENT_NAME);
+		if(!textSegments.isEmpty()) {
+			logger.info(this + ": found " + textSegments.size() + " text segment(s), converting them to binary");
+			for(Segment segment : textSegments) {
+				this.convertInPlace(segment.getPath());
+			}
+			logger.info(this + ": finished converting text segments");
+		}
+	}
+
+	/*
+	 * a workingset in some other directory, eg for a shadow rebuild. old formats aren't
+	 * converted
+	 */
+	SegmentedWorkingSet(String id, Path directory, JournalDurability durability, int batchSize, long flushInterval) 
+			throws IOException {
+		this.id = id;
+		this.directory = directory;
+		this.durability = durability;
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+
+		Files.createDirectories(this.directory);
+	}
+
+	/**
+	 * queues a line to be written to the segment for the given date
+	 * @param dateStamp the line's date stamp, in the form YYYYMMDD
+	 * @param line the line, without date stamp
+	 * @throws IOException
+	 */
+	void append(String dateStamp, String line) throws IOException {
+		LocalDate date = LocalDate.parse(dateStamp, DateTimeFormatter.BASIC_ISO_DATE);
+		this.getJournal(YearMonth.from(date)).append(WorkingSetRecords.encode(Math.toIntExact(date.toEpochDay()), line));
+	}
+
+	/**
+	 * records that a line has been taken back out of the db, so one record of it with the
+	 * given date should be dropped from the workingset. written straight to disk
+	 * @param dateStamp the date the line was processed on, in the form YYYYMMDD
+	 * @param line the line, without date stamp
+	 * @throws IOException
+	 */
+	void retract(String dateStamp, String line) throws IOException {
+		LocalDate date = LocalDate.parse(dateStamp, DateTimeFormatter.BASIC_ISO_DATE);
+		Files.write(this.directory.resolve(RETRACTIONS_FILE_NAME), WorkingSetRecords.encode(Math.toIntExact(date.toEpochDay()), line),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	/**
+	 * drops one matching record from the workingset for every retraction, then clears the
+	 * retractions. only the segments with retracted dates are rewritten, and only records 
+	 * on those dates are decoded. retractions with no matching record (eg because the line
+	 * has already expired) are discarded
+	 * @return the number of records dropped
+	 * @throws IOException
+	 */
+	int applyRetractions() throws IOException {
+		Path retractionsFile = this.directory.resolve(RETRACTIONS_FILE_NAME);
+		if(!Files.exists(retractionsFile)) return 0;
+		//month -> epoch day -> line -> number of records to drop
+		Map<YearMonth, Map<Integer, Map<String, Integer>>> retractions = new HashMap<>();
+		long size = Files.size(retractionsFile);
+		if(size > 0) {
+			WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(retractionsFile, 0, size);
+			while(reader.next()) {
+				YearMonth month = YearMonth.from(LocalDate.ofEpochDay(reader.getEpochDay()));
+				retractions.computeIfAbsent(month, key -> new HashMap<>())
+					.computeIfAbsent(reader.getEpochDay(), key -> new HashMap<>())
+					.merge(reader.getLine(), 1, Integer::sum);
+			}
+		}
+		
+		int dropped = 0;
+		for(Map.Entry<YearMonth, Map<Integer, Map<String, Integer>>> entry : retractions.entrySet()) {
+			Path segment = this.getSegmentPath(entry.getKey());
+			this.closeJournal(entry.getKey());
+			if(!Files.exists(segment)) continue;
+			Map<Integer, Map<String, Integer>> days = entry.getValue();
+			Path temp = Files.createTempFile(this.directory, "segment", null);
+			try {
+				try (BufferedOutputStream out = new BufferedOutputStream(Files.newOutputStream(temp, StandardOpenOption.CREATE, 
+						StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+					WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(segment, 0, Files.size(segment));
+					while(reader.next()) {
+						Map<String, Integer> lines = days.get(reader.getEpochDay());
+						if(lines != null) {
+							String line = reader.getLine();
+							Integer remaining = lines.get(line);
+							if(remaining != null) {
+								if(remaining == 1) lines.remove(line);
+								else lines.put(line, remaining - 1);
+								dropped++;
+								continue;
+							}
+						}
+						reader.copyRecordTo(out);
+					}
+				}
+				Files.move(temp, segment, StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+		}
+		Files.delete(retractionsFile);
+		return dropped;
+	}
+
+	/**
+	 * writes every queued line in every segment to disk
+	 * @throws IOException
+	 */
+	void drain() throws IOException {
+		for(WorkingSetJournal journal : this.journals.values()) {
+			journal.drain();
+		}
+	}
+
+	/**
+	 * writes every queued line for the given segment to disk
+	 * @throws IOException
+	 */
+	void drain(Segment segment) throws IOException {
+		WorkingSetJournal journal = this.journals.get(segment.month);
+		if(journal != null) journal.drain();
+	}
+
+	/**
+	 * drains and closes the given segment's journal, if it has one. any later line for
+	 * the segment reopens it. used before replacing the segment file
+	 * @throws IOException
+	 */
+	void closeSegment(Segment segment) throws IOException {
+		this.closeJournal(segment.month);
+	}
+	
+	/**
+	 * checks that every open segment's journal is getting its lines to disk. lines appended
+	 * while one isn't are kept until it recovers, so this is for callers to find out before 
+	 * making a change (eg to the db) that the workingset might not keep up with
+	 * @throws IOException if a journal's most recent write failed
+	 */
+	void checkWritable() throws IOException {
+		for(WorkingSetJournal journal : this.journals.values()) {
+			journal.checkHealth();
+		}
+	}
+
+	/**
+	 * closes the given segment's journal and deletes its file
+	 * @throws IOException
+	 */
+	void delete(Segment segment) throws IOException {
+		this.closeSegment(segment);
+		Files.deleteIfExists(segment.getPath());
+	}
+
+	/**
+	 * @return every segment currently on disk, oldest first
+	 * @throws IOException
+	 */
+	List<Segment> getSegments() throws IOException {
+		return listSegments(this.directory, SEGMENT_NAME);
+	}
+	
+	/*
+	 * lists the segments in a workingset directory without opening the workingset, eg for
+	 * a database that isn't loaded
+	 */
+	static List<Segment> getSegments(Path directory) throws IOException {
+		if(!Files.isDirectory(directory)) return new ArrayList<>();
+		return listSegments(directory, SEGMENT_NAME);
+	}
+
+	/**
+	 * closes every segment and deletes all of them from disk
+	 * @throws IOException
+	 */
+	void clear() throws IOException {
+		this.close();
+		for(Segment segment : this.getSegments()) {
+			Files.delete(segment.getPath());
+		}
+		Files.deleteIfExists(this.directory.resolve(RETRACTIONS_FILE_NAME));
+	}
+
+	/*
+	 * adds every segment to a snapshot for a backup, see BackupSnapshot. segments are only
+	 * ever appended to in place, so the snapshot should be append-only. the workingset
+	 * should be drained first, and nothing should be appended until this returns
+	 * 
+	 * only backups are ever linked together by BackupSnapshot, never the live segments, 
+	 * since those get appended to in place
+	 */
+	void snapshotForBackup(BackupSnapshot snapshot) throws IOException {
+		for(Segment segment : this.getSegments()) {
+			//maintenance can delete a segment without the database's lock
+			snapshot.link(segment.getPath().getFileName().toString(), segment.getPath());
+		}
+		//always copied, since it's appended to in place
+		Path retractions = this.directory.resolve(RETRACTIONS_FILE_NAME);
+		if(Files.exists(retractions)) snapshot.copy(RETRACTIONS_FILE_NAME, retractions);
+	}
+	
+	/**
+	 * snapshots every segment into the given directory, which must not exist yet, for
+	 * reading without holding the database's lock. segments are hard-linked where possible
+	 * and copied otherwise. the retractions file is always copied
+	 * 
+	 * live segments are appended to in place, and a link shares those appends, so a linked
+	 * segment is only a snapshot up to the size returned for it here. anything past that
+	 * should be ignored. segments are otherwise only ever replaced, never modified, so the
+	 * rest of the link can't change. the workingset should be drained first, and nothing
+	 * should be appended until this returns
+	 * @return each segment in the snapshot and its size as of the snapshot, oldest first
+	 * @throws IOException
+	 */
+	LinkedHashMap<Path, Long> snapshotTo(Path target) throws IOException {
+		Files.createDirectories(target.getParent());
+		Files.createDirectory(target);
+		LinkedHashMap<Path, Long> snapshot = new LinkedHashMap<>();
+		for(Segment segment : this.getSegments()) {
+			Path file = target.resolve(segment.getPath().getFileName());
+			/*
+			 * maintenance can replace or delete a segment without the database's lock, so the
+			 * size is taken from the snapshot rather than the live file
+			 */
+			try {
+				Files.createLink(file, segment.getPath());
+			} catch (NoSuchFileException e) {
+				//expired since it was listed
+				continue;
+			} catch (IOException | UnsupportedOperationException e) {
+				try {
+					Files.copy(segment.getPath(), file);
+				} catch (NoSuchFileException e1) {
+					continue;
+				}
+			}
+			snapshot.put(file, Files.size(file));
+		}
+		Path retractions = this.directory.resolve(RETRACTIONS_FILE_NAME);
+		if(Files.exists(retractions)) Files.copy(retractions, target.resolve(RETRACTIONS_FILE_NAME));
+		return snapshot;
+	}
+	
+	/**
+	 * the current size of every segment, and of the retractions file if there is one. for
+	 * counting lines with {@link #countLines(Map)} without holding the database's lock. the
+	 * workingset should be drained first
+	 * @throws IOException
+	 */
+	LinkedHashMap<Path, Long> getSizes() throws IOException {
+		LinkedHashMap<Path, Long> sizes = new LinkedHashMap<>();
+		for(Segment segment : this.getSegments()) {
+			sizes.put(segment.getPath(), Files.size(segment.getPath()));
+		}
+		Path retractions = this.directory.resolve(RETRACTIONS_FILE_NAME);
+		if(Files.exists(retractions)) sizes.put(retractions, Files.size(retractions));
+		return sizes;
+	}
+	
+	/**
+	 * counts the lines in the given files, as returned by {@link #getSizes()}, reading each
+	 * only up to its given size. retracted lines aren't counted. lines are never decoded,
+	 * so this is about as fast as reading the files
+	 * @throws IOException
+	 */
+	static long countLines(Map<Path, Long> sizes) throws IOException {
+		long lines = 0;
+		for(Map.Entry<Path, Long> file : sizes.entrySet()) {
+			if(file.getValue() == 0) continue;
+			WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(file.getKey(), 0, file.getValue());
+			long records = 0;
+			while(reader.next()) {
+				records++;
+			}
+			if(file.getKey().getFileName().toString().equals(RETRACTIONS_FILE_NAME)) lines -= records;
+			else lines += records;
+		}
+		return Math.max(lines, 0);
+	}
+	
+	/**
+	 * replaces every segment with the segments in the given directory. text segments
+	 * (eg in a backup made before segments were binary) are converted
+	 * @throws IOException
+	 */
+	void restoreFrom(Path source) throws IOException {
+		this.clear();
+		for(Segment segment : listSegments(source, SEGMENT_NAME)) {
+			Files.copy(segment.getPath(), this.directory.resolve(segment.getPath().getFileName()));
+		}
+		for(Segment segment : listSegments(source, TEXT_SEGMENT_NAME)) {
+			this.convertTextFile(segment.getPath());
+		}
+		Path retractions = source.resolve(RETRACTIONS_FILE_NAME);
+		if(Files.exists(retractions)) Files.copy(retractions, this.directory.resolve(RETRACTIONS_FILE_NAME));
+	}
+
+	/**
+	 * replaces every segment with the contents of a single-file text workingset, eg from
+	 * a backup made before the workingset was segmented
+	 * @throws IOException
+	 */
+	void restoreFromLegacyFile(Path source) throws IOException {
+		this.clear();
+		this.convertTextFile(source);
+	}
+
+	/**
+	 * drains and closes every open segment. the workingset can still be used after this,
+	 * and any segment written to again will be reopened. segments that fail to close are 
+	 * kept open, so their queued lines aren't lost
+	 */
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		Iterator<WorkingSetJournal> iterator = this.journals.values().iterator();
+		while(iterator.hasNext()) {
+			try {
+				iterator.next().close();
+				iterator.remove();
+			} catch (IOException e) {
+				if(failure == null) failure = e;
+				else failure.addSuppressed(e);
+			}
+		}
+		if(failure != null) throw failure;
+	}
+
+	/**
+	 * deletes a directory of segments, eg a workingset backup
+	 * @throws IOException
+	 */
+	static void deleteSegmentDirectory(Path directory) throws IOException {
+		if(!Files.isDirectory(directory)) return;
+		try (Stream<Path> files = Files.list(directory)) {
+			for(Path file : files.collect(Collectors.toList())) {
+				Files.delete(file);
+			}
+		}
+		Files.delete(directory);
+	}
+
+	private WorkingSetJournal getJournal(YearMonth month) throws IOException {
+		WorkingSetJournal journal = this.journals.get(month);
+		if(journal == null) {
+			if(this.journals.size() >= MAX_OPEN_JOURNALS) {
+				Iterator<WorkingSetJournal> iterator = this.journals.values().iterator();
+				WorkingSetJournal eldest = iterator.next();
+				try {
+					eldest.close();
+					iterator.remove();
+				} catch (IOException e) {
+					//left open to keep retrying, see WorkingSetJournal. closed again next time
+					logger.warn(this + ": couldn't close " + eldest + ", keeping it open: " + e);
+				}
+			}
+			journal = new WorkingSetJournal(this.getSegmentPath(month), this.durability, this.batchSize, this.flushInterval);
+			this.journals.put(month, journal);
+		}
+		return journal;
+	}
+
+	/*
+	 * the journal is only forgotten once it's closed, so one that failed to drain is kept
+	 */
+	private void closeJournal(YearMonth month) throws IOException {
+		WorkingSetJournal journal = this.journals.get(month);
+		if(journal == null) return;
+		journal.close();
+		this.journals.remove(month);
+	}
+
+	private Path getSegmentPath(YearMonth month) {
+		return this.directory.resolve("workingset-" + month.atDay(1).format(DateTimeFormatter.BASIC_ISO_DATE) + "-"
+				+ month.atEndOfMonth().format(DateTimeFormatter.BASIC_ISO_DATE) + ".bin");
+	}
+
+	/*
+	 * converts an old text workingset file into the live segments, then deletes it
+	 * 
+	 * conversion appends to the live segments, so stopping partway (eg a crash, or running 
+	 * out of disk) would leave them with some of the file's lines, and converting the whole 
+	 * file again would duplicate those. so first a marker file records the source and the
+	 * size of every segment. if the marker is found on the next start with its source still
+	 * there, undoInterruptedConversion cuts every segment back to its recorded size (and 
+	 * deletes any created since) before converting again. the source is only deleted once 
+	 * the converted segments are on disk, and before the marker, so a marker whose source 
+	 * is gone means the conversion finished
+	 */
+	private void convertInPlace(Path source) throws IOException {
+		List<String> marker = new ArrayList<>();
+		marker.add(source.toAbsolutePath().toString());
+		for(Segment segment : this.getSegments()) {
+			marker.add(segment.getPath().getFileName() + "\t" + Files.size(segment.getPath()));
+		}
+		Path markerFile = this.directory.resolve(CONVERSION_FILE_NAME);
+		Path temp = this.directory.resolve(CONVERSION_FILE_NAME + ".tmp");
+		Files.write(temp, marker, StandardCharsets.UTF_8);
+		Files.move(temp, markerFile, StandardCopyOption.REPLACE_EXISTING);
+		
+		this.convertTextFile(source);
+		for(Segment segment : this.getSegments()) {
+			try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+		}
+		Files.delete(source);
+		Files.delete(markerFile);
+	}
+	
+	/*
+	 * see convertInPlace
+	 */
+	private void undoInterruptedConversion() throws IOException {
+		Path markerFile = this.directory.resolve(CONVERSION_FILE_NAME);
+		if(!Files.exists(markerFile)) return;
+		List<String> marker = Files.readAllLines(markerFile, StandardCharsets.UTF_8);
+		if(!marker.isEmpty() && Files.exists(Paths.get(marker.get(0)))) {
+			logger.warn(this + ": conversion of '" + marker.get(0) + "' was interrupted, undoing it before converting again");
+			Map<String, Long> sizes = new HashMap<>();
+			for(String line : marker.subList(1, marker.size())) {
+				int tab = line.lastIndexOf('\t');
+				sizes.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+			}
+			for(Segment segment : this.getSegments()) {
+				Long size = sizes.get(segment.getPath().getFileName().toString());
+				if(size == null) {
+					Files.delete(segment.getPath());
+				} else {
+					try (FileChannel channel = FileChannel.open(segment.getPath(), StandardOpenOption.WRITE)) {
+						channel.truncate(size);
+					}
+				}
+			}
+		}
+		Files.delete(markerFile);
+	}
+
+	/*
+	 * converts a text workingset file (one line per message, each starting with a YYYYMMDD
+	 * date stamp) to binary records, appending each to the segment for its date. writes
+	 * the segment files directly rather than through journals, since this can touch
+	 * every month in the guild's history at once
+	 */
+	private void convertTextFile(Path file) throws IOException {
+		Map<YearMonth, BufferedOutputStream> outputs = new HashMap<>();
+		try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			String line = reader.readLine();
+			while(line != null) {
+				if(!line.isEmpty()) {
+					LocalDate date = LocalDate.parse(line.substring(0, 8), DateTimeFormatter.BASIC_ISO_DATE);
+					YearMonth month = YearMonth.from(date);
+					BufferedOutputStream out = outputs.get(month);
+					if(out == null) {
+						out = new BufferedOutputStream(Files.newOutputStream(this.getSegmentPath(month),
+								StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+						outputs.put(month, out);
+					}
+					out.write(WorkingSetRecords.encode(Math.toIntExact(date.toEpochDay()), line.substring(8)));
+				}
+				line = reader.readLine();
+			}
+		} finally {
+			for(BufferedOutputStream out : outputs.values()) {
+				out.close();
+			}
+		}
+	}
+
+	private static List<Segment> listSegments(Path directory, Pattern namePattern) throws IOException {
+		List<Segment> segments = new ArrayList<>();
+		try (Stream<Path> files = Files.list(directory)) {
+			files.forEach(file ->
+			{
+				Matcher matcher = namePattern.matcher(file.getFileName().toString());
+				if(matcher.matches()) {
+					YearMonth month = YearMonth.from(LocalDate.parse(matcher.group(1), DateTimeFormatter.BASIC_ISO_DATE));
+					segments.add(new Segment(month, file));
+				}
+			});
+		}
+		segments.sort(null);
+		return segments;
+	}
+
+	Path getDirectory() {
+		return this.directory;
+	}
+
+	@Override
+	public String toString() {
+		return "SegmentedWorkingSet-" + this.id;
+	}
+}
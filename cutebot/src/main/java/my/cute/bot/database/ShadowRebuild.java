@@ -0,0 +1,270 @@
+package my.cute.bot.database;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import my.cute.bot.util.MessageNormalizer;
+import my.cute.bot.util.NormalizedMessage;
+import my.cute.bot.util.PathUtils;
+import my.cute.markov2.MarkovDatabase;
+import my.cute.markov2.exceptions.FollowingWordRemovalException;
+
+/**
+ * a replacement database being built alongside a live one, from {@link GuildDatabase#startShadowRebuild()}.
+ * the live database keeps processing and generating lines as normal the whole time
+ * <p>
+ * the new database and workingset are built in the guild's rebuild directory. any line the
+ * live database processes or removes in the meantime is also recorded in a side log, and
+ * {@link #finish()} replays that onto the new database before swapping it in, so nothing
+ * that happened during the rebuild is lost
+ * <p>
+ * not threadsafe. a rebuild should be driven from a single thread, start to finish
+ */
+public final class ShadowRebuild {
+
+	private static final Logger logger = LoggerFactory.getLogger(ShadowRebuild.class);
+	/*
+	 * nothing in the new workingset is worth syncing, since a rebuild that's interrupted
+	 * is thrown away and started over
+	 */
+	private static final JournalDurability JOURNAL_DURABILITY = JournalDurability.NONE;
+	private static final int JOURNAL_BATCH_SIZE = 4096;
+	private static final long JOURNAL_FLUSH_INTERVAL = 5000;
+	/*
+	 * the side log is replayed without the live database's lock until it's down to this
+	 * many entries (or it's been tried MAX_CATCH_UP_ROUNDS times), then the rest is replayed
+	 * under the lock as part of the swap
+	 */
+	private static final int CATCH_UP_THRESHOLD = 256;
+	private static final int MAX_CATCH_UP_ROUNDS = 8;
+
+	private enum ChangeType {
+		PROCESS,
+		REMOVE,
+		RETRACT
+	}
+
+	/*
+	 * a line processed or removed by the live database during the rebuild
+	 */
+	private static final class Change {
+		private final ChangeType type;
+		private final String line;
+		private final List<String> tokens;
+		private final String dateStamp;
+
+		private Change(ChangeType type, String line, List<String> tokens, String dateStamp) {
+			this.type = type;
+			this.line = line;
+			this.tokens = tokens;
+			this.dateStamp = dateStamp;
+		}
+	}
+
+	private final GuildDatabaseImpl owner;
+	private final String id;
+	private final MarkovDatabase database;
+	private final SegmentedWorkingSet workingSet;
+	/*
+	 * appended to by the live database under its write lock, drained by the rebuild thread
+	 */
+	private final List<Change> sideLog = new ArrayList<>();
+	private volatile boolean abandoned = false;
+	private boolean finished = false;
+	private long linesProcessed = 0;
+	private long changesReplayed = 0;
+
+	ShadowRebuild(GuildDatabaseImpl owner, String id, MarkovDatabase database) throws IOException {
+		this.owner = owner;
+		this.id = id;
+		this.database = database;
+		this.workingSet = new SegmentedWorkingSet(id, PathUtils.getRebuildWorkingSetDirectory(id), JOURNAL_DURABILITY,
+				JOURNAL_BATCH_SIZE, JOURNAL_FLUSH_INTERVAL);
+	}
+
+	/**
+	 * processes lines into the new database, as in {@link GuildDatabase#processLines(Iterable)}
+	 * @param lines the lines to process
+	 * @return the number of lines processed, and every line that wasn't processed
+	 * @throws IllegalStateException if the rebuild has been finished or abandoned
+	 * @throws IOException
+	 */
+	public BatchResult processLines(Iterable<DatedLine> lines) throws IllegalStateException, IOException {
+		this.checkUsable();
+		BatchResult result = new BatchResult();
+		for(DatedLine line : lines) {
+			String normalizedLine = line.getLine();
+			List<String> tokens = line.getTokens();
+			if(tokens == null) {
+				NormalizedMessage message = MessageNormalizer.normalize(line.getLine());
+				normalizedLine = message.getLine();
+				tokens = message.getTokens();
+			}
+			if(this.database.processLine(tokens)) {
+				this.workingSet.append(line.getDateStamp(), normalizedLine);
+				result.succeeded();
+			} else {
+				result.failed(normalizedLine);
+			}
+		}
+		this.linesProcessed += result.getSucceeded();
+		return result;
+	}
+
+	/**
+	 * catches the new database up on everything the live database did during the rebuild,
+	 * then swaps it in. the live database only blocks for the last few changes and the swap
+	 * itself
+	 * <p>
+	 * the live database's automatic backups and write-ahead log describe the old database,
+	 * so the log is reset. the backups should be cleared by the caller
+	 * @throws IllegalStateException if the rebuild has been finished or abandoned, eg
+	 * because the live database was cleared or shut down in the meantime
+	 * @throws IOException if the swap fails. the live database is left as it was
+	 */
+	public void finish() throws IllegalStateException, IOException {
+		this.checkUsable();
+		long startTime = System.currentTimeMillis();
+		for(int i=0; i < MAX_CATCH_UP_ROUNDS; i++) {
+			if(this.replaySideLog() <= CATCH_UP_THRESHOLD) break;
+		}
+		this.owner.swapIn(this);
+		this.finished = true;
+		logger.info(this + ": swapped in new database (" + this.linesProcessed + " lines, " + this.changesReplayed
+				+ " change(s) replayed from side log) in " + (System.currentTimeMillis() - startTime) + "ms");
+		this.deleteFiles();
+	}
+
+	/**
+	 * throws away the new database. the live database is unaffected. safe to call more than
+	 * once, or after the rebuild has been abandoned by the live database
+	 */
+	public void abandon() {
+		if(this.finished) return;
+		this.abandoned = true;
+		this.finished = true;
+		this.owner.detach(this);
+		try {
+			this.workingSet.close();
+		} catch (IOException e) {
+			logger.warn(this + ": exception when closing workingset: " + e.getMessage(), e);
+		}
+		this.deleteFiles();
+		logger.info(this + ": abandoned");
+	}
+
+	/*
+	 * called by the live database, under its write lock
+	 */
+	void record(String line, List<String> tokens, String dateStamp) {
+		synchronized(this.sideLog) {
+			this.sideLog.add(new Change(ChangeType.PROCESS, line, tokens, dateStamp));
+		}
+	}
+
+	/*
+	 * called by the live database, under its write lock
+	 */
+	void recordRemoval(String line, List<String> tokens) {
+		synchronized(this.sideLog) {
+			this.sideLog.add(new Change(ChangeType.REMOVE, line, tokens, null));
+		}
+	}
+
+	/*
+	 * called by the live database, under its write lock
+	 */
+	void recordRetraction(String line, List<String> tokens, String dateStamp) {
+		synchronized(this.sideLog) {
+			this.sideLog.add(new Change(ChangeType.RETRACT, line, tokens, dateStamp));
+		}
+	}
+
+	/*
+	 * called by the live database when the rebuild can no longer be swapped in (eg the live
+	 * database was cleared). the rebuild thread finds out on its next call
+	 */
+	void markAbandoned() {
+		this.abandoned = true;
+	}
+
+	/*
+	 * called by the live database under its write lock, just before swapping. replays
+	 * whatever's left in the side log and gets everything onto disk
+	 */
+	void prepareSwap() throws IOException {
+		this.replaySideLog();
+		this.database.save();
+		this.workingSet.close();
+	}
+
+	SegmentedWorkingSet getWorkingSet() {
+		return this.workingSet;
+	}
+
+	/*
+	 * applies everything in the side log so far, returns the number of changes applied
+	 */
+	private int replaySideLog() throws IOException {
+		List<Change> changes;
+		synchronized(this.sideLog) {
+			if(this.sideLog.isEmpty()) return 0;
+			changes = new ArrayList<>(this.sideLog);
+			this.sideLog.clear();
+		}
+		for(Change change : changes) {
+			if(change.type == ChangeType.PROCESS) {
+				if(this.database.processLine(change.tokens)) this.workingSet.append(change.dateStamp, change.line);
+				continue;
+			}
+			try {
+				//line may not be in the new database at all, eg if it's from a channel that isn't scraped
+				if(this.database.removeLine(change.tokens) && change.type == ChangeType.RETRACT) {
+					this.workingSet.retract(change.dateStamp, change.line);
+				}
+			} catch (FollowingWordRemovalException e) {
+				logger.debug(this + ": couldn't replay removal of line '" + change.line + "': " + e.getMessage());
+			}
+		}
+		this.changesReplayed += changes.size();
+		return changes.size();
+	}
+
+	private void checkUsable() {
+		if(this.abandoned) throw new IllegalStateException(this + ": rebuild was abandoned");
+		if(this.finished) throw new IllegalStateException(this + ": rebuild already finished");
+	}
+
+	private void deleteFiles() {
+		try {
+			deleteRecursively(PathUtils.getRebuildDirectory(this.id));
+		} catch (IOException e) {
+			logger.warn(this + ": exception when deleting rebuild directory: " + e.getMessage(), e);
+		}
+	}
+
+	static void deleteRecursively(Path directory) throws IOException {
+		if(!Files.exists(directory)) return;
+		List<Path> paths;
+		try (Stream<Path> walk = Files.walk(directory)) {
+			paths = walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList());
+		}
+		for(Path path : paths) {
+			Files.delete(path);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ShadowRebuild-" + this.id;
+	}
+}
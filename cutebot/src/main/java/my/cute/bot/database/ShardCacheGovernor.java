@@ -0,0 +1,205 @@
+package my.cute.bot.database;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * divides a single process-wide shard cache budget between every loaded guild database, so
+ * busy guilds get cache hits and quiet ones take up next to no memory
+ * <p>
+ * every rebalance, each database's activity (lines processed plus pooled lines requested)
+ * since the last one is folded into a smoothed rate, and the budget is shared out in
+ * proportion to those rates, with no database getting more than the maximum tier. the
+ * markov database can't resize its shard cache in place, so changing a database's size
+ * means saving it and building a new one. to keep that rare, allowances are rounded down to
+ * a few fixed tiers and a database only moves to a new tier once it's been assigned that
+ * tier for several rebalances in a row. shrinks are applied before growth, so the total
+ * stays close to the budget
+ * <p>
+ * databases that are prioritizing speed (eg during a rebuild) are pinned at full size and
+ * left alone, but still count against the budget
+ */
+public final class ShardCacheGovernor {
+
+	private static final Logger logger = LoggerFactory.getLogger(ShardCacheGovernor.class);
+	/*
+	 * shard cache sizes a database can be given, smallest first. 0 is the old memory mode and
+	 * the largest is the old speed mode
+	 */
+	private static final int[] TIERS = { 0, 100, 200, 400, 800 };
+	/*
+	 * weight of the latest interval in the smoothed activity rate
+	 */
+	private static final double SMOOTHING = 0.5;
+	/*
+	 * number of consecutive rebalances a database has to be assigned a new tier before it's
+	 * actually resized
+	 */
+	private static final int ROUNDS_TO_CHANGE = 2;
+
+	private static final class Allocation {
+		private long lastActivity;
+		private double rate = 0;
+		private double allowance = 0;
+		private int pendingTier = -1;
+		private int pendingRounds = 0;
+
+		private Allocation(long activity) {
+			this.lastActivity = activity;
+		}
+	}
+
+	private static final Comparator<Map.Entry<GuildDatabaseImpl, Allocation>> BY_RATE = 
+			Comparator.comparingDouble((Map.Entry<GuildDatabaseImpl, Allocation> entry) -> entry.getValue().rate).reversed();
+
+	private final int shardBudget;
+	private final Map<GuildDatabaseImpl, Allocation> databases = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * @param shardBudget total number of shards all governed databases can cache between them
+	 * @param rebalanceInterval time in ms between rebalances
+	 */
+	public ShardCacheGovernor(int shardBudget, long rebalanceInterval) {
+		if(shardBudget < 0) throw new IllegalArgumentException("shard budget can't be negative");
+		this.shardBudget = shardBudget;
+		this.executor = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("shard-cache-governor-%d").setDaemon(true).build());
+		this.executor.scheduleWithFixedDelay(this::rebalance, rebalanceInterval, rebalanceInterval, TimeUnit.MILLISECONDS);
+	}
+
+	void register(GuildDatabaseImpl database) {
+		this.databases.computeIfAbsent(database, db -> new Allocation(db.getActivityCount()));
+	}
+
+	void deregister(GuildDatabaseImpl database) {
+		this.databases.remove(database);
+	}
+
+	/**
+	 * @return total shard cache size currently given to governed databases
+	 */
+	public int getAllocatedShards() {
+		int total = 0;
+		for(GuildDatabaseImpl database : this.databases.keySet()) {
+			total += database.getShardCacheSize();
+		}
+		return total;
+	}
+
+	public int getShardBudget() {
+		return this.shardBudget;
+	}
+
+	private void rebalance() {
+		try {
+			List<Map.Entry<GuildDatabaseImpl, Allocation>> governed = new ArrayList<>(this.databases.size());
+			int budget = this.shardBudget;
+			double totalRate = 0;
+			for(Map.Entry<GuildDatabaseImpl, Allocation> entry : this.databases.entrySet()) {
+				GuildDatabaseImpl database = entry.getKey();
+				Allocation allocation = entry.getValue();
+				long activity = database.getActivityCount();
+				allocation.rate = SMOOTHING * (activity - allocation.lastActivity) + (1 - SMOOTHING) * allocation.rate;
+				allocation.lastActivity = activity;
+				if(database.isShardCachePinned()) {
+					budget -= database.getShardCacheSize();
+				} else {
+					governed.add(entry);
+					totalRate += allocation.rate;
+				}
+			}
+
+			/*
+			 * share the budget out busiest first. anything a database can't use past the max
+			 * tier goes back into the pool for the rest
+			 */
+			governed.sort(BY_RATE);
+			double remaining = Math.max(budget, 0);
+			for(Map.Entry<GuildDatabaseImpl, Allocation> entry : governed) {
+				Allocation allocation = entry.getValue();
+				double share = totalRate > 0 ? remaining * allocation.rate / totalRate : 0;
+				allocation.allowance = Math.min(share, TIERS[TIERS.length - 1]);
+				remaining -= allocation.allowance;
+				totalRate -= allocation.rate;
+			}
+
+			List<Map.Entry<GuildDatabaseImpl, Allocation>> shrinking = new ArrayList<>();
+			List<Map.Entry<GuildDatabaseImpl, Allocation>> growing = new ArrayList<>();
+			for(Map.Entry<GuildDatabaseImpl, Allocation> entry : governed) {
+				Allocation allocation = entry.getValue();
+				int tier = tierFor(allocation.allowance);
+				int current = entry.getKey().getShardCacheSize();
+				if(tier == current) {
+					allocation.pendingTier = -1;
+					allocation.pendingRounds = 0;
+					continue;
+				}
+				if(tier == allocation.pendingTier) {
+					allocation.pendingRounds++;
+				} else {
+					allocation.pendingTier = tier;
+					allocation.pendingRounds = 1;
+				}
+				if(allocation.pendingRounds >= ROUNDS_TO_CHANGE) {
+					if(tier < current) shrinking.add(entry);
+					else growing.add(entry);
+				}
+			}
+			shrinking.forEach(this::applyPendingTier);
+			growing.forEach(this::applyPendingTier);
+		} catch (RuntimeException e) {
+			//don't let an exception cancel future rebalances
+			logger.warn(this + ": unexpected exception during rebalance", e);
+		}
+	}
+
+	private void applyPendingTier(Map.Entry<GuildDatabaseImpl, Allocation> entry) {
+		GuildDatabaseImpl database = entry.getKey();
+		Allocation allocation = entry.getValue();
+		int tier = allocation.pendingTier;
+		allocation.pendingTier = -1;
+		allocation.pendingRounds = 0;
+		try {
+			database.resizeShardCache(tier);
+		} catch (IOException e) {
+			logger.warn(this + ": exception when resizing shard cache of " + database + " to " + tier
+					+ ": " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * largest tier that fits in the given allowance
+	 */
+	private static int tierFor(double allowance) {
+		int tier = TIERS[0];
+		for(int size : TIERS) {
+			if(size <= allowance) tier = size;
+		}
+		return tier;
+	}
+
+	/**
+	 * stops rebalancing. databases keep whatever size they currently have
+	 */
+	public void shutdown() {
+		this.executor.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		return "ShardCacheGovernor";
+	}
+}
@@ -0,0 +1,214 @@
+package my.cute.bot.database;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * an export of a guild's workingset (every line currently in its database, and the date
+ * each was processed on) to a gzipped text file, from a snapshot taken by
+ * {@link GuildDatabase#startExport()}. the database's lock is only held while the snapshot
+ * is taken, which just links the workingset's files. the export itself reads from the
+ * snapshot, so the database keeps running as normal however long it takes
+ * <p>
+ * the output has one line per message, each starting with its YYYYMMDD date stamp, the
+ * same as the body of a scrape file
+ * <p>
+ * {@link #writeTo(Path, int, Consumer)} should only be called once, and the export
+ * closed afterwards to delete the snapshot. {@link #cancel()} and {@link #getProgress()}
+ * can be called from any thread
+ */
+public final class WorkingSetExport implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(WorkingSetExport.class);
+	private static final long PROGRESS_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+	private final String id;
+	private final Path snapshotDirectory;
+	/*
+	 * each snapshot segment and how much of it belongs to the snapshot
+	 */
+	private final LinkedHashMap<Path, Long> segments;
+	private final long totalBytes;
+	private volatile boolean cancelled = false;
+	private boolean started = false;
+	private boolean closed = false;
+	//only written by the thread calling writeTo
+	private volatile long bytesRead = 0;
+	private volatile long linesWritten = 0;
+	private volatile long startTime = 0;
+
+	WorkingSetExport(String id, Path snapshotDirectory, LinkedHashMap<Path, Long> segments) {
+		this.id = id;
+		this.snapshotDirectory = snapshotDirectory;
+		this.segments = segments;
+		long total = 0;
+		for(long size : segments.values()) {
+			total += size;
+		}
+		this.totalBytes = total;
+	}
+
+	/**
+	 * writes every line in the snapshot to the given file, gzipped. lines that were retracted
+	 * but not yet dropped from the workingset when the snapshot was taken are left out
+	 * @param output the file to write. the export is written to a temp file and moved into
+	 * place once it's finished, so the file never exists partially written
+	 * @param chunkSize how many bytes of the snapshot to read between checks for cancellation
+	 * and progress. also the size of the compression buffer
+	 * @param progressListener given a description of the export's progress (as in
+	 * {@link #getProgress()}) every so often, on the calling thread. may be null
+	 * @return true if the export finished, false if it was cancelled
+	 * @throws IllegalStateException if the export has already been written or closed
+	 * @throws IOException
+	 */
+	public boolean writeTo(Path output, int chunkSize, Consumer<String> progressListener) throws IllegalStateException, IOException {
+		synchronized(this) {
+			if(this.started || this.closed) throw new IllegalStateException(this + ": export already written or closed");
+			this.started = true;
+		}
+		if(chunkSize <= 0) throw new IllegalArgumentException("chunk size must be positive");
+		this.startTime = System.currentTimeMillis();
+		Map<Integer, Map<String, Integer>> retractions = this.readRetractions();
+		Files.createDirectories(output.getParent());
+		Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+		boolean finished = false;
+		long bytes = 0;
+		long lines = 0;
+		long nextCheck = chunkSize;
+		long nextProgress = this.startTime + PROGRESS_INTERVAL;
+		try (OutputStream out = new BufferedOutputStream(new GZIPOutputStream(Files.newOutputStream(temp), chunkSize), chunkSize)) {
+			int lastEpochDay = 0;
+			byte[] dateStamp = null;
+			for(Map.Entry<Path, Long> segment : this.segments.entrySet()) {
+				if(segment.getValue() == 0) continue;
+				WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(segment.getKey(), 0, segment.getValue());
+				while(reader.next()) {
+					bytes += reader.getRecordLength();
+					int epochDay = reader.getEpochDay();
+					Map<String, Integer> retracted = retractions.get(epochDay);
+					if(retracted == null || !consume(retracted, reader.getLine())) {
+						//lines come in runs from the same day, so the last datestamp is reused
+						if(dateStamp == null || epochDay != lastEpochDay) {
+							dateStamp = LocalDate.ofEpochDay(epochDay).format(DateTimeFormatter.BASIC_ISO_DATE)
+									.getBytes(StandardCharsets.UTF_8);
+							lastEpochDay = epochDay;
+						}
+						out.write(dateStamp);
+						reader.copyLineTo(out);
+						out.write('\n');
+						lines++;
+					}
+					if(bytes >= nextCheck) {
+						nextCheck = bytes + chunkSize;
+						this.bytesRead = bytes;
+						this.linesWritten = lines;
+						if(this.cancelled) {
+							logger.info(this + ": cancelled. " + this.getProgress());
+							return false;
+						}
+						if(progressListener != null && System.currentTimeMillis() >= nextProgress) {
+							progressListener.accept(this.getProgress());
+							nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL;
+						}
+					}
+				}
+			}
+			this.bytesRead = bytes;
+			this.linesWritten = lines;
+			finished = true;
+		} finally {
+			if(!finished) Files.deleteIfExists(temp);
+		}
+		Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING);
+		logger.info(this + ": exported to " + output + ". " + this.getProgress());
+		return true;
+	}
+
+	/**
+	 * stops the export at its next check, see {@link #writeTo(Path, int, Consumer)}
+	 */
+	public void cancel() {
+		this.cancelled = true;
+	}
+
+	/**
+	 * @return a one-line summary of how far along the export is
+	 */
+	public String getProgress() {
+		if(this.startTime == 0) return "not started";
+		long bytes = this.bytesRead;
+		long elapsed = Math.max(System.currentTimeMillis() - this.startTime, 1);
+		StringBuilder builder = new StringBuilder();
+		builder.append(this.totalBytes > 0 ? (100 * bytes / this.totalBytes) : 100).append("% of ");
+		builder.append(this.totalBytes / 1024).append("KB read, ");
+		builder.append(this.linesWritten).append(" lines written, ");
+		builder.append(elapsed / 1000).append("s elapsed");
+		return builder.toString();
+	}
+
+	/**
+	 * deletes the snapshot. the export can't be written after this
+	 */
+	@Override
+	public synchronized void close() {
+		if(this.closed) return;
+		this.closed = true;
+		this.cancelled = true;
+		try {
+			ShadowRebuild.deleteRecursively(this.snapshotDirectory);
+		} catch (IOException e) {
+			//deleted before the next export anyway
+			logger.warn(this + ": exception when deleting snapshot: " + e.getMessage(), e);
+		}
+	}
+
+	/*
+	 * epoch day -> line -> number of records to leave out, as in
+	 * SegmentedWorkingSet.applyRetractions()
+	 */
+	private Map<Integer, Map<String, Integer>> readRetractions() throws IOException {
+		Map<Integer, Map<String, Integer>> retractions = new HashMap<>();
+		Path file = this.snapshotDirectory.resolve(SegmentedWorkingSet.RETRACTIONS_FILE_NAME);
+		if(!Files.exists(file)) return retractions;
+		long size = Files.size(file);
+		if(size == 0) return retractions;
+		WorkingSetRecords.Reader reader = new WorkingSetRecords.Reader(file, 0, size);
+		while(reader.next()) {
+			retractions.computeIfAbsent(reader.getEpochDay(), key -> new HashMap<>()).merge(reader.getLine(), 1, Integer::sum);
+		}
+		return retractions;
+	}
+
+	/*
+	 * returns true and uses up one retraction if the given line has one left
+	 */
+	private static boolean consume(Map<String, Integer> retracted, String line) {
+		Integer remaining = retracted.get(line);
+		if(remaining == null) return false;
+		if(remaining == 1) retracted.remove(line);
+		else retracted.put(line, remaining - 1);
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "WorkingSetExport-" + this.id;
+	}
+}
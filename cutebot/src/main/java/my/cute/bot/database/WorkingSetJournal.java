@@ -0,0 +1,254 @@
+package my.cute.bot.database;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/*
+ * group-commit appender for a workingset file. the write-ahead log is written through one
+ * as well, see WriteAheadLog
+ *
+ * appended records go onto an in-memory ring and are written to the file in batches by a
+ * shared background flusher, either once enough lines have piled up or after a fixed
+ * interval, whichever comes first. this way the number of writes to disk depends on the
+ * flush interval rather than on how fast messages are coming in
+ *
+ * records are written as-is, so it doesn't care what format they're in (see
+ * WorkingSetRecords for the one the workingset uses)
+ *
+ * anything that needs the file to reflect every appended record (copying it, rewriting it,
+ * closing it) has to call drain() or close() first
+ *
+ * a caller that needs its own records in the file before going on (the write-ahead log)
+ * notes getAppendedCount() after appending and passes it to awaitWritten(). that writes 
+ * everything queued if it isn't already written, so callers waiting at the same time share
+ * one write (and force, with FSYNC) between them
+ *
+ * a batch that fails to write isn't lost. it's kept, and every later flush tries it again
+ * (first cutting off whatever part of it made it into the file) along with anything appended
+ * since, until one succeeds. appending never fails because of it, since the record is queued
+ * either way, but checkHealth() reports the failure until then so callers can stop making
+ * changes the workingset can't keep up with
+ */
+class WorkingSetJournal implements Closeable {
+
+	private static final Logger logger = LoggerFactory.getLogger(WorkingSetJournal.class);
+	private static final int RING_CAPACITY = 4096;
+	private static final int BUFFER_SIZE = 65536;
+
+	/*
+	 * one flusher thread is shared by every journal. writing a batch is quick, and
+	 * a thread per guild would be a lot of threads doing nothing
+	 */
+	private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactoryBuilder().setNameFormat("workingset-flusher-%d").setDaemon(true).build());
+
+	private final Path path;
+	private final JournalDurability durability;
+	private final int batchSize;
+	private final ArrayBlockingQueue<byte[]> ring;
+	private final FileChannel channel;
+	/*
+	 * records taken off the ring but not written to the file yet, either because the 
+	 * durability policy lets them wait for a full buffer or because writing them failed
+	 */
+	private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+	private final ScheduledFuture<?> periodicFlush;
+	private final AtomicBoolean flushPending = new AtomicBoolean(false);
+	/*
+	 * held while numbering and queueing a record, so records go onto the ring in the 
+	 * order they're counted
+	 */
+	private final Object appendLock = new Object();
+
+	/*
+	 * records appended, taken off the ring, and written (forced as well with FSYNC). 
+	 * writtenCount only catches up to takenCount once a batch has been written
+	 */
+	private long appendedCount = 0;
+	private long takenCount = 0;
+	private volatile long writtenCount = 0;
+
+	/*
+	 * size of the file as of the last successful write. anything past it is left over from
+	 * a failed write and is cut off before retrying
+	 */
+	private long writtenSize;
+	/*
+	 * with FSYNC, true if a batch has been written but forcing it to disk failed
+	 */
+	private boolean unforced = false;
+	private volatile boolean closed = false;
+	/*
+	 * set when a write fails and cleared by the next one that succeeds. there's nobody to 
+	 * throw it to on the flusher thread, so it's reported through checkHealth() instead
+	 */
+	private volatile IOException flushFailure = null;
+
+	WorkingSetJournal(Path path, JournalDurability durability, int batchSize, long flushIntervalMillis) throws IOException {
+		this.path = path;
+		this.durability = durability;
+		this.batchSize = batchSize;
+		this.ring = new ArrayBlockingQueue<>(RING_CAPACITY);
+		this.channel = FileChannel.open(this.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.writtenSize = this.channel.size();
+		this.periodicFlush = FLUSHER.scheduleWithFixedDelay(() -> this.backgroundFlush(), flushIntervalMillis,
+				flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * queues a record to be written to the workingset. the record will be written by the
+	 * next batch, so it won't necessarily be in the file when this returns. if writing 
+	 * has been failing, the record is still queued and written once a write succeeds
+	 * @param record the complete record to append
+	 */
+	void append(byte[] record) {
+		if(this.closed) throw new IllegalStateException("can't append to a closed journal");
+
+		synchronized(this.appendLock) {
+			while(!this.ring.offer(record)) {
+				//ring is full, so the flusher isn't keeping up. write a batch from this thread instead
+				try {
+					this.writeBatch(false);
+				} catch (IOException e) {
+					//the batch is kept and retried by the next flush, and the ring has been emptied either way
+				}
+			}
+			this.appendedCount++;
+		}
+		if(this.ring.size() >= this.batchSize && this.flushPending.compareAndSet(false, true)) {
+			FLUSHER.execute(() -> this.backgroundFlush());
+		}
+	}
+
+	/**
+	 * @return the number of records appended so far, for {@link #awaitWritten(long)}
+	 */
+	long getAppendedCount() {
+		synchronized(this.appendLock) {
+			return this.appendedCount;
+		}
+	}
+
+	/**
+	 * waits until the first count records appended are in the file (and forced to disk,
+	 * with FSYNC). if they aren't yet, this writes every queued record itself, regardless 
+	 * of the durability policy. if another thread is already writing, this waits for it
+	 * first, and returns without writing if that covered these records
+	 * @param count a value from {@link #getAppendedCount()}
+	 * @throws IOException if writing failed. the records are kept and retried as usual
+	 */
+	void awaitWritten(long count) throws IOException {
+		if(this.writtenCount >= count) return;
+		synchronized(this) {
+			if(this.writtenCount < count) this.writeBatch(true);
+		}
+	}
+
+	/**
+	 * writes every queued record to the file and flushes it, regardless of the durability
+	 * policy. once this returns, the file reflects every record appended before the call
+	 * @throws IOException
+	 */
+	void drain() throws IOException {
+		this.writeBatch(true);
+	}
+
+	/**
+	 * checks that the journal's writes are getting to the file. nothing is lost while
+	 * they aren't, but records pile up in memory until a write succeeds
+	 * @throws IOException if the most recent write failed
+	 */
+	void checkHealth() throws IOException {
+		IOException failure = this.flushFailure;
+		if(failure != null) throw new IOException(this + ": writing to workingset is failing", failure);
+	}
+
+	/**
+	 * drains the journal, stops its background flushing, and closes the file. the journal
+	 * can't be used after this. if draining fails, the journal is left open (and keeps 
+	 * retrying in the background) so nothing queued is lost
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if(this.closed) return;
+		this.drain();
+		this.periodicFlush.cancel(false);
+		this.closed = true;
+		this.channel.close();
+	}
+
+	private synchronized void writeBatch(boolean forceFlush) throws IOException {
+		if(this.closed) return;
+
+		List<byte[]> batch = new ArrayList<>(this.ring.size());
+		this.ring.drainTo(batch);
+		for(byte[] record : batch) {
+			this.unwritten.write(record);
+		}
+		this.takenCount += batch.size();
+
+		//a failed batch is retried right away whatever the policy, so the failure clears as soon as it can
+		if(this.durability == JournalDurability.NONE && !forceFlush && this.unwritten.size() < BUFFER_SIZE 
+				&& this.flushFailure == null) return;
+		try {
+			if(this.unwritten.size() > 0) {
+				//a failed write may have left part of a batch in the file
+				if(this.flushFailure != null && this.channel.size() != this.writtenSize) this.channel.truncate(this.writtenSize);
+				ByteBuffer buffer = ByteBuffer.wrap(this.unwritten.toByteArray());
+				while(buffer.hasRemaining()) {
+					this.channel.write(buffer);
+				}
+				this.writtenSize += this.unwritten.size();
+				this.unwritten.reset();
+				this.unforced = this.durability == JournalDurability.FSYNC;
+			}
+			if(this.unforced) {
+				this.channel.force(false);
+				this.unforced = false;
+			}
+		} catch (IOException e) {
+			this.flushFailure = e;
+			throw e;
+		}
+		this.writtenCount = this.takenCount;
+		if(this.flushFailure != null) {
+			logger.info(this + ": writing to workingset succeeded again");
+			this.flushFailure = null;
+		}
+	}
+
+	private void backgroundFlush() {
+		this.flushPending.set(false);
+		IOException previousFailure = this.flushFailure;
+		try {
+			if(!this.ring.isEmpty() || previousFailure != null) this.writeBatch(false);
+		} catch (IOException e) {
+			//only logged in full the first time, it's retried on every flush
+			if(previousFailure == null) logger.error(this + ": exception when writing batch to workingset, will retry! ex: " + e, e);
+			else logger.debug(this + ": retrying workingset write failed again: " + e);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "WorkingSetJournal-" + this.path;
+	}
+}
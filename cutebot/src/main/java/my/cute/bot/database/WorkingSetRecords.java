@@ -0,0 +1,164 @@
+package my.cute.bot.database;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * binary format for workingset records
+ *
+ * each record is the line's date as a 4 byte big-endian epoch day, the length of the
+ * line's utf-8 encoding as an unsigned varint (7 bits per byte, low bits first, high bit
+ * set on every byte but the last), and then the utf-8 bytes themselves. there's no
+ * separator between records
+ *
+ * keeping the date as a fixed-width int at the start of the record means a reader can
+ * check a record's age and skip over it without decoding the line at all
+ */
+final class WorkingSetRecords {
+
+	private static final int MAX_VARINT_BYTES = 5;
+
+	private WorkingSetRecords() {}
+
+	/**
+	 * @param epochDay the date the line was processed, as in {@link java.time.LocalDate#toEpochDay()}
+	 * @param line the line, without any date stamp
+	 * @return the complete record for the given line
+	 */
+	static byte[] encode(int epochDay, String line) {
+		byte[] text = line.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(4 + MAX_VARINT_BYTES + text.length);
+		record.putInt(epochDay);
+		int length = text.length;
+		while((length & ~0x7F) != 0) {
+			record.put((byte) ((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		record.put((byte) length);
+		record.put(text);
+
+		byte[] encoded = new byte[record.position()];
+		record.flip();
+		record.get(encoded);
+		return encoded;
+	}
+
+	/*
+	 * reads the records in a byte range of a file by mapping it into memory. the range
+	 * should start at the start of a record
+	 *
+	 * usage is
+	 *
+	 * while(reader.next()) {
+	 *     if(reader.getEpochDay() ...) reader.getLine() ...
+	 * }
+	 *
+	 * next() and getEpochDay() never decode the line, so records can be filtered by date
+	 * or copied with copyRecordTo() without the cost of building a String
+	 */
+	static final class Reader {
+
+		private final Path file;
+		private final MappedByteBuffer buffer;
+		private byte[] scratch = new byte[256];
+
+		private int recordStart = -1;
+		private int epochDay;
+		private int textStart;
+		private int textLength;
+
+		Reader(Path file, long start, long end) throws IOException {
+			if(end - start > Integer.MAX_VALUE)
+				throw new IOException("can't map range of " + (end - start) + " bytes from " + file);
+			this.file = file;
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				//the mapping stays valid after the channel is closed
+				this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+			}
+		}
+
+		/**
+		 * moves to the next record
+		 * @return true if there was another record, false if the end of the range was reached
+		 * @throws IOException if the range ends partway through a record
+		 */
+		boolean next() throws IOException {
+			if(this.recordStart >= 0) this.buffer.position(this.textStart + this.textLength);
+			if(!this.buffer.hasRemaining()) return false;
+
+			this.recordStart = this.buffer.position();
+			try {
+				this.epochDay = this.buffer.getInt();
+				int length = 0;
+				int shift = 0;
+				byte b;
+				do {
+					if(shift >= 7 * MAX_VARINT_BYTES) throw new IOException("malformed record length in " + this.file
+							+ " at position " + this.recordStart);
+					b = this.buffer.get();
+					length |= (b & 0x7F) << shift;
+					shift += 7;
+				} while((b & 0x80) != 0);
+				this.textStart = this.buffer.position();
+				this.textLength = length;
+			} catch (BufferUnderflowException e) {
+				throw new IOException("truncated record in " + this.file + " at position " + this.recordStart, e);
+			}
+			if(this.textLength < 0 || (long) this.textStart + this.textLength > this.buffer.limit())
+				throw new IOException("truncated record in " + this.file + " at position " + this.recordStart);
+			return true;
+		}
+
+		/**
+		 * @return the size of the current record in bytes, including its date and length
+		 */
+		int getRecordLength() {
+			return this.textStart + this.textLength - this.recordStart;
+		}
+
+		/**
+		 * @return the current record's date, as an epoch day
+		 */
+		int getEpochDay() {
+			return this.epochDay;
+		}
+
+		/**
+		 * decodes the current record's line
+		 */
+		String getLine() {
+			return new String(this.fill(this.textStart, this.textLength), 0, this.textLength, StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * writes the current record, unchanged, to the given stream
+		 * @throws IOException
+		 */
+		void copyRecordTo(OutputStream out) throws IOException {
+			int recordLength = this.getRecordLength();
+			out.write(this.fill(this.recordStart, recordLength), 0, recordLength);
+		}
+
+		/**
+		 * writes the current record's line, as utf-8 and without decoding it, to the given
+		 * stream
+		 * @throws IOException
+		 */
+		void copyLineTo(OutputStream out) throws IOException {
+			out.write(this.fill(this.textStart, this.textLength), 0, this.textLength);
+		}
+
+		private byte[] fill(int position, int length) {
+			if(this.scratch.length < length) this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+			this.buffer.get(position, this.scratch, 0, length);
+			return this.scratch;
+		}
+	}
+}
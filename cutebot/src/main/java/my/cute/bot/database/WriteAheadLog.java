@@ -0,0 +1,479 @@
+package my.cute.bot.database;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import my.cute.bot.util.PathUtils;
+
+/*
+ * write-ahead log of every operation that changes a database's lines, so a crash never
+ * loses lines or leaves the markov database and workingset out of step with each other
+ *
+ * the markov database writes shards back on its own schedule, so after a crash there's no
+ * telling which operations since the last save made it to disk, and replaying them over
+ * whatever is there would apply some twice. instead the log is checkpointed against
+ * backups: when a backup is saved, everything is written to disk and the log rolls over to
+ * a new file, and the sequence number it starts at is recorded for that backup. the backup
+ * then holds exactly the state before that operation. to recover, the last known good
+ * backup is loaded and every operation logged since its checkpoint is replayed on top
+ *
+ * records are written through a WorkingSetJournal on the current log file, using group
+ * commit: an operation is appended under the database's write lock, and after releasing it
+ * the caller waits on commit() until its record is in the file (and forced to disk, with
+ * JournalDurability.FSYNC). whoever writes first writes every record queued by then, so 
+ * operations made at the same time share one write. nothing reports success until its
+ * record is written, so a crash loses no acknowledged operation. each record carries a 
+ * crc, and a torn record at the end of the log (eg from a crash partway through a write)
+ * is cut off when the log is opened
+ *
+ * a clean shutdown leaves a marker recording the last sequence number. if it's missing or
+ * stale when the log is opened and there are records in the log, the last run crashed
+ *
+ * not threadsafe. GuildDatabaseImpl only calls it while holding its write lock, except for
+ * waiting on a Commit, which is threadsafe
+ */
+final class WriteAheadLog implements Closeable {
+
+	/*
+	 * operation types. EXPIRE means maintenance expired every workingset line dated on or
+	 * before the record's date, removing them from the db. expired lines aren't logged one
+	 * by one, since replaying the expiry does the same thing. RETRACT is a removal of a line
+	 * processed on the record's date that also drops it from the workingset
+	 */
+	static final byte PROCESS = 1;
+	static final byte REMOVE = 2;
+	static final byte EXPIRE = 3;
+	static final byte RETRACT = 4;
+
+	/*
+	 * receives replayed operations
+	 */
+	@FunctionalInterface
+	interface Replayer {
+		void replay(byte type, int epochDay, String line) throws IOException;
+	}
+
+	/*
+	 * a point in the log to wait for, from commit(). it keeps the journal it was taken 
+	 * from, since a checkpoint may move the log to a new file before anyone waits. the old 
+	 * journal is drained before it's closed, so waiting on it then returns right away
+	 */
+	static final class Commit {
+		private final WorkingSetJournal journal;
+		private final long count;
+
+		private Commit(WorkingSetJournal journal, long count) {
+			this.journal = journal;
+			this.count = count;
+		}
+
+		/**
+		 * waits until every operation this covers has been written to the log
+		 * @throws IOException if writing failed. the operations have already been applied,
+		 * and their records are kept and retried, but they won't survive a crash until a 
+		 * write succeeds
+		 */
+		void await() throws IOException {
+			this.journal.awaitWritten(this.count);
+		}
+	}
+
+	private static final Logger logger = LoggerFactory.getLogger(WriteAheadLog.class);
+	private static final Pattern LOG_NAME = Pattern.compile("wal-(\\d{20})\\.log");
+	private static final String CHECKPOINTS_FILE_NAME = "checkpoints.txt";
+	private static final String CLEAN_FILE_NAME = "clean";
+	//type, sequence number, epoch day, line length
+	private static final int HEADER_SIZE = 1 + Long.BYTES + Integer.BYTES + Integer.BYTES;
+
+	private final String id;
+	private final Path directory;
+	private final JournalDurability durability;
+	private final int batchSize;
+	private final long flushInterval;
+	private final Map<String, Long> checkpoints = new LinkedHashMap<>();
+	private final boolean cleanlyShutDown;
+
+	private WorkingSetJournal journal;
+	private long nextSequence;
+	/*
+	 * the checkpoint from the last checkpoint() that hasn't been recorded yet, or -1
+	 */
+	private long pendingCheckpoint = -1;
+	private boolean closed = false;
+
+	WriteAheadLog(String id, JournalDurability durability, int batchSize, long flushInterval) throws IOException {
+		this.id = id;
+		this.directory = PathUtils.getWriteAheadLogDirectory(id);
+		this.durability = durability;
+		this.batchSize = batchSize;
+		this.flushInterval = flushInterval;
+		Files.createDirectories(this.directory);
+		this.readCheckpoints();
+
+		//find where the log ends, cutting off anything torn
+		List<Path> files = this.listLogFiles();
+		long next = 0;
+		boolean hasRecords = false;
+		if(!files.isEmpty()) {
+			Path last = files.get(files.size() - 1);
+			next = startSequence(last);
+			long[] end = scan(last);
+			next += end[0];
+			try (FileChannel truncate = FileChannel.open(last, StandardOpenOption.WRITE)) {
+				if(truncate.size() > end[1]) {
+					logger.warn(this + ": cutting off " + (truncate.size() - end[1]) + " torn byte(s) at end of log");
+					truncate.truncate(end[1]);
+				}
+			}
+			for(Path file : files) {
+				if(Files.size(file) > 0) hasRecords = true;
+			}
+		}
+		this.nextSequence = next;
+
+		Long cleanSequence = this.readCleanMarker();
+		this.cleanlyShutDown = !hasRecords || (cleanSequence != null && cleanSequence == next);
+		if(files.isEmpty()) {
+			this.openLogFile(next);
+		} else {
+			this.journal = new WorkingSetJournal(files.get(files.size() - 1), this.durability, this.batchSize, this.flushInterval);
+		}
+	}
+
+	/**
+	 * @return false if the log has records and the last run didn't shut down cleanly, ie it
+	 * crashed and the database may need recovering
+	 */
+	boolean wasCleanlyShutDown() {
+		return this.cleanlyShutDown;
+	}
+
+	/**
+	 * removes the clean shutdown marker, so if this run crashes it's detected next time
+	 * @throws IOException
+	 */
+	void markOpen() throws IOException {
+		Files.deleteIfExists(this.directory.resolve(CLEAN_FILE_NAME));
+	}
+
+	/**
+	 * logs an operation. it isn't necessarily written when this returns, see {@link #commit()}.
+	 * must be called before the operation is applied to the database
+	 * @param type PROCESS, REMOVE, EXPIRE or RETRACT
+	 * @param epochDay the line's date, or the expiry cutoff
+	 * @param line the line, or empty for EXPIRE
+	 */
+	void append(byte type, int epochDay, String line) {
+		if(this.closed) throw new IllegalStateException(this + ": log is closed");
+		byte[] text = line.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + text.length + Integer.BYTES);
+		record.put(type).putLong(this.nextSequence++).putInt(epochDay).putInt(text.length);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, HEADER_SIZE);
+		crc.update(text);
+		record.put(text).putInt((int) crc.getValue());
+		this.journal.append(record.array());
+	}
+	
+	/**
+	 * @return a Commit covering every operation logged so far. callers get it under the
+	 * write lock and wait on it after releasing the lock, so operations logged meanwhile
+	 * by other threads can be written in the same batch
+	 */
+	Commit commit() {
+		if(this.closed) throw new IllegalStateException(this + ": log is closed");
+		return new Commit(this.journal, this.journal.getAppendedCount());
+	}
+
+	/**
+	 * checks that logged operations are getting to disk. callers should check before
+	 * applying an operation, since one logged while this fails is only kept in memory
+	 * @throws IOException if the most recent write to the log failed
+	 */
+	void checkWritable() throws IOException {
+		this.journal.checkHealth();
+	}
+
+	/**
+	 * writes every logged operation to the file, regardless of the durability policy
+	 * @throws IOException
+	 */
+	void drain() throws IOException {
+		if(this.closed) throw new IllegalStateException(this + ": log is closed");
+		this.journal.drain();
+	}
+
+	/**
+	 * rolls the log over at a checkpoint for a backup. the database must have been fully
+	 * written to disk, and nothing can change it until the backup is snapshotted. the
+	 * checkpoint isn't recorded for the backup until {@link #commitCheckpoint(String)}, so
+	 * if saving the backup fails, the old backup with that name keeps its checkpoint
+	 * @param keepFrom sequence number of the oldest checkpoint that's still needed, or -1
+	 * to keep everything. log files entirely before it are deleted
+	 * @return the checkpoint's sequence number
+	 * @throws IOException
+	 */
+	long checkpoint(long keepFrom) throws IOException {
+		this.drain();
+		this.journal.close();
+		this.openLogFile(this.nextSequence);
+		if(keepFrom >= 0) this.prune(keepFrom);
+		this.pendingCheckpoint = this.nextSequence;
+		return this.nextSequence;
+	}
+
+	/**
+	 * records the checkpoint from the last {@link #checkpoint(long)} for a backup, once the
+	 * backup is saved
+	 * @return false if the log was reset in between, in which case the backup has no 
+	 * checkpoint and can't be replayed onto
+	 * @throws IOException
+	 */
+	boolean commitCheckpoint(String backupName) throws IOException {
+		long sequence = this.pendingCheckpoint;
+		this.pendingCheckpoint = -1;
+		if(sequence < 0) {
+			this.removeCheckpoint(backupName);
+			return false;
+		}
+		this.checkpoints.put(backupName, sequence);
+		this.writeCheckpoints();
+		return true;
+	}
+
+	/**
+	 * @return the sequence number the log was at when the given backup was saved, or null
+	 * if the log doesn't go back that far
+	 */
+	Long getCheckpoint(String backupName) {
+		return this.checkpoints.get(backupName);
+	}
+
+	void removeCheckpoint(String backupName) throws IOException {
+		if(this.checkpoints.remove(backupName) != null) this.writeCheckpoints();
+	}
+
+	/**
+	 * replays every logged operation from the given sequence number on, in order
+	 * @return the number of operations replayed
+	 * @throws IOException if the log doesn't go back that far, or on any io problem
+	 */
+	long replay(long fromSequence, Replayer replayer) throws IOException {
+		this.drain();
+		List<Path> files = this.listLogFiles();
+		if(files.isEmpty() || startSequence(files.get(0)) > fromSequence) {
+			throw new IOException(this + ": log doesn't go back to " + fromSequence);
+		}
+		long count = 0;
+		for(int i=0; i < files.size(); i++) {
+			if(i + 1 < files.size() && startSequence(files.get(i + 1)) <= fromSequence) continue;
+			try (DataInputStream input = new DataInputStream(Channels.newInputStream(
+					FileChannel.open(files.get(i), StandardOpenOption.READ)))) {
+				Record record;
+				while((record = readRecord(input)) != null) {
+					if(record.sequence < fromSequence) continue;
+					replayer.replay(record.type, record.epochDay, record.line);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * throws away the whole log and every checkpoint, eg when the database is cleared or
+	 * has a backup loaded over it, since the log no longer describes how it got to its
+	 * current state. sequence numbers carry on from where they were
+	 * @throws IOException
+	 */
+	void reset() throws IOException {
+		//whatever's still queued is written to the old file first, and deleted along with it
+		this.journal.close();
+		for(Path file : this.listLogFiles()) {
+			Files.delete(file);
+		}
+		this.checkpoints.clear();
+		this.pendingCheckpoint = -1;
+		this.writeCheckpoints();
+		this.openLogFile(this.nextSequence);
+	}
+
+	/**
+	 * closes the log, leaving a clean shutdown marker. the database must have been fully
+	 * written to disk
+	 */
+	@Override
+	public void close() throws IOException {
+		this.close(true);
+	}
+	
+	/**
+	 * closes the log. if clean is false, no clean shutdown marker is left, eg because the
+	 * database couldn't be fully written to disk, so the next start recovers from the log
+	 * as if it had crashed. can be called again after a failure, or with clean true after
+	 * closing with clean false to leave the marker after all
+	 */
+	void close(boolean clean) throws IOException {
+		if(!this.closed) {
+			this.journal.close();
+			this.closed = true;
+		}
+		if(!clean) return;
+		Path temp = this.directory.resolve(CLEAN_FILE_NAME + ".tmp");
+		Files.write(temp, Long.toString(this.nextSequence).getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, this.directory.resolve(CLEAN_FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void prune(long keepFrom) throws IOException {
+		List<Path> files = this.listLogFiles();
+		//a file can go once the file after it starts at or before keepFrom
+		for(int i=0; i + 1 < files.size(); i++) {
+			if(startSequence(files.get(i + 1)) > keepFrom) break;
+			Files.delete(files.get(i));
+		}
+		//checkpoints from before the oldest remaining record can't be replayed from anymore
+		files = this.listLogFiles();
+		long oldest = startSequence(files.get(0));
+		if(this.checkpoints.values().removeIf(sequence -> sequence < oldest)) this.writeCheckpoints();
+	}
+
+	private void openLogFile(long startSequence) throws IOException {
+		this.journal = new WorkingSetJournal(this.directory.resolve(String.format("wal-%020d.log", startSequence)),
+				this.durability, this.batchSize, this.flushInterval);
+	}
+
+	private List<Path> listLogFiles() throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (Stream<Path> paths = Files.list(this.directory)) {
+			paths.filter(path -> LOG_NAME.matcher(path.getFileName().toString()).matches()).sorted().forEach(files::add);
+		}
+		return files;
+	}
+
+	private static long startSequence(Path file) {
+		Matcher matcher = LOG_NAME.matcher(file.getFileName().toString());
+		if(!matcher.matches()) throw new IllegalArgumentException(file + " isn't a log file");
+		return Long.parseLong(matcher.group(1));
+	}
+
+	/*
+	 * returns the number of intact records in the file, and the byte offset where they end
+	 */
+	private static long[] scan(Path file) throws IOException {
+		long records = 0;
+		long end = 0;
+		try (DataInputStream input = new DataInputStream(Channels.newInputStream(FileChannel.open(file, StandardOpenOption.READ)))) {
+			Record record;
+			while((record = readRecord(input)) != null) {
+				records++;
+				end += record.size;
+			}
+		}
+		return new long[] { records, end };
+	}
+
+	private static final class Record {
+		private final byte type;
+		private final long sequence;
+		private final int epochDay;
+		private final String line;
+		private final int size;
+
+		private Record(byte type, long sequence, int epochDay, String line, int size) {
+			this.type = type;
+			this.sequence = sequence;
+			this.epochDay = epochDay;
+			this.line = line;
+			this.size = size;
+		}
+	}
+
+	/*
+	 * returns null at the end of the log, including at a torn or corrupt record
+	 */
+	private static Record readRecord(DataInputStream input) throws IOException {
+		byte[] header = new byte[HEADER_SIZE];
+		try {
+			input.readFully(header);
+			ByteBuffer buffer = ByteBuffer.wrap(header);
+			byte type = buffer.get();
+			long sequence = buffer.getLong();
+			int epochDay = buffer.getInt();
+			int length = buffer.getInt();
+			if(type < PROCESS || type > RETRACT || length < 0 || length > (1 << 24)) return null;
+			byte[] text = new byte[length];
+			input.readFully(text);
+			int expected = input.readInt();
+			CRC32 crc = new CRC32();
+			crc.update(header);
+			crc.update(text);
+			if((int) crc.getValue() != expected) return null;
+			return new Record(type, sequence, epochDay, new String(text, StandardCharsets.UTF_8),
+					HEADER_SIZE + length + Integer.BYTES);
+		} catch (EOFException e) {
+			return null;
+		}
+	}
+
+	private void readCheckpoints() throws IOException {
+		try {
+			for(String line : Files.readAllLines(this.directory.resolve(CHECKPOINTS_FILE_NAME), StandardCharsets.UTF_8)) {
+				int tab = line.lastIndexOf('\t');
+				if(tab < 0) continue;
+				try {
+					this.checkpoints.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+				} catch (NumberFormatException e) {
+					logger.warn(this + ": ignoring malformed checkpoint '" + line + "'");
+				}
+			}
+		} catch (NoSuchFileException e) {
+			//no checkpoints yet
+		}
+	}
+
+	private void writeCheckpoints() throws IOException {
+		List<String> lines = new ArrayList<>(this.checkpoints.size());
+		this.checkpoints.forEach((name, sequence) -> lines.add(name + "\t" + sequence));
+		Path temp = this.directory.resolve(CHECKPOINTS_FILE_NAME + ".tmp");
+		Files.write(temp, lines, StandardCharsets.UTF_8);
+		Files.move(temp, this.directory.resolve(CHECKPOINTS_FILE_NAME), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private Long readCleanMarker() throws IOException {
+		try {
+			return Long.parseLong(new String(Files.readAllBytes(this.directory.resolve(CLEAN_FILE_NAME)),
+					StandardCharsets.UTF_8).trim());
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "WriteAheadLog-" + this.id;
+	}
+}
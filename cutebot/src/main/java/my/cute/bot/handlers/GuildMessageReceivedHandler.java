@@ -7,7 +7,6 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,12 +15,17 @@ import my.cute.bot.commands.GuildCommandSet;
 import my.cute.bot.commands.PermissionDatabase;
 import my.cute.bot.commands.PermissionLevel;
 import my.cute.bot.database.GuildDatabase;
+import my.cute.bot.database.DatabaseEvictionManager;
 import my.cute.bot.database.GuildDatabaseBuilder;
+import my.cute.bot.database.ShardCacheGovernor;
 import my.cute.bot.preferences.GuildPreferences;
 import my.cute.bot.preferences.wordfilter.FilterResponseAction;
 import my.cute.bot.preferences.wordfilter.WordFilter;
 import my.cute.bot.tasks.GuildDatabaseSetupTask;
+import my.cute.bot.util.MessageNormalizer;
 import my.cute.bot.util.MiscUtils;
+import my.cute.bot.util.NormalizedMessage;
+import my.cute.bot.util.RecentMessageCache;
 import my.cute.bot.util.StandardMessages;
 import my.cute.bot.util.WordfilterTimeoutException;
 import my.cute.markov2.exceptions.ReadObjectException;
@@ -31,6 +35,7 @@ import net.dv8tion.jda.api.entities.Guild;
 import net.dv8tion.jda.api.entities.Message;
 import net.dv8tion.jda.api.entities.Role;
 import net.dv8tion.jda.api.events.message.guild.GuildMessageReceivedEvent;
+import net.dv8tion.jda.api.events.message.guild.GuildMessageUpdateEvent;
 import net.dv8tion.jda.api.exceptions.HierarchyException;
 import net.dv8tion.jda.api.exceptions.InsufficientPermissionException;
 
@@ -69,6 +74,14 @@ public class GuildMessageReceivedHandler {
 	private static final Pattern BOT_NAME = (CutebotTask.ACTIVE_TOKEN == CutebotTask.CUTEBOT_PRIME_TOKEN) ?
 			Pattern.compile(".*(?:cutebot prime|cbp).*", Pattern.CASE_INSENSITIVE) : 
 			Pattern.compile(".*(?:cutebot).*", Pattern.CASE_INSENSITIVE);
+	/*
+	 * whether weekly and monthly backups are saved as compressed archives. they're smaller,
+	 * but an archive has no manifest, so nothing can be hard-linked into or out of it, and
+	 * each one is a full copy of the database. an uncompressed backup only copies what
+	 * changed since the one before it, and restoring one doesn't need extracting first, so
+	 * this is off unless disk space is tighter than backup time
+	 */
+	private static final boolean COMPRESS_BACKUPS = false;
 	
 	private final JDA jda;
 	private final String id;
@@ -80,9 +93,12 @@ public class GuildMessageReceivedHandler {
 	private final Random random = new Random();
 	private final ExecutorService executor;
 	private final AutonomyHandler autonomyHandler;
+	private final RecentMessageCache recentMessages;
 	
 	public GuildMessageReceivedHandler(Guild guild, JDA jda, GuildPreferences prefs, WordFilter filter, 
-			PermissionDatabase perms, ExecutorService executor, GuildCommandSet commands) throws IOException {
+			PermissionDatabase perms, ExecutorService executor, GuildCommandSet commands, 
+			DatabaseEvictionManager evictionManager, ShardCacheGovernor shardCacheGovernor, 
+			RecentMessageCache recentMessages) throws IOException {
 		this.jda = jda;
 		this.id = guild.getId();
 		this.prefs = prefs;
@@ -90,8 +106,12 @@ public class GuildMessageReceivedHandler {
 		this.perms = perms;
 		this.autonomyHandler = new AutonomyHandler();
 		this.executor = executor;
+		this.recentMessages = recentMessages;
 		this.database = new GuildDatabaseBuilder(guild)
 				.databaseAge(this.prefs.getDatabaseAge())
+				.evictionManager(evictionManager)
+				.shardCacheGovernor(shardCacheGovernor)
+				.compressBackups(COMPRESS_BACKUPS)
 				.build();
 		this.database.load();
 		this.commands = commands;
@@ -103,14 +123,15 @@ public class GuildMessageReceivedHandler {
 	public void handle(GuildMessageReceivedEvent event) throws IOException, WordfilterTimeoutException {
 		
 		String content = event.getMessage().getContentRaw();
+		//one pass over the content for command check and database processing
+		NormalizedMessage normalized = MessageNormalizer.normalize(content);
 		
-		if(!StringUtils.isWhitespace(content)) {
+		if(!normalized.isBlank()) {
 			//message nonempty. check for command
-			String[] params = MiscUtils.getWords(event.getMessage());
-			String firstWord = params[0];
-			if(firstWord.startsWith(this.prefs.getPrefix())) {
+			if(normalized.firstWordStartsWith(this.prefs.getPrefix())) {
 				//first word starts with designated command prefix. check if it's a command
-				String commandName = firstWord.substring(this.prefs.getPrefix().length()).toLowerCase();
+				String[] params = normalized.getWords();
+				String commandName = params[0].substring(this.prefs.getPrefix().length()).toLowerCase();
 				if(this.commands.execute(commandName, event.getMessage(), params)) {
 					//don't process commands into database
 					return;
@@ -145,7 +166,11 @@ public class GuildMessageReceivedHandler {
 		
 		try {
 			
-			this.database.processLine(content);
+			String dateStamp = MiscUtils.getDateStamp();
+			if(this.database.processLineWithDate(normalized, dateStamp)) {
+				//remembered so the line can be taken back out if the message is deleted or edited
+				this.recentMessages.put(event.getMessageIdLong(), normalized.getLine(), dateStamp);
+			}
 			
 		} catch (ReadObjectException e) {
 			/*
@@ -195,14 +220,14 @@ public class GuildMessageReceivedHandler {
 			
 		try {
 			if(this.autonomyHandler.shouldSendAutomaticMessage()) {
-				String line = this.database.generateLine();
+				String line = this.database.generatePooledLine();
 				event.getChannel().sendMessage(line).queue();
 				this.autonomyHandler.update();
 				logger.info(this + ": sent automatic message '" + line + "', next automatic message scheduled in around " 
 						+ this.prefs.getAutomaticResponseTime() + " mins");
 			} else if(BOT_NAME.matcher(content).matches()) {
 				if(isQuestion(content)) {
-					event.getChannel().sendMessage(this.database.generateLine()).queue();
+					event.getChannel().sendMessage(this.database.generatePooledLine()).queue();
 				} else {
 					addReactionToMessage(event.getMessage());
 				}
@@ -224,24 +249,73 @@ public class GuildMessageReceivedHandler {
 		}
 	}
 	
-	public boolean checkMaintenance() {
-		boolean needsMaintenance = this.database.needsMaintenance();
-		if(needsMaintenance) {
-			this.maintenance();
-		}
-		return needsMaintenance;
+	/**
+	 * takes a deleted message's line back out of the database, if the message was processed
+	 * recently enough to still be in the recent message cache
+	 * @param messageId the id of the deleted message
+	 * @throws IOException if an IOException occurs when removing the line. the database may 
+	 * be inconsistent, as with an IOException from {@link #handle(GuildMessageReceivedEvent)}
+	 */
+	public void handleDelete(long messageId) throws IOException {
+		RecentMessageCache.Entry entry = this.recentMessages.remove(messageId);
+		if(entry == null) return;
+		this.retract(entry);
 	}
 	
-	public void maintenance() {
-		this.executor.execute(() -> 
-		{
-			try {
-				this.database.maintenance();
-			} catch (IOException e) {
-				//TODO do something else here?
-				logger.warn(this + ": maintenance on guild " + this.id + " terminated due to IOException", e);
+	/**
+	 * replaces an edited message's old line in the database with its new content, if the
+	 * message was processed recently enough to still be in the recent message cache. the 
+	 * new content goes through the same checks a new message would (except commands, which
+	 * aren't run from edits), but wordfilter actions aren't applied to edits
+	 * @param event the message update event
+	 * @throws IOException if an IOException occurs when updating the database. the database 
+	 * may be inconsistent, as with an IOException from {@link #handle(GuildMessageReceivedEvent)}
+	 * @throws WordfilterTimeoutException if the wordfilter times out checking the new content
+	 */
+	public void handleUpdate(GuildMessageUpdateEvent event) throws IOException, WordfilterTimeoutException {
+		RecentMessageCache.Entry entry = this.recentMessages.remove(event.getMessageIdLong());
+		//messages that weren't processed, or were processed too long ago, are left alone
+		if(entry == null) return;
+		this.retract(entry);
+		
+		String content = event.getMessage().getContentRaw();
+		NormalizedMessage normalized = MessageNormalizer.normalize(content);
+		if(normalized.isBlank() || normalized.firstWordStartsWith(this.prefs.getPrefix())) return;
+		if(!this.prefs.isDiscussionChannel(event.getChannel().getId())) return;
+		try {
+			if(this.wordFilter.check(content) != null 
+					&& this.wordFilter.getActions().contains(FilterResponseAction.SKIP_PROCESS)) return;
+		} catch (TimeoutException e) {
+			WordFilter.Type type = this.wordFilter.handleTimeout(content);
+			throw new WordfilterTimeoutException(e, type);
+		}
+		
+		String dateStamp = MiscUtils.getDateStamp();
+		try {
+			if(this.database.processLineWithDate(normalized, dateStamp)) {
+				this.recentMessages.put(event.getMessageIdLong(), normalized.getLine(), dateStamp);
 			}
-		});
+		} catch (ReadObjectException e) {
+			//the next new message will run into the same problem and start a restore from there
+			logger.warn(this + ": encountered ReadObjectException when processing edited message", e);
+		} catch (IOException e) {
+			logger.warn(this + ": unknown IOException thrown when processing edited message - possible workingset inconsistency!");
+			this.database.setShouldRestoreFromBackup(true);
+			throw e;
+		}
+	}
+	
+	private void retract(RecentMessageCache.Entry entry) throws IOException {
+		try {
+			this.database.retractLine(entry.getLine(), entry.getDateStamp());
+		} catch (ReadObjectException e) {
+			//the next new message will run into the same problem and start a restore from there
+			logger.warn(this + ": encountered ReadObjectException when retracting line '" + entry.getLine() + "'", e);
+		} catch (IOException e) {
+			logger.warn(this + ": unknown IOException thrown when retracting line - possible workingset inconsistency!");
+			this.database.setShouldRestoreFromBackup(true);
+			throw e;
+		}
 	}
 	
 	public void prepareForShutdown() {
@@ -285,7 +359,7 @@ public class GuildMessageReceivedHandler {
 			 */
 		}
 	}
-	
+	
 	private boolean handleWordFilter(Message message) throws TimeoutException, IOException {
 		String filteredWord;
 		filteredWord = this.wordFilter.check(message.getContentRaw());
@@ -415,7 +489,7 @@ public class GuildMessageReceivedHandler {
 						.queue()
 				);
 	}
-	
+	
 	@Override
 	public String toString() {
 		return "GuildMessageReceivedHandler-" + this.id;
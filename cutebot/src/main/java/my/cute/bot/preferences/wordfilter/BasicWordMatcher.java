@@ -0,0 +1,186 @@
+package my.cute.bot.preferences.wordfilter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/*
+ * matcher for BASIC mode wordfilters. finds any filtered word in a message as a whole word,
+ * optionally followed by an 's', ignoring case. this is what the old generated regex
+ * "\b((?:apple)|(?:orange))s?\b" did, but that regex tried every word at every position
+ * in the message, whereas this is an aho-corasick automaton over every word, so a message
+ * is checked in a single pass however many words are filtered
+ *
+ * words are matched literally, and word boundaries are the same as regex \b: a boundary is
+ * anywhere a word character (letter, digit, or underscore) is next to a non-word character
+ * or the start or end of the message
+ *
+ * immutable, so threadsafe
+ */
+final class BasicWordMatcher {
+
+	private static final int ROOT = 0;
+	private static final int NONE = -1;
+
+	/*
+	 * the trie, with each node's transitions as a sorted array of (case-folded) chars and
+	 * the nodes they go to
+	 */
+	private final char[][] keys;
+	private final int[][] targets;
+	/*
+	 * the node for the longest proper suffix of each node's string that's also in the trie
+	 */
+	private final int[] fail;
+	/*
+	 * length of the word that ends at each node, or NONE if no word does
+	 */
+	private final int[] wordLength;
+	/*
+	 * the nearest node along each node's fail chain where a word ends, or NONE
+	 */
+	private final int[] dictionaryLink;
+
+	/**
+	 * @param words the words to match. blank words are ignored
+	 */
+	BasicWordMatcher(Collection<String> words) {
+		List<TreeMap<Character, Integer>> trie = new ArrayList<>();
+		List<Integer> lengths = new ArrayList<>();
+		trie.add(new TreeMap<>());
+		lengths.add(NONE);
+		for(String word : words) {
+			if(word.isBlank()) continue;
+			int node = ROOT;
+			for(int i=0; i < word.length(); i++) {
+				char c = fold(word.charAt(i));
+				Integer next = trie.get(node).get(c);
+				if(next == null) {
+					next = trie.size();
+					trie.add(new TreeMap<>());
+					lengths.add(NONE);
+					trie.get(node).put(c, next);
+				}
+				node = next;
+			}
+			lengths.set(node, word.length());
+		}
+
+		int size = trie.size();
+		this.keys = new char[size][];
+		this.targets = new int[size][];
+		this.fail = new int[size];
+		this.wordLength = new int[size];
+		this.dictionaryLink = new int[size];
+		for(int node=0; node < size; node++) {
+			TreeMap<Character, Integer> transitions = trie.get(node);
+			this.keys[node] = new char[transitions.size()];
+			this.targets[node] = new int[transitions.size()];
+			int i = 0;
+			for(Map.Entry<Character, Integer> transition : transitions.entrySet()) {
+				this.keys[node][i] = transition.getKey();
+				this.targets[node][i] = transition.getValue();
+				i++;
+			}
+			this.wordLength[node] = lengths.get(node);
+		}
+
+		//fail links, breadth first so a node's fail link is always done before its children's
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		this.fail[ROOT] = ROOT;
+		this.dictionaryLink[ROOT] = NONE;
+		for(int child : this.targets[ROOT]) {
+			this.fail[child] = ROOT;
+			this.dictionaryLink[child] = NONE;
+			queue.add(child);
+		}
+		while(!queue.isEmpty()) {
+			int node = queue.poll();
+			for(int i=0; i < this.keys[node].length; i++) {
+				char c = this.keys[node][i];
+				int child = this.targets[node][i];
+				int fallback = this.fail[node];
+				int next;
+				while((next = this.transition(fallback, c)) == NONE && fallback != ROOT) {
+					fallback = this.fail[fallback];
+				}
+				this.fail[child] = next == NONE ? ROOT : next;
+				int link = this.fail[child];
+				this.dictionaryLink[child] = this.wordLength[link] != NONE ? link : this.dictionaryLink[link];
+				queue.add(child);
+			}
+		}
+	}
+
+	/**
+	 * finds the first filtered word in the given text, ie the one that ends earliest, preferring
+	 * the longest if more than one ends at the same place. runs in time linear in the length of
+	 * the text
+	 * @param text the text to check
+	 * @return the matched part of the text, including a trailing 's' if there is one, or null
+	 * if no filtered word appears in the text
+	 */
+	String find(String text) {
+		int state = ROOT;
+		for(int i=0; i < text.length(); i++) {
+			char c = fold(text.charAt(i));
+			int next;
+			while((next = this.transition(state, c)) == NONE && state != ROOT) {
+				state = this.fail[state];
+			}
+			state = next == NONE ? ROOT : next;
+
+			//every word ending here, longest first
+			int node = this.wordLength[state] != NONE ? state : this.dictionaryLink[state];
+			while(node != NONE) {
+				int end = i + 1;
+				int start = end - this.wordLength[node];
+				if(isBoundary(text, start)) {
+					//s? is greedy, so the plural is tried first
+					if(end < text.length() && fold(text.charAt(end)) == 's' && isBoundary(text, end + 1)) {
+						return text.substring(start, end + 1);
+					}
+					if(isBoundary(text, end)) return text.substring(start, end);
+				}
+				node = this.dictionaryLink[node];
+			}
+		}
+		return null;
+	}
+
+	private int transition(int node, char c) {
+		char[] nodeKeys = this.keys[node];
+		int low = 0;
+		int high = nodeKeys.length - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			char key = nodeKeys[middle];
+			if(key < c) low = middle + 1;
+			else if(key > c) high = middle - 1;
+			else return this.targets[node][middle];
+		}
+		return NONE;
+	}
+
+	private static char fold(char c) {
+		return Character.toLowerCase(Character.toUpperCase(c));
+	}
+
+	private static boolean isBoundary(String text, int index) {
+		boolean before = index > 0 && isWordCharacter(text.codePointBefore(index));
+		boolean after = index < text.length() && isWordCharacter(text.codePointAt(index));
+		return before != after;
+	}
+
+	private static boolean isWordCharacter(int codePoint) {
+		return codePoint == '_' || Character.isLetterOrDigit(codePoint);
+	}
+
+	@Override
+	public String toString() {
+		return "BasicWordMatcher";
+	}
+}
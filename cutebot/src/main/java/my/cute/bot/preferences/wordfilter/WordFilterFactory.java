@@ -7,6 +7,8 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -38,4 +40,16 @@ public class WordFilterFactory {
 		}
 		
 	}
+	
+	/**
+	 * wordfilters save their changes in the background. this waits for every save started
+	 * before it was called to finish, eg so nothing is lost on shutdown
+	 * @param timeout the longest to wait
+	 * @param unit the unit for the timeout
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws TimeoutException if the saves didn't finish in time
+	 */
+	public static void flushPendingSaves(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		WordFilterImpl.flushPendingSaves(timeout, unit);
+	}
 }
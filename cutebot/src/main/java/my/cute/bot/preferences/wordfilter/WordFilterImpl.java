@@ -10,269 +10,395 @@ import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 import java.util.stream.Collectors;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
 import my.cute.bot.util.MiscUtils;
 
+/*
+ * the filter's state is kept in a single immutable State, published through a volatile field.
+ * reads (check(), getActions(), etc, which happen for every guild message) just read that
+ * field, so they never wait on anything. changes are synchronized with each other, and build
+ * a new State and swap it in
+ *
+ * changes are saved to disk on a background thread, so a change returns as soon as it's been
+ * made. saves are coalesced, so several changes made quickly are written once, and each save
+ * writes whatever the state is when it runs
+ */
 public class WordFilterImpl implements WordFilter {
 
+	private static final Logger logger = LoggerFactory.getLogger(WordFilterImpl.class);
 	private static final int MAX_FILTERED_WORDS = 60;
 	private static final int MAX_WORD_LENGTH = 32;
 	private static final String EMPTY_COMPILED_FILTER_TOKEN = "[null]";
-	
+	/*
+	 * shared by every wordfilter. single threaded, so saves of the same filter never overlap,
+	 * and flushPendingSaves() can wait for every earlier save by waiting for its own task
+	 */
+	private static final ExecutorService SAVER = Executors.newSingleThreadExecutor(
+			new ThreadFactoryBuilder().setNameFormat("wordfilter-save-%d").setDaemon(true).build());
+
+	/*
+	 * everything about the filter, as of some point in time. never modified after it's
+	 * published, including the collections in it
+	 */
+	private static final class State {
+		private final WordFilter.Type mode;
+		private final String roleId;
+		private final ImmutableSet<String> filteredWords;
+		/*
+		 * compiledFilter is only used in REGEX mode, and basicMatcher only in BASIC mode.
+		 * basicMatcher is built from filteredWords, and is null if there are none
+		 */
+		private final Pattern compiledFilter;
+		private final BasicWordMatcher basicMatcher;
+		private final EnumSet<FilterResponseAction> responseActions;
+		private final boolean enabled;
+		private final int strikes;
+
+		private State(WordFilter.Type mode, String roleId, ImmutableSet<String> filteredWords, Pattern compiledFilter,
+				BasicWordMatcher basicMatcher, EnumSet<FilterResponseAction> responseActions, boolean enabled, int strikes) {
+			this.mode = mode;
+			this.roleId = roleId;
+			this.filteredWords = filteredWords;
+			this.compiledFilter = compiledFilter;
+			this.basicMatcher = basicMatcher;
+			this.responseActions = responseActions;
+			this.enabled = enabled;
+			this.strikes = strikes;
+		}
+
+		/**
+		 * builds the matcher used for BASIC mode from the filtered words. it will match any word in
+		 * the filter, as a whole word, optionally ending with an 's', anywhere in the message
+		 * for example, filter list "apple,orange,banana" should match any whole word: apple, apples,
+		 * orange, oranges, banana, bananas
+		 * the word "crabapple" would not trigger a match
+		 */
+		private State withWords(Set<String> words) {
+			return new State(this.mode, this.roleId, ImmutableSet.copyOf(words), this.compiledFilter,
+					words.isEmpty() ? null : new BasicWordMatcher(words), this.responseActions, this.enabled, this.strikes);
+		}
+
+		private State withMode(WordFilter.Type mode) {
+			return new State(mode, this.roleId, this.filteredWords, this.compiledFilter, this.basicMatcher,
+					this.responseActions, this.enabled, this.strikes);
+		}
+
+		private State withCompiledFilter(Pattern compiledFilter) {
+			return new State(this.mode, this.roleId, this.filteredWords, compiledFilter, this.basicMatcher,
+					this.responseActions, this.enabled, this.strikes);
+		}
+
+		private State withRoleId(String roleId) {
+			return new State(this.mode, roleId, this.filteredWords, this.compiledFilter, this.basicMatcher,
+					this.responseActions, this.enabled, this.strikes);
+		}
+
+		private State withActions(EnumSet<FilterResponseAction> actions) {
+			return new State(this.mode, this.roleId, this.filteredWords, this.compiledFilter, this.basicMatcher,
+					EnumSet.copyOf(actions), this.enabled, this.strikes);
+		}
+
+		private State withEnabled(boolean enabled) {
+			return new State(this.mode, this.roleId, this.filteredWords, this.compiledFilter, this.basicMatcher,
+					this.responseActions, enabled, this.strikes);
+		}
+
+		private State withStrikes(int strikes) {
+			return new State(this.mode, this.roleId, this.filteredWords, this.compiledFilter, this.basicMatcher,
+					this.responseActions, this.enabled, strikes);
+		}
+	}
+
 	private final String id;
 	private final Path path;
-	private WordFilter.Type mode;
-	private String roleId;
-	private Set<String> filteredWords;
-	private Pattern compiledFilter;
-	private EnumSet<FilterResponseAction> responseActions;
-	private boolean enabled;
-	private int strikes;
-	
+	private volatile State state;
+	private final AtomicBoolean savePending = new AtomicBoolean(false);
+	//the save thread and a direct call to save() can't write the file at the same time
+	private final Object saveLock = new Object();
+
 	WordFilterImpl(String id, Path path) {
 		this.id = id;
 		this.path = path;
-		this.mode = WordFilter.Type.BASIC;
-		this.roleId = "";
-		this.filteredWords = new HashSet<String>(3);
-		this.compiledFilter = null;
-		this.responseActions = FilterResponseAction.DEFAULT;
-		this.enabled = true;
-		this.strikes = 0;
+		this.state = new State(WordFilter.Type.BASIC, "", ImmutableSet.of(), null, null,
+				EnumSet.copyOf(FilterResponseAction.DEFAULT), true, 0);
 	}
-	
+
 	WordFilterImpl(String id, Path path, WordFilter.Type type, String roleId, String[] words,
 			String pattern, EnumSet<FilterResponseAction> actions, boolean enabled, int strikes) {
 		this.id = id;
 		this.path = path;
-		this.mode = type;
-		this.roleId = roleId;
-		this.filteredWords = new HashSet<String>((words.length * 4 / 3) + 1);
+		Set<String> filteredWords = new HashSet<String>((words.length * 4 / 3) + 1);
 		for(String word : words) {
-			if(!word.isBlank()) this.filteredWords.add(word);
+			if(!word.isBlank()) filteredWords.add(word);
+		}
+		Pattern compiledFilter;
+		if(type == WordFilter.Type.BASIC) {
+			//files from before BASIC mode stopped using regex have the generated regex here, so it's ignored
+			compiledFilter = null;
+		} else /* type == WordFilter.Type.REGEX */ {
+			compiledFilter = pattern.equals(EMPTY_COMPILED_FILTER_TOKEN) ? null : Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
 		}
-		this.compiledFilter = pattern.equals(EMPTY_COMPILED_FILTER_TOKEN) ? null : Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-		this.responseActions = actions;
-		this.enabled = enabled;
-		this.strikes = strikes;
+		this.state = new State(type, roleId, ImmutableSet.of(), compiledFilter, null, EnumSet.copyOf(actions),
+				enabled, strikes).withWords(filteredWords);
 	}
-	
+
+	/*
+	 * BASIC mode runs in time linear in the input (see BasicWordMatcher), so only REGEX mode
+	 * needs the timeout
+	 */
 	@Override
-	public synchronized String check(String input) throws TimeoutException {
-		if(this.compiledFilter == null || !this.isEnabled()) return null;
-		try {
-			return MiscUtils.findMatchWithTimeout(this.compiledFilter, input, 1, TimeUnit.SECONDS);
-		} catch (InterruptedException | ExecutionException e) {
-			//TODO ?
-			throw new RuntimeException(e);
+	public String check(String input) throws TimeoutException {
+		State state = this.state;
+		if(!state.enabled) return null;
+		if(state.mode == WordFilter.Type.BASIC) {
+			return state.basicMatcher == null ? null : state.basicMatcher.find(input);
 		}
+		if(state.compiledFilter == null) return null;
+		return MiscUtils.findMatchWithTimeout(state.compiledFilter, input, 1, TimeUnit.SECONDS);
 	}
 
 	@Override
 	public synchronized boolean add(final String[] words) throws IOException {
-		if(this.mode == WordFilter.Type.REGEX) return false;
-		int initialNumFilteredWords = this.filteredWords.size();
-		if(initialNumFilteredWords >= MAX_FILTERED_WORDS) return false;
+		State state = this.state;
+		if(state.mode == WordFilter.Type.REGEX) return false;
+		if(state.filteredWords.size() >= MAX_FILTERED_WORDS) return false;
+		Set<String> filteredWords = new HashSet<>(state.filteredWords);
 		for(String word : words) {
-			if(this.filteredWords.size() >= MAX_FILTERED_WORDS) break;
-			if(word.length() <= MAX_WORD_LENGTH && !word.isBlank()) this.filteredWords.add(word);
+			if(filteredWords.size() >= MAX_FILTERED_WORDS) break;
+			if(word.length() <= MAX_WORD_LENGTH && !word.isBlank()) filteredWords.add(word);
 		}
-		boolean filterChanged = this.filteredWords.size() > initialNumFilteredWords;
+		boolean filterChanged = filteredWords.size() > state.filteredWords.size();
 		if (filterChanged) {
-			this.updateCompiledFilter();
-			this.save();
+			this.state = state.withWords(filteredWords);
+			this.scheduleSave();
 		}
 		return filterChanged;
 	}
 
 	@Override
 	public synchronized boolean remove(String[] words) throws IOException {
-		if(this.mode == WordFilter.Type.REGEX) return false;
-		int initialNumFilteredWords = this.filteredWords.size();
-		if(this.filteredWords.isEmpty()) return false;
+		State state = this.state;
+		if(state.mode == WordFilter.Type.REGEX) return false;
+		if(state.filteredWords.isEmpty()) return false;
+		Set<String> filteredWords = new HashSet<>(state.filteredWords);
 		for(String word : words) {
-			if(this.filteredWords.isEmpty()) break;
-			this.filteredWords.remove(word);
+			if(filteredWords.isEmpty()) break;
+			filteredWords.remove(word);
 		}
-		boolean filterChanged = this.filteredWords.size() < initialNumFilteredWords;
+		boolean filterChanged = filteredWords.size() < state.filteredWords.size();
 		if (filterChanged) {
-			this.updateCompiledFilter();
-			this.save();
+			this.state = state.withWords(filteredWords);
+			this.scheduleSave();
 		}
 		return filterChanged;
 	}
 
 	@Override
 	public synchronized void clear() throws IOException {
-		this.mode = WordFilter.Type.BASIC;
-		this.filteredWords.clear();
-		this.updateCompiledFilter();
-		this.save();
+		this.state = this.cleared();
+		this.scheduleSave();
 	}
 
 	/**
-	 * assume the given String is a comma-separated list of words, or an 
+	 * assume the given String is a comma-separated list of words, or an
 	 * explicit regex string (depends on mode)
 	 * <br><br>note no validation on the given String is performed, so do
 	 * that before calling this if allowing explicit regex
 	 */
 	@Override
 	public synchronized void set(String words) throws IOException, PatternSyntaxException {
-		if(this.mode == WordFilter.Type.BASIC) {
-			this.filteredWords.clear();
+		State state = this.state;
+		if(state.mode == WordFilter.Type.BASIC) {
+			Set<String> filteredWords = new HashSet<>();
 			for(String word : words.split(",")) {
-				if(this.filteredWords.size() >= MAX_FILTERED_WORDS) break;
+				if(filteredWords.size() >= MAX_FILTERED_WORDS) break;
 				word = word.trim();
-				if(word.length() <= MAX_WORD_LENGTH && !word.isBlank()) this.filteredWords.add(word);
+				if(word.length() <= MAX_WORD_LENGTH && !word.isBlank()) filteredWords.add(word);
 			}
-			this.updateCompiledFilter();
-		} else /* this.mode == WordFilter.Type.REGEX */ {
-			this.compiledFilter = Pattern.compile(words, Pattern.CASE_INSENSITIVE);
+			this.state = state.withWords(filteredWords);
+		} else /* state.mode == WordFilter.Type.REGEX */ {
+			this.state = state.withCompiledFilter(Pattern.compile(words, Pattern.CASE_INSENSITIVE));
 		}
-		this.save();
+		this.scheduleSave();
 	}
 
 	@Override
-	public synchronized String get() {
-		if(this.mode == WordFilter.Type.BASIC) {
-			return String.join(",", this.filteredWords.stream().sorted().collect(Collectors.toList()));
-		} else /* this.mode == WordFilter.Type.REGEX */ {
-			return (this.compiledFilter == null ? "" : this.compiledFilter.pattern());
+	public String get() {
+		State state = this.state;
+		if(state.mode == WordFilter.Type.BASIC) {
+			return String.join(",", state.filteredWords.stream().sorted().collect(Collectors.toList()));
+		} else /* state.mode == WordFilter.Type.REGEX */ {
+			return (state.compiledFilter == null ? "" : state.compiledFilter.pattern());
 		}
 	}
-	
+
 	/**
 	 * if current mode is REGEX, switch back to BASIC
 	 * if current mode is BASIC, clear the filter
-	 * @throws IOException 
+	 * @throws IOException
 	 */
 	@Override
 	public synchronized WordFilter.Type handleTimeout(String input) throws IOException {
-		WordFilter.Type type;
-		if(this.getType() == WordFilter.Type.REGEX) {
-			type = WordFilter.Type.REGEX;
-			this.setType(WordFilter.Type.BASIC);
-		} else /* this.getType() == WordFilter.Type.BASIC */ {
-			type = WordFilter.Type.BASIC;
-			this.clear();
+		State state = this.state;
+		WordFilter.Type type = state.mode;
+		if(type == WordFilter.Type.REGEX) {
+			//drop the regex that timed out, so switching back to regex mode doesn't restore it
+			this.state = state.withCompiledFilter(null).withMode(WordFilter.Type.BASIC);
+		} else /* type == WordFilter.Type.BASIC */ {
+			this.state = this.cleared();
 		}
-		this.save();
+		this.scheduleSave();
 		return type;
 	}
 
 	@Override
 	public synchronized void setActions(EnumSet<FilterResponseAction> actions) throws IOException {
-		this.responseActions = EnumSet.copyOf(actions);
-		this.save();
+		this.state = this.state.withActions(actions);
+		this.scheduleSave();
 	}
 
+	/**
+	 * @return a copy of the actions, which can be modified freely
+	 */
 	@Override
-	public synchronized EnumSet<FilterResponseAction> getActions() {
-		return this.responseActions;
+	public EnumSet<FilterResponseAction> getActions() {
+		return EnumSet.copyOf(this.state.responseActions);
 	}
-	
+
 	@Override
 	public String getId() {
 		return this.id;
 	}
-	
+
 	@Override
 	public synchronized void setType(WordFilter.Type type) throws IOException {
-		Type previousType = this.mode;
-		this.mode = type;
-		if(previousType == Type.REGEX && type == Type.BASIC) {
-			this.updateCompiledFilter();
-		}
-		this.save();
+		this.state = this.state.withMode(type);
+		this.scheduleSave();
 	}
-	
+
 	@Override
-	public synchronized WordFilter.Type getType() {
-		return this.mode;
+	public WordFilter.Type getType() {
+		return this.state.mode;
 	}
-	
+
 	@Override
-	public synchronized boolean isEnabled() {
-		return this.enabled;
+	public boolean isEnabled() {
+		return this.state.enabled;
 	}
-	
+
 	@Override
 	public synchronized void setEnabled(boolean enabled) {
-		this.enabled = enabled;
+		this.state = this.state.withEnabled(enabled);
 	}
-	
+
 	@Override
 	public synchronized void addStrike() {
-		if(this.strikes < WordFilter.getStrikesToDisable()) strikes++;
+		State state = this.state;
+		if(state.strikes < WordFilter.getStrikesToDisable()) this.state = state.withStrikes(state.strikes + 1);
 	}
 
 	@Override
-	public synchronized int getStrikes() {
-		return this.strikes;
+	public int getStrikes() {
+		return this.state.strikes;
 	}
 
 	@Override
 	public synchronized void resetStrikes() {
-		this.strikes = 0;
+		this.state = this.state.withStrikes(0);
 	}
-	
+
 	@Override
 	public synchronized void setRoleId(String id) throws IOException {
-		this.roleId = id;
-		this.save();
+		this.state = this.state.withRoleId(id);
+		this.scheduleSave();
 	}
-	
+
 	@Override
 	public synchronized void clearRoleId() throws IOException {
-		this.roleId = "";
-		this.save();
+		this.state = this.state.withRoleId("");
+		this.scheduleSave();
 	}
 
 	@Override
-	public synchronized String getRoleId() {
-		return this.roleId;
+	public String getRoleId() {
+		return this.state.roleId;
 	}
-	
+
+	/*
+	 * BASIC mode with no words. the regex goes too
+	 */
+	private State cleared() {
+		return this.state.withMode(WordFilter.Type.BASIC).withCompiledFilter(null).withWords(ImmutableSet.of());
+	}
+
+	/*
+	 * saves the filter on the save thread, unless a save is already waiting to run (which will
+	 * pick up the current state anyway)
+	 */
+	private void scheduleSave() {
+		if(!this.savePending.compareAndSet(false, true)) return;
+		SAVER.execute(() -> {
+			this.savePending.set(false);
+			try {
+				this.save();
+			} catch (IOException | RuntimeException e) {
+				logger.warn(this + ": exception when saving wordfilter: " + e.getMessage(), e);
+			}
+		});
+	}
+
 	/**
-	 * compiles the Pattern object used to do the actual matching on strings. pre-compiling is good
-	 * for performance i guess?
-	 * generated regex will match all words in the filter, as whole words, optionally ending with an 's'
-	 * for example, filter list "apple,orange,banana" is built into string 
-	 * "\\b((?:apple)|(?:orange)|(?:banana))s?\\b"
-	 * which should match any whole word: apple, apples, orange, oranges, banana, bananas
-	 * the word "crabapple" would not trigger a match
+	 * saves the current state of the filter, on the calling thread. changes already save
+	 * themselves in the background, so this only needs calling to be sure the file is up to
+	 * date right now
 	 */
-	private synchronized void updateCompiledFilter() {
-		if(this.filteredWords.isEmpty()) {
-			this.compiledFilter = null;
-		} else {
-			String newFilter = "\\b((?:" + String.join(")|(?:", this.filteredWords) + "))s?\\b";
-			this.compiledFilter = Pattern.compile(newFilter, Pattern.CASE_INSENSITIVE);
+	@Override
+	public void save() throws IOException {
+		synchronized(this.saveLock) {
+			//read under the lock, so an older state can never be written over a newer one
+			State state = this.state;
+			try (BufferedWriter writer = Files.newBufferedWriter(this.path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+				writer.append(state.mode.name());
+				writer.newLine();
+				writer.append(state.roleId);
+				writer.newLine();
+				writer.append(String.join(",", state.filteredWords));
+				writer.newLine();
+				writer.append(state.compiledFilter == null ? EMPTY_COMPILED_FILTER_TOKEN : state.compiledFilter.pattern());
+				writer.newLine();
+				writer.append(state.responseActions.stream().map(action -> action.name()).collect(Collectors.joining(",")));
+				writer.newLine();
+				writer.append(""+state.enabled);
+				writer.newLine();
+				writer.append(""+state.strikes);
+			}
 		}
 	}
 
-	@Override
-	public synchronized void save() throws IOException {
-		try (BufferedWriter writer = Files.newBufferedWriter(this.path, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
-				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
-			writer.append(this.getType().name());
-			writer.newLine();
-			writer.append(this.roleId);
-			writer.newLine();
-			writer.append(String.join(",", this.filteredWords));
-			writer.newLine();
-			writer.append(this.compiledFilter == null ? EMPTY_COMPILED_FILTER_TOKEN : this.compiledFilter.pattern());
-			writer.newLine();
-			writer.append(this.responseActions.stream().map(action -> action.name()).collect(Collectors.joining(",")));
-			writer.newLine();
-			writer.append(""+this.enabled);
-			writer.newLine();
-			writer.append(""+this.strikes);
+	/*
+	 * waits for every save scheduled so far to finish, or the timeout to pass
+	 */
+	static void flushPendingSaves(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+		try {
+			SAVER.submit(() -> {}).get(timeout, unit);
+		} catch (ExecutionException e) {
+			//an empty task can't fail
+			throw new AssertionError(e);
 		}
 	}
 
@@ -0,0 +1,95 @@
+package my.cute.bot.tasks;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import my.cute.bot.database.GuildDatabase;
+import my.cute.bot.database.WorkingSetExport;
+import my.cute.bot.util.MiscUtils;
+import my.cute.bot.util.PathUtils;
+import net.dv8tion.jda.api.entities.MessageChannel;
+
+/*
+ * exports a guild's database to a gzipped text file in its export directory, named for the
+ * time the export started (see WorkingSetExport), and keeps the channel that asked for it
+ * updated on how it's going
+ *
+ * returns the exported file, or null if the export was cancelled
+ */
+public class DatabaseExportTask implements Callable<Path> {
+
+	private static final Logger logger = LoggerFactory.getLogger(DatabaseExportTask.class);
+	private static final DateTimeFormatter EXPORT_NAME_FORMAT = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+
+	private final String id;
+	private final GuildDatabase database;
+	private final MessageChannel channel;
+	private final int chunkSize;
+	private volatile WorkingSetExport export = null;
+	private volatile boolean cancelled = false;
+
+	public DatabaseExportTask(String id, GuildDatabase database, MessageChannel channel, int chunkSize) {
+		this.id = id;
+		this.database = database;
+		this.channel = channel;
+		this.chunkSize = chunkSize;
+	}
+
+	@Override
+	public Path call() throws IOException {
+		if(this.cancelled) {
+			this.channel.sendMessage("cancelled export for guild id '" + this.id + "' before it started").queue();
+			return null;
+		}
+		Path output = PathUtils.getExportFile(this.id, ZonedDateTime.now(MiscUtils.TIMEZONE).format(EXPORT_NAME_FORMAT));
+		try (WorkingSetExport export = this.database.startExport()) {
+			this.export = export;
+			//cancel() may have been called before the export existed
+			if(this.cancelled) export.cancel();
+			this.channel.sendMessage("exporting database for guild id '" + this.id + "' to " + output.getFileName()).queue();
+			boolean finished = export.writeTo(output, this.chunkSize, progress ->
+					this.channel.sendMessage("exporting guild id '" + this.id + "': " + progress).queue());
+			if(finished) {
+				this.channel.sendMessage("finished exporting database for guild id '" + this.id + "' to " + output
+						+ " (" + export.getProgress() + ")").queue();
+				return output;
+			} else {
+				this.channel.sendMessage("cancelled export for guild id '" + this.id + "'").queue();
+				return null;
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.warn(this + ": exception during export: " + e.getMessage(), e);
+			this.channel.sendMessage("export for guild id '" + this.id + "' failed: " + e).queue();
+			throw e;
+		}
+	}
+
+	/*
+	 * stops the export at its next check, or before it starts if it hasn't yet
+	 */
+	public void cancel() {
+		this.cancelled = true;
+		WorkingSetExport export = this.export;
+		if(export != null) export.cancel();
+	}
+
+	/**
+	 * @return a short description of how far along the export is
+	 */
+	public String getProgress() {
+		WorkingSetExport export = this.export;
+		if(export != null) return export.getProgress();
+		return this.cancelled ? "cancelled" : "waiting to start";
+	}
+
+	@Override
+	public String toString() {
+		return "DatabaseExportTask-" + this.id;
+	}
+}
@@ -0,0 +1,367 @@
+package my.cute.bot.tasks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import my.cute.bot.util.PathUtils;
+
+/*
+ * rebuilds every guild's database (scrape, discussion channels, rebuild, as in
+ * GuildDatabaseSetupTask) without starting them all at once
+ *
+ * at most maxConcurrent guilds are set up at a time, smallest first (by the size of their
+ * last scrape), so most guilds are done quickly and the big ones don't all run together.
+ * a rebuild builds its new database at the speed mode shard cache size alongside the live
+ * one, so before another guild is started while others are running, there has to be at
+ * least memoryPerRebuild of free heap. if there isn't, the guild waits for a running one to
+ * finish or for memory to free up
+ *
+ * progress is kept in a file (one guild per line, id and state, tab separated), so a fleet
+ * rebuild interrupted by a restart can pick up where it left off with resume(). guilds that
+ * were running at the time are started over
+ */
+public final class FleetRebuildScheduler {
+
+	private static final Logger logger = LoggerFactory.getLogger(FleetRebuildScheduler.class);
+	/*
+	 * how often to check again when a guild is waiting on memory
+	 */
+	private static final long MEMORY_RETRY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+	private enum State {
+		PENDING,
+		RUNNING,
+		DONE,
+		FAILED
+	}
+
+	private final int maxConcurrent;
+	private final long memoryPerRebuild;
+	private final Path progressFile;
+	/*
+	 * returns null if the guild can't be set up anymore, eg because the bot has left it
+	 */
+	private final Function<String, GuildDatabaseSetupTask> taskFactory;
+	private final ScheduledExecutorService dispatcher;
+
+	//everything below is guarded by this
+	private final Map<String, State> states = new LinkedHashMap<>();
+	private final Map<String, Long> sizes = new HashMap<>();
+	private final PriorityQueue<String> queue = new PriorityQueue<>(
+			Comparator.<String>comparingLong(id -> this.sizes.getOrDefault(id, 0L)).thenComparing(id -> id));
+	private final Map<String, GuildDatabaseSetupTask> running = new LinkedHashMap<>();
+	private CompletableFuture<Void> completion = null;
+	private long startTime = 0;
+	private boolean waitingOnMemory = false;
+
+	/**
+	 * @param maxConcurrent maximum number of guilds to set up at once
+	 * @param memoryPerRebuild free heap, in bytes, needed before starting another guild while
+	 * others are running
+	 * @param taskFactory creates the setup task for a guild id, or returns null if the guild
+	 * can't be set up (eg the bot is no longer in it)
+	 */
+	public FleetRebuildScheduler(int maxConcurrent, long memoryPerRebuild, Function<String, GuildDatabaseSetupTask> taskFactory) {
+		if(maxConcurrent < 1) throw new IllegalArgumentException("need to allow at least one rebuild at a time");
+		this.maxConcurrent = maxConcurrent;
+		this.memoryPerRebuild = memoryPerRebuild;
+		this.progressFile = PathUtils.getFleetRebuildProgressFile();
+		this.taskFactory = taskFactory;
+		this.dispatcher = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("fleet-rebuild-%d").setDaemon(true).build());
+	}
+
+	/**
+	 * starts rebuilding the given guilds
+	 * @param ids the guilds to rebuild
+	 * @return a future that completes once every guild has been rebuilt, or completes
+	 * exceptionally if any of them failed
+	 * @throws IllegalStateException if a fleet rebuild is already in progress
+	 * @throws IOException if the progress file can't be written
+	 */
+	public synchronized CompletableFuture<Void> start(Collection<String> ids) throws IllegalStateException, IOException {
+		if(this.isActive()) throw new IllegalStateException("a fleet rebuild is already in progress");
+		this.reset();
+		ids.forEach(id -> this.states.put(id, State.PENDING));
+		this.writeProgress();
+		logger.info(this + ": starting rebuild of " + ids.size() + " guild(s), at most " + this.maxConcurrent + " at a time");
+		return this.begin();
+	}
+
+	/**
+	 * picks up a fleet rebuild that was interrupted by a restart, if there was one
+	 * @return true if there was an unfinished rebuild to resume
+	 */
+	public synchronized boolean resume() {
+		if(this.isActive()) return false;
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(this.progressFile, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return false;
+		} catch (IOException e) {
+			logger.warn(this + ": exception when reading rebuild progress, not resuming: " + e.getMessage(), e);
+			return false;
+		}
+		this.reset();
+		int remaining = 0;
+		for(String line : lines) {
+			String[] fields = line.split("\t");
+			if(fields.length != 2) continue;
+			State state;
+			try {
+				state = State.valueOf(fields[1]);
+			} catch (IllegalArgumentException e) {
+				continue;
+			}
+			//anything that was running when we stopped has to start over
+			if(state == State.RUNNING) state = State.PENDING;
+			if(state == State.PENDING) remaining++;
+			this.states.put(fields[0], state);
+		}
+		if(remaining == 0) {
+			this.states.clear();
+			this.deleteProgress();
+			return false;
+		}
+		logger.info(this + ": resuming interrupted rebuild, " + remaining + " of " + this.states.size() + " guild(s) remaining");
+		this.begin();
+		return true;
+	}
+
+	/**
+	 * drops every guild that hasn't started yet. guilds already running are left to finish
+	 * @return the number of guilds dropped
+	 */
+	public synchronized int cancel() {
+		int cancelled = this.queue.size();
+		this.queue.forEach(this.states::remove);
+		this.queue.clear();
+		if(cancelled > 0) {
+			logger.info(this + ": cancelled " + cancelled + " queued guild(s)");
+			//so a restart doesn't resume the dropped guilds
+			this.writeProgressQuietly();
+		}
+		this.scheduleDispatch();
+		return cancelled;
+	}
+
+	/**
+	 * @return a summary of the current fleet rebuild, one line per running guild after the
+	 * first, or an empty list if there's no fleet rebuild in progress
+	 */
+	public synchronized List<String> getStatus() {
+		List<String> status = new ArrayList<>();
+		if(!this.isActive()) return status;
+		int done = 0;
+		int failed = 0;
+		for(State state : this.states.values()) {
+			if(state == State.DONE) done++;
+			else if(state == State.FAILED) failed++;
+		}
+		long elapsed = TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - this.startTime);
+		status.add("fleet rebuild: " + done + "/" + this.states.size() + " done, " + failed + " failed, "
+				+ this.running.size() + " running, " + this.queue.size() + " queued"
+				+ (this.waitingOnMemory ? " (waiting on memory)" : "") + ", " + elapsed + "min elapsed");
+		this.running.forEach((id, task) -> status.add(id + ": " + task.getProgress()));
+		return status;
+	}
+
+	/**
+	 * stops starting new guilds. guilds already running continue, and the progress file is
+	 * left as is, so the rebuild resumes on the next start
+	 */
+	public void shutdown() {
+		this.dispatcher.shutdownNow();
+	}
+
+	/*
+	 * must hold this
+	 */
+	private boolean isActive() {
+		return this.completion != null && !this.completion.isDone();
+	}
+
+	private void reset() {
+		this.states.clear();
+		this.sizes.clear();
+		this.queue.clear();
+		this.running.clear();
+		this.waitingOnMemory = false;
+	}
+
+	private CompletableFuture<Void> begin() {
+		this.states.forEach((id, state) ->
+		{
+			if(state == State.PENDING) {
+				this.sizes.put(id, scrapeSize(id));
+				this.queue.add(id);
+			}
+		});
+		this.startTime = System.currentTimeMillis();
+		this.completion = new CompletableFuture<>();
+		this.scheduleDispatch();
+		return this.completion;
+	}
+
+	/*
+	 * only ever run on the dispatcher thread, so guilds are started one at a time
+	 */
+	private void dispatch() {
+		while(true) {
+			String id;
+			GuildDatabaseSetupTask task;
+			synchronized(this) {
+				if(this.completion == null || this.completion.isDone()) return;
+				if(this.running.isEmpty() && this.queue.isEmpty()) {
+					this.complete();
+					return;
+				}
+				if(this.running.size() >= this.maxConcurrent || this.queue.isEmpty()) return;
+				if(!this.running.isEmpty() && getFreeMemory() < this.memoryPerRebuild) {
+					//something finishing also dispatches, so this is just in case memory frees up first
+					if(!this.waitingOnMemory) {
+						this.waitingOnMemory = true;
+						this.dispatcher.schedule(this::retryDispatch, MEMORY_RETRY_DELAY, TimeUnit.MILLISECONDS);
+					}
+					return;
+				}
+				id = this.queue.poll();
+				task = this.taskFactory.apply(id);
+				if(task == null) {
+					logger.warn(this + ": couldn't set up guild " + id + ", skipping it");
+					this.states.put(id, State.FAILED);
+					continue;
+				}
+				logger.info(this + ": starting rebuild of guild " + id);
+				this.running.put(id, task);
+				this.states.put(id, State.RUNNING);
+				this.writeProgressQuietly();
+			}
+			//scraping makes blocking requests, so the task is started without holding the lock
+			CompletableFuture<Void> result;
+			try {
+				result = task.call();
+			} catch (Exception e) {
+				result = CompletableFuture.failedFuture(e);
+			}
+			result.whenComplete((ignored, throwable) -> this.finished(id, task, throwable == null));
+		}
+	}
+
+	private void retryDispatch() {
+		synchronized(this) {
+			this.waitingOnMemory = false;
+		}
+		this.dispatch();
+	}
+
+	private void scheduleDispatch() {
+		if(!this.dispatcher.isShutdown()) this.dispatcher.execute(this::dispatch);
+	}
+
+	private synchronized void finished(String id, GuildDatabaseSetupTask task, boolean succeeded) {
+		//may have been reset in the meantime
+		if(this.running.get(id) != task) return;
+		this.running.remove(id);
+		this.states.put(id, succeeded ? State.DONE : State.FAILED);
+		logger.info(this + ": " + (succeeded ? "finished" : "failed") + " rebuild of guild " + id);
+		this.writeProgressQuietly();
+		this.scheduleDispatch();
+	}
+
+	private void complete() {
+		long failed = this.states.values().stream().filter(state -> state == State.FAILED).count();
+		logger.info(this + ": fleet rebuild complete in "
+				+ TimeUnit.MILLISECONDS.toMinutes(System.currentTimeMillis() - this.startTime) + "min. "
+				+ (this.states.size() - failed) + " guild(s) rebuilt, " + failed + " failed");
+		this.deleteProgress();
+		if(failed == 0) {
+			this.completion.complete(null);
+		} else {
+			this.completion.completeExceptionally(new IllegalStateException(failed + " guild(s) failed to rebuild"));
+		}
+	}
+
+	private void writeProgress() throws IOException {
+		Path temp = this.progressFile.resolveSibling(this.progressFile.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			for(Map.Entry<String, State> entry : this.states.entrySet()) {
+				writer.write(entry.getKey() + "\t" + entry.getValue());
+				writer.newLine();
+			}
+		}
+		Files.move(temp, this.progressFile, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void writeProgressQuietly() {
+		try {
+			this.writeProgress();
+		} catch (IOException e) {
+			logger.warn(this + ": exception when writing rebuild progress: " + e.getMessage(), e);
+		}
+	}
+
+	private void deleteProgress() {
+		try {
+			Files.deleteIfExists(this.progressFile);
+		} catch (IOException e) {
+			logger.warn(this + ": exception when deleting rebuild progress: " + e.getMessage(), e);
+		}
+	}
+
+	private static long getFreeMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/*
+	 * total size of a guild's last scrape, as an estimate of how big a job rebuilding it is.
+	 * guilds that have never been scraped count as empty
+	 */
+	private static long scrapeSize(String id) {
+		Path directory = PathUtils.getDatabaseScrapeDirectory(id);
+		if(!Files.isDirectory(directory)) return 0;
+		try (Stream<Path> files = Files.list(directory)) {
+			return files.mapToLong(file ->
+			{
+				try {
+					return Files.size(file);
+				} catch (IOException e) {
+					return 0;
+				}
+			}).sum();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "FleetRebuildScheduler";
+	}
+}
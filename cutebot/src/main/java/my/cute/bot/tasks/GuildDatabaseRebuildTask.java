@@ -1,17 +1,18 @@
 package my.cute.bot.tasks;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import my.cute.bot.database.GuildDatabase;
+import my.cute.bot.database.ShadowRebuild;
 import my.cute.bot.preferences.GuildPreferences;
 import my.cute.bot.util.PathUtils;
 
@@ -22,6 +23,7 @@ public final class GuildDatabaseRebuildTask implements Runnable {
 	private final String id;
 	private final GuildDatabase db;
 	private final GuildPreferences prefs;
+	private volatile ScrapeRebuildPipeline pipeline = null;
 	
 	public GuildDatabaseRebuildTask(String id, GuildDatabase db, GuildPreferences prefs) {
 		this.id = id;
@@ -33,59 +35,57 @@ public final class GuildDatabaseRebuildTask implements Runnable {
 	 * replaces the contents of the given GuildDatabase with the contents of the existing
 	 * scrape files for the database, using only the channels that are designated as discussion
 	 * channels by the given GuildPreferences
+	 * 
+	 * the new contents are built as a shadow rebuild, so the db stays in service the whole
+	 * time and only blocks briefly while the rebuilt db is swapped in
 	 */
 	@Override
 	public void run() {
-		/*
-		 * lock on db. db object can't be used for line processing, generation, maintenance,
-		 * etc while rebuild is in process
-		 */
-		synchronized(this.db) {
-			logger.info(this + ": starting");
-			try {
-				logger.info(this + ": clearing database");
-				this.db.clear();
-				logger.info(this + ": finished clearing database. constructing new database for speed");
-				this.db.prioritizeSpeed();
-				try (Stream<Path> scrapeFiles = Files.list(PathUtils.getDatabaseScrapeDirectory(this.id))) {
-					scrapeFiles.forEach(file ->
-					{
-						String channelId = file.getFileName().toString().split("\\.")[0].intern();
-						if(this.prefs.isDiscussionChannel(channelId)) {
-							logger.info(this + ": processing channel " + channelId);
-							try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
-								/*
-								 * first two lines of a scrape file are the start and end times of the scraped
-								 * message period, so ignore those
-								 */
-								reader.readLine();
-								reader.readLine();
-								String line = reader.readLine();
-								while(line != null) {
-									//first 8 characters of each line are a datestamp for that message
-									this.db.processLineWithDate(line.substring(8), line.substring(0, 8));
-									line = reader.readLine();
-								}
-								logger.info(this + ": finished channel " + channelId);
-							} catch (IOException e) {
-								logger.warn(this + ": IOException when trying to process scraped files, aborting. ex: " + e, e);
-								throw new UncheckedIOException(e);
-							}
-						}
-					});
-				}
-				logger.info(this + ": finished processing. constructing new database for memory");
-				this.db.prioritizeMemory();
-				this.db.clearAutomaticBackups();
-				this.db.markForMaintenance();
-				logger.info(this + ": complete");
-			} catch (IOException e) {
-				logger.warn(this + ": encountered IOException, db may be in inconsistent state! ex: " + e, e);
-				throw new UncheckedIOException(e);
+		logger.info(this + ": starting");
+		ShadowRebuild rebuild;
+		try {
+			rebuild = this.db.startShadowRebuild();
+		} catch (IOException e) {
+			logger.warn(this + ": encountered IOException when starting rebuild, aborting. ex: " + e, e);
+			throw new UncheckedIOException(e);
+		}
+		try {
+			List<Path> files = new ArrayList<>();
+			try (Stream<Path> scrapeFiles = Files.list(PathUtils.getDatabaseScrapeDirectory(this.id))) {
+				scrapeFiles.forEach(file ->
+				{
+					String channelId = file.getFileName().toString().split("\\.")[0];
+					if(this.prefs.isDiscussionChannel(channelId)) files.add(file);
+				});
 			}
+			ScrapeRebuildPipeline pipeline = new ScrapeRebuildPipeline(this.id, rebuild, files);
+			this.pipeline = pipeline;
+			logger.info(this + ": processing " + files.size() + " discussion channel(s)");
+			pipeline.run();
+			logger.info(this + ": finished processing. swapping in rebuilt database");
+			rebuild.finish();
+			this.db.clearAutomaticBackups();
+			this.db.markForMaintenance();
+			logger.info(this + ": complete");
+		} catch (IOException e) {
+			rebuild.abandon();
+			logger.warn(this + ": encountered IOException, rebuild abandoned. ex: " + e, e);
+			throw new UncheckedIOException(e);
+		} catch (RuntimeException e) {
+			rebuild.abandon();
+			throw e;
 		}
 	}
 
+	/**
+	 * @return a summary of how far along processing the scrape files is, or null if it 
+	 * hasn't started yet
+	 */
+	public String getProgress() {
+		ScrapeRebuildPipeline current = this.pipeline;
+		return current == null ? null : current.getProgress();
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
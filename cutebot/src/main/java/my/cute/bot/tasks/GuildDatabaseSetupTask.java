@@ -22,6 +22,8 @@ public class GuildDatabaseSetupTask implements Callable<CompletableFuture<Void>>
 	private final Guild guild;
 	private final GuildPreferences prefs;
 	private final GuildDatabase db;
+	private volatile String phase = "not started";
+	private volatile GuildDatabaseRebuildTask rebuildTask = null;
 	
 	public GuildDatabaseSetupTask(JDA jda, Guild guild, GuildPreferences prefs, GuildDatabase db) {
 		this.jda = jda;
@@ -31,6 +33,15 @@ public class GuildDatabaseSetupTask implements Callable<CompletableFuture<Void>>
 	}
 	
 
+	/**
+	 * @return a short description of what the task is currently doing
+	 */
+	public String getProgress() {
+		GuildDatabaseRebuildTask rebuild = this.rebuildTask;
+		String rebuildProgress = rebuild == null ? null : rebuild.getProgress();
+		return rebuildProgress == null ? this.phase : this.phase + " (" + rebuildProgress + ")";
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder builder = new StringBuilder();
@@ -73,12 +84,25 @@ public class GuildDatabaseSetupTask implements Callable<CompletableFuture<Void>>
 		if(doingNothing) this.jda.getPresence().setActivity(Activity.playing("busy"));
 		Set<String> cuteChannels = this.guild.getChannels().stream().filter(channel -> channel.getName() != null && channel.getName().contains("cute"))
 				.map(channel -> channel.getId()).collect(Collectors.toSet());
+		GuildDiscussionChannelTask discussionTask = new GuildDiscussionChannelTask(this.guild.getId(), this.prefs, cuteChannels);
+		GuildDatabaseRebuildTask rebuildTask = new GuildDatabaseRebuildTask(this.guild.getId(), this.db, this.prefs);
+		this.phase = "scraping messages";
 		return new GuildMessageScrapeTask(this.guild, PathUtils.getDatabaseScrapeDirectory(this.guild.getId()), 
 				this.prefs.getDatabaseAge()).call()
-				.thenRun(new GuildDiscussionChannelTask(this.guild.getId(), this.prefs, cuteChannels))
-				.thenRun(new GuildDatabaseRebuildTask(this.guild.getId(), this.db, this.prefs))
+				.thenRun(() ->
+				{
+					this.phase = "finding discussion channels";
+					discussionTask.run();
+				})
+				.thenRun(() ->
+				{
+					this.phase = "rebuilding database";
+					this.rebuildTask = rebuildTask;
+					rebuildTask.run();
+				})
 				.whenComplete((result, throwable) ->
 				{
+					this.phase = throwable == null ? "finished" : "failed";
 					if(throwable == null) {
 						logger.info(this + ": successfully set up new guild '" + this.guild + "'");
 					} else {
@@ -0,0 +1,168 @@
+package my.cute.bot.tasks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import my.cute.bot.database.GuildDatabase;
+import my.cute.bot.database.MaintenanceMonitor;
+
+/*
+ * runs database maintenance for every guild on a dedicated pool, rather than the shared
+ * task scheduler, so a round of maintenance can't crowd out everything else
+ *
+ * at most maxConcurrent guilds are maintained at once, and every run draws on one shared
+ * RateLimiter for the workingset bytes it reads, so the total disk io from maintenance
+ * stays within a fixed budget no matter how many guilds are due. queued guilds are run in
+ * order of how much expired data they have, largest first
+ */
+public final class MaintenanceOrchestrator {
+
+	private static final Logger logger = LoggerFactory.getLogger(MaintenanceOrchestrator.class);
+
+	private final class Job implements Runnable, Comparable<Job> {
+		private final GuildDatabase database;
+		private final MaintenanceMonitor monitor;
+		private final long expiredBytes;
+		//tiebreak so guilds with equal estimates run in the order they were submitted
+		private final long sequence;
+
+		private Job(String id, GuildDatabase database) {
+			this.database = database;
+			this.monitor = new MaintenanceMonitor(id, ioBudget);
+			this.expiredBytes = database.estimateExpiredBytes();
+			this.sequence = jobSequence.getAndIncrement();
+		}
+
+		@Override
+		public void run() {
+			try {
+				if(this.monitor.isCancelRequested()) {
+					this.monitor.finish(MaintenanceMonitor.State.CANCELLED);
+					return;
+				}
+				this.database.maintenance(this.monitor);
+			} catch (IOException e) {
+				//TODO do something else here?
+				logger.warn(MaintenanceOrchestrator.this + ": maintenance on guild " + this.monitor.getId()
+					+ " terminated due to IOException", e);
+			} catch (RuntimeException e) {
+				logger.warn(MaintenanceOrchestrator.this + ": maintenance on guild " + this.monitor.getId()
+					+ " terminated due to unexpected exception", e);
+			} finally {
+				jobs.remove(this.monitor.getId(), this);
+			}
+		}
+
+		@Override
+		public int compareTo(Job other) {
+			return JOB_ORDER.compare(this, other);
+		}
+	}
+
+	private static final Comparator<Job> JOB_ORDER = Comparator.<Job>comparingLong(job -> job.expiredBytes).reversed()
+			.thenComparingLong(job -> job.sequence);
+
+	private final ThreadPoolExecutor executor;
+	private final RateLimiter ioBudget;
+	private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+	private final AtomicLong jobSequence = new AtomicLong(0);
+
+	/**
+	 * @param maxConcurrent maximum number of guilds to maintain at once
+	 * @param ioBytesPerSecond total workingset bytes per second all maintenance runs may read
+	 */
+	public MaintenanceOrchestrator(int maxConcurrent, long ioBytesPerSecond) {
+		if(maxConcurrent < 1) throw new IllegalArgumentException("need at least one maintenance thread");
+		this.ioBudget = RateLimiter.create(ioBytesPerSecond);
+		//a ThreadPoolExecutor over a PriorityBlockingQueue only works with execute(), since
+		//submit() wraps tasks in something that isn't Comparable
+		this.executor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 0L, TimeUnit.MILLISECONDS,
+				new PriorityBlockingQueue<Runnable>(),
+				new ThreadFactoryBuilder().setNameFormat("maintenance-%d").setDaemon(true).build());
+	}
+
+	/**
+	 * queues maintenance for the given guild, unless it's already queued or running
+	 * @param id the guild's id
+	 * @param database the guild's database
+	 * @return true if maintenance was queued, false if it was already queued or running
+	 */
+	public boolean submit(String id, GuildDatabase database) {
+		Job job = new Job(id, database);
+		if(this.jobs.putIfAbsent(id, job) != null) return false;
+		this.executor.execute(job);
+		return true;
+	}
+
+	/**
+	 * cancels queued or running maintenance for the given guild. a running job stops at
+	 * its next safe point
+	 * @return true if there was maintenance to cancel
+	 */
+	public boolean cancel(String id) {
+		Job job = this.jobs.get(id);
+		if(job == null) return false;
+		job.monitor.cancel();
+		return true;
+	}
+
+	/**
+	 * cancels all queued and running maintenance
+	 * @return the number of jobs cancelled
+	 */
+	public int cancelAll() {
+		int count = 0;
+		for(Job job : this.jobs.values()) {
+			job.monitor.cancel();
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * @return monitors for every queued or running job, running first
+	 */
+	public List<MaintenanceMonitor> getStatus() {
+		List<Job> current = new ArrayList<>(this.jobs.values());
+		current.sort(Comparator.<Job>comparingInt(job -> job.monitor.getState() == MaintenanceMonitor.State.RUNNING ? 0 : 1)
+				.thenComparing(JOB_ORDER));
+		List<MaintenanceMonitor> status = new ArrayList<>(current.size());
+		current.forEach(job -> status.add(job.monitor));
+		return status;
+	}
+
+	/**
+	 * cancels everything and stops the maintenance threads. running jobs are given a short
+	 * time to reach a safe point
+	 */
+	public void shutdown() {
+		this.cancelAll();
+		this.executor.shutdown();
+		try {
+			if(!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+				logger.warn(this + ": maintenance still running after shutdown timeout");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MaintenanceOrchestrator";
+	}
+}
@@ -0,0 +1,232 @@
+package my.cute.bot.tasks;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import my.cute.bot.database.BatchResult;
+import my.cute.bot.database.DatedLine;
+import my.cute.bot.database.ShadowRebuild;
+
+/*
+ * feeds a set of scrape files into a shadow rebuild
+ *
+ * reading a scrape file means decoding it, splitting off each line's datestamp, and
+ * normalizing and tokenizing the line, all of which can happen in parallel. so files are
+ * read on a shared pool of reader threads, which turn them into batches of normalized
+ * lines (see DatedLine.normalized) and put them on a bounded queue. the thread that calls
+ * run() is the only writer: it takes batches off the queue and applies them with
+ * processLines. a ShadowRebuild has to be driven from a single thread anyway, and a single
+ * writer means no contention between readers. the bounded
+ * queue keeps readers from getting too far ahead of the writer and filling the heap
+ *
+ * batches from different files are interleaved in whatever order they're read, which is
+ * fine since the order lines are processed in doesn't matter (the old sequential rebuild
+ * didn't process them in date order either)
+ */
+final class ScrapeRebuildPipeline {
+
+	private static final Logger logger = LoggerFactory.getLogger(ScrapeRebuildPipeline.class);
+	/*
+	 * one core is left for the writer, which is usually the bottleneck once parsing is off
+	 * its thread
+	 */
+	private static final int READER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+	private static final ExecutorService READERS = Executors.newFixedThreadPool(READER_THREADS,
+			new ThreadFactoryBuilder().setNameFormat("rebuild-reader-%d").setDaemon(true).build());
+	private static final int BATCH_SIZE = 4096;
+	/*
+	 * batches, not lines. so at most this * BATCH_SIZE lines are waiting on the writer
+	 */
+	private static final int QUEUE_CAPACITY = 16;
+	private static final int READ_BUFFER_SIZE = 65536;
+	private static final long PROGRESS_LOG_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+	/*
+	 * put on the queue by a reader when it's done with its file, whether it succeeded or not.
+	 * compared by identity
+	 */
+	private static final List<DatedLine> END_OF_FILE = Collections.unmodifiableList(new ArrayList<>(0));
+
+	private final String id;
+	private final ShadowRebuild rebuild;
+	private final List<Path> files;
+	private final BlockingQueue<List<DatedLine>> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+	/*
+	 * set once the writer stops, for any reason. readers check it and give up
+	 */
+	private volatile boolean stopped = false;
+	private final AtomicReference<Exception> readerFailure = new AtomicReference<>();
+
+	private final long totalBytes;
+	private final AtomicLong bytesRead = new AtomicLong(0);
+	private final AtomicLong linesRead = new AtomicLong(0);
+	private final AtomicInteger filesRead = new AtomicInteger(0);
+	//only written by the writer
+	private volatile long linesProcessed = 0;
+	private volatile long linesFailed = 0;
+	private volatile long startTime = 0;
+
+	ScrapeRebuildPipeline(String id, ShadowRebuild rebuild, List<Path> files) throws IOException {
+		this.id = id;
+		this.rebuild = rebuild;
+		this.files = new ArrayList<>(files);
+		long total = 0;
+		for(Path file : this.files) {
+			total += Files.size(file);
+		}
+		this.totalBytes = total;
+	}
+
+	/*
+	 * reads every file into the database, applying lines on the calling thread. returns once
+	 * every file has been read and applied. throws if any file can't be read or the rebuild
+	 * throws, in which case some lines will have been processed and some not
+	 */
+	void run() throws IOException {
+		this.startTime = System.currentTimeMillis();
+		logger.info(this + ": reading " + this.files.size() + " file(s) (" + (this.totalBytes / 1024) + "KB) on "
+				+ READER_THREADS + " reader thread(s)");
+		for(Path file : this.files) {
+			READERS.execute(() -> this.read(file));
+		}
+		int remaining = this.files.size();
+		long nextProgressLog = this.startTime + PROGRESS_LOG_INTERVAL;
+		try {
+			while(remaining > 0) {
+				//timed so a failed reader is noticed even if the others are slow
+				List<DatedLine> batch = this.queue.poll(1, TimeUnit.SECONDS);
+				if(batch == END_OF_FILE) {
+					remaining--;
+				} else if(batch != null) {
+					BatchResult result = this.rebuild.processLines(batch);
+					this.linesProcessed += result.getSucceeded();
+					this.linesFailed += result.getFailures().size();
+				}
+				Exception failure = this.readerFailure.get();
+				if(failure != null) {
+					throw new IOException("exception when reading scrape file: " + failure, failure);
+				}
+				if(System.currentTimeMillis() >= nextProgressLog) {
+					logger.info(this + ": " + this.getProgress());
+					nextProgressLog = System.currentTimeMillis() + PROGRESS_LOG_INTERVAL;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting on readers");
+		} finally {
+			this.stopped = true;
+			this.queue.clear();
+		}
+		logger.info(this + ": finished. " + this.getProgress());
+	}
+
+	private void read(Path file) {
+		try (CountingInputStream input = new CountingInputStream(Files.newInputStream(file));
+				BufferedReader reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8),
+						READ_BUFFER_SIZE)) {
+			/*
+			 * first two lines of a scrape file are the start and end times of the scraped
+			 * message period, so ignore those
+			 */
+			reader.readLine();
+			reader.readLine();
+			List<DatedLine> batch = new ArrayList<>(BATCH_SIZE);
+			long lines = 0;
+			long countedBytes = 0;
+			String dateStamp = null;
+			String line;
+			while(!this.stopped && (line = reader.readLine()) != null) {
+				if(line.length() < 8) continue;
+				/*
+				 * first 8 characters of each line are a datestamp for that message. messages
+				 * come in runs from the same day, so the last datestamp is reused if it matches
+				 */
+				if(dateStamp == null || !line.regionMatches(0, dateStamp, 0, 8)) dateStamp = line.substring(0, 8);
+				batch.add(DatedLine.normalized(line.substring(8), dateStamp));
+				lines++;
+				if(batch.size() >= BATCH_SIZE) {
+					this.linesRead.addAndGet(batch.size());
+					this.bytesRead.addAndGet(input.getCount() - countedBytes);
+					countedBytes = input.getCount();
+					if(!this.put(batch)) return;
+					batch = new ArrayList<>(BATCH_SIZE);
+				}
+			}
+			if(!batch.isEmpty()) {
+				this.linesRead.addAndGet(batch.size());
+				if(!this.put(batch)) return;
+			}
+			this.bytesRead.addAndGet(input.getCount() - countedBytes);
+			this.filesRead.incrementAndGet();
+			logger.debug(this + ": read " + file.getFileName() + " (" + lines + " lines)");
+		} catch (IOException | RuntimeException e) {
+			this.readerFailure.compareAndSet(null, e);
+		} catch (InterruptedException e) {
+			this.readerFailure.compareAndSet(null, e);
+			Thread.currentThread().interrupt();
+		} finally {
+			try {
+				this.put(END_OF_FILE);
+			} catch (InterruptedException e) {
+				this.readerFailure.compareAndSet(null, e);
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/*
+	 * blocks while the queue is full. returns false without queueing the batch if the writer
+	 * has stopped
+	 */
+	private boolean put(List<DatedLine> batch) throws InterruptedException {
+		while(!this.stopped) {
+			if(this.queue.offer(batch, 100, TimeUnit.MILLISECONDS)) return true;
+		}
+		return false;
+	}
+
+	/*
+	 * a one-line summary of how far along the rebuild is and how fast it's going. safe to
+	 * call from any thread
+	 */
+	String getProgress() {
+		long elapsed = Math.max(System.currentTimeMillis() - this.startTime, 1);
+		long bytes = this.bytesRead.get();
+		long processed = this.linesProcessed;
+		StringBuilder builder = new StringBuilder();
+		builder.append(this.filesRead.get()).append("/").append(this.files.size()).append(" files, ");
+		builder.append(this.totalBytes > 0 ? (100 * bytes / this.totalBytes) : 100).append("% of bytes read, ");
+		builder.append(this.linesRead.get()).append(" lines read, ");
+		builder.append(processed).append(" processed (").append(this.linesFailed).append(" failed), ");
+		builder.append(processed * 1000 / elapsed).append(" lines/s, ");
+		builder.append((bytes / 1024) * 1000 / elapsed).append("KB/s");
+		return builder.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "ScrapeRebuildPipeline-" + this.id;
+	}
+}
@@ -0,0 +1,78 @@
+package my.cute.bot.util;
+
+/**
+ * wraps a CharSequence so that reading it past a deadline throws an exception. java regex
+ * reads its input through charAt() as it goes, so matching a Pattern against one of these
+ * aborts a runaway match (eg catastrophic backtracking) on the thread doing it, without
+ * needing another thread to watch it
+ * <p>
+ * the clock is only checked every so many calls to charAt(), since checking it on every call
+ * would cost more than the match itself. so the match may run slightly past the deadline, by
+ * however long it takes to make that many calls
+ * <p>
+ * not threadsafe, the same as a Matcher
+ */
+public final class DeadlineCharSequence implements CharSequence {
+
+	/**
+	 * thrown from {@link DeadlineCharSequence#charAt(int)} once the deadline has passed
+	 */
+	public static final class DeadlineExceededException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private DeadlineExceededException(String message) {
+			super(message);
+		}
+	}
+
+	private final CharSequence text;
+	private final long deadline;
+	private final int checkInterval;
+	private int untilCheck;
+
+	/**
+	 * @param text the text to wrap
+	 * @param deadline the deadline, as a value of {@link System#nanoTime()}
+	 * @param checkInterval how many calls to charAt() to make between checks of the clock
+	 */
+	public DeadlineCharSequence(CharSequence text, long deadline, int checkInterval) {
+		if(checkInterval <= 0) throw new IllegalArgumentException("check interval must be positive");
+		this.text = text;
+		this.deadline = deadline;
+		this.checkInterval = checkInterval;
+		this.untilCheck = checkInterval;
+	}
+
+	/**
+	 * @throws DeadlineExceededException if the deadline has passed
+	 */
+	@Override
+	public char charAt(int index) {
+		if(--this.untilCheck <= 0) {
+			this.untilCheck = this.checkInterval;
+			//subtracted rather than compared, since nanoTime can overflow
+			if(System.nanoTime() - this.deadline > 0) {
+				throw new DeadlineExceededException("deadline exceeded reading text of length " + this.text.length());
+			}
+		}
+		return this.text.charAt(index);
+	}
+
+	@Override
+	public int length() {
+		return this.text.length();
+	}
+
+	/**
+	 * @return the subsequence, with the same deadline
+	 */
+	@Override
+	public CharSequence subSequence(int start, int end) {
+		return new DeadlineCharSequence(this.text.subSequence(start, end), this.deadline, this.checkInterval);
+	}
+
+	@Override
+	public String toString() {
+		return this.text.toString();
+	}
+}
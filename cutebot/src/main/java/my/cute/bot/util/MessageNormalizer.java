@@ -0,0 +1,164 @@
+package my.cute.bot.util;
+
+/**
+ * normalizes raw message content for command handling and database processing in a
+ * single pass. see {@link NormalizedMessage} for what's produced
+ * <p>
+ * the results are identical to the older separate steps (<code>StringUtils.isWhitespace</code>,
+ * {@link MiscUtils#getWords(String)}, {@link MiscUtils#replaceNewLinesWithTokens(String)}
+ * and {@link MiscUtils#tokenize(String)}), which now delegate here
+ */
+public final class MessageNormalizer {
+
+	static final String NEW_LINE_TOKEN = "<_NL>";
+	private static final int INITIAL_BOUNDS_SIZE = 32;
+
+	private MessageNormalizer() {}
+
+	/**
+	 * normalizes the given message content
+	 * @param raw the raw message content
+	 * @return the normalized message
+	 */
+	public static NormalizedMessage normalize(String raw) {
+		final int length = raw.length();
+		boolean blank = true;
+
+		//trim, as in String.trim(). trimmed chars still count towards blankness
+		int start = 0;
+		while(start < length && raw.charAt(start) <= ' ') {
+			if(!Character.isWhitespace(raw.charAt(start))) blank = false;
+			start++;
+		}
+		int end = length;
+		while(end > start && raw.charAt(end - 1) <= ' ') {
+			if(!Character.isWhitespace(raw.charAt(end - 1))) blank = false;
+			end--;
+		}
+
+		/*
+		 * the line is only copied once a line break turns up, since most messages don't
+		 * have any and the trimmed content can be used as-is. token bounds are in line
+		 * coordinates, word bounds are in raw coordinates
+		 */
+		StringBuilder line = null;
+		int[] tokens = new int[INITIAL_BOUNDS_SIZE];
+		int tokenCount = 0;
+		int tokenStart = -1;
+		int[] words = new int[INITIAL_BOUNDS_SIZE];
+		int wordCount = 0;
+		int wordStart = -1;
+
+		for(int i=start; i < end; i++) {
+			char c = raw.charAt(i);
+			if(blank && !Character.isWhitespace(c)) blank = false;
+
+			//words are split on \s, ie ascii whitespace only
+			if(isAsciiWhitespace(c)) {
+				if(wordStart >= 0) {
+					words = addBounds(words, wordCount++, wordStart, i);
+					wordStart = -1;
+				}
+			} else if(wordStart < 0) {
+				wordStart = i;
+			}
+
+			int position = (line == null) ? i - start : line.length();
+			int lineBreak = lineBreakLength(raw, i, end);
+			if(lineBreak > 0) {
+				//line break becomes a token, which is part of whatever token it's next to
+				if(line == null) {
+					line = new StringBuilder(end - start + NEW_LINE_TOKEN.length() * 2);
+					line.append(raw, start, i);
+				}
+				if(tokenStart < 0) tokenStart = position;
+				line.append(NEW_LINE_TOKEN);
+				//\r\n is a single line break. the \n is ascii whitespace so words are unaffected
+				i += lineBreak - 1;
+			} else if(Character.isWhitespace(c)) {
+				if(tokenStart >= 0) {
+					tokens = addBounds(tokens, tokenCount++, tokenStart, position);
+					tokenStart = -1;
+				}
+				if(line != null) line.append(c);
+			} else {
+				if(tokenStart < 0) tokenStart = position;
+				if(line != null) line.append(c);
+			}
+		}
+		if(wordStart >= 0) words = addBounds(words, wordCount++, wordStart, end);
+		String normalizedLine = (line == null) ? raw.substring(start, end) : line.toString();
+		if(tokenStart >= 0) tokens = addBounds(tokens, tokenCount++, tokenStart, normalizedLine.length());
+
+		return new NormalizedMessage(raw, blank, normalizedLine, tokens, tokenCount, words, wordCount);
+	}
+
+	/**
+	 * splits the given line on whitespace (as in <code>Character.isWhitespace(char)</code>),
+	 * discarding empty tokens. equivalent to <code>StringUtils.split(line, null)</code>
+	 * @param line the line to split
+	 * @return the tokens in the line
+	 */
+	public static String[] tokenize(String line) {
+		final int length = line.length();
+		int[] tokens = new int[INITIAL_BOUNDS_SIZE];
+		int tokenCount = 0;
+		int tokenStart = -1;
+		for(int i=0; i < length; i++) {
+			if(Character.isWhitespace(line.charAt(i))) {
+				if(tokenStart >= 0) {
+					tokens = addBounds(tokens, tokenCount++, tokenStart, i);
+					tokenStart = -1;
+				}
+			} else if(tokenStart < 0) {
+				tokenStart = i;
+			}
+		}
+		if(tokenStart >= 0) tokens = addBounds(tokens, tokenCount++, tokenStart, length);
+		return substrings(line, tokens, tokenCount);
+	}
+
+	static String[] substrings(String string, int[] bounds, int count) {
+		String[] result = new String[count];
+		for(int i=0; i < count; i++) {
+			result[i] = string.substring(bounds[2 * i], bounds[2 * i + 1]);
+		}
+		return result;
+	}
+
+	/*
+	 * returns the length of the line break (as in regex \R) starting at the given index,
+	 * or 0 if there isn't one
+	 */
+	private static int lineBreakLength(String string, int index, int end) {
+		char c = string.charAt(index);
+		switch(c) {
+			case '\r':
+				return (index + 1 < end && string.charAt(index + 1) == '\n') ? 2 : 1;
+			case '\n':
+			case '\u000B':
+			case '\f':
+			case '\u0085':
+			case '\u2028':
+			case '\u2029':
+				return 1;
+			default:
+				return 0;
+		}
+	}
+
+	private static boolean isAsciiWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private static int[] addBounds(int[] bounds, int index, int start, int end) {
+		if(2 * index + 1 >= bounds.length) {
+			int[] larger = new int[bounds.length * 2];
+			System.arraycopy(bounds, 0, larger, 0, bounds.length);
+			bounds = larger;
+		}
+		bounds[2 * index] = start;
+		bounds[2 * index + 1] = end;
+		return bounds;
+	}
+}
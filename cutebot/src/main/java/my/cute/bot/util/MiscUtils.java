@@ -9,14 +9,13 @@ import java.util.NoSuchElementException;
 import java.util.Queue;
 import java.util.Random;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
-import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -36,9 +35,11 @@ public class MiscUtils {
 	
 	public static final ZoneId TIMEZONE = ZoneId.of("America/Vancouver");
 	private static final Logger logger = LoggerFactory.getLogger(MiscUtils.class);
-	private static final String NEW_LINE_TOKEN = "<_NL>";
+	private static final String NEW_LINE_TOKEN = MessageNormalizer.NEW_LINE_TOKEN;
 	private static final Random RAND = new Random();
 	private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+	//calls to charAt() between checks of the clock when matching with a timeout
+	private static final int MATCH_DEADLINE_CHECK_INTERVAL = 1024;
 	//used to test for existence of two quotation marks anywhere in given text
 	private final static Pattern QUOTATION_MARKS = Pattern.compile(".*\".*\"");
 
@@ -49,7 +50,7 @@ public class MiscUtils {
 		 * but in the end it'd just get replaced with a new line and i don't think 
 		 * it really matters at all?
 		 */
-		return line.trim().replaceAll("\\R", NEW_LINE_TOKEN);
+		return MessageNormalizer.normalize(line).getLine();
 	}
 	
 	public static String replaceTokensWithNewLines(String line) {
@@ -72,7 +73,7 @@ public class MiscUtils {
 	}
 
 	public static List<String> tokenize(String line) {
-		return Arrays.asList(StringUtils.split(line, null));
+		return Arrays.asList(MessageNormalizer.tokenize(line));
 	}
 	
 	public static String sanitize(String string) {
@@ -84,7 +85,7 @@ public class MiscUtils {
 	}
 	
 	public static String[] getWords(Message message) {
-		return WHITESPACE.split(message.getContentRaw().trim());
+		return MessageNormalizer.normalize(message.getContentRaw()).getWords();
 	}
 	
 	/**
@@ -94,7 +95,7 @@ public class MiscUtils {
 	 * @return an array consisting of the individual words in the given string
 	 */
 	public static String[] getWords(String message) {
-		return WHITESPACE.split(message.trim());
+		return MessageNormalizer.normalize(message).getWords();
 	}
 	
 	public static String[] getWords(Message message, int limit) {
@@ -342,6 +343,9 @@ public class MiscUtils {
 	 * attempts to match a Pattern against a given input String and return the match, with a 
 	 * set maximum execution time. if no match is found, null is returned, and if the execution
 	 * time is exceeded, an exception is thrown
+	 * <p>
+	 * the match runs on the calling thread, reading the input through a {@link DeadlineCharSequence},
+	 * so a match that runs too long is abandoned rather than left running in the background
 	 * @param pattern the regex to search for in the given text
 	 * @param input the text to search in
 	 * @param timeout the amount of time to look for
@@ -350,31 +354,45 @@ public class MiscUtils {
 	 * if no match was found
 	 * @throws TimeoutException if the time spent searching the text for the given pattern exceeded
 	 * the given timeout duration
-	 * @throws ExecutionException 
-	 * @throws InterruptedException 
 	 */
-	public static String findMatchWithTimeout(Pattern pattern, String input, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException, ExecutionException {
-		Matcher m = pattern.matcher(input);
-		CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
-			if(m.matches()) {
-				return m.group();
-			} else {
-				return null;
+	public static String findMatchWithTimeout(Pattern pattern, String input, long timeout, TimeUnit unit) throws TimeoutException {
+		return findMatchWithDeadline(pattern, input, System.nanoTime() + unit.toNanos(timeout));
+	}
+	
+	/**
+	 * as {@link #findMatchWithTimeout(Pattern, String, long, TimeUnit)}, but the match is run on
+	 * the common pool and the result given through the returned CompletableFuture. the timeout
+	 * starts when this is called, so it includes any time spent waiting to run
+	 * @return a CompletableFuture that completes with the match, or null if no match was found,
+	 * or completes exceptionally with a TimeoutException if the timeout was exceeded
+	 */
+	public static CompletableFuture<String> findMatchWithTimeoutAsync(Pattern pattern, String input, long timeout, TimeUnit unit) {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return findMatchWithDeadline(pattern, input, deadline);
+			} catch (TimeoutException e) {
+				throw new CompletionException(e);
 			}
 		});
-		return future.get(timeout, unit);
 	}
 	
-	public static CompletableFuture<String> findMatchWithTimeoutAsync(Pattern pattern, String input, long timeout, TimeUnit unit) {
-		Matcher m = pattern.matcher(input);
-		CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
+	/*
+	 * as findMatchWithTimeout, with the deadline given as a value of System.nanoTime()
+	 */
+	static String findMatchWithDeadline(Pattern pattern, CharSequence input, long deadline) throws TimeoutException {
+		Matcher m = pattern.matcher(new DeadlineCharSequence(input, deadline, MATCH_DEADLINE_CHECK_INTERVAL));
+		try {
 			if(m.matches()) {
 				return m.group();
 			} else {
 				return null;
 			}
-		});
-		return future.orTimeout(timeout, unit);
+		} catch (DeadlineCharSequence.DeadlineExceededException e) {
+			TimeoutException timeout = new TimeoutException("timed out matching " + pattern.pattern());
+			timeout.initCause(e);
+			throw timeout;
+		}
 	}
 	
 	/**
@@ -0,0 +1,84 @@
+package my.cute.bot.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * the result of normalizing a message's raw content with {@link MessageNormalizer}.
+ * everything here is worked out in the one pass, but words and tokens are only turned
+ * into strings when they're asked for, so eg checking a message for a command prefix
+ * doesn't allocate a word array
+ */
+public final class NormalizedMessage {
+
+	private final String raw;
+	private final boolean blank;
+	private final String line;
+	private final int[] tokenBounds;
+	private final int tokenCount;
+	private final int[] wordBounds;
+	private final int wordCount;
+
+	NormalizedMessage(String raw, boolean blank, String line, int[] tokenBounds, int tokenCount, int[] wordBounds,
+			int wordCount) {
+		this.raw = raw;
+		this.blank = blank;
+		this.line = line;
+		this.tokenBounds = tokenBounds;
+		this.tokenCount = tokenCount;
+		this.wordBounds = wordBounds;
+		this.wordCount = wordCount;
+	}
+
+	/**
+	 * @return the raw content the message was normalized from
+	 */
+	public String getRaw() {
+		return this.raw;
+	}
+
+	/**
+	 * @return true if the raw content is empty or consists entirely of whitespace, as in
+	 * <code>StringUtils.isWhitespace(CharSequence)</code>
+	 */
+	public boolean isBlank() {
+		return this.blank;
+	}
+
+	/**
+	 * checks whether the first word of the message starts with the given prefix, without
+	 * building the message's words
+	 * @param prefix the prefix to check for, eg a command prefix
+	 * @return true if <code>getWords()[0].startsWith(prefix)</code>
+	 */
+	public boolean firstWordStartsWith(String prefix) {
+		if(this.wordCount == 0) return prefix.isEmpty();
+		return this.wordBounds[1] - this.wordBounds[0] >= prefix.length()
+				&& this.raw.startsWith(prefix, this.wordBounds[0]);
+	}
+
+	/**
+	 * @return the message's words, ie its trimmed content split on whitespace, as in
+	 * {@link MiscUtils#getWords(String)}. a new array is returned each call
+	 */
+	public String[] getWords() {
+		if(this.wordCount == 0) return new String[] { "" };
+		return MessageNormalizer.substrings(this.raw, this.wordBounds, this.wordCount);
+	}
+
+	/**
+	 * @return the trimmed content with every line break replaced by the newline token, as
+	 * in {@link MiscUtils#replaceNewLinesWithTokens(String)}. this is the form lines are
+	 * stored in the database in
+	 */
+	public String getLine() {
+		return this.line;
+	}
+
+	/**
+	 * @return the tokens of {@link #getLine()}, as in {@link MiscUtils#tokenize(String)}
+	 */
+	public List<String> getTokens() {
+		return Arrays.asList(MessageNormalizer.substrings(this.line, this.tokenBounds, this.tokenCount));
+	}
+}
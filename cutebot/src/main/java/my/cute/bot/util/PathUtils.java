@@ -16,13 +16,20 @@ public final class PathUtils {
 
 	private static final String DATABASE_PARENT_DIRECTORY = "." + File.separator + "cutebot2db";
 	private static final String WORKING_SET_FILE_NAME = "workingset.txt";
+	private static final String WORKING_SET_DIRECTORY_NAME = "~workingset";
+	private static final String WRITE_AHEAD_LOG_DIRECTORY_NAME = "~wal";
 	private static final String LAST_MAINTENANCE_FILE_NAME = "lastmaintenance.txt";
 	private static final String DATABASE_DIRECTORY_NAME = "~database";
 	private static final String BACKUP_DIRECTORY_NAME = "~backups";
 	private static final String SCRAPE_DIRECTORY_NAME = "~scrape";
+	private static final String REBUILD_DIRECTORY_NAME = "~rebuild";
+	private static final String EXPORT_DIRECTORY_NAME = "~exports";
+	private static final String EXPORT_SNAPSHOT_DIRECTORY_NAME = "~snapshot";
+	private static final String BACKUP_SNAPSHOT_DIRECTORY_NAME = "~snapshot";
 	private static final String PREFERENCES_FILE_NAME = "preferences.ini";
 	private static final String PERMISSIONS_FILE_NAME = "permissions.db";
 	private static final String DEFAULT_GUILDS_FILE_NAME = "defaultguilds.db";
+	private static final String FLEET_REBUILD_PROGRESS_FILE_NAME = "rebuildprogress.txt";
 	private static final String WORD_FILTER_FILE_NAME = "wordfilter.ini";
 	private static final String COMMANDS_DIRECTORY_NAME = "~commands";
 	private static final String ROLE_COMMANDS_DIRECTORY_NAME = "~role";
@@ -39,6 +46,14 @@ public final class PathUtils {
 		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + WORKING_SET_FILE_NAME);
 	}
 	
+	public static Path getWorkingSetDirectory(String guildId) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + WORKING_SET_DIRECTORY_NAME);
+	}
+	
+	public static Path getWriteAheadLogDirectory(String guildId) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + WRITE_AHEAD_LOG_DIRECTORY_NAME);
+	}
+	
 	public static Path getDatabaseLastMaintenanceFile(String guildId) {
 		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + LAST_MAINTENANCE_FILE_NAME);
 	}
@@ -57,6 +72,78 @@ public final class PathUtils {
 				+ File.separator + guildId + "_" + backupName + "_workingset.txt");
 	}
 	
+	public static Path getBackupWorkingSetDirectory(String guildId, String backupName) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + BACKUP_DIRECTORY_NAME
+				+ File.separator + guildId + "_" + backupName + "_workingset");
+	}
+	
+	public static Path getBackupArchiveFile(String guildId, String backupName) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + BACKUP_DIRECTORY_NAME
+				+ File.separator + guildId + "_" + backupName + ".cbar");
+	}
+	
+	/*
+	 * the markov database's part of a backup, a copy of getDatabaseDirectory. backups made
+	 * before these were taken by the markov library itself, wherever it keeps them
+	 */
+	public static Path getBackupMarkovDirectory(String guildId, String backupName) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + BACKUP_DIRECTORY_NAME
+				+ File.separator + guildId + "_" + backupName + "_markov");
+	}
+	
+	/*
+	 * where a backup's files are snapshotted while it's being saved, see BackupSnapshot
+	 */
+	public static Path getBackupSnapshotDirectory(String guildId) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + BACKUP_DIRECTORY_NAME
+				+ File.separator + BACKUP_SNAPSHOT_DIRECTORY_NAME);
+	}
+	
+	public static Path getBackupChecksumFile(String guildId, String backupName) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + BACKUP_DIRECTORY_NAME
+				+ File.separator + guildId + "_" + backupName + ".checksums");
+	}
+	
+	public static Path getLastKnownGoodBackupFile(String guildId) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + BACKUP_DIRECTORY_NAME
+				+ File.separator + "last-known-good.txt");
+	}
+	
+	public static Path getRebuildDirectory(String guildId) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + REBUILD_DIRECTORY_NAME);
+	}
+	
+	/*
+	 * parent path for a shadow rebuild's markov database, so its files end up in 
+	 * getRebuildDatabaseDirectory
+	 */
+	public static String getRebuildDatabaseParentPath(String guildId) {
+		return getRebuildDirectory(guildId).toString();
+	}
+	
+	public static Path getRebuildDatabaseDirectory(String guildId) {
+		return getRebuildDirectory(guildId).resolve(guildId).resolve(DATABASE_DIRECTORY_NAME);
+	}
+	
+	public static Path getRebuildWorkingSetDirectory(String guildId) {
+		return getRebuildDirectory(guildId).resolve(WORKING_SET_DIRECTORY_NAME);
+	}
+	
+	public static Path getExportDirectory(String guildId) {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + EXPORT_DIRECTORY_NAME);
+	}
+	
+	public static Path getExportFile(String guildId, String exportName) {
+		return getExportDirectory(guildId).resolve(exportName + ".txt.gz");
+	}
+	
+	/*
+	 * the workingset snapshot an export reads from, see WorkingSetExport
+	 */
+	public static Path getExportSnapshotDirectory(String guildId) {
+		return getExportDirectory(guildId).resolve(EXPORT_SNAPSHOT_DIRECTORY_NAME);
+	}
+	
 	public static Path getDatabaseScrapeDirectory(String databaseId) {
 		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + databaseId + File.separator + SCRAPE_DIRECTORY_NAME);
 	}
@@ -73,6 +160,10 @@ public final class PathUtils {
 		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + DEFAULT_GUILDS_FILE_NAME);
 	}
 	
+	public static Path getFleetRebuildProgressFile() {
+		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + FLEET_REBUILD_PROGRESS_FILE_NAME);
+	}
+	
 	public static Path getWordFilterFile(String guildId) {
 		return Paths.get(DATABASE_PARENT_DIRECTORY + File.separator + guildId + File.separator + WORD_FILTER_FILE_NAME);
 	}
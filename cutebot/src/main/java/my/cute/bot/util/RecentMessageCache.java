@@ -0,0 +1,221 @@
+package my.cute.bot.util;
+
+import java.nio.charset.StandardCharsets;
+
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+
+/**
+ * remembers the normalized line and date stamp of recently processed messages by message id,
+ * so that when a message is deleted or edited (events that only come with the message id,
+ * or the new content) the line that was processed for it can be taken back out of its database
+ *
+ * <p>entries are kept for a fixed window after they're added, and the whole cache is bounded
+ * by a maximum number of entries and a maximum number of bytes of line content, whichever is
+ * hit first. once either bound is hit, the oldest entries are dropped early. a single cache
+ * is meant to be shared by every guild, so memory use doesn't grow with the number of guilds
+ *
+ * <p>entries are packed into primitive arrays used as ring buffers (one slot per message, plus
+ * a single byte array holding the utf-8 content of every line) rather than kept as objects,
+ * so a full cache is a handful of large arrays instead of millions of small objects. since
+ * entries are added in time order, expiring and evicting only ever has to look at the oldest
+ * slot
+ *
+ * <p>threadsafe
+ */
+public final class RecentMessageCache {
+
+	/**
+	 * a message's entry, as returned by {@link RecentMessageCache#remove(long)}
+	 */
+	public static final class Entry {
+		private final String line;
+		private final String dateStamp;
+
+		private Entry(String line, String dateStamp) {
+			this.line = line;
+			this.dateStamp = dateStamp;
+		}
+
+		/**
+		 * @return the normalized line that was processed for the message
+		 */
+		public String getLine() {
+			return this.line;
+		}
+
+		/**
+		 * @return the date the line was processed on, in the form YYYYMMDD
+		 */
+		public String getDateStamp() {
+			return this.dateStamp;
+		}
+	}
+
+	/*
+	 * marks a slot whose entry was removed before it expired. its content stays in the data
+	 * ring until the slot is evicted in order
+	 */
+	private static final long REMOVED = 0L;
+	private static final int NO_SLOT = -1;
+
+	private final long window;
+	private final int maxEntries;
+
+	/*
+	 * slot ring. head is the oldest slot, count is the number of slots in use (including
+	 * removed ones)
+	 */
+	private final long[] messageIds;
+	private final long[] times;
+	private final int[] dateStamps;
+	private final int[] offsets;
+	private final int[] lengths;
+	private int head = 0;
+	private int count = 0;
+
+	/*
+	 * data ring. each slot's content is written at writePosition, wrapping back to 0 if it
+	 * doesn't fit before the end, so content is laid out in the same order as the slots
+	 */
+	private final byte[] data;
+	private int writePosition = 0;
+
+	private final TLongIntMap index;
+
+	/**
+	 * @param window how long to keep each entry, in ms
+	 * @param maxEntries the most messages to keep at once
+	 * @param maxBytes the most bytes of (utf-8) line content to keep at once. a line longer
+	 * than this is never cached
+	 */
+	public RecentMessageCache(long window, int maxEntries, int maxBytes) {
+		if(window <= 0) throw new IllegalArgumentException("window must be positive");
+		if(maxEntries <= 0 || maxBytes <= 0) throw new IllegalArgumentException("cache bounds must be positive");
+		this.window = window;
+		this.maxEntries = maxEntries;
+		this.messageIds = new long[maxEntries];
+		this.times = new long[maxEntries];
+		this.dateStamps = new int[maxEntries];
+		this.offsets = new int[maxEntries];
+		this.lengths = new int[maxEntries];
+		this.data = new byte[maxBytes];
+		this.index = new TLongIntHashMap(maxEntries * 4 / 3, 0.75f, REMOVED, NO_SLOT);
+	}
+
+	/**
+	 * caches a message's line. if the message is already cached, its old entry is replaced
+	 * @param messageId the message's id
+	 * @param line the normalized line processed for the message
+	 * @param dateStamp the date the line was processed on, in the form YYYYMMDD
+	 */
+	public synchronized void put(long messageId, String line, String dateStamp) {
+		if(messageId == REMOVED) return;
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		if(bytes.length > this.data.length) return;
+		long now = System.currentTimeMillis();
+		this.expire(now);
+		this.removeEntry(messageId);
+
+		if(this.count == this.maxEntries) this.evictHead();
+		int offset = this.allocate(bytes.length);
+		System.arraycopy(bytes, 0, this.data, offset, bytes.length);
+
+		int slot = (this.head + this.count) % this.maxEntries;
+		this.messageIds[slot] = messageId;
+		this.times[slot] = now;
+		this.dateStamps[slot] = Integer.parseInt(dateStamp);
+		this.offsets[slot] = offset;
+		this.lengths[slot] = bytes.length;
+		this.count++;
+		this.index.put(messageId, slot);
+	}
+
+	/**
+	 * removes a message's entry from the cache
+	 * @param messageId the message's id
+	 * @return the message's entry, or null if it isn't cached (it was never added, or it's
+	 * expired or been evicted)
+	 */
+	public synchronized Entry remove(long messageId) {
+		this.expire(System.currentTimeMillis());
+		int slot = this.index.get(messageId);
+		if(slot == NO_SLOT) return null;
+		Entry entry = new Entry(new String(this.data, this.offsets[slot], this.lengths[slot], StandardCharsets.UTF_8),
+				String.valueOf(this.dateStamps[slot]));
+		this.removeEntry(messageId);
+		return entry;
+	}
+
+	/**
+	 * @return the number of messages currently cached
+	 */
+	public synchronized int size() {
+		this.expire(System.currentTimeMillis());
+		return this.index.size();
+	}
+
+	/**
+	 * drops every entry
+	 */
+	public synchronized void clear() {
+		this.index.clear();
+		this.head = 0;
+		this.count = 0;
+		this.writePosition = 0;
+	}
+
+	/*
+	 * finds room for the given number of bytes in the data ring, evicting the oldest slots
+	 * whose content is in the way. returns the offset to write at
+	 */
+	private int allocate(int length) {
+		if(this.writePosition + length > this.data.length) {
+			/*
+			 * wrapping around. everything between the write position and the end of the ring
+			 * belongs to the oldest slots, which would be overwritten next anyway
+			 */
+			int end = this.writePosition;
+			while(this.count > 0 && this.offsets[this.head] >= end) {
+				this.evictHead();
+			}
+			this.writePosition = 0;
+		}
+		int start = this.writePosition;
+		//an empty line takes up no room, but still has to go if it's inside the new content
+		while(this.count > 0 && this.offsets[this.head] < start + length
+				&& this.offsets[this.head] + Math.max(this.lengths[this.head], 1) > start) {
+			this.evictHead();
+		}
+		this.writePosition = start + length;
+		return start;
+	}
+
+	private void expire(long now) {
+		long cutoff = now - this.window;
+		while(this.count > 0 && this.times[this.head] < cutoff) {
+			this.evictHead();
+		}
+	}
+
+	private void evictHead() {
+		long messageId = this.messageIds[this.head];
+		if(messageId != REMOVED && this.index.get(messageId) == this.head) this.index.remove(messageId);
+		this.head = (this.head + 1) % this.maxEntries;
+		this.count--;
+		if(this.count == 0) this.writePosition = 0;
+	}
+
+	/*
+	 * unindexes a message and marks its slot removed. the slot is reclaimed when it's evicted
+	 */
+	private void removeEntry(long messageId) {
+		int slot = this.index.remove(messageId);
+		if(slot != NO_SLOT) this.messageIds[slot] = REMOVED;
+	}
+
+	@Override
+	public String toString() {
+		return "RecentMessageCache";
+	}
+}
@@ -0,0 +1,1118 @@
+package my.cute.bot.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * checks a regex for catastrophic backtracking without running it, by looking for ambiguity
+ * in the regex's nfa. java's regex engine backtracks, so it tries every way the regex could
+ * match some text before giving up on it. if parts of the regex can match the same text in
+ * many different ways, a message that almost matches makes it try all of them
+ * <ul>
+ * <li>if a repeated part of the regex can match the same text in two different ways (eg
+ * <code>(a|a)*</code>, <code>(a+)+</code>, <code>(\w+\s?)*</code>), the number of ways to
+ * match grows exponentially with the length of the text
+ * <li>if several repeated parts in a row can all match the same text (eg <code>\d*\d*</code>,
+ * <code>.*a.*</code>), text can be split between them in polynomially many ways. with k parts
+ * like that, matching time grows like the length of the text to the power of k
+ * </ul>
+ * this is the approach of weideman et al, "analyzing matching time behavior of backtracking
+ * regular expression matchers by using ambiguity of nfa". the nfa is built from the regex,
+ * epsilon transitions are removed (keeping a separate transition for every distinct epsilon
+ * path, since the engine tries each of them), and then exponential ambiguity is found as a
+ * strongly connected component of nfa x nfa where two paths split apart and join back
+ * together, and polynomial ambiguity as paths p -> p, p -> q, q -> q over the same text in
+ * nfa x nfa x nfa
+ * <p>
+ * the analysis only understands part of java's regex syntax. backreferences, lookaround,
+ * atomic groups, possessive quantifiers, unicode properties, and word boundaries inside
+ * repetition (among other things) can't be modelled, and neither can patterns too large to
+ * analyze quickly. for those the result is {@link Verdict#UNKNOWN}, and the regex should be
+ * tested some other way. counted repetition (x{2,5}) is treated as unbounded (x+)
+ */
+public final class RegexAnalyzer {
+
+	public enum Verdict {
+		/**
+		 * no ambiguous repetition. matching takes time linear in the length of the text
+		 */
+		SAFE,
+		/**
+		 * several repeated parts can match the same text. see {@link Result#getDegree()}
+		 */
+		POLYNOMIAL,
+		/**
+		 * a repeated part can match the same text in more than one way
+		 */
+		EXPONENTIAL,
+		/**
+		 * the regex uses something the analysis can't model, or is too big to analyze
+		 */
+		UNKNOWN
+	}
+
+	public static final class Result {
+		private final Verdict verdict;
+		private final int degree;
+		private final String reason;
+
+		private Result(Verdict verdict, int degree, String reason) {
+			this.verdict = verdict;
+			this.degree = degree;
+			this.reason = reason;
+		}
+
+		public Verdict getVerdict() {
+			return this.verdict;
+		}
+
+		/**
+		 * @return for {@link Verdict#POLYNOMIAL}, the power of the length of the text that matching
+		 * time grows with (so 2 is quadratic). 1 for {@link Verdict#SAFE}, and 0 otherwise
+		 */
+		public int getDegree() {
+			return this.degree;
+		}
+
+		/**
+		 * @return a short description of the result, fit to show to a user
+		 */
+		public String getReason() {
+			return this.reason;
+		}
+
+		@Override
+		public String toString() {
+			return this.verdict + (this.verdict == Verdict.POLYNOMIAL ? "(" + this.degree + ")" : "") + ": " + this.reason;
+		}
+	}
+
+	/*
+	 * limits on how much work analysis can take, so it stays in the milliseconds. states are
+	 * char-consuming nfa states (so roughly characters in the regex). work is roughly the number of product states and transitions visited
+	 */
+	private static final int MAX_STATES = 1000;
+	private static final long MAX_WORK = 2_000_000;
+	private static final int MAX_NESTING = 100;
+	private static final int SUPPORTED_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.DOTALL | Pattern.MULTILINE;
+
+	/**
+	 * analyzes the given pattern, with its flags
+	 * @param pattern the pattern to analyze
+	 * @return the result of the analysis
+	 */
+	public static Result analyze(Pattern pattern) {
+		return analyze(pattern.pattern(), pattern.flags());
+	}
+
+	/**
+	 * analyzes the given regex. it should be valid, ie {@link Pattern#compile(String, int)}
+	 * should accept it
+	 * @param regex the regex to analyze
+	 * @param flags the flags the regex is compiled with, as in {@link Pattern#flags()}
+	 * @return the result of the analysis
+	 */
+	public static Result analyze(String regex, int flags) {
+		if((flags & Pattern.LITERAL) != 0) return new Result(Verdict.SAFE, 1, "literal pattern");
+		if((flags & ~SUPPORTED_FLAGS) != 0) return new Result(Verdict.UNKNOWN, 0, "unsupported pattern flags");
+		try {
+			return new RegexAnalyzer(regex, flags).run();
+		} catch (UnsupportedRegexException e) {
+			return new Result(Verdict.UNKNOWN, 0, e.getMessage());
+		}
+	}
+
+	/*
+	 * thrown whenever the analysis runs into something it can't handle
+	 */
+	private static final class UnsupportedRegexException extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		private UnsupportedRegexException(String message) {
+			super(message, null, false, false);
+		}
+	}
+
+	/*
+	 * sets of code points, as sorted, non-overlapping, non-adjacent inclusive ranges
+	 * [low0, high0, low1, high1, ...]
+	 */
+	private static final class CharSet {
+		private static final CharSet EMPTY = new CharSet(new int[0]);
+		private static final CharSet ALL = range(0, Character.MAX_CODE_POINT);
+		private static final CharSet DIGIT = range('0', '9');
+		private static final CharSet WORD = range('a', 'z').union(range('A', 'Z')).union(DIGIT).union(single('_'));
+		private static final CharSet SPACE = range('\t', '\r').union(single(' '));
+		//java's . doesn't match line terminators unless DOTALL is set
+		private static final CharSet DOT = single('\n').union(single('\r')).union(single(0x85))
+				.union(range(0x2028, 0x2029)).complement();
+
+		private final int[] ranges;
+
+		private CharSet(int[] ranges) {
+			this.ranges = ranges;
+		}
+
+		private static CharSet single(int codePoint) {
+			return range(codePoint, codePoint);
+		}
+
+		private static CharSet range(int low, int high) {
+			return new CharSet(new int[] { low, high });
+		}
+
+		private CharSet union(CharSet other) {
+			int[] all = new int[this.ranges.length + other.ranges.length];
+			int count = 0;
+			int i = 0;
+			int j = 0;
+			//merge by low end, then coalesce
+			while(i < this.ranges.length || j < other.ranges.length) {
+				int low;
+				int high;
+				if(j >= other.ranges.length || (i < this.ranges.length && this.ranges[i] <= other.ranges[j])) {
+					low = this.ranges[i];
+					high = this.ranges[i + 1];
+					i += 2;
+				} else {
+					low = other.ranges[j];
+					high = other.ranges[j + 1];
+					j += 2;
+				}
+				if(count > 0 && low <= all[count - 1] + 1) {
+					all[count - 1] = Math.max(all[count - 1], high);
+				} else {
+					all[count++] = low;
+					all[count++] = high;
+				}
+			}
+			return new CharSet(Arrays.copyOf(all, count));
+		}
+
+		private CharSet complement() {
+			int[] result = new int[this.ranges.length + 2];
+			int count = 0;
+			int next = 0;
+			for(int i=0; i < this.ranges.length; i += 2) {
+				if(this.ranges[i] > next) {
+					result[count++] = next;
+					result[count++] = this.ranges[i] - 1;
+				}
+				next = this.ranges[i + 1] + 1;
+			}
+			if(next <= Character.MAX_CODE_POINT) {
+				result[count++] = next;
+				result[count++] = Character.MAX_CODE_POINT;
+			}
+			return new CharSet(Arrays.copyOf(result, count));
+		}
+
+		private CharSet intersection(CharSet other) {
+			int[] result = new int[this.ranges.length + other.ranges.length];
+			int count = 0;
+			int i = 0;
+			int j = 0;
+			while(i < this.ranges.length && j < other.ranges.length) {
+				int low = Math.max(this.ranges[i], other.ranges[j]);
+				int high = Math.min(this.ranges[i + 1], other.ranges[j + 1]);
+				if(low <= high) {
+					result[count++] = low;
+					result[count++] = high;
+				}
+				if(this.ranges[i + 1] < other.ranges[j + 1]) i += 2;
+				else j += 2;
+			}
+			return new CharSet(Arrays.copyOf(result, count));
+		}
+
+		private boolean intersects(CharSet other) {
+			int i = 0;
+			int j = 0;
+			while(i < this.ranges.length && j < other.ranges.length) {
+				if(Math.max(this.ranges[i], other.ranges[j]) <= Math.min(this.ranges[i + 1], other.ranges[j + 1])) return true;
+				if(this.ranges[i + 1] < other.ranges[j + 1]) i += 2;
+				else j += 2;
+			}
+			return false;
+		}
+
+		private boolean isEmpty() {
+			return this.ranges.length == 0;
+		}
+
+		/*
+		 * adds the other case of every ascii letter, as CASE_INSENSITIVE does without UNICODE_CASE
+		 */
+		private CharSet caseFolded() {
+			CharSet folded = this;
+			CharSet upper = this.intersection(range('A', 'Z'));
+			for(int i=0; i < upper.ranges.length; i += 2) {
+				folded = folded.union(range(upper.ranges[i] + 32, upper.ranges[i + 1] + 32));
+			}
+			CharSet lower = this.intersection(range('a', 'z'));
+			for(int i=0; i < lower.ranges.length; i += 2) {
+				folded = folded.union(range(lower.ranges[i] - 32, lower.ranges[i + 1] - 32));
+			}
+			return folded;
+		}
+	}
+
+	/*
+	 * the parsed regex
+	 */
+	private static abstract class Node {
+	}
+
+	private static final class CharNode extends Node {
+		private final CharSet set;
+
+		private CharNode(CharSet set) {
+			this.set = set;
+		}
+	}
+
+	/*
+	 * matches the empty string. assertions (^, $, \b, etc) are treated as this, since they
+	 * only ever rule matches out
+	 */
+	private static final class EmptyNode extends Node {
+		private final boolean assertion;
+
+		private EmptyNode(boolean assertion) {
+			this.assertion = assertion;
+		}
+	}
+
+	private static final class ConcatNode extends Node {
+		private final List<Node> children;
+
+		private ConcatNode(List<Node> children) {
+			this.children = children;
+		}
+	}
+
+	private static final class AlternationNode extends Node {
+		private final List<Node> children;
+
+		private AlternationNode(List<Node> children) {
+			this.children = children;
+		}
+	}
+
+	private static final class RepeatNode extends Node {
+		private final Node child;
+		private final int min;
+		//-1 for unbounded
+		private final int max;
+
+		private RepeatNode(Node child, int min, int max) {
+			this.child = child;
+			this.min = min;
+			this.max = max;
+		}
+	}
+
+	/*
+	 * thompson nfa states. a state with a label consumes one character in the label and moves
+	 * to next. a state without one moves to any of its epsilon states without consuming
+	 * anything (or is the final state, if it has none)
+	 */
+	private static final class State {
+		private final CharSet label;
+		private final State next;
+		private final List<State> epsilon = new ArrayList<>(2);
+		private final int id;
+		//index among the labelled states
+		private int index = -1;
+
+		private State(CharSet label, State next, int id) {
+			this.label = label;
+			this.next = next;
+			this.id = id;
+		}
+	}
+
+	private final String regex;
+	private int position = 0;
+	private boolean caseInsensitive;
+	private boolean dotAll;
+	private int nesting = 0;
+	private long work = 0;
+	private final List<State> states = new ArrayList<>();
+	private final List<State> labelledStates = new ArrayList<>();
+
+	/*
+	 * the epsilon-free nfa: node i < labelledStates.size() is "just consumed labelled state i",
+	 * and the last node is the initial node. every transition into node i consumes a character
+	 * in labels[i]. multiplicity is the number of distinct epsilon paths (capped at 2) behind
+	 * each transition
+	 */
+	private CharSet[] labels;
+	private int[][] transitions;
+	private int[][] multiplicity;
+
+	private RegexAnalyzer(String regex, int flags) {
+		this.regex = regex;
+		this.caseInsensitive = (flags & Pattern.CASE_INSENSITIVE) != 0;
+		this.dotAll = (flags & Pattern.DOTALL) != 0;
+	}
+
+	private Result run() throws UnsupportedRegexException {
+		Node root = this.parseAlternation();
+		if(this.position < this.regex.length()) throw new UnsupportedRegexException("unexpected ')'");
+		State end = this.newState(null, null);
+		State start = this.build(root, end);
+		this.removeEpsilons(start);
+
+		int[] components = stronglyConnectedComponents(this.transitions);
+		int componentCount = 0;
+		for(int component : components) {
+			componentCount = Math.max(componentCount, component + 1);
+		}
+		List<List<Integer>> members = new ArrayList<>(componentCount);
+		for(int i=0; i < componentCount; i++) {
+			members.add(new ArrayList<>());
+		}
+		for(int node=0; node < components.length; node++) {
+			members.get(components[node]).add(node);
+		}
+		boolean[] looping = new boolean[componentCount];
+		for(int node=0; node < this.transitions.length; node++) {
+			for(int target : this.transitions[node]) {
+				if(components[target] == components[node]) looping[components[node]] = true;
+			}
+		}
+
+		for(int component=0; component < componentCount; component++) {
+			if(looping[component] && this.isExponentiallyAmbiguous(members.get(component), components, component)) {
+				return new Result(Verdict.EXPONENTIAL, 0, "part of the regex is repeated, and each repetition can match "
+						+ "the same text in more than one way, so matching can take exponential time");
+			}
+		}
+
+		/*
+		 * polynomial ambiguity. tarjan numbers components in reverse topological order, so
+		 * every component reachable from another has a lower number, and the longest chain of
+		 * ambiguous loops can be found in a single pass upwards
+		 */
+		int[] chain = new int[componentCount];
+		int degree = 0;
+		for(int component=0; component < componentCount; component++) {
+			if(!looping[component]) continue;
+			boolean[] reachable = this.reachableFrom(members.get(component));
+			for(int other=0; other < component; other++) {
+				if(!looping[other] || chain[other] + 1 <= chain[component] || !reachable[members.get(other).get(0)]) continue;
+				if(this.isPolynomiallyAmbiguous(members.get(component), components, component, members.get(other), other)) {
+					chain[component] = chain[other] + 1;
+				}
+			}
+			degree = Math.max(degree, chain[component]);
+		}
+		if(degree > 0) {
+			return new Result(Verdict.POLYNOMIAL, degree + 1, (degree + 1) + " repeated parts of the regex in a row can match "
+					+ "the same text, so matching can take time proportional to the length of the message to the power of "
+					+ (degree + 1));
+		}
+		return new Result(Verdict.SAFE, 1, "no ambiguous repetition found");
+	}
+
+	private void spend(long amount) throws UnsupportedRegexException {
+		this.work += amount;
+		if(this.work > MAX_WORK) throw new UnsupportedRegexException("regex too complex to analyze");
+	}
+
+	/*
+	 * parsing. a subset of java's syntax, see Pattern
+	 */
+
+	private Node parseAlternation() throws UnsupportedRegexException {
+		List<Node> alternatives = new ArrayList<>(2);
+		alternatives.add(this.parseConcatenation());
+		while(this.position < this.regex.length() && this.regex.charAt(this.position) == '|') {
+			this.position++;
+			alternatives.add(this.parseConcatenation());
+		}
+		return alternatives.size() == 1 ? alternatives.get(0) : new AlternationNode(alternatives);
+	}
+
+	private Node parseConcatenation() throws UnsupportedRegexException {
+		List<Node> items = new ArrayList<>();
+		while(this.position < this.regex.length()) {
+			char c = this.regex.charAt(this.position);
+			if(c == '|' || c == ')') break;
+			Node atom = this.parseAtom();
+			if(atom == null) continue;
+			items.add(this.parseQuantifiers(atom));
+		}
+		return items.size() == 1 ? items.get(0) : new ConcatNode(items);
+	}
+
+	private Node parseQuantifiers(Node atom) throws UnsupportedRegexException {
+		while(this.position < this.regex.length()) {
+			char c = this.regex.charAt(this.position);
+			int min;
+			int max;
+			if(c == '*') {
+				min = 0;
+				max = -1;
+				this.position++;
+			} else if(c == '+') {
+				min = 1;
+				max = -1;
+				this.position++;
+			} else if(c == '?') {
+				min = 0;
+				max = 1;
+				this.position++;
+			} else if(c == '{') {
+				int close = this.regex.indexOf('}', this.position);
+				if(close < 0) throw new UnsupportedRegexException("unclosed repetition");
+				String[] bounds = this.regex.substring(this.position + 1, close).split(",", -1);
+				try {
+					min = Integer.parseInt(bounds[0].trim());
+					if(bounds.length == 1) max = min;
+					else if(bounds.length == 2) max = bounds[1].isBlank() ? -1 : Integer.parseInt(bounds[1].trim());
+					else throw new UnsupportedRegexException("invalid repetition");
+				} catch (NumberFormatException e) {
+					throw new UnsupportedRegexException("invalid repetition");
+				}
+				this.position = close + 1;
+			} else {
+				return atom;
+			}
+			if(this.position < this.regex.length()) {
+				char modifier = this.regex.charAt(this.position);
+				//lazy quantifiers try the same paths in a different order, so they're no different here
+				if(modifier == '?') this.position++;
+				else if(modifier == '+') throw new UnsupportedRegexException("possessive quantifiers aren't supported");
+			}
+			if(containsAssertion(atom) && (max < 0 || max > 1)) {
+				throw new UnsupportedRegexException("assertions inside repetition aren't supported");
+			}
+			atom = new RepeatNode(atom, min, max);
+		}
+		return atom;
+	}
+
+	/*
+	 * returns null for things that match nothing and don't change the regex (eg (?i))
+	 */
+	private Node parseAtom() throws UnsupportedRegexException {
+		int c = this.regex.codePointAt(this.position);
+		this.position += Character.charCount(c);
+		switch(c) {
+			case '(':
+				return this.parseGroup();
+			case '[':
+				return new CharNode(this.parseClass());
+			case '.':
+				return new CharNode(this.dotAll ? CharSet.ALL : CharSet.DOT);
+			case '^':
+			case '$':
+				return new EmptyNode(true);
+			case '\\':
+				return this.parseEscape();
+			case '*':
+			case '+':
+			case '?':
+			case '{':
+				throw new UnsupportedRegexException("dangling quantifier");
+			default:
+				return new CharNode(this.literal(c));
+		}
+	}
+
+	private Node parseGroup() throws UnsupportedRegexException {
+		if(++this.nesting > MAX_NESTING) throw new UnsupportedRegexException("groups nested too deeply");
+		boolean savedCaseInsensitive = this.caseInsensitive;
+		boolean savedDotAll = this.dotAll;
+		if(this.regex.startsWith("?", this.position)) {
+			this.position++;
+			if(this.position >= this.regex.length()) throw new UnsupportedRegexException("unclosed group");
+			char kind = this.regex.charAt(this.position);
+			if(kind == ':') {
+				this.position++;
+			} else if(kind == '<' && this.position + 1 < this.regex.length()
+					&& Character.isLetter(this.regex.charAt(this.position + 1))) {
+				//named group
+				int close = this.regex.indexOf('>', this.position);
+				if(close < 0) throw new UnsupportedRegexException("unclosed group name");
+				this.position = close + 1;
+			} else if(kind == '=' || kind == '!' || kind == '<') {
+				throw new UnsupportedRegexException("lookaround isn't supported");
+			} else if(kind == '>') {
+				throw new UnsupportedRegexException("atomic groups aren't supported");
+			} else {
+				//inline flags, either (?flags) for the rest of the enclosing group or (?flags:...)
+				boolean enable = true;
+				while(this.position < this.regex.length()) {
+					char flag = this.regex.charAt(this.position++);
+					if(flag == '-') {
+						enable = false;
+					} else if(flag == 'i') {
+						this.caseInsensitive = enable;
+					} else if(flag == 's') {
+						this.dotAll = enable;
+					} else if(flag == 'm') {
+						//only changes what ^ and $ match, which doesn't matter here
+					} else if(flag == ')') {
+						this.nesting--;
+						return null;
+					} else if(flag == ':') {
+						break;
+					} else {
+						throw new UnsupportedRegexException("unsupported inline flag '" + flag + "'");
+					}
+				}
+			}
+		}
+		Node inner = this.parseAlternation();
+		if(this.position >= this.regex.length() || this.regex.charAt(this.position) != ')') {
+			throw new UnsupportedRegexException("unclosed group");
+		}
+		this.position++;
+		this.caseInsensitive = savedCaseInsensitive;
+		this.dotAll = savedDotAll;
+		this.nesting--;
+		return inner;
+	}
+
+	private Node parseEscape() throws UnsupportedRegexException {
+		if(this.position >= this.regex.length()) throw new UnsupportedRegexException("trailing backslash");
+		char c = this.regex.charAt(this.position);
+		switch(c) {
+			case 'b':
+			case 'B':
+			case 'A':
+			case 'z':
+			case 'Z':
+			case 'G':
+				this.position++;
+				return new EmptyNode(true);
+			case 'Q':
+				int end = this.regex.indexOf("\\E", this.position + 1);
+				String quoted = this.regex.substring(this.position + 1, end < 0 ? this.regex.length() : end);
+				this.position = end < 0 ? this.regex.length() : end + 2;
+				List<Node> characters = new ArrayList<>(quoted.length());
+				quoted.codePoints().forEach(codePoint -> characters.add(new CharNode(this.literal(codePoint))));
+				return characters.isEmpty() ? new EmptyNode(false) : new ConcatNode(characters);
+			case 'E':
+				//\E without \Q is ignored
+				this.position++;
+				return null;
+			default:
+				return new CharNode(this.parseEscapedSet());
+		}
+	}
+
+	/*
+	 * an escape that stands for a set of characters, inside or outside a class. position is
+	 * just past the backslash
+	 */
+	private CharSet parseEscapedSet() throws UnsupportedRegexException {
+		char c = this.regex.charAt(this.position++);
+		switch(c) {
+			case 'd': return CharSet.DIGIT;
+			case 'D': return CharSet.DIGIT.complement();
+			case 'w': return CharSet.WORD;
+			case 'W': return CharSet.WORD.complement();
+			case 's': return CharSet.SPACE;
+			case 'S': return CharSet.SPACE.complement();
+			case 't': return this.literal('\t');
+			case 'n': return this.literal('\n');
+			case 'r': return this.literal('\r');
+			case 'f': return this.literal('\f');
+			case 'a': return this.literal('\u0007');
+			case 'e': return this.literal('\u001B');
+			case 'x':
+				if(this.regex.startsWith("{", this.position)) {
+					int close = this.regex.indexOf('}', this.position);
+					if(close < 0) throw new UnsupportedRegexException("invalid hex escape");
+					int codePoint = this.parseHex(this.position + 1, close);
+					this.position = close + 1;
+					return this.literal(codePoint);
+				}
+				this.position += 2;
+				return this.literal(this.parseHex(this.position - 2, this.position));
+			case 'u':
+				this.position += 4;
+				return this.literal(this.parseHex(this.position - 4, this.position));
+			case '0':
+				int start = this.position;
+				while(this.position < this.regex.length() && this.position - start < 3
+						&& this.regex.charAt(this.position) >= '0' && this.regex.charAt(this.position) <= '7') {
+					this.position++;
+				}
+				if(this.position == start) throw new UnsupportedRegexException("invalid octal escape");
+				return this.literal(Integer.parseInt(this.regex.substring(start, this.position), 8));
+			default:
+				if(c >= '1' && c <= '9' || c == 'k') throw new UnsupportedRegexException("backreferences aren't supported");
+				if(Character.isLetterOrDigit(c)) throw new UnsupportedRegexException("unsupported escape '\\" + c + "'");
+				this.position--;
+				int codePoint = this.regex.codePointAt(this.position);
+				this.position += Character.charCount(codePoint);
+				return this.literal(codePoint);
+		}
+	}
+
+	private int parseHex(int start, int end) throws UnsupportedRegexException {
+		if(end > this.regex.length() || start >= end) throw new UnsupportedRegexException("invalid hex escape");
+		try {
+			return Integer.parseInt(this.regex.substring(start, end), 16);
+		} catch (NumberFormatException e) {
+			throw new UnsupportedRegexException("invalid hex escape");
+		}
+	}
+
+	/*
+	 * a character class. position is just past the [
+	 */
+	private CharSet parseClass() throws UnsupportedRegexException {
+		boolean negated = this.regex.startsWith("^", this.position);
+		if(negated) this.position++;
+		CharSet set = CharSet.EMPTY;
+		boolean first = true;
+		while(true) {
+			if(this.position >= this.regex.length()) throw new UnsupportedRegexException("unclosed character class");
+			int c = this.regex.codePointAt(this.position);
+			if(c == ']' && !first) {
+				this.position++;
+				break;
+			}
+			first = false;
+			if(c == '[' || this.regex.startsWith("&&", this.position)) {
+				throw new UnsupportedRegexException("nested character classes aren't supported");
+			}
+			CharSet item;
+			int low = -1;
+			this.position += Character.charCount(c);
+			if(c == '\\') {
+				if(this.regex.startsWith("Q", this.position)) throw new UnsupportedRegexException("quoting inside character classes isn't supported");
+				item = this.parseEscapedSet();
+				//single characters can start a range
+				if(item.ranges.length == 2 && item.ranges[0] == item.ranges[1]) low = item.ranges[0];
+			} else {
+				item = CharSet.single(c);
+				low = c;
+			}
+			if(low >= 0 && this.regex.startsWith("-", this.position) && this.position + 1 < this.regex.length()
+					&& this.regex.charAt(this.position + 1) != ']') {
+				this.position++;
+				int high = this.regex.codePointAt(this.position);
+				this.position += Character.charCount(high);
+				if(high == '\\') {
+					CharSet escaped = this.parseEscapedSet();
+					if(escaped.ranges.length != 2 || escaped.ranges[0] != escaped.ranges[1]) {
+						throw new UnsupportedRegexException("invalid character range");
+					}
+					high = escaped.ranges[0];
+				} else if(high == '[') {
+					throw new UnsupportedRegexException("nested character classes aren't supported");
+				}
+				if(high < low) throw new UnsupportedRegexException("invalid character range");
+				item = CharSet.range(low, high);
+			}
+			set = set.union(item);
+		}
+		if(this.caseInsensitive) set = set.caseFolded();
+		return negated ? set.complement() : set;
+	}
+
+	private CharSet literal(int codePoint) {
+		CharSet set = CharSet.single(codePoint);
+		return this.caseInsensitive ? set.caseFolded() : set;
+	}
+
+	private static boolean containsAssertion(Node node) {
+		if(node instanceof EmptyNode) return ((EmptyNode) node).assertion;
+		if(node instanceof ConcatNode) return ((ConcatNode) node).children.stream().anyMatch(RegexAnalyzer::containsAssertion);
+		if(node instanceof AlternationNode) return ((AlternationNode) node).children.stream().anyMatch(RegexAnalyzer::containsAssertion);
+		if(node instanceof RepeatNode) return containsAssertion(((RepeatNode) node).child);
+		return false;
+	}
+
+	private static boolean isNullable(Node node) {
+		if(node instanceof CharNode) return false;
+		if(node instanceof EmptyNode) return true;
+		if(node instanceof ConcatNode) return ((ConcatNode) node).children.stream().allMatch(RegexAnalyzer::isNullable);
+		if(node instanceof AlternationNode) return ((AlternationNode) node).children.stream().anyMatch(RegexAnalyzer::isNullable);
+		RepeatNode repeat = (RepeatNode) node;
+		return repeat.min == 0 || isNullable(repeat.child);
+	}
+
+	/*
+	 * the part of what the node matches that isn't the empty string, or null if that's nothing.
+	 * for a concatenation that's, for each child, the children before it matching nothing, that
+	 * child matching something, and then anything after it
+	 */
+	private static Node nonEmpty(Node node) {
+		if(node instanceof CharNode) return node;
+		if(node instanceof EmptyNode) return null;
+		if(node instanceof ConcatNode) {
+			List<Node> children = ((ConcatNode) node).children;
+			List<Node> alternatives = new ArrayList<>();
+			for(int i=0; i < children.size(); i++) {
+				Node first = nonEmpty(children.get(i));
+				if(first != null) {
+					List<Node> sequence = new ArrayList<>(children.size() - i);
+					sequence.add(first);
+					sequence.addAll(children.subList(i + 1, children.size()));
+					alternatives.add(new ConcatNode(sequence));
+				}
+				if(!isNullable(children.get(i))) break;
+			}
+			if(alternatives.isEmpty()) return null;
+			return alternatives.size() == 1 ? alternatives.get(0) : new AlternationNode(alternatives);
+		}
+		if(node instanceof AlternationNode) {
+			List<Node> alternatives = new ArrayList<>();
+			for(Node child : ((AlternationNode) node).children) {
+				Node nonEmptyChild = nonEmpty(child);
+				if(nonEmptyChild != null) alternatives.add(nonEmptyChild);
+			}
+			if(alternatives.isEmpty()) return null;
+			return alternatives.size() == 1 ? alternatives.get(0) : new AlternationNode(alternatives);
+		}
+		RepeatNode repeat = (RepeatNode) node;
+		if(repeat.max == 0) return null;
+		Node child = nonEmpty(repeat.child);
+		if(child == null) return null;
+		return repeat.max == 1 ? child : new RepeatNode(child, 1, repeat.max);
+	}
+
+	/*
+	 * building the nfa. each node is built backwards from the state that follows it, and
+	 * returns the state that starts it
+	 */
+
+	private State newState(CharSet label, State next) throws UnsupportedRegexException {
+		State state = new State(label, next, this.states.size());
+		this.states.add(state);
+		if(label != null) {
+			if(this.labelledStates.size() >= MAX_STATES) throw new UnsupportedRegexException("regex too large to analyze");
+			state.index = this.labelledStates.size();
+			this.labelledStates.add(state);
+		}
+		this.spend(1);
+		return state;
+	}
+
+	private State build(Node node, State out) throws UnsupportedRegexException {
+		if(node instanceof CharNode) {
+			CharSet set = ((CharNode) node).set;
+			//a class that matches nothing can never be passed
+			return set.isEmpty() ? this.newState(null, null) : this.newState(set, out);
+		} else if(node instanceof EmptyNode) {
+			return out;
+		} else if(node instanceof ConcatNode) {
+			List<Node> children = ((ConcatNode) node).children;
+			for(int i=children.size() - 1; i >= 0; i--) {
+				out = this.build(children.get(i), out);
+			}
+			return out;
+		} else if(node instanceof AlternationNode) {
+			State split = this.newState(null, null);
+			for(Node child : ((AlternationNode) node).children) {
+				split.epsilon.add(this.build(child, out));
+			}
+			return split;
+		} else /* node instanceof RepeatNode */ {
+			RepeatNode repeat = (RepeatNode) node;
+			if(repeat.max == 0) return out;
+			if(repeat.max == 1) {
+				State body = this.build(repeat.child, out);
+				if(repeat.min == 1) return body;
+				State optional = this.newState(null, null);
+				optional.epsilon.add(body);
+				optional.epsilon.add(out);
+				return optional;
+			}
+			/*
+			 * anything that can repeat more than once is a single loop, entered through its body
+			 * if at least one repetition is needed. for counted repetition like x{2,50} that's an
+			 * overestimate, but spelling it out would mean copying x 50 times, and with x = (a|a)
+			 * it really does take 2^50 steps, so it should be treated the same as x+ anyway
+			 *
+			 * java stops repeating once a repetition matches nothing, so x* is really only ever
+			 * repetitions of x matching something. building that directly keeps empty paths
+			 * around the loop out of the nfa, which would otherwise hide ambiguity like (a*)*
+			 */
+			Node child = repeat.child;
+			if(isNullable(child)) {
+				child = nonEmpty(child);
+				if(child == null) return out;
+			}
+			State loop = this.newState(null, null);
+			State body = this.build(child, loop);
+			loop.epsilon.add(body);
+			loop.epsilon.add(out);
+			return repeat.min > 0 ? body : loop;
+		}
+	}
+
+	/*
+	 * builds the epsilon-free nfa. each distinct simple epsilon path from one labelled state
+	 * to another is a separate way for the engine to get there, so it counts as a separate
+	 * transition. epsilon cycles (from repeating something that can match nothing) are cut
+	 * where they'd revisit a state, which is roughly what java does with empty repetitions
+	 */
+	private void removeEpsilons(State start) throws UnsupportedRegexException {
+		int count = this.labelledStates.size();
+		this.labels = new CharSet[count + 1];
+		this.transitions = new int[count + 1][];
+		this.multiplicity = new int[count + 1][];
+		boolean[] onPath = new boolean[this.states.size()];
+		int[] paths = new int[count];
+		for(int node=0; node <= count; node++) {
+			State from;
+			if(node < count) {
+				State labelled = this.labelledStates.get(node);
+				this.labels[node] = labelled.label;
+				from = labelled.next;
+			} else {
+				this.labels[node] = CharSet.EMPTY;
+				from = start;
+			}
+			Arrays.fill(paths, 0);
+			this.countPaths(from, onPath, paths);
+			int targets = 0;
+			for(int path : paths) {
+				if(path > 0) targets++;
+			}
+			this.transitions[node] = new int[targets];
+			this.multiplicity[node] = new int[targets];
+			int i = 0;
+			for(int target=0; target < count; target++) {
+				if(paths[target] > 0) {
+					this.transitions[node][i] = target;
+					this.multiplicity[node][i] = paths[target];
+					i++;
+				}
+			}
+		}
+	}
+
+	private void countPaths(State state, boolean[] onPath, int[] paths) throws UnsupportedRegexException {
+		this.spend(1);
+		if(state.label != null) {
+			paths[state.index] = Math.min(paths[state.index] + 1, 2);
+			return;
+		}
+		if(onPath[state.id]) return;
+		onPath[state.id] = true;
+		for(State next : state.epsilon) {
+			this.countPaths(next, onPath, paths);
+		}
+		onPath[state.id] = false;
+	}
+
+	private boolean[] reachableFrom(List<Integer> nodes) throws UnsupportedRegexException {
+		boolean[] reached = new boolean[this.transitions.length];
+		ArrayDeque<Integer> queue = new ArrayDeque<>(nodes);
+		for(int node : nodes) {
+			reached[node] = true;
+		}
+		while(!queue.isEmpty()) {
+			int node = queue.poll();
+			this.spend(this.transitions[node].length);
+			for(int target : this.transitions[node]) {
+				if(!reached[target]) {
+					reached[target] = true;
+					queue.add(target);
+				}
+			}
+		}
+		return reached;
+	}
+
+	/*
+	 * true if two different paths from some node back to itself match the same text. looks
+	 * at the product of the component with itself: two paths diverge on a transition out of
+	 * a diagonal pair (p, p) that goes to an off-diagonal pair, or that uses two different
+	 * transitions to the same node. if that transition is inside a strongly connected component
+	 * of the product, the paths can come back together and do it again
+	 */
+	private boolean isExponentiallyAmbiguous(List<Integer> nodes, int[] components, int component) throws UnsupportedRegexException {
+		int size = nodes.size();
+		this.spend((long) size * size);
+		int[] local = new int[this.transitions.length];
+		Arrays.fill(local, -1);
+		for(int i=0; i < size; i++) {
+			local[nodes.get(i)] = i;
+		}
+		//pairs are numbered first come, first served
+		int[] pairIds = new int[size * size];
+		Arrays.fill(pairIds, -1);
+		List<Integer> pairs = new ArrayList<>();
+		List<int[]> edges = new ArrayList<>();
+		List<int[]> divergent = new ArrayList<>();
+		ArrayDeque<Integer> queue = new ArrayDeque<>();
+		for(int i=0; i < size; i++) {
+			int pair = i * size + i;
+			pairIds[pair] = pairs.size();
+			pairs.add(pair);
+			queue.add(pair);
+		}
+		while(!queue.isEmpty()) {
+			int pair = queue.poll();
+			int first = nodes.get(pair / size);
+			int second = nodes.get(pair % size);
+			int from = pairIds[pair];
+			for(int i=0; i < this.transitions[first].length; i++) {
+				int firstTarget = this.transitions[first][i];
+				if(components[firstTarget] != component) continue;
+				for(int j=0; j < this.transitions[second].length; j++) {
+					int secondTarget = this.transitions[second][j];
+					this.spend(1);
+					if(components[secondTarget] != component || !this.labels[firstTarget].intersects(this.labels[secondTarget])) continue;
+					int target = local[firstTarget] * size + local[secondTarget];
+					if(pairIds[target] < 0) {
+						pairIds[target] = pairs.size();
+						pairs.add(target);
+						queue.add(target);
+					}
+					int[] edge = new int[] { from, pairIds[target] };
+					edges.add(edge);
+					if(first == second && (firstTarget != secondTarget || this.multiplicity[first][i] > 1)) divergent.add(edge);
+				}
+			}
+		}
+		if(divergent.isEmpty()) return false;
+
+		int[] outDegree = new int[pairs.size()];
+		for(int[] edge : edges) {
+			outDegree[edge[0]]++;
+		}
+		int[][] adjacency = new int[pairs.size()][];
+		for(int i=0; i < pairs.size(); i++) {
+			adjacency[i] = new int[outDegree[i]];
+		}
+		int[] filled = new int[pairs.size()];
+		for(int[] edge : edges) {
+			adjacency[edge[0]][filled[edge[0]]++] = edge[1];
+		}
+		int[] productComponents = stronglyConnectedComponents(adjacency);
+		for(int[] edge : divergent) {
+			if(productComponents[edge[0]] == productComponents[edge[1]]) return true;
+		}
+		return false;
+	}
+
+	/*
+	 * true if, for some p in the first component and q in the second, the same text can take
+	 * p back to p, p to q, and q back to q. searches the product of the nfa with itself three
+	 * times, from (p, p, q) for (p, q, q), with the first path kept inside p's component and the
+	 * third inside q's
+	 */
+	private boolean isPolynomiallyAmbiguous(List<Integer> firstNodes, int[] components, int firstComponent,
+			List<Integer> secondNodes, int secondComponent) throws UnsupportedRegexException {
+		int nodeCount = this.transitions.length;
+		for(int p : firstNodes) {
+			for(int q : secondNodes) {
+				Set<Long> visited = new HashSet<>();
+				ArrayDeque<long[]> queue = new ArrayDeque<>();
+				queue.add(new long[] { p, p, q });
+				visited.add(encode(p, p, q, nodeCount));
+				while(!queue.isEmpty()) {
+					long[] triple = queue.poll();
+					int x = (int) triple[0];
+					int y = (int) triple[1];
+					int z = (int) triple[2];
+					for(int nextX : this.transitions[x]) {
+						if(components[nextX] != firstComponent) continue;
+						for(int nextZ : this.transitions[z]) {
+							this.spend(1);
+							if(components[nextZ] != secondComponent) continue;
+							CharSet common = this.labels[nextX].intersection(this.labels[nextZ]);
+							if(common.isEmpty()) continue;
+							for(int nextY : this.transitions[y]) {
+								this.spend(1);
+								if(!common.intersects(this.labels[nextY])) continue;
+								if(nextX == p && nextY == q && nextZ == q) return true;
+								if(visited.add(encode(nextX, nextY, nextZ, nodeCount))) {
+									queue.add(new long[] { nextX, nextY, nextZ });
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		return false;
+	}
+
+	private static long encode(int x, int y, int z, int nodeCount) {
+		return ((long) x * nodeCount + y) * nodeCount + z;
+	}
+
+	/*
+	 * tarjan's algorithm, iteratively since product graphs can be big. components are numbered
+	 * in reverse topological order
+	 */
+	private static int[] stronglyConnectedComponents(int[][] adjacency) {
+		int size = adjacency.length;
+		int[] index = new int[size];
+		int[] low = new int[size];
+		int[] component = new int[size];
+		Arrays.fill(index, -1);
+		boolean[] onStack = new boolean[size];
+		int[] stack = new int[size];
+		int stackSize = 0;
+		int[] callNode = new int[size];
+		int[] callEdge = new int[size];
+		int counter = 0;
+		int components = 0;
+		for(int root=0; root < size; root++) {
+			if(index[root] >= 0) continue;
+			int depth = 0;
+			callNode[depth] = root;
+			callEdge[depth] = 0;
+			depth++;
+			index[root] = low[root] = counter++;
+			stack[stackSize++] = root;
+			onStack[root] = true;
+			while(depth > 0) {
+				int node = callNode[depth - 1];
+				if(callEdge[depth - 1] < adjacency[node].length) {
+					int target = adjacency[node][callEdge[depth - 1]++];
+					if(index[target] < 0) {
+						index[target] = low[target] = counter++;
+						stack[stackSize++] = target;
+						onStack[target] = true;
+						callNode[depth] = target;
+						callEdge[depth] = 0;
+						depth++;
+					} else if(onStack[target]) {
+						low[node] = Math.min(low[node], index[target]);
+					}
+				} else {
+					depth--;
+					if(depth > 0) {
+						int parent = callNode[depth - 1];
+						low[parent] = Math.min(low[parent], low[node]);
+					}
+					if(low[node] == index[node]) {
+						int member;
+						do {
+							member = stack[--stackSize];
+							onStack[member] = false;
+							component[member] = components;
+						} while(member != node);
+						components++;
+					}
+				}
+			}
+		}
+		return component;
+	}
+
+	@Override
+	public String toString() {
+		return "RegexAnalyzer";
+	}
+}
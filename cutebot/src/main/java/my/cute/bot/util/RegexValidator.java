@@ -3,30 +3,172 @@ package my.cute.bot.util;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.lang.ref.SoftReference;
+import java.nio.CharBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.function.Consumer;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Pattern;
-import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class RegexValidator {
 
+	private static final Logger logger = LoggerFactory.getLogger(RegexValidator.class);
 	//in ms
 	private static final long TIMEOUT_THRESHOLD = 50;
-	private static final long NUM_LINES = 400000;
-	private static final long ENTIRE_PROCESS_TIMEOUT = 300000;
-	
+	private static final int NUM_LINES = 400000;
+	private static final int WARMUP_LINES = 1000;
+	private static final long ENTIRE_PROCESS_TIMEOUT = 60000;
+	/*
+	 * the fastest growth in matching time (as a power of message length) that static analysis
+	 * doesn't reject outright. quadratic patterns still aren't accepted without testing, since
+	 * lazy or alternating loops can make one take seconds on a long message (see validate)
+	 */
+	private static final int MAX_POLYNOMIAL_DEGREE = 2;
+	/*
+	 * corpus lines are split between workers down to chunks of this many lines, which are
+	 * tested one after the other
+	 */
+	private static final int LINES_PER_TASK = 2048;
+	private static final Path TEST_INPUT = Paths.get("./testinput.txt");
+	private static final Path TEST_LONG_MESSAGE = Paths.get("./testlongmessage.txt");
+
+	/*
+	 * validations share a pool with a thread per core, separate from the common pool so a
+	 * validation doesn't hold up everything else using that
+	 */
+	private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+		ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+		thread.setName("regex-validator-" + thread.getPoolIndex());
+		thread.setDaemon(true);
+		return thread;
+	}, null, false);
+
+	/*
+	 * the test corpus is loaded on first use and kept for later validations, unless memory
+	 * gets tight
+	 */
+	private static SoftReference<Corpus> corpusCache = new SoftReference<>(null);
+
 	/**
+	 * the result of validating a regex, from {@link RegexValidator#validate(Pattern)}
+	 */
+	public static final class Result {
+		private final boolean passed;
+		private final String failure;
+		private final RegexAnalyzer.Result analysis;
+		private final int linesTested;
+		private final long[] latencyPercentiles;
+		private final long maxLatency;
+		private final long elapsed;
+
+		private Result(boolean passed, String failure, RegexAnalyzer.Result analysis, int linesTested,
+				long[] latencyPercentiles, long maxLatency, long elapsed) {
+			this.passed = passed;
+			this.failure = failure;
+			this.analysis = analysis;
+			this.linesTested = linesTested;
+			this.latencyPercentiles = latencyPercentiles;
+			this.maxLatency = maxLatency;
+			this.elapsed = elapsed;
+		}
+
+		public boolean passed() {
+			return this.passed;
+		}
+
+		/**
+		 * @return null if the regex passed, or otherwise why it failed: "[static] " followed
+		 * by the reason from static analysis, the corpus line that timed out, "[longline]" if
+		 * the long message timed out, or "[wholeprocess]" if the whole test took too long
+		 */
+		public String getFailure() {
+			return this.failure;
+		}
+
+		/**
+		 * @return the result of static analysis. if it's {@link RegexAnalyzer.Verdict#UNKNOWN},
+		 * the regex was tested against the corpus. if it's {@link RegexAnalyzer.Verdict#POLYNOMIAL}
+		 * with low enough degree, the regex was tested against the long message, and against the
+		 * corpus only if that timed out. otherwise it wasn't tested at all
+		 */
+		public RegexAnalyzer.Result getAnalysis() {
+			return this.analysis;
+		}
+
+		/**
+		 * @return the number of corpus lines tested, not counting warmup. 0 if the regex wasn't
+		 * tested against the corpus
+		 */
+		public int getLinesTested() {
+			return this.linesTested;
+		}
+
+		/**
+		 * @return 50th, 99th, and 99.9th percentile time to check a corpus line, in microseconds.
+		 * these are upper bounds, accurate to within a factor of two
+		 */
+		public long[] getLatencyPercentiles() {
+			return this.latencyPercentiles.clone();
+		}
+
+		/**
+		 * @return the longest time taken to check a corpus line, in microseconds
+		 */
+		public long getMaxLatency() {
+			return this.maxLatency;
+		}
+
+		/**
+		 * @return how long validation took, in ms
+		 */
+		public long getElapsed() {
+			return this.elapsed;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder builder = new StringBuilder();
+			builder.append(this.passed ? "passed" : "failed (" + this.failure + ")");
+			builder.append(" in ").append(this.elapsed).append("ms, ");
+			if(this.analysis.getVerdict() != RegexAnalyzer.Verdict.UNKNOWN) {
+				builder.append("static analysis: ").append(this.analysis);
+			}
+			if(this.linesTested > 0) {
+				if(this.analysis.getVerdict() != RegexAnalyzer.Verdict.UNKNOWN) builder.append(", ");
+				builder.append(this.linesTested).append(" lines tested, p50<=").append(this.latencyPercentiles[0]);
+				builder.append("us, p99<=").append(this.latencyPercentiles[1]);
+				builder.append("us, p99.9<=").append(this.latencyPercentiles[2]);
+				builder.append("us, max=").append(this.maxLatency).append("us");
+			}
+			return builder.toString();
+		}
+	}
+
+	/**
+	 * checks a given Pattern for catastrophic backtracking with {@link RegexAnalyzer} first.
+	 * patterns it finds safe (linear) pass, and exponential or worse than quadratic patterns
+	 * fail, in milliseconds. a pattern it rates quadratic can still be slow enough to time
+	 * out in the bot (eg with lazy or alternating loops), so it's matched against the long
+	 * message first and passes if that's fast enough. if it isn't, or if the analysis can't
+	 * model the pattern, the pattern is tested empirically, as follows
+	 * <p>
 	 * tests a given Pattern against a collection of arbitrary input similar to
 	 * what the Pattern is likely going to be checked against. runs the same
 	 * pattern-finding code that will be used by the bot, and if any attempted
 	 * match exceeds the timeout threshold (as specified by TIMEOUT_THRESHOLD,
-	 * in ms), returns false.
+	 * in ms), the pattern fails.
 	 * <p>
 	 * note that for this test, the threshold for a timeout is considerably
 	 * lower than the actual threshold for a timeout during bot operation. i
@@ -35,286 +177,280 @@ public class RegexValidator {
 	 * but the actual breadth of what it might run into could be a lot wider than
 	 * this test. also this test runs on NUM_LINES lines of text, so in production
 	 * environment lines are being processed at a much slower rate so we have
-	 * leeway on time taken to check the pattern 
+	 * leeway on time taken to check the pattern
 	 * <p>
-	 * note also that the entire method has a timeout threshold, since at maximum 
-	 * the whole test could take about (TIMEOUT_THRESHOLD * NUM_LINES) ms, which 
-	 * could be a pretty long time. it's extremely unlikely that a regex would
-	 * consistently take that much time without ever going over the threshold
-	 * (much more likely it'd be extremely fast for a vast majority of inputs 
-	 * and unacceptably slow for certain specific inputs), but i guess it's 
-	 * possible, so there's a (still extremely forgiving) max duration for the
-	 * whole process
+	 * the corpus is kept in memory between validations, and its lines are split
+	 * across a thread per core. the first timeout stops every thread. there's still
+	 * a (generous) max duration for the whole process, in case a pattern is
+	 * consistently slow without ever going over the threshold
 	 * @param pattern The pattern to test for timeout with
-	 * @return true if the pattern passed all tests, false if at least one test
-	 * was failed
-	 * @throws IOException 
+	 * @return the result of the test
+	 * @throws IOException if the test corpus couldn't be read
 	 */
-	public static boolean regexTimeoutTest(Pattern pattern) throws IOException {
-		
+	public static Result validate(Pattern pattern) throws IOException {
+		long start = System.currentTimeMillis();
+		RegexAnalyzer.Result analysis = RegexAnalyzer.analyze(pattern);
+		if(isDecidedStatically(analysis)) {
+			boolean passed = analysis.getVerdict() == RegexAnalyzer.Verdict.SAFE;
+			return new Result(passed, passed ? null : "[static] " + analysis.getReason(), analysis, 0, new long[3], 0,
+					System.currentTimeMillis() - start);
+		}
+
+		Corpus corpus = getCorpus();
+		long processDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ENTIRE_PROCESS_TIMEOUT);
 		/*
-		 * TODO this should probably all be moved to a future. fairly long process so probably
-		 * don't want to block everything while this is happening...
+		 * the long message is the worst case for a polynomial pattern, so passing it is enough.
+		 * this match is cold though, so a timeout here could just be the jit. the full test
+		 * below (with warmup) decides in that case
 		 */
-		try {
-			//future for specifying a timeout for entire process
-			//note we need to get the IOExceptions out of lambdas because of this so it's really ugly. what a shame
-			CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(() -> {
-				//warmup
-				try (Stream<String> lines = Files.lines(Paths.get("./testinput.txt"), StandardCharsets.UTF_8).limit(1000)) {
-					lines.forEach(line -> {
-						try {
-							MiscUtils.findMatchWithTimeout(pattern, line, TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-						} catch (TimeoutException e) {
-							//ignore timeouts during warmup and continue
-						} catch (InterruptedException | ExecutionException e) {
-							throw new RuntimeException(e);
-						}
-					});
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				}
-				
-				//test on many messages
-				try (Stream<String> lines = Files.lines(Paths.get("./testinput.txt"), StandardCharsets.UTF_8).limit(NUM_LINES)) {
-					lines.forEach(line -> {
-						try {
-							MiscUtils.findMatchWithTimeout(pattern, line, TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-						} catch (TimeoutException e) {
-							throw new UncheckedTimeoutException(e);
-						} catch (InterruptedException | ExecutionException e) {
-							throw new RuntimeException(e);
-						} 
-					});
-				} catch (UncheckedTimeoutException e) {
-					//a test failed
-					return false;
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				}
-				
-				//now test on long message
-				try (BufferedReader reader = Files.newBufferedReader(Paths.get("./testlongmessage.txt"), StandardCharsets.UTF_8)) {
-					MiscUtils.findMatchWithTimeout(pattern, reader.readLine(), TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-				} catch (TimeoutException e) {
-					return false;
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				} catch (InterruptedException | ExecutionException e) {
-					throw new RuntimeException(e);
-				} 
-				//all tests passed
-				return true;
-			});
-			
-			return future.get(ENTIRE_PROCESS_TIMEOUT, TimeUnit.MILLISECONDS);
-			
-		} catch (ExecutionException e) {
-			//IOException wrapped by CompletableFuture. extract it
-			if(e.getCause() instanceof UncheckedIOException) {
-				throw ((UncheckedIOException)e.getCause()).getCause();
-			} else if(e.getCause() instanceof RuntimeException) {
-				//some other problem?
-				throw ((RuntimeException)e.getCause());
-			} else {
-				//shouldnt be possible to have any other checked exceptions
-				throw new AssertionError(e);
+		if(analysis.getVerdict() == RegexAnalyzer.Verdict.POLYNOMIAL && corpus.longMessage != null) {
+			try {
+				MiscUtils.findMatchWithDeadline(pattern, corpus.longMessage, lineDeadline(processDeadline));
+				Result result = new Result(true, null, analysis, 0, new long[3], 0, System.currentTimeMillis() - start);
+				logger.info("RegexValidator: validated '" + pattern.pattern() + "': " + result);
+				return result;
+			} catch (TimeoutException e) {
+				//fall through to the corpus test
+			}
+		}
+		//warmup, so the jit has compiled the pattern before anything is timed
+		int warmup = Math.min(WARMUP_LINES, corpus.size());
+		for(int i=0; i < warmup; i++) {
+			try {
+				MiscUtils.findMatchWithDeadline(pattern, corpus.line(i),
+						System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_THRESHOLD));
+			} catch (TimeoutException e) {
+				//ignore timeouts during warmup and continue
 			}
-		} catch (InterruptedException e) {
-			throw new AssertionError(e);
-		} catch (TimeoutException e) {
-			//whole validation process took too long
-			return false;
 		}
+
+		AtomicReference<String> failure = new AtomicReference<>(null);
+		Latencies latencies = POOL.invoke(new CorpusTask(pattern, corpus, 0, corpus.size(), processDeadline, failure));
+
+		//now test on long message
+		if(failure.get() == null && corpus.longMessage != null) {
+			try {
+				MiscUtils.findMatchWithDeadline(pattern, corpus.longMessage, lineDeadline(processDeadline));
+			} catch (TimeoutException e) {
+				failure.compareAndSet(null, System.nanoTime() - processDeadline >= 0 ? "[wholeprocess]" : "[longline]");
+			}
+		}
+		Result result = new Result(failure.get() == null, failure.get(), analysis, (int) latencies.count,
+				new long[] { latencies.percentile(0.5), latencies.percentile(0.99), latencies.percentile(0.999) },
+				latencies.max, System.currentTimeMillis() - start);
+		logger.info("RegexValidator: validated '" + pattern.pattern() + "': " + result);
+		return result;
 	}
-	
+
 	/**
-	 * tests a given Pattern against a collection of arbitrary input similar to
-	 * what the Pattern is likely going to be checked against. runs the same
-	 * pattern-finding code that will be used by the bot, and if any attempted
-	 * match exceeds the timeout threshold (as specified by TIMEOUT_THRESHOLD,
-	 * in ms), returns false.
-	 * <p>
-	 * note that for this test, the threshold for a timeout is considerably
-	 * lower than the actual threshold for a timeout during bot operation. i
-	 * think this makes sense because this is a random collection of some lines
-	 * that are the sort of random lines the bot will encounter during operation,
-	 * but the actual breadth of what it might run into could be a lot wider than
-	 * this test. also this test runs on NUM_LINES lines of text, so in production
-	 * environment lines are being processed at a much slower rate so we have
-	 * leeway on time taken to check the pattern 
-	 * <p>
-	 * note also that the entire method has a timeout threshold, since at maximum 
-	 * the whole test could take about (TIMEOUT_THRESHOLD * NUM_LINES) ms, which 
-	 * could be a pretty long time. it's extremely unlikely that a regex would
-	 * consistently take that much time without ever going over the threshold
-	 * (much more likely it'd be extremely fast for a vast majority of inputs 
-	 * and unacceptably slow for certain specific inputs), but i guess it's 
-	 * possible, so there's a (still extremely forgiving) max duration for the
-	 * whole process
-	 * <p>
-	 * instead of executing tests on the calling thread like non-async version,
-	 * this method executes tests via a task submitted to default forkjoinpool through
-	 * CompletableFuture, and instead of returning a result directly, the result
-	 * of the tests can be obtained through the returned CompletableFuture. note 
-	 * that the returned CompletableFuture may complete exceptionally with a number
-	 * of different exceptions
+	 * as {@link #validate(Pattern)}
 	 * @param pattern The pattern to test for timeout with
-	 * @return a CompletableFuture that completes normally with true if all tests 
-	 * passed successfully, or completes normally with false if a test failed via 
+	 * @return true if the pattern passed all tests, false if at least one test
+	 * was failed
+	 * @throws IOException
+	 */
+	public static boolean regexTimeoutTest(Pattern pattern) throws IOException {
+		return validate(pattern).passed();
+	}
+
+	/**
+	 * as {@link #validate(Pattern)}, but instead of executing tests on the calling
+	 * thread, this method executes them on the validator's pool, and instead of
+	 * returning a result directly, the result of the tests can be obtained through
+	 * the returned CompletableFuture. patterns decided by static analysis alone
+	 * complete the future immediately
+	 * @param pattern The pattern to test for timeout with
+	 * @return a CompletableFuture that completes normally with true if all tests
+	 * passed successfully, or completes normally with false if a test failed via
 	 * timeout. it may also complete exceptionally with an IOException wrapped as
 	 * UncheckedIOException (if IOException is encountered when
-	 * opening test files to read), or with an InterruptedException or ExecutionException
-	 * wrapped as RuntimeException (ExecutionException could occur if the provided 
-	 * Pattern is invalid, for example)
+	 * opening test files to read), or with any RuntimeException thrown while matching
 	 */
 	public static CompletableFuture<Boolean> regexTimeoutTestAsync(Pattern pattern) {
+		RegexAnalyzer.Result analysis = RegexAnalyzer.analyze(pattern);
+		if(isDecidedStatically(analysis)) {
+			return CompletableFuture.completedFuture(analysis.getVerdict() == RegexAnalyzer.Verdict.SAFE);
+		}
 		return CompletableFuture.supplyAsync(() -> {
-			try (Stream<String> lines = Files.lines(Paths.get("./testinput.txt"), StandardCharsets.UTF_8).limit(1000)) {
-				lines.forEach(line -> {
-					try {
-						MiscUtils.findMatchWithTimeout(pattern, line, TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-					} catch (TimeoutException e) {
-						//ignore timeouts during warmup and continue
-					} catch (InterruptedException | ExecutionException e) {
-						throw new RuntimeException(e);
-					}
-				});
-			} catch (IOException e) {
-				throw new UncheckedIOException(e);
-			}
-			
-			try (Stream<String> lines = Files.lines(Paths.get("./testinput.txt"), StandardCharsets.UTF_8).limit(NUM_LINES)) {
-				lines.forEach(line -> {
-					try {
-						MiscUtils.findMatchWithTimeout(pattern, line, TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-					} catch (TimeoutException e) {
-						throw new UncheckedTimeoutException(e);
-					} catch (InterruptedException | ExecutionException e) {
-						throw new RuntimeException(e);
-					} 
-				});
-			} catch (UncheckedTimeoutException e) {
-				return false;
-			} catch (IOException e) {
-				throw new UncheckedIOException(e);
-			}
-			
-			try (BufferedReader reader = Files.newBufferedReader(Paths.get("./testlongmessage.txt"), StandardCharsets.UTF_8)) {
-				MiscUtils.findMatchWithTimeout(pattern, reader.readLine(), TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-			} catch (TimeoutException e) {
-				return false;
+			try {
+				return validate(pattern).passed();
 			} catch (IOException e) {
 				throw new UncheckedIOException(e);
-			} catch (InterruptedException | ExecutionException e) {
-				throw new RuntimeException(e);
 			}
-			
-			return true;
-		});
+		}, POOL);
 	}
-	
+
+	/**
+	 * as {@link #validate(Pattern)}, but only describes why the pattern failed
+	 * @param pattern The pattern to test for timeout with
+	 * @return null if the pattern passed, or otherwise the reason it failed, as
+	 * in {@link Result#getFailure()}
+	 * @throws IOException
+	 */
 	public static String regexTimeoutTestWithResult(Pattern pattern) throws IOException {
-		
-		try {
-			//future for specifying a timeout for entire process
-			//note we need to get the IOExceptions out of lambdas because of this so it's really ugly. what a shame
-			CompletableFuture<String> future = CompletableFuture.supplyAsync(() -> {
-				//warmup
-				try (Stream<String> lines = Files.lines(Paths.get("./testinput.txt"), StandardCharsets.UTF_8).limit(1000)) {
-					lines.forEach(line -> {
-						try {
-							MiscUtils.findMatchWithTimeout(pattern, line, TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-						} catch (TimeoutException e) {
-							//ignore timeouts during warmup and continue
-						} catch (InterruptedException | ExecutionException e) {
-							throw new RuntimeException(e);
-						}
-					});
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				}
-				
-				//test on many messages
-				try (Stream<String> lines = Files.lines(Paths.get("./testinput.txt"), StandardCharsets.UTF_8).limit(NUM_LINES)) {
-					lines.forEach(line -> {
-							try {
-								MiscUtils.findMatchWithTimeout(pattern, line, TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-							} catch (TimeoutException e) {
-								throw new UncheckedTimeoutException(e);
-							} catch (InterruptedException | ExecutionException e) {
-								throw new RuntimeException(e);
-							}
-						});
-				} catch (UncheckedTimeoutException e) {
-					return e.getCause().getMessage();
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
+		return validate(pattern).getFailure();
+	}
+
+	/*
+	 * true if the pattern passes (SAFE) or fails on static analysis alone. polynomial patterns
+	 * of low enough degree and patterns the analysis can't model still need testing
+	 */
+	private static boolean isDecidedStatically(RegexAnalyzer.Result analysis) {
+		switch(analysis.getVerdict()) {
+			case POLYNOMIAL:
+				return analysis.getDegree() > MAX_POLYNOMIAL_DEGREE;
+			case UNKNOWN:
+				return false;
+			default:
+				return true;
+		}
+	}
+
+	private static long lineDeadline(long processDeadline) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_THRESHOLD);
+		return deadline - processDeadline > 0 ? processDeadline : deadline;
+	}
+
+	private static synchronized Corpus getCorpus() throws IOException {
+		Corpus corpus = corpusCache.get();
+		if(corpus == null) {
+			corpus = Corpus.load(TEST_INPUT, NUM_LINES, TEST_LONG_MESSAGE);
+			corpusCache = new SoftReference<>(corpus);
+		}
+		return corpus;
+	}
+
+	/*
+	 * the test lines, all in one char array rather than as hundreds of thousands of strings.
+	 * line i is text[offsets[i], offsets[i + 1])
+	 */
+	private static final class Corpus {
+		private final char[] text;
+		private final int[] offsets;
+		private final String longMessage;
+
+		private Corpus(char[] text, int[] offsets, String longMessage) {
+			this.text = text;
+			this.offsets = offsets;
+			this.longMessage = longMessage;
+		}
+
+		private static Corpus load(Path input, int maxLines, Path longMessageFile) throws IOException {
+			StringBuilder builder = new StringBuilder();
+			int[] offsets = new int[1024];
+			int lines = 0;
+			try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+				String line;
+				while(lines < maxLines && (line = reader.readLine()) != null) {
+					if(lines + 1 >= offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+					builder.append(line);
+					offsets[++lines] = builder.length();
 				}
-				
-				//now test on long message
-				try (BufferedReader reader = Files.newBufferedReader(Paths.get("./testlongmessage.txt"), StandardCharsets.UTF_8)) {
-					MiscUtils.findMatchWithTimeout(pattern, reader.readLine(), TIMEOUT_THRESHOLD, TimeUnit.MILLISECONDS);
-				} catch (TimeoutException e) {
-					return "[longline]";
-				} catch (IOException e) {
-					throw new UncheckedIOException(e);
-				} catch (InterruptedException | ExecutionException e) {
-					throw new RuntimeException(e);
-				} 
-				//all tests passed
-				return null;
-			});
-			
-			return future.get(5, TimeUnit.MINUTES);
-			
-		} catch (ExecutionException e) {
-			//IOException wrapped by CompletableFuture. extract it
-			if(e.getCause() instanceof UncheckedIOException) {
-				throw ((UncheckedIOException)e.getCause()).getCause();
-			} else if(e.getCause() instanceof RuntimeException) {
-				//some other problem?
-				throw ((RuntimeException)e.getCause());
-			} else {
-				//shouldnt be possible to have any other checked exceptions
-				throw new AssertionError(e);
 			}
-		} catch (InterruptedException e) {
-			throw new AssertionError(e);
-		} catch (TimeoutException e) {
-			//whole validation process took too long
-			return "[wholeprocess]";
+			String longMessage;
+			try (BufferedReader reader = Files.newBufferedReader(longMessageFile, StandardCharsets.UTF_8)) {
+				longMessage = reader.readLine();
+			}
+			char[] text = new char[builder.length()];
+			builder.getChars(0, builder.length(), text, 0);
+			return new Corpus(text, Arrays.copyOf(offsets, lines + 1), longMessage);
+		}
+
+		private int size() {
+			return this.offsets.length - 1;
+		}
+
+		private CharSequence line(int index) {
+			return CharBuffer.wrap(this.text, this.offsets[index], this.offsets[index + 1] - this.offsets[index]);
 		}
 	}
-	
-	private static interface ConsumerWithTimeout<T> extends Consumer<T> {
-		
-		@Override
-		default void accept(T t) {
-			try {
-				consumeWithTimeout(t);
-			} catch (TimeoutException e) {
-				if(t instanceof String) {
-					throw new UncheckedTimeoutException(new TimeoutException((String)t));
-				} else {
-					throw new UncheckedTimeoutException(e);
-				}
+
+	/*
+	 * time taken per line, bucketed by powers of two of microseconds
+	 */
+	private static final class Latencies {
+		private final long[] buckets = new long[40];
+		private long count = 0;
+		private long max = 0;
+
+		private void record(long nanos) {
+			long micros = Math.max(nanos / 1000, 0);
+			int bucket = Math.min(63 - Long.numberOfLeadingZeros(Math.max(micros, 1)), this.buckets.length - 1);
+			this.buckets[bucket]++;
+			this.count++;
+			this.max = Math.max(this.max, micros);
+		}
+
+		private Latencies merge(Latencies other) {
+			for(int i=0; i < this.buckets.length; i++) {
+				this.buckets[i] += other.buckets[i];
+			}
+			this.count += other.count;
+			this.max = Math.max(this.max, other.max);
+			return this;
+		}
+
+		/*
+		 * upper bound of the bucket the given percentile falls in
+		 */
+		private long percentile(double percentile) {
+			if(this.count == 0) return 0;
+			long target = (long) Math.ceil(this.count * percentile);
+			long seen = 0;
+			for(int i=0; i < this.buckets.length; i++) {
+				seen += this.buckets[i];
+				if(seen >= target) return 1L << (i + 1);
 			}
+			return 1L << this.buckets.length;
 		}
-		
-		void consumeWithTimeout(T t) throws TimeoutException;
 	}
-	
-	private static class UncheckedTimeoutException extends RuntimeException {
+
+	/*
+	 * tests a range of corpus lines, splitting it in half until it's small enough to test
+	 * directly. every task stops as soon as any line fails
+	 */
+	private static final class CorpusTask extends RecursiveTask<Latencies> {
 		private static final long serialVersionUID = 1L;
-		private final TimeoutException e;
-		
-		private UncheckedTimeoutException(TimeoutException e) {
-			this.e = e;
+		private final Pattern pattern;
+		private final Corpus corpus;
+		private final int from;
+		private final int to;
+		private final long processDeadline;
+		private final AtomicReference<String> failure;
+
+		private CorpusTask(Pattern pattern, Corpus corpus, int from, int to, long processDeadline,
+				AtomicReference<String> failure) {
+			this.pattern = pattern;
+			this.corpus = corpus;
+			this.from = from;
+			this.to = to;
+			this.processDeadline = processDeadline;
+			this.failure = failure;
 		}
-		
-		public TimeoutException getCause() {
-			return this.e;
+
+		@Override
+		protected Latencies compute() {
+			if(this.to - this.from > LINES_PER_TASK) {
+				int middle = (this.from + this.to) >>> 1;
+				CorpusTask second = new CorpusTask(this.pattern, this.corpus, middle, this.to, this.processDeadline, this.failure);
+				second.fork();
+				Latencies first = new CorpusTask(this.pattern, this.corpus, this.from, middle, this.processDeadline, this.failure).compute();
+				return first.merge(second.join());
+			}
+			Latencies latencies = new Latencies();
+			for(int i=this.from; i < this.to; i++) {
+				if(this.failure.get() != null) break;
+				long start = System.nanoTime();
+				try {
+					MiscUtils.findMatchWithDeadline(this.pattern, this.corpus.line(i), lineDeadline(this.processDeadline));
+				} catch (TimeoutException e) {
+					boolean wholeProcess = System.nanoTime() - this.processDeadline >= 0;
+					this.failure.compareAndSet(null, wholeProcess ? "[wholeprocess]" : this.corpus.line(i).toString());
+					break;
+				}
+				latencies.record(System.nanoTime() - start);
+			}
+			return latencies;
 		}
 	}
 }